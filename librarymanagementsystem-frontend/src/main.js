@@ -12,7 +12,8 @@ const app = createApp(App)
 for (const [key, component] of Object.entries(ElementPlusIconsVue)) {
     app.component(key, component)
 }
-axios.defaults.baseURL = 'http://localhost:8000';
+// the Java server serves this app, so the API is on the same origin
+axios.defaults.baseURL = import.meta.env.VITE_API_BASE_URL || '';
 app.use(createPinia())
 app.use(router)
 app.use(ElementPlus)
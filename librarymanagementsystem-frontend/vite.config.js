@@ -1,16 +1,64 @@
 import { fileURLToPath, URL } from 'node:url'
+import { readdirSync, readFileSync, statSync, writeFileSync } from 'node:fs'
+import { join, resolve } from 'node:path'
+import { brotliCompressSync, constants, gzipSync } from 'node:zlib'
 
 import { defineConfig } from 'vite'
 import vue from '@vitejs/plugin-vue'
 
+// API contexts of the Java server, see Main.java
+const api = ['/book', '/bookset', '/card', '/borrow', '/return', '/metrics']
+
+// write .gz and .br next to every compressible file of dist/, the Java
+// server sends them to clients that accept the encoding
+function precompress() {
+  const compressible = /\.(html|js|mjs|css|svg|json|txt|map|ico)$/
+  let outDir
+  const walk = (dir) => {
+    for (const name of readdirSync(dir)) {
+      const path = join(dir, name)
+      if (statSync(path).isDirectory()) {
+        walk(path)
+        continue
+      }
+      if (!compressible.test(name) || statSync(path).size < 1024) {
+        continue
+      }
+      const data = readFileSync(path)
+      writeFileSync(path + '.gz', gzipSync(data, { level: 9 }))
+      writeFileSync(path + '.br', brotliCompressSync(data, {
+        params: { [constants.BROTLI_PARAM_QUALITY]: constants.BROTLI_MAX_QUALITY }
+      }))
+    }
+  }
+  return {
+    name: 'precompress',
+    apply: 'build',
+    configResolved(config) {
+      outDir = resolve(config.root, config.build.outDir)
+    },
+    closeBundle() {
+      walk(outDir)
+    }
+  }
+}
+
 // https://vitejs.dev/config/
 export default defineConfig({
   plugins: [
     vue(),
+    precompress(),
   ],
   resolve: {
     alias: {
       '@': fileURLToPath(new URL('./src', import.meta.url))
     }
+  },
+  server: {
+    // the dev server forwards API calls, pages such as /book stay with vite
+    proxy: Object.fromEntries(api.map((path) => [path, {
+      target: 'http://localhost:8000',
+      bypass: (req) => (req.headers.accept || '').includes('text/html') ? '/index.html' : undefined
+    }]))
   }
 })
@@ -0,0 +1,40 @@
+package benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs {@link LibraryBenchmark} once per thread count, every run covers
+ * all dataset sizes.
+ *
+ * usage: mvn -Pjmh test-compile exec:exec [-Dbench.threads=1,4,16] [-Dbench.books=1000,10000] [-Dbench.include=LibraryBenchmark]
+ *                                          [-Dbench.db=config]
+ *
+ * results are printed and also written to target/jmh-threads-N.json.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String[] threadCounts = System.getProperty("bench.threads", "1,4,16").split(",");
+        String[] datasetSizes = System.getProperty("bench.books", "1000,10000").split(",");
+        String include = System.getProperty("bench.include", LibraryBenchmark.class.getSimpleName());
+        for (String threads : threadCounts) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .param("nBooks", datasetSizes)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .forks(1)
+                    .warmupIterations(3)
+                    .warmupTime(TimeValue.seconds(2))
+                    .measurementIterations(5)
+                    .measurementTime(TimeValue.seconds(2))
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("target/jmh-threads-" + threads.trim() + ".json");
+            new Runner(options.build()).run();
+        }
+    }
+}
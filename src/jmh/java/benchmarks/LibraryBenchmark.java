@@ -0,0 +1,180 @@
+package benchmarks;
+
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import utils.ConnectConfig;
+import utils.DatabaseConnector;
+import utils.RandomData;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hot paths of LibraryManagementSystemImpl against an in-memory H2
+ * database seeded with {@link RandomData}.
+ *
+ * Note:
+ *      (1) every benchmark reports throughput and the latency
+ *          distribution (p50, p90, p99 ...) of a single call.
+ *      (2) thread counts and dataset sizes are swept by
+ *          {@link BenchmarkRunner}, see the "jmh" profile in pom.xml.
+ *      (3) the database is reset once per trial!
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LibraryBenchmark {
+
+    private static final int CARDS = 256;
+    private static final int HISTORY_PER_CARD = 20;
+    private static final int STORE_BATCH = 100;
+    private static final int PAGE_SIZE = 100;
+
+    @Param({"1000", "10000"})
+    public int nBooks;
+
+    DatabaseConnector connector;
+    LibraryHandle library;
+    List<Book> books;
+    List<Card> cards;
+    final AtomicInteger nextCard = new AtomicInteger();
+    final AtomicLong nextStoredBook = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void seed() throws Exception {
+        // -Dbench.db=config runs against the database of application.yaml instead
+        ConnectConfig conf = "config".equals(System.getProperty("bench.db"))
+                ? new ConnectConfig() : ConnectConfig.embedded("bench");
+        connector = new DatabaseConnector(conf);
+        if (!connector.connect()) {
+            throw new IllegalStateException("Failed to connect database.");
+        }
+        library = new LibraryHandle(connector);
+        check(library.resetDatabase());
+        Set<Book> bookSet = new HashSet<>();
+        while (bookSet.size() < nBooks) {
+            Book book = RandomData.randomBook();
+            book.setStock(1000);
+            bookSet.add(book);
+        }
+        books = new ArrayList<>(bookSet);
+        check(library.storeBook(books));
+        cards = new ArrayList<>();
+        for (int i = 0; i < CARDS; i++) {
+            Card card = new Card(0, String.format("Bench%05d", i), RandomData.randomDepartment(), Card.CardType.random());
+            check(library.registerCard(card));
+            cards.add(card);
+        }
+        /* closed borrows for showBorrowHistory */
+        long time = 1;
+        for (Card card : cards) {
+            for (int i = 0; i < HISTORY_PER_CARD; i++) {
+                Borrow borrow = new Borrow(randomBook().getBookId(), card.getCardId());
+                borrow.setBorrowTime(time++);
+                check(library.borrowBook(borrow));
+                borrow.setReturnTime(time++);
+                check(library.returnBook(borrow));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        connector.release();
+    }
+
+    /**
+     * one card per benchmark thread, so that borrow and return of
+     * different threads never conflict on the same card.
+     */
+    @State(Scope.Thread)
+    public static class Borrower {
+        int cardId;
+        /* borrow times must increase, Borrow.resetBorrowTime() would sleep */
+        long time;
+
+        @Setup(Level.Trial)
+        public void pickCard(LibraryBenchmark bench) {
+            cardId = bench.cards.get(bench.nextCard.getAndIncrement() % CARDS).getCardId();
+            time = System.currentTimeMillis() * 1000;
+        }
+    }
+
+    @Benchmark
+    public ApiResult queryBook() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        BookQueryConditions conditions = new BookQueryConditions();
+        if (random.nextBoolean()) {
+            conditions.setCategory(RandomData.randomCategory());
+        } else {
+            conditions.setTitle(RandomData.randomTitle().substring(0, 4));
+        }
+        double minPrice = random.nextInt(100);
+        conditions.setMinPrice(minPrice);
+        conditions.setMaxPrice(minPrice + 50);
+        conditions.setSortBy(Book.SortColumn.PRICE);
+        conditions.setLimit(PAGE_SIZE);
+        return check(library.queryBook(conditions));
+    }
+
+    @Benchmark
+    public ApiResult borrowAndReturnBook(Borrower borrower) {
+        Borrow borrow = new Borrow(randomBook().getBookId(), borrower.cardId);
+        borrow.setBorrowTime(++borrower.time);
+        check(library.borrowBook(borrow));
+        borrow.setReturnTime(++borrower.time);
+        return check(library.returnBook(borrow));
+    }
+
+    @Benchmark
+    public ApiResult storeBooks() {
+        List<Book> batch = new ArrayList<>(STORE_BATCH);
+        for (int i = 0; i < STORE_BATCH; i++) {
+            Book book = RandomData.randomBook();
+            book.setTitle("Bench Book " + nextStoredBook.incrementAndGet());
+            batch.add(book);
+        }
+        return check(library.storeBook(batch));
+    }
+
+    @Benchmark
+    public ApiResult showBorrowHistory() {
+        int cardId = cards.get(ThreadLocalRandom.current().nextInt(CARDS)).getCardId();
+        return check(library.showBorrowHistory(cardId, null, PAGE_SIZE));
+    }
+
+    @Benchmark
+    public ApiResult showCards() {
+        return check(library.showCards());
+    }
+
+    private Book randomBook() {
+        return books.get(ThreadLocalRandom.current().nextInt(books.size()));
+    }
+
+    private static ApiResult check(ApiResult result) {
+        if (!result.ok) {
+            throw new IllegalStateException(result.message);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,89 @@
+package benchmarks;
+
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import queries.BorrowHistories;
+import utils.DatabaseConnector;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Calls LibraryManagementSystemImpl from a named package.
+ *
+ * JMH refuses benchmarks in the default package, and classes in the
+ * default package cannot be imported, so the methods are looked up once
+ * by reflection. the cost of Method.invoke is far below one database
+ * round trip.
+ */
+public final class LibraryHandle {
+
+    private final Object library;
+    private final Method storeBooks;
+    private final Method queryBook;
+    private final Method borrowBook;
+    private final Method returnBook;
+    private final Method showBorrowHistory;
+    private final Method registerCard;
+    private final Method showCards;
+    private final Method resetDatabase;
+
+    public LibraryHandle(DatabaseConnector connector) throws ReflectiveOperationException {
+        Class<?> impl = Class.forName("LibraryManagementSystemImpl");
+        library = impl.getConstructor(DatabaseConnector.class).newInstance(connector);
+        storeBooks = impl.getMethod("storeBook", List.class);
+        queryBook = impl.getMethod("queryBook", BookQueryConditions.class);
+        borrowBook = impl.getMethod("borrowBook", Borrow.class);
+        returnBook = impl.getMethod("returnBook", Borrow.class);
+        showBorrowHistory = impl.getMethod("showBorrowHistory", int.class, BorrowHistories.Cursor.class, int.class);
+        registerCard = impl.getMethod("registerCard", Card.class);
+        showCards = impl.getMethod("showCards");
+        resetDatabase = impl.getMethod("resetDatabase");
+    }
+
+    public ApiResult storeBook(List<Book> books) {
+        return call(storeBooks, books);
+    }
+
+    public ApiResult queryBook(BookQueryConditions conditions) {
+        return call(queryBook, conditions);
+    }
+
+    public ApiResult borrowBook(Borrow borrow) {
+        return call(borrowBook, borrow);
+    }
+
+    public ApiResult returnBook(Borrow borrow) {
+        return call(returnBook, borrow);
+    }
+
+    public ApiResult showBorrowHistory(int cardId, BorrowHistories.Cursor after, int limit) {
+        return call(showBorrowHistory, cardId, after, limit);
+    }
+
+    public ApiResult registerCard(Card card) {
+        return call(registerCard, card);
+    }
+
+    public ApiResult showCards() {
+        return call(showCards);
+    }
+
+    public ApiResult resetDatabase() {
+        return call(resetDatabase);
+    }
+
+    private ApiResult call(Method method, Object... args) {
+        try {
+            return (ApiResult) method.invoke(library, args);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.*;
+
+import queries.ApiResult;
+
+/**
+ * Answers an exchange when a call of {@link AsyncLibraryManagementSystem}
+ * completes, after the handler has returned and freed its request thread.
+ *
+ * Note:
+ *      (1) filters register what has to run once the exchange is answered
+ *          with {@link #onComplete}, it runs at once for an exchange that
+ *          is answered synchronously. the state of an exchange lives on the
+ *          wrapper returned by {@link #track}, not in its attributes: the
+ *          JDK keeps those in a map shared by every exchange of a context.
+ *      (2) a call rejected because the database threads are saturated is
+ *          answered with 503 like a shed request, any other failure with
+ *          500 and the handler's failure text.
+ *      (3) the answer is written by a request thread of the server, not by
+ *          the database thread that completed the call, so slow clients
+ *          never hold up database work.
+ */
+public final class AsyncExchange {
+
+    private static final Logger log = Logger.getLogger(AsyncExchange.class.getName());
+
+    public interface Responder {
+        void send(ApiResult result) throws IOException;
+    }
+
+    private static final class State {
+        /* guarded by this */
+        final List<Runnable> listeners = new ArrayList<>();
+        boolean async = false;
+        boolean completed = false;
+    }
+
+    /* an exchange that carries its state, see note (1) */
+    private static final class Tracked extends DelegatingExchange {
+        final State state = new State();
+
+        Tracked(HttpExchange exchange) {
+            super(exchange);
+        }
+    }
+
+    private AsyncExchange() {
+    }
+
+    /**
+     * answer exchange with responder once result completes.
+     *
+     * @param failure text of the 500 answer if the call failed
+     */
+    public static void respond(HttpExchange exchange, CompletableFuture<ApiResult> result, String failure,
+                               Responder responder) {
+        State tracked = stateOf(exchange);
+        // nobody listens to an exchange that no filter tracks
+        State state = tracked != null ? tracked : new State();
+        synchronized (state) {
+            state.async = true;
+        }
+        result.whenCompleteAsync((value, error) -> {
+            try {
+                if (error == null) {
+                    responder.send(value);
+                } else if (unwrap(error) instanceof RejectedExecutionException) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    exchange.sendResponseHeaders(503, -1);
+                } else {
+                    sendText(exchange, 500, failure);
+                }
+            } catch (Exception e) {
+                log.log(Level.FINE, "Failed to answer " + exchange.getRequestURI(), e);
+                if (exchange.getResponseCode() < 0) {
+                    try {
+                        sendText(exchange, 500, failure);
+                    } catch (IOException ignored) {
+                        // the client is gone
+                    }
+                }
+            } finally {
+                exchange.close();
+                complete(state);
+            }
+        }, responseExecutor(exchange));
+    }
+
+    /**
+     * the exchange to hand down the chain, so that {@link #onComplete}
+     * works for it. exchange itself if it is already tracked.
+     */
+    public static HttpExchange track(HttpExchange exchange) {
+        return stateOf(exchange) != null ? exchange : new Tracked(exchange);
+    }
+
+    /**
+     * run listener once exchange is answered, see note (1). exchange must
+     * be the one returned by {@link #track}.
+     */
+    public static void onComplete(HttpExchange exchange, Runnable listener) {
+        State state = stateOf(exchange);
+        if (state != null) {
+            synchronized (state) {
+                if (state.async && !state.completed) {
+                    state.listeners.add(listener);
+                    return;
+                }
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * answer with 200 and the message of a successful result, 400 otherwise.
+     */
+    public static void sendMessage(HttpExchange exchange, ApiResult result) throws IOException {
+        sendText(exchange, result.ok ? 200 : 400, result.message);
+    }
+
+    public static void sendText(HttpExchange exchange, int code, String text) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(code, 0);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(text.getBytes());
+        outputStream.close();
+    }
+
+    /* the state of the tracked exchange that exchange wraps, null if there is none */
+    private static State stateOf(HttpExchange exchange) {
+        while (exchange instanceof DelegatingExchange) {
+            if (exchange instanceof Tracked) {
+                return ((Tracked) exchange).state;
+            }
+            exchange = ((DelegatingExchange) exchange).getDelegate();
+        }
+        return null;
+    }
+
+    /* see note (3), the calling thread if the server has no executor or it is shut down */
+    private static Executor responseExecutor(HttpExchange exchange) {
+        Executor executor = exchange.getHttpContext().getServer().getExecutor();
+        if (executor instanceof RequestExecutor) {
+            executor = ((RequestExecutor) executor).getResponseExecutor();
+        }
+        if (executor == null) {
+            return Runnable::run;
+        }
+        Executor server = executor;
+        return command -> {
+            try {
+                server.execute(command);
+            } catch (RejectedExecutionException e) {
+                command.run();
+            }
+        };
+    }
+
+    private static void complete(State state) {
+        List<Runnable> listeners;
+        synchronized (state) {
+            state.completed = true;
+            listeners = new ArrayList<>(state.listeners);
+            state.listeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
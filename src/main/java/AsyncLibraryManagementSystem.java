@@ -0,0 +1,63 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import queries.BorrowHistories;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking counterpart of {@link LibraryManagementSystem}, every
+ * function has the same meaning as the function of the same name there.
+ *
+ * Note:
+ *      (1) a call returns at once, its future completes with the ApiResult
+ *          the synchronous call would have returned.
+ *      (2) a call that cannot be accepted because the library is saturated
+ *          completes exceptionally with a
+ *          {@link java.util.concurrent.RejectedExecutionException}, it has
+ *          not touched the database.
+ *      (3) callbacks attached to the future may run on a database thread,
+ *          they should hand off anything that blocks for long.
+ */
+public interface AsyncLibraryManagementSystem {
+
+    /* Interface for books */
+
+    CompletableFuture<ApiResult> storeBook(Book book);
+
+    CompletableFuture<ApiResult> incBookStock(int bookId, int deltaStock);
+
+    CompletableFuture<ApiResult> storeBook(List<Book> books);
+
+    CompletableFuture<ApiResult> importBooks(List<Book> books, int chunkSize);
+
+    CompletableFuture<ApiResult> removeBook(int bookId);
+
+    CompletableFuture<ApiResult> modifyBookInfo(Book book);
+
+    CompletableFuture<ApiResult> queryBook(BookQueryConditions conditions);
+
+    /* Interface for borrow & return books */
+
+    CompletableFuture<ApiResult> borrowBook(Borrow borrow);
+
+    CompletableFuture<ApiResult> returnBook(Borrow borrow);
+
+    CompletableFuture<ApiResult> showBorrowHistory(int cardId);
+
+    CompletableFuture<ApiResult> showBorrowHistory(int cardId, BorrowHistories.Cursor after, int limit);
+
+    CompletableFuture<ApiResult> registerCard(Card card);
+
+    CompletableFuture<ApiResult> modifyCardInfo(Card card);
+
+    CompletableFuture<ApiResult> removeCard(int cardId);
+
+    CompletableFuture<ApiResult> showCards();
+
+    CompletableFuture<ApiResult> resetDatabase();
+
+}
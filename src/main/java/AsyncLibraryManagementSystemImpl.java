@@ -0,0 +1,174 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import queries.BorrowHistories;
+import utils.SqlTracer;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the calls of a synchronous LibraryManagementSystem on a dedicated,
+ * bounded pool of database threads.
+ *
+ * Note:
+ *      (1) size the pool like the connection pool: every database thread
+ *          holds at most one connection, so many in-flight requests share
+ *          a few connections without tying up a request thread each.
+ *      (2) at most threads + queueCapacity calls are accepted at once, a
+ *          call beyond that is rejected at once instead of queueing
+ *          without bound.
+ *      (3) the statements of a call are traced as part of the request that
+ *          made it.
+ */
+public class AsyncLibraryManagementSystemImpl implements AsyncLibraryManagementSystem {
+
+    private final LibraryManagementSystem library;
+    private final ThreadPoolExecutor executor;
+
+    public AsyncLibraryManagementSystemImpl(LibraryManagementSystem library, int threads, int queueCapacity) {
+        this.library = library;
+        AtomicInteger counter = new AtomicInteger(0);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(queueCapacity, 1)), r -> {
+                    Thread t = new Thread(r, "db-worker-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * finish the accepted calls and stop the database threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return calls waiting for a database thread
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return calls running on a database thread
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> storeBook(Book book) {
+        return submit(() -> library.storeBook(book));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> incBookStock(int bookId, int deltaStock) {
+        return submit(() -> library.incBookStock(bookId, deltaStock));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> storeBook(List<Book> books) {
+        return submit(() -> library.storeBook(books));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> importBooks(List<Book> books, int chunkSize) {
+        return submit(() -> library.importBooks(books, chunkSize));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> removeBook(int bookId) {
+        return submit(() -> library.removeBook(bookId));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> modifyBookInfo(Book book) {
+        return submit(() -> library.modifyBookInfo(book));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> queryBook(BookQueryConditions conditions) {
+        return submit(() -> library.queryBook(conditions));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> borrowBook(Borrow borrow) {
+        return submit(() -> library.borrowBook(borrow));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> returnBook(Borrow borrow) {
+        return submit(() -> library.returnBook(borrow));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> showBorrowHistory(int cardId) {
+        return submit(() -> library.showBorrowHistory(cardId));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> showBorrowHistory(int cardId, BorrowHistories.Cursor after, int limit) {
+        return submit(() -> library.showBorrowHistory(cardId, after, limit));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> registerCard(Card card) {
+        return submit(() -> library.registerCard(card));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> modifyCardInfo(Card card) {
+        return submit(() -> library.modifyCardInfo(card));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> removeCard(int cardId) {
+        return submit(() -> library.removeCard(cardId));
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> showCards() {
+        return submit(library::showCards);
+    }
+
+    @Override
+    public CompletableFuture<ApiResult> resetDatabase() {
+        return submit(library::resetDatabase);
+    }
+
+    private CompletableFuture<ApiResult> submit(Supplier<ApiResult> call) {
+        CompletableFuture<ApiResult> future = new CompletableFuture<>();
+        // see note (3)
+        SqlTracer.Request request = SqlTracer.currentRequest();
+        try {
+            executor.execute(() -> {
+                SqlTracer.bind(request);
+                try {
+                    future.complete(call.get());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    SqlTracer.bind(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
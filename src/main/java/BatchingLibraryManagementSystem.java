@@ -0,0 +1,449 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import queries.BorrowHistories;
+import utils.BatchConfig;
+import utils.DatabaseConnector;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Commits concurrent borrows and returns together, every other call is
+ * passed through.
+ *
+ * Note:
+ *      (1) one batch thread waits for a first request, then collects more
+ *          until windowMicros have passed since that request arrived or
+ *          maxBatch requests are queued, and runs them all in a single
+ *          transaction with batched statements.
+ *      (2) every request still gets its own result: a borrow only takes a
+ *          copy if the same conditions as in LibraryManagementSystemImpl
+ *          hold, a return only closes an open borrow, and a request that
+ *          failed is explained with the usual reason.
+ *      (3) returns run before borrows, so a returned copy can be borrowed
+ *          in the same batch. a second request for the same card and book
+ *          waits for the next batch, so the requests of one batch never
+ *          depend on each other.
+ *      (4) if the batch cannot be committed, its requests are run again
+ *          one by one, so one broken request does not fail the others. an
+ *          exception thrown while running a request is thrown to its
+ *          caller, the batch thread goes on with the next round.
+ */
+public class BatchingLibraryManagementSystem implements LibraryManagementSystem {
+
+    private static final Logger log = Logger.getLogger(BatchingLibraryManagementSystem.class.getName());
+
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000L;
+
+    private static final String CLOSE_BORROW = "UPDATE borrow SET return_time = ?" +
+            " WHERE card_id = ? AND book_id = ? AND return_time = 0 AND borrow_time < ?";
+    private static final String PUT_BACK = "UPDATE book SET stock = stock + ? WHERE book_id = ?";
+    private static final String TAKE_COPY = "UPDATE book SET stock = stock - 1 WHERE book_id = ? AND stock > 0" +
+            " AND EXISTS (SELECT 1 FROM card WHERE card_id = ?)" +
+            " AND NOT EXISTS (SELECT 1 FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0)";
+    private static final String INSERT_BORROW = "INSERT INTO borrow (card_id, book_id, borrow_time, return_time) VALUES (?, ?, ?, 0)";
+    private static final class Request {
+        final boolean isReturn;
+        final Borrow borrow;
+        final long queuedNanos = System.nanoTime();
+        final CompletableFuture<ApiResult> result = new CompletableFuture<>();
+        /* outcome within the running transaction, null if unknown */
+        ApiResult outcome;
+
+        Request(boolean isReturn, Borrow borrow) {
+            this.isReturn = isReturn;
+            this.borrow = borrow;
+        }
+
+        long key() {
+            return ((long) borrow.getCardId() << 32) | (borrow.getBookId() & 0xffffffffL);
+        }
+    }
+
+    private interface Binder<T> {
+        void bind(PreparedStatement pStmt, T item) throws SQLException;
+    }
+
+    private final LibraryManagementSystem delegate;
+    private final DatabaseConnector connector;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    /* guarded by this */
+    private boolean closing = false;
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    public BatchingLibraryManagementSystem(LibraryManagementSystem delegate, DatabaseConnector connector,
+                                           BatchConfig conf) {
+        this.delegate = delegate;
+        this.connector = connector;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(conf.getWindowMicros(), 0));
+        this.maxBatch = Math.max(conf.getMaxBatch(), 1);
+        this.worker = new Thread(this::run, "borrow-batch");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * commit what is queued and stop the batch thread, later borrows and
+     * returns are passed through.
+     */
+    public void close() {
+        synchronized (this) {
+            closing = true;
+        }
+        try {
+            worker.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return transactions committed for borrows and returns
+     */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /**
+     * @return borrows and returns answered
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public ApiResult borrowBook(Borrow borrow) {
+        return submit(new Request(false, borrow));
+    }
+
+    @Override
+    public ApiResult returnBook(Borrow borrow) {
+        return submit(new Request(true, borrow));
+    }
+
+    @Override
+    public ApiResult storeBook(Book book) {
+        return delegate.storeBook(book);
+    }
+
+    @Override
+    public ApiResult incBookStock(int bookId, int deltaStock) {
+        return delegate.incBookStock(bookId, deltaStock);
+    }
+
+    @Override
+    public ApiResult storeBook(List<Book> books) {
+        return delegate.storeBook(books);
+    }
+
+    @Override
+    public ApiResult importBooks(List<Book> books, int chunkSize) {
+        return delegate.importBooks(books, chunkSize);
+    }
+
+    @Override
+    public ApiResult removeBook(int bookId) {
+        return delegate.removeBook(bookId);
+    }
+
+    @Override
+    public ApiResult modifyBookInfo(Book book) {
+        return delegate.modifyBookInfo(book);
+    }
+
+    @Override
+    public ApiResult queryBook(BookQueryConditions conditions) {
+        return delegate.queryBook(conditions);
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId) {
+        return delegate.showBorrowHistory(cardId);
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId, BorrowHistories.Cursor after, int limit) {
+        return delegate.showBorrowHistory(cardId, after, limit);
+    }
+
+    @Override
+    public ApiResult registerCard(Card card) {
+        return delegate.registerCard(card);
+    }
+
+    @Override
+    public ApiResult modifyCardInfo(Card card) {
+        return delegate.modifyCardInfo(card);
+    }
+
+    @Override
+    public ApiResult removeCard(int cardId) {
+        return delegate.removeCard(cardId);
+    }
+
+    @Override
+    public ApiResult showCards() {
+        return delegate.showCards();
+    }
+
+    @Override
+    public ApiResult resetDatabase() {
+        return delegate.resetDatabase();
+    }
+
+    private ApiResult submit(Request request) {
+        boolean queued;
+        synchronized (this) {
+            queued = !closing && queue.add(request);
+        }
+        if (!queued) {
+            return runAlone(request);
+        }
+        try {
+            return request.result.join();
+        } catch (CompletionException e) {
+            // thrown as if the delegate had been called directly
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    private ApiResult runAlone(Request request) {
+        commits.incrementAndGet();
+        requests.incrementAndGet();
+        return request.isReturn ? delegate.returnBook(request.borrow) : delegate.borrowBook(request.borrow);
+    }
+
+    private void run() {
+        List<Request> deferred = new ArrayList<>();
+        while (true) {
+            List<Request> batch = new ArrayList<>(deferred);
+            deferred.clear();
+            try {
+                collect(batch);
+            } catch (InterruptedException e) {
+                // only closing stops the batch thread
+            }
+            if (batch.isEmpty()) {
+                synchronized (this) {
+                    if (closing && queue.isEmpty()) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            /* see note (3) */
+            List<Request> round = new ArrayList<>(batch.size());
+            Set<Long> keys = new HashSet<>();
+            for (Request request : batch) {
+                (keys.add(request.key()) ? round : deferred).add(request);
+            }
+            try {
+                commit(round);
+            } catch (RuntimeException e) {
+                // a round that failed must neither stop the batch thread nor leave its callers waiting
+                log.warning("Failed to run " + round.size() + " borrow(s) and return(s): " + e);
+                for (Request request : round) {
+                    request.result.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /* see note (1), requests deferred from the last round are already in batch */
+    private void collect(List<Request> batch) throws InterruptedException {
+        if (batch.isEmpty()) {
+            Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                return;
+            }
+            batch.add(first);
+        }
+        long deadline = batch.get(0).queuedNanos + windowNanos;
+        queue.drainTo(batch, maxBatch - batch.size());
+        while (batch.size() < maxBatch) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+            queue.drainTo(batch, maxBatch - batch.size());
+        }
+    }
+
+    private void commit(List<Request> round) {
+        Connection conn = null;
+        boolean committed = false;
+        try {
+            conn = connector.getConn();
+            if (!apply(conn, round, true)) {
+                conn.rollback();
+                apply(conn, round, false);
+            }
+            conn.commit();
+            committed = true;
+        } catch (Exception e) {
+            rollback(conn);
+            log.warning("Failed to commit " + round.size() + " borrow(s) and return(s) together, run them one by one: " + e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
+        }
+        if (committed) {
+            commits.incrementAndGet();
+            requests.addAndGet(round.size());
+        }
+        for (Request request : round) {
+            try {
+                request.result.complete(committed ? request.outcome : runAlone(request));
+            } catch (RuntimeException e) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /* see note (2), false if the driver does not report the update count of every batched row */
+    private boolean apply(Connection conn, List<Request> round, boolean batched) throws SQLException {
+        List<Request> returns = new ArrayList<>();
+        List<Request> borrows = new ArrayList<>();
+        for (Request request : round) {
+            request.outcome = null;
+            (request.isReturn ? returns : borrows).add(request);
+        }
+        /* book ids in order, so concurrent writers lock book rows in the same order */
+        Comparator<Request> byBook = Comparator.comparingInt(request -> request.borrow.getBookId());
+        returns.sort(byBook);
+        borrows.sort(byBook);
+
+        int[] closed = execute(conn, CLOSE_BORROW, returns, BatchingLibraryManagementSystem::bindClose, batched);
+        if (closed == null) {
+            return false;
+        }
+        Map<Integer, Integer> putBack = new TreeMap<>();
+        for (int i = 0; i < closed.length; i++) {
+            if (closed[i] > 0) {
+                Request request = returns.get(i);
+                request.outcome = new ApiResult(true, "还书成功");
+                putBack.merge(request.borrow.getBookId(), 1, Integer::sum);
+            }
+        }
+        execute(conn, PUT_BACK, new ArrayList<>(putBack.entrySet()), (pStmt, delta) -> {
+            pStmt.setInt(1, delta.getValue());
+            pStmt.setInt(2, delta.getKey());
+        }, batched);
+
+        int[] taken = execute(conn, TAKE_COPY, borrows, BatchingLibraryManagementSystem::bindTake, batched);
+        if (taken == null) {
+            return false;
+        }
+        List<Request> inserts = new ArrayList<>();
+        for (int i = 0; i < taken.length; i++) {
+            if (taken[i] > 0) {
+                Request request = borrows.get(i);
+                request.outcome = new ApiResult(true, "借书成功");
+                inserts.add(request);
+            }
+        }
+        execute(conn, INSERT_BORROW, inserts, BatchingLibraryManagementSystem::bindInsert, batched);
+
+        /* rare path: find out which condition failed */
+        for (Request request : round) {
+            if (request.outcome == null) {
+                int cardId = request.borrow.getCardId();
+                int bookId = request.borrow.getBookId();
+                request.outcome = new ApiResult(false, request.isReturn
+                        ? LibraryManagementSystemImpl.returnFailure(conn, cardId, bookId)
+                        : LibraryManagementSystemImpl.borrowFailure(conn, cardId, bookId));
+            }
+        }
+        return true;
+    }
+
+    /* update count of every item, null if a batch did not report them */
+    private static <T> int[] execute(Connection conn, String sql, List<T> items, Binder<T> binder,
+                                     boolean batched) throws SQLException {
+        int[] counts = new int[items.size()];
+        if (items.isEmpty()) {
+            return counts;
+        }
+        try (PreparedStatement pStmt = conn.prepareStatement(sql)) {
+            if (!batched || items.size() == 1) {
+                for (int i = 0; i < items.size(); i++) {
+                    binder.bind(pStmt, items.get(i));
+                    counts[i] = pStmt.executeUpdate();
+                }
+                return counts;
+            }
+            for (T item : items) {
+                binder.bind(pStmt, item);
+                pStmt.addBatch();
+            }
+            counts = pStmt.executeBatch();
+        }
+        if (counts.length != items.size()) {
+            return null;
+        }
+        for (int count : counts) {
+            if (count == Statement.SUCCESS_NO_INFO) {
+                return null;
+            }
+        }
+        return counts;
+    }
+
+    private static void bindClose(PreparedStatement pStmt, Request request) throws SQLException {
+        pStmt.setLong(1, request.borrow.getReturnTime());
+        pStmt.setInt(2, request.borrow.getCardId());
+        pStmt.setInt(3, request.borrow.getBookId());
+        pStmt.setLong(4, request.borrow.getReturnTime());
+    }
+
+    private static void bindTake(PreparedStatement pStmt, Request request) throws SQLException {
+        pStmt.setInt(1, request.borrow.getBookId());
+        pStmt.setInt(2, request.borrow.getCardId());
+        pStmt.setInt(3, request.borrow.getBookId());
+        pStmt.setInt(4, request.borrow.getCardId());
+    }
+
+    private static void bindInsert(PreparedStatement pStmt, Request request) throws SQLException {
+        pStmt.setInt(1, request.borrow.getCardId());
+        pStmt.setInt(2, request.borrow.getBookId());
+        pStmt.setLong(3, request.borrow.getBorrowTime());
+    }
+
+    private static void rollback(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.rollback();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,39 +14,22 @@ import org.json.JSONObject;
 import com.sun.net.httpserver.*;
 
 import entities.Book;
-import queries.ApiResult;
 import queries.BookQueryConditions;
 import queries.BookQueryResults;
-import utils.ConnectConfig;
-import utils.DatabaseConnector;
+import queries.SortOrder;
 
 public class BookHandler implements HttpHandler {
 
-    private DatabaseConnector connector;
-    private LibraryManagementSystem library;
+    /* server side cap of books returned by one GET /book */
+    static final int MAX_PAGE_SIZE = 1000;
 
-    private static ConnectConfig connectConfig = null;
+    private final AsyncLibraryManagementSystem library;
+    /* price ranges counted when a query asks for facets without its own */
+    private final List<Double> priceBuckets;
 
-    static {
-        try {
-            connectConfig = new ConnectConfig();
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-    }
-
-    public BookHandler() {
-        try {
-            connector = new DatabaseConnector(connectConfig);
-            library = new LibraryManagementSystemImpl(connector);
-            System.out.println("Successfully init class BookHandler.");
-            connector.connect();
-            System.out.println("Successfully connect to database.");
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
+    public BookHandler(AsyncLibraryManagementSystem library, List<Double> priceBuckets) {
+        this.library = library;
+        this.priceBuckets = priceBuckets;
     }
 
     @Override
@@ -54,6 +38,7 @@ public class BookHandler implements HttpHandler {
         headers.add("Access-Control-Allow-Origin", "*");
         headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE");
         headers.add("Access-Control-Allow-Headers", "Content-Type");
+        headers.add("Access-Control-Expose-Headers", "X-Next-Cursor");
         
         String requestMethod = exchange.getRequestMethod();
         if (requestMethod.equals("GET")) {
@@ -93,33 +78,51 @@ public class BookHandler implements HttpHandler {
             if (queryParams.get("maxPrice") != null) {
                 bookQueryConditions.setMaxPrice(Double.valueOf(queryParams.get("maxPrice")));
             }
-            ApiResult result = library.queryBook(bookQueryConditions);
-            if (result.ok == false) {
-                exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                exchange.sendResponseHeaders(400, 0);
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(result.message.getBytes());
-                outputStream.close();
-                return;
+            if (queryParams.get("sortBy") != null) {
+                bookQueryConditions.setSortBy(Book.SortColumn.valueOf(queryParams.get("sortBy").toUpperCase()));
             }
-            BookQueryResults bookQueryResults = (BookQueryResults) result.payload;
-            List<Book> resBookList = bookQueryResults.getResults();
-            String response = "";
-            for (int i = 0; i < resBookList.size(); i++) {
-                Book book = resBookList.get(i);
-    
-                String bookInfo = "{\"book_id\": " + book.getBookId() + ", \"category\": \"" + book.getCategory() + "\", \"title\": \"" + book.getTitle() + "\", \"press\": \"" + book.getPress() + "\", \"publishYear\": " + book.getPublishYear() + ", \"author\": \"" + book.getAuthor() + "\", \"price\": " + book.getPrice() + ", \"stock\": " + book.getStock() + "}";
-                if (i > 0) {
-                    bookInfo = "," + bookInfo;
+            if (queryParams.get("sortOrder") != null) {
+                bookQueryConditions.setSortOrder(SortOrder.valueOf(queryParams.get("sortOrder").toUpperCase()));
+            }
+            // page with limit=<n>&after=<X-Next-Cursor of previous page>;
+            // without either the whole list is answered, as before paging existed
+            if (queryParams.get("limit") != null) {
+                bookQueryConditions.setLimit(Math.min(Math.max(Integer.parseInt(queryParams.get("limit")), 1), MAX_PAGE_SIZE));
+            } else if (queryParams.get("after") != null) {
+                bookQueryConditions.setLimit(MAX_PAGE_SIZE);
+            }
+            if (queryParams.get("after") != null) {
+                bookQueryConditions.setAfter(BookQueryResults.Cursor.parse(queryParams.get("after")));
+            }
+            bookQueryConditions.setFuzzy(Boolean.parseBoolean(queryParams.get("fuzzy")));
+            // facets=true answers {"results": [...], "facets": {...}} instead of the plain list
+            boolean facets = Boolean.parseBoolean(queryParams.get("facets"));
+            if (facets) {
+                bookQueryConditions.setFacets(true);
+                bookQueryConditions.setPriceBuckets(priceBuckets);
+                if (queryParams.get("priceBuckets") != null) {
+                    List<Double> bounds = new ArrayList<>();
+                    for (String bound : queryParams.get("priceBuckets").split(",")) {
+                        bounds.add(Double.valueOf(bound.trim()));
+                    }
+                    bookQueryConditions.setPriceBuckets(bounds);
                 }
-                response += bookInfo;
             }
-            response = "[" + response + "]";
-            exchange.getResponseHeaders().set("Content-Type", "application/json");
-            exchange.sendResponseHeaders(200, 0);
-            OutputStream outputStream = exchange.getResponseBody();
-            outputStream.write(response.getBytes());
-            outputStream.close();
+            AsyncExchange.respond(exchange, library.queryBook(bookQueryConditions), "查询失败", result -> {
+                if (result.ok == false) {
+                    AsyncExchange.sendMessage(exchange, result);
+                    return;
+                }
+                BookQueryResults bookQueryResults = (BookQueryResults) result.payload;
+                if (bookQueryResults.getNextCursor() != null) {
+                    exchange.getResponseHeaders().set("X-Next-Cursor", bookQueryResults.getNextCursor().toString());
+                }
+                if (facets) {
+                    JsonResponseWriter.sendBookResults(exchange, bookQueryResults);
+                } else {
+                    JsonResponseWriter.sendList(exchange, bookQueryResults.getResults(), JsonResponseWriter.BOOK);
+                }
+            });
         } catch (Exception e) {
             exchange.getResponseHeaders().set("Content-Type", "text/plain");
             exchange.sendResponseHeaders(500, 0);
@@ -142,20 +145,8 @@ public class BookHandler implements HttpHandler {
             int stock = jsonObject.getInt("stock");
 
             Book book = new Book(category, title, press, publishYear, author, price, stock);
-            ApiResult result = library.storeBook(book);
-            if (result.ok == false) {
-                exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                exchange.sendResponseHeaders(400, 0);
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(result.message.getBytes());
-                outputStream.close();
-                return;
-            }
-            exchange.getResponseHeaders().set("Content-Type", "text/plain");
-            exchange.sendResponseHeaders(200, 0);
-            OutputStream outputStream = exchange.getResponseBody();
-            outputStream.write(result.message.getBytes());
-            outputStream.close();
+            AsyncExchange.respond(exchange, library.storeBook(book), "新建失败",
+                    result -> AsyncExchange.sendMessage(exchange, result));
         } catch (Exception e) {
             exchange.getResponseHeaders().set("Content-Type", "text/plain");
             exchange.sendResponseHeaders(500, 0);
@@ -180,36 +171,12 @@ public class BookHandler implements HttpHandler {
             if (stock == -100000000) {
                 Book book = new Book(category, title, press, publishYear, author, price, stock);
                 book.setBookId(bookId);
-                ApiResult result = library.modifyBookInfo(book);
-                if (result.ok == false) {
-                    exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                    exchange.sendResponseHeaders(400, 0);
-                    OutputStream outputStream = exchange.getResponseBody();
-                    outputStream.write(result.message.getBytes());
-                    outputStream.close();
-                    return;
-                }
-                exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                exchange.sendResponseHeaders(200, 0);
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(result.message.getBytes());
-                outputStream.close();
+                AsyncExchange.respond(exchange, library.modifyBookInfo(book), "修改失败",
+                        result -> AsyncExchange.sendMessage(exchange, result));
             }
             else {
-                ApiResult result = library.incBookStock(bookId, stock);
-                if (result.ok == false) {
-                    exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                    exchange.sendResponseHeaders(400, 0);
-                    OutputStream outputStream = exchange.getResponseBody();
-                    outputStream.write(result.message.getBytes());
-                    outputStream.close();
-                    return;
-                }
-                exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                exchange.sendResponseHeaders(200, 0);
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(result.message.getBytes());
-                outputStream.close();
+                AsyncExchange.respond(exchange, library.incBookStock(bookId, stock), "修改失败",
+                        result -> AsyncExchange.sendMessage(exchange, result));
             }
         } catch (Exception e) {
             exchange.getResponseHeaders().set("Content-Type", "text/plain");
@@ -225,20 +192,8 @@ public class BookHandler implements HttpHandler {
         JSONObject jsonObject = new JSONObject(request);
         try {
             int bookId = jsonObject.getInt("id");
-            ApiResult result = library.removeBook(bookId);
-            if (result.ok == false) {
-                exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                exchange.sendResponseHeaders(400, 0);
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(result.message.getBytes());
-                outputStream.close();
-                return;
-            }
-            exchange.getResponseHeaders().set("Content-Type", "text/plain");
-            exchange.sendResponseHeaders(200, 0);
-            OutputStream outputStream = exchange.getResponseBody();
-            outputStream.write(result.message.getBytes());
-            outputStream.close();
+            AsyncExchange.respond(exchange, library.removeBook(bookId), "删除失败",
+                    result -> AsyncExchange.sendMessage(exchange, result));
         } catch (Exception e) {
             exchange.getResponseHeaders().set("Content-Type", "text/plain");
             exchange.sendResponseHeaders(500, 0);
@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import entities.Book;
+import queries.ApiResult;
+import queries.BookImportResults;
+import utils.SqlTracer;
+
+/**
+ * Imports a CSV catalog (category,title,press,publish_year,author,price,stock)
+ * in constant memory.
+ *
+ * Note:
+ *      (1) the calling thread parses and validates records and groups them
+ *          into batches of chunkSize books; a writer thread stores each
+ *          batch with {@link LibraryManagementSystem#importBooks}.
+ *      (2) the stages are connected by a queue of at most QUEUED_BATCHES
+ *          batches, so parsing blocks while the database is behind and
+ *          at most (QUEUED_BATCHES + 2) batches are in memory.
+ *      (3) an optional first line whose publish_year is not a number is
+ *          treated as the header and skipped.
+ */
+public class BookImportPipeline {
+
+    private static final Logger log = Logger.getLogger(BookImportPipeline.class.getName());
+
+    private static final int QUEUED_BATCHES = 4;
+    private static final int COLUMNS = 7;
+    private static final long PROGRESS_INTERVAL_MILLIS = 5000L;
+    /* marks the end of input in the queue */
+    private static final List<Book> END = Collections.emptyList();
+
+    /**
+     * counters of one import, safe to read while the import is running.
+     */
+    public static class Progress {
+        private volatile long rowsParsed;
+        private volatile long inserted;
+        private volatile long duplicates;
+        /* malformed rows found while parsing, written by the parser only */
+        private volatile long malformed;
+        /* rows rejected by the database stage, written by the writer only */
+        private volatile long invalid;
+        private final long startNanos = System.nanoTime();
+
+        public long getRowsParsed() {
+            return rowsParsed;
+        }
+
+        public long getInserted() {
+            return inserted;
+        }
+
+        public long getDuplicates() {
+            return duplicates;
+        }
+
+        public long getInvalid() {
+            return malformed + invalid;
+        }
+
+        public double getElapsedSeconds() {
+            return (System.nanoTime() - startNanos) / 1e9;
+        }
+
+        /* rows written to the database per second */
+        public double getThroughput() {
+            double seconds = getElapsedSeconds();
+            return seconds > 0 ? (inserted + duplicates + getInvalid()) / seconds : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d 行已解析，%d 本新增，%d 本重复，%d 行无效，耗时 %.1f 秒，%.0f 行/秒",
+                    rowsParsed, inserted, duplicates, getInvalid(), getElapsedSeconds(), getThroughput());
+        }
+    }
+
+    private final LibraryManagementSystem library;
+    private final int chunkSize;
+
+    public BookImportPipeline(LibraryManagementSystem library, int chunkSize) {
+        this.library = library;
+        this.chunkSize = chunkSize > 0 ? chunkSize : 1000;
+    }
+
+    /**
+     * run the import until the input is exhausted or storing a batch fails.
+     */
+    public ApiResult run(InputStream input) {
+        Progress progress = new Progress();
+        BlockingQueue<List<Book>> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        String[] failure = new String[1];
+        // the writer's statements belong to the request that uploaded the file
+        SqlTracer.Request request = SqlTracer.currentRequest();
+        Thread writer = new Thread(() -> {
+            SqlTracer.bind(request);
+            writeBatches(queue, progress, failure);
+        }, "book-import-writer");
+        writer.start();
+        try {
+            parse(input, queue, progress, writer);
+        } catch (Exception e) {
+            // IOException, InterruptedException, or an unchecked error of the csv parser
+            synchronized (failure) {
+                if (failure[0] == null) {
+                    failure[0] = e.getMessage();
+                }
+            }
+            writer.interrupt();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Book import finished: " + progress);
+        synchronized (failure) {
+            if (failure[0] != null) {
+                return new ApiResult(false, "批量入库中断：" + failure[0] + "（" + progress + "）", progress);
+            }
+        }
+        return new ApiResult(true, "批量入库完成：" + progress, progress);
+    }
+
+    private void parse(InputStream input, BlockingQueue<List<Book>> queue, Progress progress, Thread writer)
+            throws IOException, InterruptedException {
+        Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8);
+        CSVFormat format = CSVFormat.DEFAULT.builder()
+                .setIgnoreEmptyLines(true)
+                .setIgnoreSurroundingSpaces(true)
+                .build();
+        List<Book> batch = new ArrayList<>(chunkSize);
+        try (CSVParser parser = format.parse(reader)) {
+            for (CSVRecord record : parser) {
+                if (record.getRecordNumber() == 1 && isHeader(record)) {
+                    continue;
+                }
+                progress.rowsParsed++;
+                Book book = toBook(record);
+                if (book == null) {
+                    progress.malformed++;
+                    continue;
+                }
+                batch.add(book);
+                if (batch.size() == chunkSize) {
+                    put(queue, batch, writer);
+                    batch = new ArrayList<>(chunkSize);
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            put(queue, batch, writer);
+        }
+        put(queue, END, writer);
+    }
+
+    /* blocks while the writer is behind, gives up if the writer has stopped */
+    private static void put(BlockingQueue<List<Book>> queue, List<Book> batch, Thread writer) throws InterruptedException {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (!writer.isAlive()) {
+                throw new InterruptedException("writer stopped");
+            }
+        }
+    }
+
+    private void writeBatches(BlockingQueue<List<Book>> queue, Progress progress, String[] failure) {
+        long lastReport = System.currentTimeMillis();
+        try {
+            while (true) {
+                List<Book> batch = queue.take();
+                if (batch == END) {
+                    return;
+                }
+                ApiResult result = library.importBooks(batch, batch.size());
+                BookImportResults importResults = (BookImportResults) result.payload;
+                if (importResults != null) {
+                    progress.inserted += importResults.getInserted();
+                    progress.duplicates += importResults.getDuplicates();
+                    progress.invalid += importResults.getInvalid();
+                }
+                if (!result.ok) {
+                    synchronized (failure) {
+                        failure[0] = result.message;
+                    }
+                    return;
+                }
+                if (System.currentTimeMillis() - lastReport > PROGRESS_INTERVAL_MILLIS) {
+                    lastReport = System.currentTimeMillis();
+                    log.info("Book import in progress: " + progress);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isHeader(CSVRecord record) {
+        if (record.size() != COLUMNS) {
+            return false;
+        }
+        try {
+            Integer.parseInt(record.get(3));
+            return false;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /* null if the record is malformed */
+    private static Book toBook(CSVRecord record) {
+        if (record.size() != COLUMNS) {
+            return null;
+        }
+        try {
+            return new Book(record.get(0), record.get(1), record.get(2), Integer.parseInt(record.get(3)),
+                    record.get(4), Double.parseDouble(record.get(5)), Integer.parseInt(record.get(6)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
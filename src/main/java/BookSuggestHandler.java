@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * GET /book/suggest?q=<typed text>[&field=title|author|press|category][&limit=<n>],
+ * completions of the typed text, most borrowed first.
+ *
+ * Note:
+ *      (1) answered from memory on the request thread, it does not touch
+ *          the database.
+ */
+public class BookSuggestHandler implements HttpHandler {
+
+    private static final int DEFAULT_LIMIT = 10;
+    private static final int MAX_LIMIT = 50;
+
+    private final SearchLibraryManagementSystem search;
+
+    public BookSuggestHandler(SearchLibraryManagementSystem search) {
+        this.search = search;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Access-Control-Allow-Origin", "*");
+        headers.add("Access-Control-Allow-Methods", "GET");
+        try {
+            String requestMethod = exchange.getRequestMethod();
+            if (requestMethod.equals("OPTIONS")) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+            if (!requestMethod.equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (search == null) {
+                AsyncExchange.sendText(exchange, 404, "搜索索引未启用");
+                return;
+            }
+            Map<String, String> queryParams = parseQuery(exchange.getRequestURI().getRawQuery());
+            String prefix = queryParams.getOrDefault("q", "");
+            SuggestIndex.Kind kind = null;
+            int limit = DEFAULT_LIMIT;
+            try {
+                if (queryParams.get("field") != null) {
+                    kind = SuggestIndex.Kind.valueOf(queryParams.get("field").toUpperCase());
+                }
+                if (queryParams.get("limit") != null) {
+                    limit = Math.min(Math.max(Integer.parseInt(queryParams.get("limit")), 1), MAX_LIMIT);
+                }
+            } catch (IllegalArgumentException e) {
+                AsyncExchange.sendText(exchange, 400, "参数错误");
+                return;
+            }
+            List<SuggestIndex.Suggestion> suggestions = search.suggest(prefix, kind, limit);
+            JsonResponseWriter.sendList(exchange, suggestions, JsonResponseWriter.SUGGESTION);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> queryParams = new HashMap<>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                String[] keyValue = param.split("=", 2);
+                if (keyValue.length == 2) {
+                    queryParams.put(URLDecoder.decode(keyValue[0], "UTF-8"), URLDecoder.decode(keyValue[1], "UTF-8"));
+                }
+            }
+        }
+        return queryParams;
+    }
+}
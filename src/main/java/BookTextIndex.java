@@ -0,0 +1,471 @@
+import entities.Book;
+import queries.BookQueryConditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over the title, press and author of every book, used to
+ * resolve the fuzzy (LIKE '%x%') conditions of a book query to candidate
+ * book ids without scanning the book table.
+ *
+ * Note:
+ *      (1) text is case-folded and split into words at every character that
+ *          is not a letter or digit. runs of CJK characters have no word
+ *          boundaries and are indexed as overlapping bigrams instead.
+ *      (2) a condition matches anywhere inside the value, so the words at
+ *          either end of a condition may be cut: the first word is looked up
+ *          as a suffix, the last one as a prefix of an indexed word, the
+ *          words in between exactly. CJK bigrams are always complete.
+ *      (3) candidates are a superset of the matches (case, separators), the
+ *          database still applies the conditions to them. a condition with
+ *          LIKE wildcards or without any word cannot be resolved.
+ *      (4) exact words are looked up first. once few candidates are left,
+ *          the remaining conditions are checked on their indexed values
+ *          instead of scanning the dictionary.
+ *      (5) postings are sorted int arrays, most words occur in a few
+ *          books. a lookup collects them into a bitset over book_id,
+ *          which is dense.
+ */
+public class BookTextIndex {
+
+    public enum Field {
+        TITLE(3.0),
+        PRESS(1.0),
+        AUTHOR(2.0);
+
+        /* weight of a match in this field for relevance */
+        private final double weight;
+
+        Field(double weight) {
+            this.weight = weight;
+        }
+
+        String valueOf(Book book) {
+            switch (this) {
+                case TITLE:
+                    return book.getTitle();
+                case PRESS:
+                    return book.getPress();
+                default:
+                    return book.getAuthor();
+            }
+        }
+
+        String conditionOf(BookQueryConditions conditions) {
+            switch (this) {
+                case TITLE:
+                    return conditions.getTitle();
+                case PRESS:
+                    return conditions.getPress();
+                default:
+                    return conditions.getAuthor();
+            }
+        }
+    }
+
+    /* a word of a text, and whether it touches the start or the end of the text */
+    static final class Token {
+        final String text;
+        final boolean atStart;
+        final boolean atEnd;
+
+        Token(String text, boolean atStart, boolean atEnd) {
+            this.text = text;
+            this.atStart = atStart;
+            this.atEnd = atEnd;
+        }
+    }
+
+    /* ids of the books containing a word, ascending */
+    static final class Postings {
+        private int[] ids = new int[2];
+        private int size = 0;
+
+        void add(int id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i >= 0) {
+                return;
+            }
+            i = -i - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, i, ids, i + 1, size - i);
+            ids[i] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i >= 0) {
+                System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+                size--;
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void addTo(BitSet set) {
+            for (int i = 0; i < size; i++) {
+                set.set(ids[i]);
+            }
+        }
+    }
+
+    /* below this many candidates the rest of the conditions is checked on the indexed values */
+    private static final int VERIFY_LIMIT = 256;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /* guarded by lock: indexed values by book_id, in Field order */
+    private final Map<Integer, String[]> docs = new HashMap<>();
+    /* guarded by lock: word -> book ids, one dictionary per Field */
+    private final List<TreeMap<String, Postings>> postings = new ArrayList<>();
+
+    public BookTextIndex() {
+        for (int i = 0; i < Field.values().length; i++) {
+            postings.add(new TreeMap<>());
+        }
+    }
+
+    /**
+     * index book, replacing what was indexed for its book_id.
+     */
+    public void put(Book book) {
+        String[] values = new String[Field.values().length];
+        for (Field field : Field.values()) {
+            values[field.ordinal()] = field.valueOf(book);
+        }
+        lock.writeLock().lock();
+        try {
+            unindex(book.getBookId());
+            docs.put(book.getBookId(), values);
+            for (Field field : Field.values()) {
+                for (String word : words(values[field.ordinal()])) {
+                    postings.get(field.ordinal()).computeIfAbsent(word, w -> new Postings()).add(book.getBookId());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int bookId) {
+        lock.writeLock().lock();
+        try {
+            unindex(bookId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            docs.clear();
+            for (TreeMap<String, Postings> dictionary : postings) {
+                dictionary.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return ids of every indexed book
+     */
+    public BitSet ids() {
+        lock.readLock().lock();
+        try {
+            BitSet ids = new BitSet();
+            for (Integer id : docs.keySet()) {
+                ids.set(id);
+            }
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@link #score} of the indexed title, press and author of bookId, so
+     * books can be ranked before they are loaded. 0 if it is not indexed.
+     */
+    public double score(BookQueryConditions conditions, int bookId) {
+        String[] values;
+        lock.readLock().lock();
+        try {
+            values = docs.get(bookId);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (values == null) {
+            return 0;
+        }
+        Book book = new Book();
+        book.setBookId(bookId);
+        book.setTitle(values[Field.TITLE.ordinal()]);
+        book.setPress(values[Field.PRESS.ordinal()]);
+        book.setAuthor(values[Field.AUTHOR.ordinal()]);
+        return score(conditions, book);
+    }
+
+    /**
+     * @return ids of the books that may match the title, press and author
+     *         conditions, null if none of them can be resolved, see note (3)
+     */
+    public BitSet candidates(BookQueryConditions conditions) {
+        List<Field> fields = new ArrayList<>();
+        List<Token> tokens = new ArrayList<>();
+        for (Field field : Field.values()) {
+            String condition = field.conditionOf(conditions);
+            if (condition == null || condition.indexOf('%') >= 0 || condition.indexOf('_') >= 0) {
+                continue;
+            }
+            for (Token token : tokenize(condition)) {
+                fields.add(field);
+                tokens.add(token);
+            }
+        }
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        // exact words first, they are the cheapest and usually the most selective
+        Integer[] order = new Integer[tokens.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> cost(tokens.get(i))));
+        BitSet candidates = null;
+        lock.readLock().lock();
+        try {
+            for (int k = 0; k < order.length; k++) {
+                if (candidates != null && candidates.cardinality() <= VERIFY_LIMIT) {
+                    // few candidates left, check their values instead of scanning the dictionary
+                    Set<Field> remaining = new HashSet<>();
+                    for (int j = k; j < order.length; j++) {
+                        remaining.add(fields.get(order[j]));
+                    }
+                    verify(candidates, remaining, conditions);
+                    break;
+                }
+                int i = order[k];
+                BitSet ids = lookup(postings.get(fields.get(i).ordinal()), tokens.get(i));
+                if (candidates == null) {
+                    candidates = ids;
+                } else {
+                    candidates.and(ids);
+                }
+                if (candidates.isEmpty()) {
+                    break;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return candidates;
+    }
+
+    /* guarded by the read lock: drop the candidates whose value of a field does not contain its condition */
+    private void verify(BitSet candidates, Set<Field> fields, BookQueryConditions conditions) {
+        for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+            String[] values = docs.get(id);
+            for (Field field : fields) {
+                String value = values == null ? null : values[field.ordinal()];
+                if (value == null || !fold(value).contains(fold(field.conditionOf(conditions)))) {
+                    candidates.clear(id);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * relevance of book to the title, press and author conditions: words of
+     * a condition found whole in the value count more than cut ones, short
+     * values more than long ones, and a value equal to the condition most.
+     * it only depends on the book and the conditions, so it is stable
+     * across queries and pages.
+     */
+    public static double score(BookQueryConditions conditions, Book book) {
+        double score = 0;
+        for (Field field : Field.values()) {
+            String condition = field.conditionOf(conditions);
+            String value = field.valueOf(book);
+            if (condition == null || value == null) {
+                continue;
+            }
+            List<Token> tokens = tokenize(condition);
+            Set<String> words = words(value);
+            if (tokens.isEmpty() || words.isEmpty()) {
+                continue;
+            }
+            double matched = 0;
+            for (Token token : tokens) {
+                if (words.contains(token.text)) {
+                    matched += 1.0;
+                } else if (startsAny(words, token.text)) {
+                    matched += 0.5;
+                } else {
+                    matched += 0.25;
+                }
+            }
+            double fieldScore = matched / tokens.size() / Math.sqrt(words.size());
+            if (fold(value).trim().equals(fold(condition).trim())) {
+                fieldScore += 1.0;
+            }
+            score += field.weight * fieldScore;
+        }
+        return score;
+    }
+
+    /* guarded by the write lock */
+    private void unindex(int bookId) {
+        String[] values = docs.remove(bookId);
+        if (values == null) {
+            return;
+        }
+        for (Field field : Field.values()) {
+            TreeMap<String, Postings> dictionary = postings.get(field.ordinal());
+            for (String word : words(values[field.ordinal()])) {
+                Postings ids = dictionary.get(word);
+                if (ids != null) {
+                    ids.remove(bookId);
+                    if (ids.isEmpty()) {
+                        dictionary.remove(word);
+                    }
+                }
+            }
+        }
+    }
+
+    /* 0 for an exact lookup, 1 for a prefix range, 2 for a dictionary scan */
+    private static int cost(Token token) {
+        if (!token.atStart && !token.atEnd || isBigram(token.text)) {
+            return 0;
+        }
+        return token.atStart ? 2 : 1;
+    }
+
+    private static boolean isBigram(String text) {
+        return isCjk(text.codePointAt(0)) && text.codePointCount(0, text.length()) > 1;
+    }
+
+    /* books whose value may contain token, see note (2); a fresh bitset */
+    private static BitSet lookup(TreeMap<String, Postings> dictionary, Token token) {
+        BitSet ids = new BitSet();
+        String text = token.text;
+        if (cost(token) == 0) {
+            Postings exact = dictionary.get(text);
+            if (exact != null) {
+                exact.addTo(ids);
+            }
+        } else if (!token.atStart) {
+            // a prefix of the indexed word
+            SortedMap<String, Postings> range = dictionary.subMap(text, text + Character.MAX_VALUE);
+            for (Postings prefixed : range.values()) {
+                prefixed.addTo(ids);
+            }
+        } else {
+            for (Map.Entry<String, Postings> entry : dictionary.entrySet()) {
+                String word = entry.getKey();
+                if (token.atEnd ? word.contains(text) : word.endsWith(text)) {
+                    entry.getValue().addTo(ids);
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static boolean startsAny(Set<String> words, String prefix) {
+        for (String word : words) {
+            if (word.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* distinct words of an indexed value */
+    static Set<String> words(String value) {
+        Set<String> words = new HashSet<>();
+        if (value != null) {
+            for (Token token : tokenize(value)) {
+                words.add(token.text);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * case-folded words of text, runs of CJK characters as bigrams (a run of
+     * one character as itself), see note (1).
+     */
+    static List<Token> tokenize(String text) {
+        List<Token> tokens = new ArrayList<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int cp = text.codePointAt(i);
+            if (!Character.isLetterOrDigit(cp)) {
+                i += Character.charCount(cp);
+                continue;
+            }
+            boolean cjk = isCjk(cp);
+            int start = i;
+            List<Integer> run = new ArrayList<>();
+            while (i < length) {
+                cp = text.codePointAt(i);
+                if (!Character.isLetterOrDigit(cp) || isCjk(cp) != cjk) {
+                    break;
+                }
+                run.add(i);
+                i += Character.charCount(cp);
+            }
+            boolean atStart = start == 0;
+            boolean atEnd = i == length;
+            if (!cjk || run.size() == 1) {
+                tokens.add(new Token(fold(text.substring(start, i)), atStart, atEnd));
+            } else {
+                for (int k = 0; k + 1 < run.size(); k++) {
+                    int end = k + 2 < run.size() ? run.get(k + 2) : i;
+                    tokens.add(new Token(fold(text.substring(run.get(k), end)), atStart && k == 0,
+                            atEnd && k + 2 == run.size()));
+                }
+            }
+        }
+        return tokens;
+    }
+
+    private static String fold(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isCjk(int cp) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+}
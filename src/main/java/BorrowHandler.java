@@ -12,39 +12,14 @@ import org.json.JSONObject;
 import com.sun.net.httpserver.*;
 
 import entities.Borrow;
-import queries.ApiResult;
 import queries.BorrowHistories;
-import queries.BorrowHistories.Item;
-import utils.ConnectConfig;
-import utils.DatabaseConnector;
 
 public class BorrowHandler implements HttpHandler {
 
-    private DatabaseConnector connector;
-    private LibraryManagementSystem library;
+    private final AsyncLibraryManagementSystem library;
 
-    private static ConnectConfig connectConfig = null;
-
-    static {
-        try {
-            connectConfig = new ConnectConfig();
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-    }
-
-    public BorrowHandler() {
-        try {
-            connector = new DatabaseConnector(connectConfig);
-            library = new LibraryManagementSystemImpl(connector);
-            System.out.println("Successfully init class BorrowHandler.");
-            connector.connect();
-            System.out.println("Successfully connect to database.");
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
+    public BorrowHandler(AsyncLibraryManagementSystem library) {
+        this.library = library;
     }
 
     @Override
@@ -53,6 +28,7 @@ public class BorrowHandler implements HttpHandler {
         headers.add("Access-Control-Allow-Origin", "*");
         headers.add("Access-Control-Allow-Methods", "GET, PUT");
         headers.add("Access-Control-Allow-Headers", "Content-Type");
+        headers.add("Access-Control-Expose-Headers", "X-Next-Cursor");
         
         String requestMethod = exchange.getRequestMethod();
         if (requestMethod.equals("GET")) {
@@ -84,26 +60,40 @@ public class BorrowHandler implements HttpHandler {
             e.printStackTrace();
         }
 
-        ApiResult result = library.showBorrowHistory(cardID);
-        BorrowHistories resBorrowList = (BorrowHistories) result.payload;
-        String response = "";
-        for (int i = 0; i < resBorrowList.getCount(); i++) {
-            Item item = resBorrowList.getItems().get(i);
-
-            String itemInfo = "{\"cardID\": " + item.getCardId() + ", \"bookID\": " + item.getBookId() + ", \"borrowTime\": \"" + item.transBorrowTime() + "\", \"returnTime\": \"" + item.transReturnTime() + "\"}";
-            if (i > 0) {
-                itemInfo = "," + itemInfo;
+        // optional paging: limit=<n>&after=<cursor of previous page>
+        int limit = 0;
+        BorrowHistories.Cursor after = null;
+        try {
+            if (queryParams.get("limit") != null) {
+                limit = Integer.parseInt(queryParams.get("limit"));
             }
-            response += itemInfo;
+            if (queryParams.get("after") != null) {
+                after = BorrowHistories.Cursor.parse(queryParams.get("after"));
+            }
+        } catch (IllegalArgumentException e) {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            exchange.sendResponseHeaders(400, 0);
+            OutputStream outputStream = exchange.getResponseBody();
+            outputStream.write("分页参数错误".getBytes());
+            outputStream.close();
+            return;
         }
-        response = "[" + response + "]";
 
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(200, 0);
-        OutputStream outputStream = exchange.getResponseBody();
-        
-        outputStream.write(response.getBytes());
-        outputStream.close();
+        AsyncExchange.respond(exchange, library.showBorrowHistory(cardID, after, limit), "查询失败", result -> {
+            if (result.ok == false) {
+                exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(500, 0);
+                OutputStream outputStream = exchange.getResponseBody();
+                outputStream.write("查询失败".getBytes());
+                outputStream.close();
+                return;
+            }
+            BorrowHistories resBorrowList = (BorrowHistories) result.payload;
+            if (resBorrowList.getNextCursor() != null) {
+                exchange.getResponseHeaders().set("X-Next-Cursor", resBorrowList.getNextCursor().toString());
+            }
+            JsonResponseWriter.sendList(exchange, resBorrowList.getItems(), JsonResponseWriter.BORROW_ITEM);
+        });
     }
 
     private void handlePutRequest(HttpExchange exchange) throws IOException {
@@ -114,21 +104,8 @@ public class BorrowHandler implements HttpHandler {
             int cardId = jsonObject.getInt("card_id");
             Borrow borrow = new Borrow(bookId, cardId);
             borrow.resetBorrowTime();
-            ApiResult result = library.borrowBook(borrow);
-            if (result.ok == false) {
-                exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                exchange.sendResponseHeaders(400, 0);
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(result.message.getBytes());
-                outputStream.close();
-                return;
-            }
-            exchange.getResponseHeaders().set("Content-Type", "text/plain");
-            exchange.sendResponseHeaders(200, 0);
-            OutputStream outputStream = exchange.getResponseBody();
-            outputStream.write(result.message.getBytes());
-            outputStream.close();
-            
+            AsyncExchange.respond(exchange, library.borrowBook(borrow), "借书失败",
+                    result -> AsyncExchange.sendMessage(exchange, result));
         } catch (Exception e) {
             exchange.getResponseHeaders().set("Content-Type", "text/plain");
             exchange.sendResponseHeaders(500, 0);
@@ -0,0 +1,512 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import utils.DatabaseConnector;
+import utils.InventoryConfig;
+
+/**
+ * Write-ahead journal of the borrows and returns decided by
+ * {@link InventoryLibraryManagementSystem}, applied to the database behind
+ * the callers' backs.
+ *
+ * Note:
+ *      (1) one journal thread takes every record appended since its last
+ *          round, writes them with a single fsync, completes their
+ *          futures, and then applies them to the database in a single
+ *          transaction (group commit on both sides).
+ *      (2) applying a record is idempotent: a borrow is only inserted if
+ *          its (card_id, book_id, borrow_time) row is missing and its card
+ *          and book exist, a return
+ *          only closes a borrow that is still open, and the stock is
+ *          only changed for rows that were actually inserted or closed.
+ *          so {@link #recover} can apply the whole journal again after a
+ *          crash, no matter how much of it reached the database.
+ *      (3) a round that fails to reach the database is retried with the
+ *          next one. the journal is only truncated when every record in
+ *          it has been applied: once it outgrows maxBytes, on a clean
+ *          close, and by {@link #checkpoint} before a write that removes
+ *          cards or books, whose ids a replay must not see again. a
+ *          replayed borrow of a card or book that is gone is skipped.
+ *      (4) every line carries a CRC32, a torn line at the end of the file
+ *          was never acknowledged and is skipped by recovery.
+ */
+public class BorrowJournal {
+
+    private static final Logger log = Logger.getLogger(BorrowJournal.class.getName());
+
+    private static final long RETRY_DELAY_MILLIS = 1000L;
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000L;
+
+    private static final String INSERT_BORROW = "INSERT INTO borrow (card_id, book_id, borrow_time, return_time)" +
+            " SELECT ?, ?, ?, 0 FROM book WHERE book_id = ?" +
+            " AND EXISTS (SELECT 1 FROM card WHERE card_id = ?)" +
+            " AND NOT EXISTS (SELECT 1 FROM borrow WHERE card_id = ? AND book_id = ? AND borrow_time = ?)";
+    private static final String CLOSE_BORROW = "UPDATE borrow SET return_time = ?" +
+            " WHERE card_id = ? AND book_id = ? AND borrow_time = ? AND return_time = 0";
+    private static final String UPDATE_STOCK = "UPDATE book SET stock = stock + ? WHERE book_id = ?";
+
+    public static final class Record {
+        final boolean isReturn;
+        final int cardId;
+        final int bookId;
+        final long borrowTime;
+        final long returnTime;
+        long seq;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        private Record(boolean isReturn, int cardId, int bookId, long borrowTime, long returnTime) {
+            this.isReturn = isReturn;
+            this.cardId = cardId;
+            this.bookId = bookId;
+            this.borrowTime = borrowTime;
+            this.returnTime = returnTime;
+        }
+
+        public static Record borrow(int cardId, int bookId, long borrowTime) {
+            return new Record(false, cardId, bookId, borrowTime, 0);
+        }
+
+        public static Record giveBack(int cardId, int bookId, long borrowTime, long returnTime) {
+            return new Record(true, cardId, bookId, borrowTime, returnTime);
+        }
+
+        String encode() {
+            String line = (isReturn ? "R " : "B ") + cardId + " " + bookId + " " + borrowTime + " " + returnTime;
+            return line + " " + Long.toHexString(crc(line)) + "\n";
+        }
+
+        /* null if the line is torn or corrupted */
+        static Record decode(String text) {
+            int last = text.lastIndexOf(' ');
+            if (last < 0) {
+                return null;
+            }
+            String line = text.substring(0, last);
+            String[] fields = line.split(" ");
+            try {
+                if (fields.length != 5 || crc(line) != Long.parseLong(text.substring(last + 1), 16)) {
+                    return null;
+                }
+                return new Record(fields[0].equals("R"), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                        Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private static long crc(String line) {
+            CRC32 crc = new CRC32();
+            crc.update(line.getBytes(StandardCharsets.UTF_8));
+            return crc.getValue();
+        }
+    }
+
+    private final DatabaseConnector connector;
+    private final int maxBatch;
+    private final long maxBytes;
+    /* writes and truncations of the file synchronize on it */
+    private final FileChannel channel;
+    private final LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private volatile boolean closing = false;
+
+    /* guarded by this */
+    private long appendedSeq = 0;
+    private long appliedSeq = 0;
+    /* guarded by channel: the last record written to the file */
+    private long writtenSeq = 0;
+
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+
+    public BorrowJournal(DatabaseConnector connector, InventoryConfig conf) throws IOException {
+        this.connector = connector;
+        this.maxBatch = Math.max(conf.getMaxBatch(), 1);
+        this.maxBytes = conf.getJournalMaxBytes();
+        this.channel = FileChannel.open(Paths.get(conf.getJournalFile()),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.worker = new Thread(this::run, "borrow-journal");
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * apply every record left in the journal by a previous run and empty it,
+     * must be called once before {@link #start}.
+     *
+     * @return number of records found
+     */
+    public int recover() throws IOException, SQLException {
+        List<Record> records = new ArrayList<>();
+        channel.position(0);
+        BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Record record = Record.decode(line);
+            if (record == null) {
+                log.warning("Skip torn journal line: " + line);
+                continue;
+            }
+            records.add(record);
+        }
+        if (!records.isEmpty()) {
+            apply(records);
+        }
+        channel.truncate(0);
+        channel.force(true);
+        return records.size();
+    }
+
+    public void start() {
+        worker.start();
+    }
+
+    /**
+     * write record to the journal, the future completes once it is durable.
+     */
+    public CompletableFuture<Void> append(Record record) {
+        synchronized (this) {
+            if (closing) {
+                record.durable.completeExceptionally(new IllegalStateException("Journal is closed."));
+                return record.durable;
+            }
+            record.seq = ++appendedSeq;
+            queue.add(record);
+        }
+        return record.durable;
+    }
+
+    /**
+     * wait at most timeoutMillis until every record appended so far is in
+     * the database.
+     *
+     * @return whether it is
+     */
+    public boolean awaitApplied(long timeoutMillis) {
+        synchronized (this) {
+            long target = appendedSeq;
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            boolean interrupted = false;
+            try {
+                while (appliedSeq < target) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                return true;
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * wait until every record appended so far is in the database.
+     */
+    public void awaitApplied() {
+        synchronized (this) {
+            long target = appendedSeq;
+            boolean interrupted = false;
+            while (appliedSeq < target) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * empty the journal if every record written to it has been applied,
+     * see note (3).
+     *
+     * @return whether the journal is empty now
+     */
+    public boolean checkpoint() {
+        synchronized (channel) {
+            synchronized (this) {
+                if (appliedSeq < writtenSeq) {
+                    return false;
+                }
+            }
+            try {
+                if (channel.size() > 0) {
+                    channel.truncate(0);
+                    channel.force(true);
+                }
+                return true;
+            } catch (IOException e) {
+                log.warning("Failed to truncate borrow journal: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * apply what is pending, empty the journal and stop the journal thread.
+     */
+    public void close() {
+        synchronized (this) {
+            closing = true;
+        }
+        try {
+            worker.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (worker.isAlive()) {
+            // the database is unreachable, the next start recovers from the journal
+            log.warning(getPending() + " journal record(s) not applied on close.");
+            return;
+        }
+        // everything is applied, the next start has nothing to replay
+        checkpoint();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized long getPending() {
+        return appendedSeq - appliedSeq;
+    }
+
+    public long getRounds() {
+        return rounds.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    private void run() {
+        List<Record> unapplied = new ArrayList<>();
+        /* records that never became durable, they count as applied */
+        long failedSeq = 0;
+        while (true) {
+            List<Record> batch = new ArrayList<>();
+            try {
+                Record first = queue.poll(unapplied.isEmpty() ? 100 : RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatch - 1);
+                }
+            } catch (InterruptedException e) {
+                // only closing stops the journal
+            }
+            if (batch.isEmpty() && unapplied.isEmpty()) {
+                if (closing && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    write(batch);
+                } catch (IOException e) {
+                    log.severe("Failed to write borrow journal: " + e.getMessage());
+                    for (Record record : batch) {
+                        record.durable.completeExceptionally(e);
+                    }
+                    failedSeq = batch.get(batch.size() - 1).seq;
+                    if (unapplied.isEmpty()) {
+                        markApplied(failedSeq);
+                    }
+                    continue;
+                }
+                unapplied.addAll(batch);
+            }
+            try {
+                apply(unapplied);
+            } catch (SQLException e) {
+                retries.incrementAndGet();
+                log.warning("Failed to apply " + unapplied.size() + " journal record(s), retry later: " + e.getMessage());
+                continue;
+            }
+            rounds.incrementAndGet();
+            markApplied(Math.max(unapplied.get(unapplied.size() - 1).seq, failedSeq));
+            unapplied.clear();
+            try {
+                if (channel.size() > maxBytes) {
+                    checkpoint();
+                }
+            } catch (IOException e) {
+                log.warning("Failed to truncate borrow journal: " + e.getMessage());
+            }
+        }
+    }
+
+    private void write(List<Record> batch) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Record record : batch) {
+            sb.append(record.encode());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        synchronized (channel) {
+            channel.position(channel.size());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            writtenSeq = batch.get(batch.size() - 1).seq;
+        }
+        for (Record record : batch) {
+            record.durable.complete(null);
+        }
+    }
+
+    private synchronized void markApplied(long seq) {
+        appliedSeq = Math.max(appliedSeq, seq);
+        notifyAll();
+    }
+
+    /* see note (2) */
+    private void apply(List<Record> records) throws SQLException {
+        Connection conn = connector.getConn();
+        try {
+            boolean[] changed = new boolean[records.size()];
+            if (!applyBatched(conn, records, changed)) {
+                conn.rollback();
+                applyOneByOne(conn, records, changed);
+            }
+            /* book ids in order, so concurrent writers lock book rows in the same order */
+            Map<Integer, Integer> deltas = new TreeMap<>();
+            for (int i = 0; i < records.size(); i++) {
+                if (changed[i]) {
+                    Record record = records.get(i);
+                    deltas.merge(record.bookId, record.isReturn ? 1 : -1, Integer::sum);
+                }
+            }
+            deltas.values().removeIf(delta -> delta == 0);
+            if (!deltas.isEmpty()) {
+                try (PreparedStatement pStmt = conn.prepareStatement(UPDATE_STOCK)) {
+                    for (Map.Entry<Integer, Integer> delta : deltas.entrySet()) {
+                        pStmt.setInt(1, delta.getValue());
+                        pStmt.setInt(2, delta.getKey());
+                        pStmt.addBatch();
+                    }
+                    pStmt.executeBatch();
+                }
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            connector.releaseConn(conn);
+        }
+    }
+
+    /* false if the driver does not report the update count of every row */
+    private static boolean applyBatched(Connection conn, List<Record> records, boolean[] changed) throws SQLException {
+        List<Integer> borrows = new ArrayList<>();
+        List<Integer> returns = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            (records.get(i).isReturn ? returns : borrows).add(i);
+        }
+        /* inserts first, a borrow may be returned within the same round */
+        try (PreparedStatement pStmt = conn.prepareStatement(INSERT_BORROW)) {
+            for (int i : borrows) {
+                bindInsert(pStmt, records.get(i));
+                pStmt.addBatch();
+            }
+            if (!collect(pStmt, borrows, changed)) {
+                return false;
+            }
+        }
+        try (PreparedStatement pStmt = conn.prepareStatement(CLOSE_BORROW)) {
+            for (int i : returns) {
+                bindClose(pStmt, records.get(i));
+                pStmt.addBatch();
+            }
+            return collect(pStmt, returns, changed);
+        }
+    }
+
+    private static boolean collect(PreparedStatement pStmt, List<Integer> indexes, boolean[] changed) throws SQLException {
+        if (indexes.isEmpty()) {
+            return true;
+        }
+        int[] counts = pStmt.executeBatch();
+        if (counts.length != indexes.size()) {
+            return false;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                return false;
+            }
+            changed[indexes.get(i)] = counts[i] > 0;
+        }
+        return true;
+    }
+
+    private static void applyOneByOne(Connection conn, List<Record> records, boolean[] changed) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(INSERT_BORROW);
+             PreparedStatement close = conn.prepareStatement(CLOSE_BORROW)) {
+            for (int i = 0; i < records.size(); i++) {
+                Record record = records.get(i);
+                if (!record.isReturn) {
+                    bindInsert(insert, record);
+                    changed[i] = insert.executeUpdate() > 0;
+                }
+            }
+            for (int i = 0; i < records.size(); i++) {
+                Record record = records.get(i);
+                if (record.isReturn) {
+                    bindClose(close, record);
+                    changed[i] = close.executeUpdate() > 0;
+                }
+            }
+        }
+    }
+
+    private static void bindInsert(PreparedStatement pStmt, Record record) throws SQLException {
+        pStmt.setInt(1, record.cardId);
+        pStmt.setInt(2, record.bookId);
+        pStmt.setLong(3, record.borrowTime);
+        pStmt.setInt(4, record.bookId);
+        pStmt.setInt(5, record.cardId);
+        pStmt.setInt(6, record.cardId);
+        pStmt.setInt(7, record.bookId);
+        pStmt.setLong(8, record.borrowTime);
+    }
+
+    private static void bindClose(PreparedStatement pStmt, Record record) throws SQLException {
+        pStmt.setLong(1, record.returnTime);
+        pStmt.setInt(2, record.cardId);
+        pStmt.setInt(3, record.bookId);
+        pStmt.setLong(4, record.borrowTime);
+    }
+}
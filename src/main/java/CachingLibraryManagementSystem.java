@@ -0,0 +1,403 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import queries.BookQueryResults;
+import queries.BorrowHistories;
+import utils.CacheConfig;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of {@link #queryBook} results in front of another
+ * LibraryManagementSystem, every other call is passed through.
+ *
+ * Note:
+ *      (1) entries are keyed by the normalized query conditions, kept in
+ *          LRU order and bounded by maxEntries and ttlMillis.
+ *      (2) a write drops exactly the entries it can change: the entries
+ *          that contain the written book, and the entries whose filter
+ *          matches the book's new attributes (a new or moved book may
+ *          enter such a result). stock is not a filter, so a stock change
+ *          only reaches other entries when they are sorted by stock.
+ *          fuzzy and relevance-sorted entries are ranked by the search
+ *          index rather than filtered by LIKE, any stored or modified
+ *          book may change them. facet counts cover every matching book,
+ *          not just the cached page, and the old attributes of a removed
+ *          or modified book are unknown, so those writes drop every entry
+ *          with facets.
+ *      (3) entries are dropped both before and after the write, and a
+ *          query result is only cached if no write ran while it was
+ *          loaded, so a stale stock is never served after a commit.
+ *      (4) cached results are shared between callers and must not be
+ *          modified.
+ */
+public class CachingLibraryManagementSystem implements LibraryManagementSystem {
+
+    private static final class Entry {
+        final BookQueryConditions conditions;
+        final ApiResult result;
+        final Set<Integer> bookIds = new HashSet<>();
+        final long expiresAt;
+
+        Entry(BookQueryConditions conditions, ApiResult result, long expiresAt) {
+            this.conditions = conditions;
+            this.result = result;
+            this.expiresAt = expiresAt;
+            for (Book book : ((BookQueryResults) result.payload).getResults()) {
+                bookIds.add(book.getBookId());
+            }
+        }
+    }
+
+    /* which entries a write can change */
+    private interface Change {
+        boolean affects(Entry entry);
+    }
+
+    private final LibraryManagementSystem delegate;
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    /* guarded by this */
+    private final LinkedHashMap<String, Entry> entries;
+    private int writesInFlight = 0;
+    private long writeEpoch = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public CachingLibraryManagementSystem(LibraryManagementSystem delegate, CacheConfig conf) {
+        this.delegate = delegate;
+        this.maxEntries = conf.getMaxEntries();
+        this.ttlMillis = conf.getTtlMillis();
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public ApiResult queryBook(BookQueryConditions conditions) {
+        if (maxEntries <= 0) {
+            return delegate.queryBook(conditions);
+        }
+        String key = keyOf(conditions);
+        long epoch;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expiresAt - System.currentTimeMillis() > 0) {
+                    hits.incrementAndGet();
+                    return entry.result;
+                }
+                entries.remove(key);
+                evictions.incrementAndGet();
+            }
+            epoch = writeEpoch;
+        }
+        misses.incrementAndGet();
+        ApiResult result = delegate.queryBook(conditions);
+        if (result.ok) {
+            Entry entry = new Entry(copyOf(conditions), result, System.currentTimeMillis() + ttlMillis);
+            synchronized (this) {
+                // a write that ran while loading may have changed the rows
+                if (writesInFlight == 0 && writeEpoch == epoch) {
+                    entries.put(key, entry);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public ApiResult storeBook(Book book) {
+        Change change = entry -> matches(entry.conditions, book);
+        beginWrite(change);
+        try {
+            return delegate.storeBook(book);
+        } finally {
+            endWrite(change);
+        }
+    }
+
+    @Override
+    public ApiResult incBookStock(int bookId, int deltaStock) {
+        return stockWrite(bookId, () -> delegate.incBookStock(bookId, deltaStock));
+    }
+
+    @Override
+    public ApiResult storeBook(List<Book> books) {
+        Change change = entry -> matchesAny(entry.conditions, books);
+        beginWrite(change);
+        try {
+            return delegate.storeBook(books);
+        } finally {
+            endWrite(change);
+        }
+    }
+
+    @Override
+    public ApiResult importBooks(List<Book> books, int chunkSize) {
+        Change change = entry -> matchesAny(entry.conditions, books);
+        beginWrite(change);
+        try {
+            return delegate.importBooks(books, chunkSize);
+        } finally {
+            endWrite(change);
+        }
+    }
+
+    @Override
+    public ApiResult removeBook(int bookId) {
+        Change change = entry -> entry.bookIds.contains(bookId) || entry.conditions.isFacets();
+        beginWrite(change);
+        try {
+            return delegate.removeBook(bookId);
+        } finally {
+            endWrite(change);
+        }
+    }
+
+    @Override
+    public ApiResult modifyBookInfo(Book book) {
+        Change change = entry -> entry.bookIds.contains(book.getBookId()) || entry.conditions.isFacets()
+                || matches(entry.conditions, book);
+        beginWrite(change);
+        try {
+            return delegate.modifyBookInfo(book);
+        } finally {
+            endWrite(change);
+        }
+    }
+
+    @Override
+    public ApiResult borrowBook(Borrow borrow) {
+        return stockWrite(borrow.getBookId(), () -> delegate.borrowBook(borrow));
+    }
+
+    @Override
+    public ApiResult returnBook(Borrow borrow) {
+        return stockWrite(borrow.getBookId(), () -> delegate.returnBook(borrow));
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId) {
+        return delegate.showBorrowHistory(cardId);
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId, BorrowHistories.Cursor after, int limit) {
+        return delegate.showBorrowHistory(cardId, after, limit);
+    }
+
+    @Override
+    public ApiResult registerCard(Card card) {
+        return delegate.registerCard(card);
+    }
+
+    @Override
+    public ApiResult modifyCardInfo(Card card) {
+        return delegate.modifyCardInfo(card);
+    }
+
+    @Override
+    public ApiResult removeCard(int cardId) {
+        return delegate.removeCard(cardId);
+    }
+
+    @Override
+    public ApiResult showCards() {
+        return delegate.showCards();
+    }
+
+    @Override
+    public ApiResult resetDatabase() {
+        Change change = entry -> true;
+        beginWrite(change);
+        try {
+            return delegate.resetDatabase();
+        } finally {
+            endWrite(change);
+        }
+    }
+
+    private interface Write {
+        ApiResult run();
+    }
+
+    /* a write that only changes the stock of bookId */
+    private ApiResult stockWrite(int bookId, Write write) {
+        Book known = findCachedBook(bookId);
+        Change change = entry -> entry.bookIds.contains(bookId)
+                || (entry.conditions.getSortBy() == Book.SortColumn.STOCK
+                    && (known == null || matches(entry.conditions, known)));
+        beginWrite(change);
+        try {
+            return write.run();
+        } finally {
+            endWrite(change);
+        }
+    }
+
+    private synchronized void beginWrite(Change change) {
+        writesInFlight++;
+        invalidate(change);
+    }
+
+    private synchronized void endWrite(Change change) {
+        invalidate(change);
+        writeEpoch++;
+        writesInFlight--;
+    }
+
+    /* guarded by this */
+    private void invalidate(Change change) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (change.affects(it.next())) {
+                it.remove();
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /* attributes of a book from any cached result, null if it is not cached */
+    private synchronized Book findCachedBook(int bookId) {
+        for (Entry entry : entries.values()) {
+            if (entry.bookIds.contains(bookId)) {
+                for (Book book : ((BookQueryResults) entry.result.payload).getResults()) {
+                    if (book.getBookId() == bookId) {
+                        return book;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean matchesAny(BookQueryConditions conditions, List<Book> books) {
+        for (Book book : books) {
+            if (matches(conditions, book)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * whether book satisfies the filter of conditions. errs on the side of
+     * true where the database may compare differently (collation, LIKE
+     * wildcards), a false match only costs an extra reload.
+     */
+    static boolean matches(BookQueryConditions conditions, Book book) {
+        // resolved by similarity or scored, see note (2)
+        if (conditions.isFuzzy() || conditions.getSortBy() == Book.SortColumn.RELEVANCE) {
+            return true;
+        }
+        if (conditions.getCategory() != null && book.getCategory() != null
+                && !conditions.getCategory().trim().equalsIgnoreCase(book.getCategory().trim())) {
+            return false;
+        }
+        if (!likeMayMatch(conditions.getTitle(), book.getTitle())
+                || !likeMayMatch(conditions.getPress(), book.getPress())
+                || !likeMayMatch(conditions.getAuthor(), book.getAuthor())) {
+            return false;
+        }
+        if (conditions.getMinPublishYear() != null && book.getPublishYear() < conditions.getMinPublishYear()) {
+            return false;
+        }
+        if (conditions.getMaxPublishYear() != null && book.getPublishYear() > conditions.getMaxPublishYear()) {
+            return false;
+        }
+        if (conditions.getMinPrice() != null && book.getPrice() < conditions.getMinPrice() - 0.01) {
+            return false;
+        }
+        if (conditions.getMaxPrice() != null && book.getPrice() > conditions.getMaxPrice() + 0.01) {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean likeMayMatch(String pattern, String value) {
+        if (pattern == null || value == null || pattern.indexOf('%') >= 0 || pattern.indexOf('_') >= 0) {
+            return true;
+        }
+        return value.toLowerCase().contains(pattern.toLowerCase());
+    }
+
+    /* every field in a fixed order, so equal conditions give equal keys */
+    static String keyOf(BookQueryConditions c) {
+        return c.getCategory() + "\u0000" + c.getTitle() + "\u0000" + c.getPress() + "\u0000" + c.getAuthor()
+                + "\u0000" + c.getMinPublishYear() + "\u0000" + c.getMaxPublishYear()
+                + "\u0000" + c.getMinPrice() + "\u0000" + c.getMaxPrice()
+                + "\u0000" + c.getSortBy() + "\u0000" + c.getSortOrder()
+                + "\u0000" + (c.getLimit() == null || c.getLimit() <= 0 ? null : c.getLimit())
+                + "\u0000" + c.getAfter() + "\u0000" + c.getBookIds()
+                + "\u0000" + (c.isFacets() ? c.getPriceBuckets() : "-") + "\u0000" + c.isFuzzy();
+    }
+
+    /* the caller may reuse its conditions object after the call */
+    static BookQueryConditions copyOf(BookQueryConditions c) {
+        BookQueryConditions copy = new BookQueryConditions();
+        copy.setCategory(c.getCategory());
+        copy.setTitle(c.getTitle());
+        copy.setPress(c.getPress());
+        copy.setAuthor(c.getAuthor());
+        copy.setMinPublishYear(c.getMinPublishYear());
+        copy.setMaxPublishYear(c.getMaxPublishYear());
+        copy.setMinPrice(c.getMinPrice());
+        copy.setMaxPrice(c.getMaxPrice());
+        copy.setSortBy(c.getSortBy());
+        copy.setSortOrder(c.getSortOrder());
+        copy.setLimit(c.getLimit());
+        copy.setAfter(c.getAfter());
+        copy.setBookIds(c.getBookIds());
+        copy.setFacets(c.isFacets());
+        copy.setPriceBuckets(c.getPriceBuckets());
+        copy.setFuzzy(c.isFuzzy());
+        return copy;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /* entries dropped because of size or age */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /* entries dropped because of writes */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public String getStats() {
+        return "hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+                + ", invalidations=" + getInvalidations() + ", size=" + getSize();
+    }
+}
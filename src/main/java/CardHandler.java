@@ -7,39 +7,15 @@ import com.sun.net.httpserver.*;
 
 import entities.Card;
 import entities.Card.CardType;
-import queries.ApiResult;
 import queries.CardList;
-import utils.ConnectConfig;
-import utils.DatabaseConnector;
 import org.json.JSONObject;
 
 public class CardHandler implements HttpHandler {
 
-    private DatabaseConnector connector;
-    private LibraryManagementSystem library;
+    private final AsyncLibraryManagementSystem library;
 
-    private static ConnectConfig connectConfig = null;
-
-    static {
-        try {
-            connectConfig = new ConnectConfig();
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-    }
-
-    public CardHandler() {
-        try {
-            connector = new DatabaseConnector(connectConfig);
-            library = new LibraryManagementSystemImpl(connector);
-            System.out.println("Successfully init class CardHandler.");
-            connector.connect();
-            System.out.println("Successfully connect to database.");
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
+    public CardHandler(AsyncLibraryManagementSystem library) {
+        this.library = library;
     }
 
     @Override
@@ -68,37 +44,14 @@ public class CardHandler implements HttpHandler {
 
     private void handleGetRequest(HttpExchange exchange) throws IOException {
         try {
-            ApiResult result = library.showCards();
-            if (result.ok == false) {
-                exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                exchange.sendResponseHeaders(400, 0);
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(result.message.getBytes());
-                outputStream.close();
-                return;
-            }
-            CardList resCardList = (CardList) result.payload;
-            String response = "";
-            for (int i = 0; i < resCardList.getCount(); i++) {
-                Card card = resCardList.getCards().get(i);
-                
-                String type = card.getType().getStr();
-                if (type.equals("S")) type = "学生";
-                else type = "教师";
-    
-                String cardInfo = "{\"id\": " + card.getCardId() + ", \"name\": \"" + card.getName() + "\", \"department\": \"" + card.getDepartment() + "\", \"type\": \"" + type + "\"}";
-                if (i > 0) {
-                    cardInfo = "," + cardInfo;
+            AsyncExchange.respond(exchange, library.showCards(), "查询失败", result -> {
+                if (result.ok == false) {
+                    AsyncExchange.sendMessage(exchange, result);
+                    return;
                 }
-                response += cardInfo;
-            }
-            response = "[" + response + "]";
-            
-            exchange.getResponseHeaders().set("Content-Type", "application/json");
-            exchange.sendResponseHeaders(200, 0);
-            OutputStream outputStream = exchange.getResponseBody();
-            outputStream.write(response.getBytes());
-            outputStream.close();
+                CardList resCardList = (CardList) result.payload;
+                JsonResponseWriter.sendList(exchange, resCardList.getCards(), JsonResponseWriter.CARD);
+            });
         } catch (Exception e) {
             exchange.getResponseHeaders().set("Content-Type", "text/plain");
             exchange.sendResponseHeaders(500, 0);
@@ -124,20 +77,8 @@ public class CardHandler implements HttpHandler {
                 cardType = CardType.Teacher;
             }
             Card card = new Card(0, name, department, cardType);
-            ApiResult result = library.registerCard(card);
-            if (result.ok == false) {
-                exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                exchange.sendResponseHeaders(400, 0);
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(result.message.getBytes());
-                outputStream.close();
-                return;
-            }
-            exchange.getResponseHeaders().set("Content-Type", "text/plain");
-            exchange.sendResponseHeaders(200, 0);
-            OutputStream outputStream = exchange.getResponseBody();
-            outputStream.write(result.message.getBytes());
-            outputStream.close();
+            AsyncExchange.respond(exchange, library.registerCard(card), "新建失败",
+                    result -> AsyncExchange.sendMessage(exchange, result));
         } catch (Exception e) {
             exchange.getResponseHeaders().set("Content-Type", "text/plain");
             exchange.sendResponseHeaders(500, 0);
@@ -164,20 +105,8 @@ public class CardHandler implements HttpHandler {
                 cardType = CardType.Teacher;
             }
             Card card = new Card(cardId, name, department, cardType);
-            ApiResult result = library.modifyCardInfo(card);
-            if (result.ok == false) {
-                exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                exchange.sendResponseHeaders(400, 0);
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(result.message.getBytes());
-                outputStream.close();
-                return;
-            }
-            exchange.getResponseHeaders().set("Content-Type", "text/plain");
-            exchange.sendResponseHeaders(200, 0);
-            OutputStream outputStream = exchange.getResponseBody();
-            outputStream.write(result.message.getBytes());
-            outputStream.close();
+            AsyncExchange.respond(exchange, library.modifyCardInfo(card), "修改失败",
+                    result -> AsyncExchange.sendMessage(exchange, result));
         } catch (Exception e) {
             exchange.getResponseHeaders().set("Content-Type", "text/plain");
             exchange.sendResponseHeaders(500, 0);
@@ -193,20 +122,8 @@ public class CardHandler implements HttpHandler {
 
         try {
             int cardId = jsonObject.getInt("id");
-            ApiResult result = library.removeCard(cardId);
-            if (result.ok == false) {
-                exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                exchange.sendResponseHeaders(400, 0);
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(result.message.getBytes());
-                outputStream.close();
-                return;
-            }
-            exchange.getResponseHeaders().set("Content-Type", "text/plain");
-            exchange.sendResponseHeaders(200, 0);
-            OutputStream outputStream = exchange.getResponseBody();
-            outputStream.write(result.message.getBytes());
-            outputStream.close();
+            AsyncExchange.respond(exchange, library.removeCard(cardId), "删除失败",
+                    result -> AsyncExchange.sendMessage(exchange, result));
         } catch (Exception e) {
             exchange.getResponseHeaders().set("Content-Type", "text/plain");
             exchange.sendResponseHeaders(500, 0);
@@ -0,0 +1,394 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Compresses responses with gzip or deflate when the client accepts it,
+ * for every handler of the contexts it is installed on.
+ *
+ * Note:
+ *      (1) the handler gets a wrapper of the exchange, the encoding is
+ *          decided when it sends the response headers: a body of a known
+ *          length below minBytes, a body of a type that is already
+ *          compressed (images, fonts) and a body the handler encoded
+ *          itself are sent as they are. a body of unknown length is held
+ *          back until it reaches minBytes, so short messages are not
+ *          compressed either. a compressed body is streamed with chunked
+ *          transfer encoding, it is never buffered as a whole.
+ *      (2) the coding is picked from Accept-Encoding by its q value, gzip
+ *          before deflate on a tie. a strong ETag becomes weak, since the
+ *          compressed bytes differ from the ones it was computed for.
+ *      (3) every thread keeps one Deflater per coding and resets it for
+ *          the next response, so no native zlib state is allocated per
+ *          response. responses are written by the database threads and
+ *          the request threads, both are long-lived pools in fixed mode.
+ *      (4) bytes before and after compression and the CPU time of the
+ *          thread spent in zlib are counted for /metrics.
+ */
+public class CompressionFilter extends Filter {
+
+    private static final String[] CODINGS = {"gzip", "deflate"};
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final int minBytes;
+    private final int level;
+    /* per coding, see note (3) */
+    private final ThreadLocal<Deflater> gzipDeflaters;
+    private final ThreadLocal<Deflater> deflateDeflaters;
+    private final boolean cpuTime;
+
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong cpuNanos = new AtomicLong();
+
+    /**
+     * @param minBytes bodies of a known length below this are not compressed
+     * @param level zlib level from 1 (fastest) to 9 (smallest), -1 for the default
+     */
+    public CompressionFilter(int minBytes, int level) {
+        this.minBytes = minBytes;
+        this.level = level;
+        this.gzipDeflaters = new ThreadLocal<>();
+        this.deflateDeflaters = new ThreadLocal<>();
+        this.cpuTime = threads.isCurrentThreadCpuTimeSupported();
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        String coding = coding(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            coding = null;
+        }
+        chain.doFilter(new CompressingExchange(exchange, coding));
+    }
+
+    @Override
+    public String description() {
+        return "Compress responses with gzip or deflate";
+    }
+
+    /* responses sent compressed */
+    public long getResponses() {
+        return responses.get();
+    }
+
+    /* bytes of those responses before compression */
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    /* bytes of those responses after compression */
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /* CPU time spent compressing, 0 if the JVM cannot measure it */
+    public long getCpuNanos() {
+        return cpuNanos.get();
+    }
+
+    /**
+     * the coding to answer a request with, null for identity, see note (2).
+     */
+    static String coding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        String best = null;
+        double bestQuality = 0;
+        for (String coding : CODINGS) {
+            double quality = quality(acceptEncoding, coding);
+            if (quality > bestQuality) {
+                best = coding;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    /* q value of coding in an Accept-Encoding header, an explicit entry before "*" */
+    private static double quality(String acceptEncoding, String coding) {
+        double wildcard = 0;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split(";");
+            String name = parts[0].trim();
+            boolean explicit = name.equalsIgnoreCase(coding);
+            if (!explicit && !name.equals("*")) {
+                continue;
+            }
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (explicit) {
+                return quality;
+            }
+            wildcard = quality;
+        }
+        return wildcard;
+    }
+
+    /* whether a body of contentType gets smaller when compressed */
+    private static boolean compressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.contains("json") || type.contains("javascript")
+                || type.contains("xml");
+    }
+
+    /* the exchange handed to the handler, see note (1) */
+    private final class CompressingExchange extends DelegatingExchange {
+
+        private final String coding;
+        private CompressingStream body;
+
+        CompressingExchange(HttpExchange exchange, String coding) {
+            super(exchange);
+            this.coding = coding;
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            if (!compressible(headers.getFirst("Content-Type")) || headers.containsKey("Content-Encoding")) {
+                exchange.sendResponseHeaders(rCode, responseLength);
+                return;
+            }
+            if (responseLength < 0) {
+                // a 304 carries the ETag the compressed 200 had
+                String etag = headers.getFirst("ETag");
+                if (rCode == 304 && coding != null && etag != null && !etag.startsWith("W/")) {
+                    headers.set("ETag", "W/" + etag);
+                }
+                exchange.sendResponseHeaders(rCode, responseLength);
+                return;
+            }
+            String vary = headers.getFirst("Vary");
+            if (vary == null) {
+                headers.set("Vary", "Accept-Encoding");
+            } else if (!vary.toLowerCase(Locale.ROOT).contains("accept-encoding")) {
+                headers.set("Vary", vary + ", Accept-Encoding");
+            }
+            if (coding == null || (responseLength > 0 && responseLength < minBytes)) {
+                exchange.sendResponseHeaders(rCode, responseLength);
+                return;
+            }
+            // a body of unknown length is held back until it reaches minBytes
+            body = new CompressingStream(exchange, coding, rCode, responseLength == 0);
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return body != null ? body : exchange.getResponseBody();
+        }
+
+        @Override
+        public void close() {
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException ignored) {
+                    // the client is gone
+                }
+            }
+            exchange.close();
+        }
+
+        @Override
+        public int getResponseCode() {
+            return body != null ? body.getResponseCode() : exchange.getResponseCode();
+        }
+    }
+
+    /* a gzip (RFC 1952) or zlib (RFC 1950) stream on a reused Deflater */
+    private final class CompressingStream extends OutputStream {
+
+        private final HttpExchange exchange;
+        private final String coding;
+        private final boolean gzip;
+        private final int rCode;
+        /* the start of a body of unknown length, null once the headers are sent */
+        private byte[] pending;
+        private int pendingSize = 0;
+        private OutputStream out;
+        private Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final byte[] single = new byte[1];
+        private long written = 0;
+        private boolean closed = false;
+
+        CompressingStream(HttpExchange exchange, String coding, int rCode, boolean deferred) throws IOException {
+            this.exchange = exchange;
+            this.coding = coding;
+            this.gzip = coding.equals("gzip");
+            this.rCode = rCode;
+            if (deferred) {
+                pending = new byte[Math.min(minBytes, BUFFER_SIZE)];
+            } else {
+                start();
+            }
+        }
+
+        /* the status of the response, also while its headers are held back */
+        int getResponseCode() {
+            return pending != null ? rCode : exchange.getResponseCode();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (len == 0) {
+                return;
+            }
+            if (pending != null) {
+                if (pendingSize + len < minBytes) {
+                    if (pendingSize + len > pending.length) {
+                        pending = Arrays.copyOf(pending, Math.min(minBytes, Math.max(pending.length * 2, pendingSize + len)));
+                    }
+                    System.arraycopy(b, off, pending, pendingSize, len);
+                    pendingSize += len;
+                    return;
+                }
+                start();
+            }
+            compress(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (pending != null) {
+                // smaller than minBytes after all, sent as it is with its length
+                exchange.sendResponseHeaders(rCode, pendingSize == 0 ? -1 : pendingSize);
+                OutputStream identity = exchange.getResponseBody();
+                identity.write(pending, 0, pendingSize);
+                identity.close();
+                pending = null;
+                return;
+            }
+            try {
+                long start = cpuTime();
+                deflater.finish();
+                while (!deflater.finished()) {
+                    drain();
+                }
+                cpuNanos.addAndGet(cpuTime() - start);
+                if (gzip) {
+                    byte[] trailer = new byte[8];
+                    writeInt(trailer, 0, (int) crc.getValue());
+                    writeInt(trailer, 4, (int) deflater.getBytesRead());
+                    out.write(trailer);
+                    written += trailer.length;
+                }
+                responses.incrementAndGet();
+                bytesIn.addAndGet(deflater.getBytesRead());
+                bytesOut.addAndGet(written);
+                out.close();
+            } finally {
+                // kept by the closing thread, unless it already keeps one
+                ThreadLocal<Deflater> deflaters = gzip ? gzipDeflaters : deflateDeflaters;
+                if (deflaters.get() == null) {
+                    deflaters.set(deflater);
+                } else {
+                    deflater.end();
+                }
+            }
+        }
+
+        /* send the headers of the compressed response and what was held back */
+        private void start() throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Encoding", coding);
+            String etag = headers.getFirst("ETag");
+            if (etag != null && !etag.startsWith("W/")) {
+                headers.set("ETag", "W/" + etag);
+            }
+            exchange.sendResponseHeaders(rCode, 0);
+            out = exchange.getResponseBody();
+            ThreadLocal<Deflater> deflaters = gzip ? gzipDeflaters : deflateDeflaters;
+            deflater = deflaters.get();
+            if (deflater == null) {
+                // the first response of this thread, or the deflater is taken by one still being written
+                deflater = new Deflater(level, gzip);
+            } else {
+                deflaters.remove();
+                deflater.reset();
+            }
+            if (gzip) {
+                // magic, CM = deflate, no flags, no mtime, no extra flags, OS = unknown
+                byte[] header = {31, -117, 8, 0, 0, 0, 0, 0, 0, -1};
+                out.write(header);
+                written += header.length;
+            }
+            byte[] held = pending;
+            pending = null;
+            if (held != null && pendingSize > 0) {
+                compress(held, 0, pendingSize);
+            }
+        }
+
+        private void compress(byte[] b, int off, int len) throws IOException {
+            long start = cpuTime();
+            if (gzip) {
+                crc.update(b, off, len);
+            }
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                drain();
+            }
+            cpuNanos.addAndGet(cpuTime() - start);
+        }
+
+        private void drain() throws IOException {
+            int n = deflater.deflate(buffer, 0, buffer.length);
+            if (n > 0) {
+                out.write(buffer, 0, n);
+                written += n;
+            }
+        }
+
+        private long cpuTime() {
+            return cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+        }
+    }
+
+    /* little endian, as gzip wants it */
+    private static void writeInt(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+}
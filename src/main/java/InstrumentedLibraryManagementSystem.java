@@ -0,0 +1,151 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import queries.BorrowHistories;
+import utils.Metrics;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Times every call of another LibraryManagementSystem into the
+ * library_api_call metrics family, labelled by the method name.
+ *
+ * Note:
+ *      (1) a call counts as an error if it throws or returns a result
+ *          that is not ok.
+ *      (2) wrap it around the outermost decorator, so cache hits are
+ *          measured as the callers see them.
+ */
+public class InstrumentedLibraryManagementSystem implements LibraryManagementSystem {
+
+    private final LibraryManagementSystem delegate;
+    private final Metrics.Timer storeBook;
+    private final Metrics.Timer incBookStock;
+    private final Metrics.Timer storeBooks;
+    private final Metrics.Timer importBooks;
+    private final Metrics.Timer removeBook;
+    private final Metrics.Timer modifyBookInfo;
+    private final Metrics.Timer queryBook;
+    private final Metrics.Timer borrowBook;
+    private final Metrics.Timer returnBook;
+    private final Metrics.Timer showBorrowHistory;
+    private final Metrics.Timer registerCard;
+    private final Metrics.Timer modifyCardInfo;
+    private final Metrics.Timer removeCard;
+    private final Metrics.Timer showCards;
+    private final Metrics.Timer resetDatabase;
+
+    public InstrumentedLibraryManagementSystem(LibraryManagementSystem delegate, Metrics metrics) {
+        this.delegate = delegate;
+        Metrics.Family calls = metrics.family("library_api_call", "Latency of LibraryManagementSystem calls.", "method");
+        storeBook = calls.timer("storeBook");
+        incBookStock = calls.timer("incBookStock");
+        storeBooks = calls.timer("storeBooks");
+        importBooks = calls.timer("importBooks");
+        removeBook = calls.timer("removeBook");
+        modifyBookInfo = calls.timer("modifyBookInfo");
+        queryBook = calls.timer("queryBook");
+        borrowBook = calls.timer("borrowBook");
+        returnBook = calls.timer("returnBook");
+        showBorrowHistory = calls.timer("showBorrowHistory");
+        registerCard = calls.timer("registerCard");
+        modifyCardInfo = calls.timer("modifyCardInfo");
+        removeCard = calls.timer("removeCard");
+        showCards = calls.timer("showCards");
+        resetDatabase = calls.timer("resetDatabase");
+    }
+
+    @Override
+    public ApiResult storeBook(Book book) {
+        return timed(storeBook, () -> delegate.storeBook(book));
+    }
+
+    @Override
+    public ApiResult incBookStock(int bookId, int deltaStock) {
+        return timed(incBookStock, () -> delegate.incBookStock(bookId, deltaStock));
+    }
+
+    @Override
+    public ApiResult storeBook(List<Book> books) {
+        return timed(storeBooks, () -> delegate.storeBook(books));
+    }
+
+    @Override
+    public ApiResult importBooks(List<Book> books, int chunkSize) {
+        return timed(importBooks, () -> delegate.importBooks(books, chunkSize));
+    }
+
+    @Override
+    public ApiResult removeBook(int bookId) {
+        return timed(removeBook, () -> delegate.removeBook(bookId));
+    }
+
+    @Override
+    public ApiResult modifyBookInfo(Book book) {
+        return timed(modifyBookInfo, () -> delegate.modifyBookInfo(book));
+    }
+
+    @Override
+    public ApiResult queryBook(BookQueryConditions conditions) {
+        return timed(queryBook, () -> delegate.queryBook(conditions));
+    }
+
+    @Override
+    public ApiResult borrowBook(Borrow borrow) {
+        return timed(borrowBook, () -> delegate.borrowBook(borrow));
+    }
+
+    @Override
+    public ApiResult returnBook(Borrow borrow) {
+        return timed(returnBook, () -> delegate.returnBook(borrow));
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId) {
+        return timed(showBorrowHistory, () -> delegate.showBorrowHistory(cardId));
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId, BorrowHistories.Cursor after, int limit) {
+        return timed(showBorrowHistory, () -> delegate.showBorrowHistory(cardId, after, limit));
+    }
+
+    @Override
+    public ApiResult registerCard(Card card) {
+        return timed(registerCard, () -> delegate.registerCard(card));
+    }
+
+    @Override
+    public ApiResult modifyCardInfo(Card card) {
+        return timed(modifyCardInfo, () -> delegate.modifyCardInfo(card));
+    }
+
+    @Override
+    public ApiResult removeCard(int cardId) {
+        return timed(removeCard, () -> delegate.removeCard(cardId));
+    }
+
+    @Override
+    public ApiResult showCards() {
+        return timed(showCards, delegate::showCards);
+    }
+
+    @Override
+    public ApiResult resetDatabase() {
+        return timed(resetDatabase, delegate::resetDatabase);
+    }
+
+    private static ApiResult timed(Metrics.Timer timer, Supplier<ApiResult> call) {
+        long start = System.nanoTime();
+        ApiResult result = null;
+        try {
+            result = call.get();
+            return result;
+        } finally {
+            timer.record(start, result == null || !result.ok);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookImportResults;
+import queries.BookQueryConditions;
+import queries.BorrowHistories;
+import utils.DatabaseConnector;
+import utils.InventoryConfig;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Decides borrows and returns on an in-memory copy of the stock and the
+ * open borrows, and persists them through a {@link BorrowJournal}.
+ *
+ * Note:
+ *      (1) stock, cards and open borrows are loaded when it is created,
+ *          after the journal of the previous run has been applied.
+ *      (2) a borrow or return locks only its book: the checks, the change
+ *          and the journal append happen under that lock, so concurrent
+ *          borrows of the last copy have exactly one winner. the call
+ *          returns once its journal record is durable, the database is
+ *          updated shortly after.
+ *      (3) reads wait until the database has caught up with the journal,
+ *          so a caller always sees its own borrows and returns. a read
+ *          that waits longer than readTimeoutMillis fails instead.
+ *      (4) a write that checks stock or open borrows in the database
+ *          (stock changes, removals and reset) takes the
+ *          inventory exclusively, waits for the journal to be applied and
+ *          empties it, runs against the database and then updates the
+ *          memory. a removed card or book, or a reset database, is then
+ *          never met again by a replay of older records. new
+ *          books, also those of an import, and cards are simply added
+ *          once they are stored.
+ *      (5) this process must be the only one borrowing and returning
+ *          books in the database.
+ */
+public class InventoryLibraryManagementSystem implements LibraryManagementSystem {
+
+    private static final Logger log = Logger.getLogger(InventoryLibraryManagementSystem.class.getName());
+
+    private static final class Stock {
+        /* guarded by this */
+        int stock;
+
+        Stock(int stock) {
+            this.stock = stock;
+        }
+    }
+
+    private final LibraryManagementSystem delegate;
+    private final DatabaseConnector connector;
+    private final BorrowJournal journal;
+    private final long readTimeoutMillis;
+    /* shared by borrow and return, exclusive for the writes of note (4) */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Integer, Stock> books = new ConcurrentHashMap<>();
+    private final Set<Integer> cards = ConcurrentHashMap.newKeySet();
+    /* borrow time of open borrows, by card and book */
+    private final Map<Long, Long> openBorrows = new ConcurrentHashMap<>();
+
+    public InventoryLibraryManagementSystem(LibraryManagementSystem delegate, DatabaseConnector connector,
+                                            InventoryConfig conf) throws IOException, SQLException {
+        this.delegate = delegate;
+        this.connector = connector;
+        this.journal = new BorrowJournal(connector, conf);
+        this.readTimeoutMillis = conf.getReadTimeoutMillis();
+        int recovered = journal.recover();
+        if (recovered > 0) {
+            log.info("Recovered " + recovered + " record(s) from the borrow journal.");
+        }
+        load();
+        journal.start();
+    }
+
+    /**
+     * apply the journal and stop it, call before the connection pool is released.
+     */
+    public void close() {
+        journal.close();
+    }
+
+    public BorrowJournal getJournal() {
+        return journal;
+    }
+
+    @Override
+    public ApiResult borrowBook(Borrow borrow) {
+        int cardId = borrow.getCardId();
+        int bookId = borrow.getBookId();
+        long key = key(cardId, bookId);
+        Stock stock;
+        BorrowJournal.Record record;
+        lock.readLock().lock();
+        try {
+            if (!cards.contains(cardId)) {
+                return new ApiResult(false, "借书失败：借书证不存在");
+            }
+            stock = books.get(bookId);
+            if (stock == null) {
+                return new ApiResult(false, "借书失败：该书不存在");
+            }
+            synchronized (stock) {
+                if (openBorrows.containsKey(key)) {
+                    return new ApiResult(false, "借书失败：该书尚未归还");
+                }
+                if (stock.stock <= 0) {
+                    return new ApiResult(false, "借书失败：库存不足");
+                }
+                stock.stock--;
+                openBorrows.put(key, borrow.getBorrowTime());
+                record = BorrowJournal.Record.borrow(cardId, bookId, borrow.getBorrowTime());
+                journal.append(record);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        String error = awaitDurable(record);
+        if (error != null) {
+            synchronized (stock) {
+                stock.stock++;
+                openBorrows.remove(key, borrow.getBorrowTime());
+            }
+            return new ApiResult(false, error);
+        }
+        return new ApiResult(true, "借书成功");
+    }
+
+    @Override
+    public ApiResult returnBook(Borrow borrow) {
+        int cardId = borrow.getCardId();
+        int bookId = borrow.getBookId();
+        long key = key(cardId, bookId);
+        Stock stock;
+        Long borrowTime;
+        BorrowJournal.Record record;
+        lock.readLock().lock();
+        try {
+            if (!cards.contains(cardId)) {
+                return new ApiResult(false, "还书失败：借书证不存在");
+            }
+            stock = books.get(bookId);
+            if (stock == null) {
+                return new ApiResult(false, "还书失败：该书不存在");
+            }
+            synchronized (stock) {
+                borrowTime = openBorrows.get(key);
+                if (borrowTime == null) {
+                    return new ApiResult(false, "还书失败：用户未借该书");
+                }
+                if (borrowTime >= borrow.getReturnTime()) {
+                    return new ApiResult(false, "还书失败：还书时间早于借书时间");
+                }
+                openBorrows.remove(key);
+                stock.stock++;
+                record = BorrowJournal.Record.giveBack(cardId, bookId, borrowTime, borrow.getReturnTime());
+                journal.append(record);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        String error = awaitDurable(record);
+        if (error != null) {
+            synchronized (stock) {
+                stock.stock--;
+                openBorrows.put(key, borrowTime);
+            }
+            return new ApiResult(false, error);
+        }
+        return new ApiResult(true, "还书成功");
+    }
+
+    @Override
+    public ApiResult storeBook(Book book) {
+        // a new book cannot be borrowed before it is stored
+        ApiResult result = delegate.storeBook(book);
+        if (result.ok) {
+            books.put(book.getBookId(), new Stock(book.getStock()));
+        }
+        return result;
+    }
+
+    @Override
+    public ApiResult incBookStock(int bookId, int deltaStock) {
+        return exclusive(() -> delegate.incBookStock(bookId, deltaStock), result -> {
+            Stock stock = books.get(bookId);
+            if (stock != null) {
+                synchronized (stock) {
+                    stock.stock += deltaStock;
+                }
+            }
+        });
+    }
+
+    @Override
+    public ApiResult storeBook(List<Book> books) {
+        ApiResult result = delegate.storeBook(books);
+        if (result.ok) {
+            for (Book book : books) {
+                this.books.put(book.getBookId(), new Stock(book.getStock()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public ApiResult importBooks(List<Book> books, int chunkSize) {
+        // new books cannot be borrowed before they are stored, chunks may be committed even if the import fails
+        ApiResult result = delegate.importBooks(books, chunkSize);
+        if (result.payload instanceof BookImportResults) {
+            List<BookImportResults.Outcome> outcomes = ((BookImportResults) result.payload).getOutcomes();
+            for (int i = 0; i < outcomes.size(); i++) {
+                if (outcomes.get(i) == BookImportResults.Outcome.INSERTED) {
+                    this.books.put(books.get(i).getBookId(), new Stock(books.get(i).getStock()));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public ApiResult removeBook(int bookId) {
+        return exclusive(() -> delegate.removeBook(bookId), result -> books.remove(bookId));
+    }
+
+    @Override
+    public ApiResult modifyBookInfo(Book book) {
+        // stock is not modified here
+        return delegate.modifyBookInfo(book);
+    }
+
+    @Override
+    public ApiResult queryBook(BookQueryConditions conditions) {
+        return read(() -> delegate.queryBook(conditions));
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId) {
+        return read(() -> delegate.showBorrowHistory(cardId));
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId, BorrowHistories.Cursor after, int limit) {
+        return read(() -> delegate.showBorrowHistory(cardId, after, limit));
+    }
+
+    @Override
+    public ApiResult registerCard(Card card) {
+        ApiResult result = delegate.registerCard(card);
+        if (result.ok) {
+            cards.add(card.getCardId());
+        }
+        return result;
+    }
+
+    @Override
+    public ApiResult modifyCardInfo(Card card) {
+        return delegate.modifyCardInfo(card);
+    }
+
+    @Override
+    public ApiResult removeCard(int cardId) {
+        return exclusive(() -> delegate.removeCard(cardId), result -> cards.remove(cardId));
+    }
+
+    @Override
+    public ApiResult showCards() {
+        return delegate.showCards();
+    }
+
+    @Override
+    public ApiResult resetDatabase() {
+        return exclusive(delegate::resetDatabase, result -> {
+            books.clear();
+            cards.clear();
+            openBorrows.clear();
+        });
+    }
+
+    /* see note (3) */
+    private ApiResult read(Supplier<ApiResult> read) {
+        if (!journal.awaitApplied(readTimeoutMillis)) {
+            return new ApiResult(false, "查询失败：借还记录尚未写入数据库，请稍后重试");
+        }
+        return read.get();
+    }
+
+    /* see note (4), onSuccess runs only if the write is ok */
+    private ApiResult exclusive(Supplier<ApiResult> write, Consumer<ApiResult> onSuccess) {
+        lock.writeLock().lock();
+        try {
+            journal.awaitApplied();
+            // nothing is appended while the inventory is held exclusively
+            journal.checkpoint();
+            ApiResult result = write.get();
+            if (result.ok) {
+                onSuccess.accept(result);
+            }
+            return result;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* null if the record is durable, the reason otherwise */
+    private static String awaitDurable(BorrowJournal.Record record) {
+        try {
+            record.durable.get();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return e.getMessage();
+        } catch (ExecutionException e) {
+            return e.getCause().getMessage();
+        }
+    }
+
+    private static long key(int cardId, int bookId) {
+        return ((long) cardId << 32) | (bookId & 0xffffffffL);
+    }
+
+    private void load() throws SQLException {
+        loadBooks();
+        Connection conn = null;
+        PreparedStatement pStmt = null;
+        ResultSet rSet = null;
+        try {
+            conn = connector.getConn();
+            pStmt = conn.prepareStatement("SELECT card_id FROM card");
+            rSet = pStmt.executeQuery();
+            while (rSet.next()) {
+                cards.add(rSet.getInt("card_id"));
+            }
+            rSet.close();
+            pStmt.close();
+            pStmt = conn.prepareStatement("SELECT card_id, book_id, borrow_time FROM borrow WHERE return_time = 0");
+            rSet = pStmt.executeQuery();
+            while (rSet.next()) {
+                openBorrows.put(key(rSet.getInt("card_id"), rSet.getInt("book_id")), rSet.getLong("borrow_time"));
+            }
+            conn.commit();
+        } finally {
+            if (rSet != null) {
+                rSet.close();
+            }
+            if (pStmt != null) {
+                pStmt.close();
+            }
+            connector.releaseConn(conn);
+        }
+    }
+
+    private void loadBooks() throws SQLException {
+        Connection conn = null;
+        PreparedStatement pStmt = null;
+        ResultSet rSet = null;
+        try {
+            conn = connector.getConn();
+            pStmt = conn.prepareStatement("SELECT book_id, stock FROM book");
+            rSet = pStmt.executeQuery();
+            books.clear();
+            while (rSet.next()) {
+                books.put(rSet.getInt("book_id"), new Stock(rSet.getInt("stock")));
+            }
+            conn.commit();
+        } finally {
+            if (rSet != null) {
+                rSet.close();
+            }
+            if (pStmt != null) {
+                pStmt.close();
+            }
+            connector.releaseConn(conn);
+        }
+    }
+}
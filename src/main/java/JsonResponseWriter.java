@@ -0,0 +1,285 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.*;
+
+import entities.Book;
+import entities.Card;
+import queries.BookQueryResults;
+import queries.BorrowHistories;
+
+/**
+ * Streams JSON arrays of entities, or a page of books with its facets, to
+ * an http response.
+ *
+ * Note:
+ *      (1) rows are written one by one through a buffered UTF-8 writer,
+ *          no intermediate String is built for the whole response.
+ *      (2) lists of at most SMALL_LIST_ROWS rows are rendered into memory
+ *          first and sent with a known Content-Length, larger lists are
+ *          sent with chunked transfer encoding.
+ *      (3) strings are escaped according to RFC 8259.
+ */
+public final class JsonResponseWriter {
+
+    public interface RowWriter<T> {
+        void write(JsonResponseWriter writer, T row) throws IOException;
+    }
+
+    private interface Body {
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+
+    public static final RowWriter<Book> BOOK = JsonResponseWriter::writeBook;
+    public static final RowWriter<Card> CARD = JsonResponseWriter::writeCard;
+    public static final RowWriter<BorrowHistories.Item> BORROW_ITEM = JsonResponseWriter::writeBorrowItem;
+    public static final RowWriter<SuggestIndex.Suggestion> SUGGESTION = JsonResponseWriter::writeSuggestion;
+
+    static final int SMALL_LIST_ROWS = 256;
+    private static final int BUFFER_SIZE = 8192;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+    private boolean firstField;
+
+    public JsonResponseWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * send rows as a JSON array with status 200.
+     */
+    public static <T> void sendList(HttpExchange exchange, List<T> rows, RowWriter<T> rowWriter) throws IOException {
+        send(exchange, rows.size(), outputStream -> writeList(outputStream, rows, rowWriter));
+    }
+
+    /**
+     * send a page of books with the facet counts of the query as
+     * {"results": [...], "facets": {...}} with status 200.
+     */
+    public static void sendBookResults(HttpExchange exchange, BookQueryResults results) throws IOException {
+        send(exchange, results.getResults().size(), outputStream -> writeBookResults(outputStream, results));
+    }
+
+    /* see note (2) */
+    private static void send(HttpExchange exchange, int rows, Body body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if (rows <= SMALL_LIST_ROWS) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+            body.writeTo(buffer);
+            exchange.sendResponseHeaders(200, buffer.size());
+            OutputStream outputStream = exchange.getResponseBody();
+            buffer.writeTo(outputStream);
+            outputStream.close();
+        } else {
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream outputStream = exchange.getResponseBody();
+            body.writeTo(outputStream);
+            outputStream.close();
+        }
+    }
+
+    /**
+     * write rows as a JSON array to outputStream, flushing but not closing it.
+     */
+    public static <T> void writeList(OutputStream outputStream, List<T> rows, RowWriter<T> rowWriter) throws IOException {
+        JsonResponseWriter json = open(outputStream);
+        json.list(rows, rowWriter);
+        json.out.flush();
+    }
+
+    /**
+     * write a page of books and its facets to outputStream, flushing but not closing it.
+     */
+    public static void writeBookResults(OutputStream outputStream, BookQueryResults results) throws IOException {
+        JsonResponseWriter json = open(outputStream);
+        json.beginObject();
+        json.name("results");
+        json.list(results.getResults(), BOOK);
+        BookQueryResults.Facets facets = results.getFacets();
+        if (facets != null) {
+            json.name("facets");
+            json.beginObject();
+            json.name("category");
+            json.list(entries(facets.getCategories()), JsonResponseWriter::writeCount);
+            json.name("press");
+            json.list(entries(facets.getPresses()), JsonResponseWriter::writeCount);
+            json.name("publishYear");
+            json.list(entries(facets.getPublishYears()), JsonResponseWriter::writeCount);
+            json.name("price");
+            json.list(facets.getPrices(), JsonResponseWriter::writePriceBucket);
+            json.endObject();
+        }
+        json.endObject();
+        json.out.flush();
+    }
+
+    private static JsonResponseWriter open(OutputStream outputStream) {
+        Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        return new JsonResponseWriter(new BufferedWriter(writer, BUFFER_SIZE));
+    }
+
+    private static <K> List<Map.Entry<K, Integer>> entries(Map<K, Integer> counts) {
+        return new ArrayList<>(counts.entrySet());
+    }
+
+    public static void writeBook(JsonResponseWriter w, Book book) throws IOException {
+        w.beginObject();
+        w.field("book_id", book.getBookId());
+        w.field("category", book.getCategory());
+        w.field("title", book.getTitle());
+        w.field("press", book.getPress());
+        w.field("publishYear", book.getPublishYear());
+        w.field("author", book.getAuthor());
+        w.field("price", book.getPrice());
+        w.field("stock", book.getStock());
+        w.endObject();
+    }
+
+    public static void writeCard(JsonResponseWriter w, Card card) throws IOException {
+        w.beginObject();
+        w.field("id", card.getCardId());
+        w.field("name", card.getName());
+        w.field("department", card.getDepartment());
+        w.field("type", card.getType() == Card.CardType.Student ? "学生" : "教师");
+        w.endObject();
+    }
+
+    public static void writeBorrowItem(JsonResponseWriter w, BorrowHistories.Item item) throws IOException {
+        w.beginObject();
+        w.field("cardID", item.getCardId());
+        w.field("bookID", item.getBookId());
+        w.field("borrowTime", item.transBorrowTime());
+        w.field("returnTime", item.transReturnTime());
+        w.endObject();
+    }
+
+    public static void writeSuggestion(JsonResponseWriter w, SuggestIndex.Suggestion suggestion) throws IOException {
+        w.beginObject();
+        w.field("value", suggestion.getValue());
+        w.field("field", suggestion.getKind().getValue());
+        w.field("books", suggestion.getBooks());
+        w.field("borrows", suggestion.getBorrows());
+        w.endObject();
+    }
+
+    private static void writeCount(JsonResponseWriter w, Map.Entry<?, Integer> count) throws IOException {
+        w.beginObject();
+        if (count.getKey() instanceof Integer) {
+            w.field("value", (Integer) count.getKey());
+        } else {
+            w.field("value", (String) count.getKey());
+        }
+        w.field("count", count.getValue());
+        w.endObject();
+    }
+
+    private static void writePriceBucket(JsonResponseWriter w, BookQueryResults.Facets.PriceBucket bucket)
+            throws IOException {
+        w.beginObject();
+        w.name("min");
+        w.out.write(bucket.getMin() == null ? "null" : Double.toString(bucket.getMin()));
+        w.name("max");
+        w.out.write(bucket.getMax() == null ? "null" : Double.toString(bucket.getMax()));
+        w.field("count", bucket.getCount());
+        w.endObject();
+    }
+
+    public void beginObject() throws IOException {
+        out.write('{');
+        firstField = true;
+    }
+
+    public void endObject() throws IOException {
+        out.write('}');
+        // an object nested as a field value may have been empty
+        firstField = false;
+    }
+
+    private <T> void list(List<T> rows, RowWriter<T> rowWriter) throws IOException {
+        out.write('[');
+        for (int i = 0; i < rows.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            rowWriter.write(this, rows.get(i));
+        }
+        out.write(']');
+        firstField = false;
+    }
+
+    public void field(String name, String value) throws IOException {
+        name(name);
+        if (value == null) {
+            out.write("null");
+        } else {
+            string(value);
+        }
+    }
+
+    public void field(String name, long value) throws IOException {
+        name(name);
+        out.write(Long.toString(value));
+    }
+
+    public void field(String name, double value) throws IOException {
+        name(name);
+        out.write(Double.toString(value));
+    }
+
+    private void name(String name) throws IOException {
+        if (!firstField) {
+            out.write(", ");
+        }
+        firstField = false;
+        string(name);
+        out.write(": ");
+    }
+
+    private void string(String value) throws IOException {
+        out.write('"');
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            out.write(value, start, i - start);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    out.write("\\u");
+                    out.write(HEX[(c >> 12) & 0xf]);
+                    out.write(HEX[(c >> 8) & 0xf]);
+                    out.write(HEX[(c >> 4) & 0xf]);
+                    out.write(HEX[c & 0xf]);
+            }
+        }
+        out.write(value, start, length - start);
+        out.write('"');
+    }
+}
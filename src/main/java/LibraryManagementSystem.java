@@ -3,6 +3,7 @@ import entities.Borrow;
 import entities.Card;
 import queries.ApiResult;
 import queries.BookQueryConditions;
+import queries.BorrowHistories;
 
 import java.sql.PreparedStatement;
 import java.util.List;
@@ -69,6 +70,24 @@ public interface LibraryManagementSystem {
      */
     ApiResult storeBook(List<Book> books);
 
+    /**
+     * bulk import books, e.g. from an uploaded catalog.
+     *
+     * Note that:
+     *      (1) unlike storeBook(List), a duplicate or invalid book does not
+     *          fail the import, it is skipped and reported.
+     *      (2) books are committed every chunkSize books, so a failure
+     *          only rolls back the current chunk. chunkSize <= 0 means
+     *          the whole list is one chunk.
+     *      (3) book_id is stored to every inserted book.
+     *
+     * @param books list of books to be imported
+     * @param chunkSize number of books committed together
+     * @return per-book outcomes should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.BookImportResults}
+     */
+    ApiResult importBooks(List<Book> books, int chunkSize);
+
     /**
      * remove this book from library system.
      *
@@ -137,6 +156,25 @@ public interface LibraryManagementSystem {
      */
     ApiResult showBorrowHistory(int cardId);
 
+    /**
+     * list one page of borrow histories for a specific card, in the same
+     * order as {@link #showBorrowHistory(int)}.
+     *
+     * Note that:
+     *      (1) the page starts right after the record identified by
+     *          cursor (borrow_time, book_id), or at the first record if
+     *          cursor is null.
+     *      (2) if limit <= 0, all remaining records are returned.
+     *
+     * @param cardId show which card's borrow history
+     * @param after cursor returned by the previous page, nullable
+     * @param limit max number of records in this page
+     * @return query results should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.BorrowHistories},
+     *         whose nextCursor is null on the last page
+     */
+    ApiResult showBorrowHistory(int cardId, BorrowHistories.Cursor after, int limit);
+
     /**
      * create a new borrow card. do nothing and return failed if
      * the card already exists.
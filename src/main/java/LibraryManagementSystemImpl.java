@@ -5,25 +5,42 @@ import queries.*;
 import queries.BorrowHistories.Item;
 import utils.DBInitializer;
 import utils.DatabaseConnector;
+import utils.MigrationRunner;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class LibraryManagementSystemImpl implements LibraryManagementSystem {
 
+    /* rows fetched per round trip when reading long result sets */
+    private static final int FETCH_SIZE = 500;
+    /* books per duplicate lookup, 5 params each stays below the 2100 limit of SqlServer */
+    private static final int LOOKUP_CHUNK = 400;
+
     private final DatabaseConnector connector;
+    /* use ON CONFLICT / RETURNING statements instead of separate lookups */
+    private final boolean returning;
+    /* count facets with GROUPING SETS instead of a UNION of GROUP BYs */
+    private final boolean groupingSets;
 
     public LibraryManagementSystemImpl(DatabaseConnector connector) {
         this.connector = connector;
+        this.returning = connector.getConf().getType().supportsReturning();
+        this.groupingSets = connector.getConf().getType().supportsGroupingSets();
     }
 
     @Override
     public ApiResult storeBook(Book book) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         PreparedStatement pStmt = null;
         ResultSet rSet = null;
         try {
+            conn = connector.getConn();
             String category = book.getCategory();
             String title = book.getTitle();
             String press = book.getPress();
@@ -79,16 +96,18 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, "图书添加成功");
     }
 
     @Override
     public ApiResult incBookStock(int bookId, int deltaStock) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         PreparedStatement pStmt = null;
         ResultSet rSet = null;
         try {
+            conn = connector.getConn();
             String selectStockQuery = "SELECT stock FROM book WHERE book_id = ?";
             pStmt = conn.prepareStatement(selectStockQuery);
             pStmt.setInt(1, bookId);
@@ -128,91 +147,309 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, "库存修改成功");
     }
 
     @Override
     public ApiResult storeBook(List<Book> books) {
-        Connection conn = connector.getConn();
-        PreparedStatement pStmt = null;
-        PreparedStatement pStmt_i = null;
-        ResultSet rSet = null;
+        Connection conn = null;
         try {
-            String sameBookCheck = "SELECT * FROM book WHERE category = ? AND title = ? AND press = ? AND publish_year = ? AND author = ?";
-            pStmt = conn.prepareStatement(sameBookCheck);
-
-            String storeBookQuery = "INSERT INTO book (category, title, press, publish_year, author, price, stock) VALUES (?, ?, ?, ?, ?, ?, ?)";
-            pStmt_i = conn.prepareStatement(storeBookQuery, PreparedStatement.RETURN_GENERATED_KEYS);
-
+            conn = connector.getConn();
+            /* duplicates inside the list itself */
+            Set<Book> seen = new HashSet<>();
             for (Book book : books) {
-                String category = book.getCategory();
-                String title = book.getTitle();
-                String press = book.getPress();
-                int publishYear = book.getPublishYear();
-                String author = book.getAuthor();
-                double price = book.getPrice();
-                int stock = book.getStock();
-                
-                /* check if there are same books */
-                pStmt.setString(1, category);
-                pStmt.setString(2, title);
-                pStmt.setString(3, press);
-                pStmt.setInt(4, publishYear);
-                pStmt.setString(5, author);
-                rSet = pStmt.executeQuery();
-
-                if (rSet.next()) {
+                if (!seen.add(book)) {
+                    return new ApiResult(false, "批量入库失败：存在相同图书");
+                }
+            }
+            if (returning) {
+                /* the database skips existing books, so fewer returned rows means a duplicate */
+                if (insertBooksOnConflict(conn, books).size() < books.size()) {
                     rollback(conn);
                     return new ApiResult(false, "批量入库失败：存在相同图书");
                 }
-
-                pStmt_i.setString(1, category);
-                pStmt_i.setString(2, title);
-                pStmt_i.setString(3, press);
-                pStmt_i.setInt(4, publishYear);
-                pStmt_i.setString(5, author);
-                pStmt_i.setDouble(6, price);
-                pStmt_i.setInt(7, stock);
-                pStmt_i.addBatch();
+                commit(conn);
+                return new ApiResult(true, "批量入库成功");
             }
-
-            pStmt_i.executeBatch();
-            rSet = pStmt_i.getGeneratedKeys();
-            int index = 0;
-            while (rSet.next()) {
-                int bookId = rSet.getInt(1);
-                books.get(index++).setBookId(bookId);
+            /* duplicates already in the database, checked set-based */
+            if (!findExistingBooks(conn, books).isEmpty()) {
+                return new ApiResult(false, "批量入库失败：存在相同图书");
             }
-
+            insertBooks(conn, books);
             commit(conn);
         } catch (Exception e) {
             rollback(conn);
             return new ApiResult(false, e.getMessage());
         } finally {
+            connector.releaseConn(conn);
+        }
+        return new ApiResult(true, "批量入库成功");
+    }
+
+    @Override
+    public ApiResult importBooks(List<Book> books, int chunkSize) {
+        Connection conn = null;
+        BookImportResults importResults = new BookImportResults();
+        try {
+            conn = connector.getConn();
+            int step = chunkSize > 0 ? chunkSize : books.size();
+            Set<Book> seen = new HashSet<>();
+            for (int from = 0; from < books.size(); from += step) {
+                List<Book> chunk = books.subList(from, Math.min(books.size(), from + step));
+                BookImportResults.Outcome[] outcomes = new BookImportResults.Outcome[chunk.size()];
+                List<Book> candidates = new ArrayList<>();
+                for (int i = 0; i < chunk.size(); i++) {
+                    Book book = chunk.get(i);
+                    if (!isValidBook(book)) {
+                        outcomes[i] = BookImportResults.Outcome.INVALID;
+                    } else if (!seen.add(book)) {
+                        outcomes[i] = BookImportResults.Outcome.DUPLICATE;
+                    } else {
+                        candidates.add(book);
+                    }
+                }
+                List<Book> toInsert = new ArrayList<>();
+                if (returning) {
+                    toInsert = candidates;
+                } else {
+                    Set<Book> existing = findExistingBooks(conn, candidates);
+                    for (Book book : candidates) {
+                        if (!existing.contains(book)) {
+                            toInsert.add(book);
+                        }
+                    }
+                }
+                Set<Book> inserted;
+                try {
+                    if (returning) {
+                        inserted = insertBooksOnConflict(conn, toInsert);
+                    } else {
+                        insertBooks(conn, toInsert);
+                        inserted = new HashSet<>(toInsert);
+                    }
+                    commit(conn);
+                } catch (SQLException e) {
+                    /* e.g. the DB collation sees duplicates Java does not, retry row by row */
+                    rollback(conn);
+                    inserted = insertBooksOneByOne(conn, toInsert);
+                }
+                int next = 0;
+                for (int i = 0; i < chunk.size(); i++) {
+                    if (outcomes[i] == null) {
+                        Book book = candidates.get(next++);
+                        outcomes[i] = inserted.contains(book) ? BookImportResults.Outcome.INSERTED
+                                : BookImportResults.Outcome.DUPLICATE;
+                    }
+                    importResults.add(outcomes[i]);
+                }
+            }
+        } catch (Exception e) {
+            rollback(conn);
+            return new ApiResult(false, e.getMessage(), importResults);
+        } finally {
+            connector.releaseConn(conn);
+        }
+        return new ApiResult(true, "批量入库完成：" + importResults.getInserted() + " 本新增，"
+                + importResults.getDuplicates() + " 本重复，" + importResults.getInvalid() + " 本无效", importResults);
+    }
+
+    /**
+     * look up which of the books already exist, using one query per
+     * LOOKUP_CHUNK books against the unique key. a shorter chunk is padded,
+     * see {@link #paddedChunk}.
+     */
+    private Set<Book> findExistingBooks(Connection conn, List<Book> books) throws SQLException {
+        Set<Book> existing = new HashSet<>();
+        for (int from = 0; from < books.size(); from += LOOKUP_CHUNK) {
+            List<Book> chunk = books.subList(from, Math.min(books.size(), from + LOOKUP_CHUNK));
+            int size = paddedChunk(chunk.size());
+            StringBuilder query = new StringBuilder("SELECT category, title, press, publish_year, author FROM book WHERE ");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    query.append(" OR ");
+                }
+                query.append("(category = ? AND press = ? AND author = ? AND title = ? AND publish_year = ?)");
+            }
+            PreparedStatement pStmt = conn.prepareStatement(query.toString());
+            ResultSet rSet = null;
             try {
+                int index = 1;
+                for (int i = 0; i < size; i++) {
+                    Book book = chunk.get(Math.min(i, chunk.size() - 1));
+                    pStmt.setString(index++, book.getCategory());
+                    pStmt.setString(index++, book.getPress());
+                    pStmt.setString(index++, book.getAuthor());
+                    pStmt.setString(index++, book.getTitle());
+                    pStmt.setInt(index++, book.getPublishYear());
+                }
+                rSet = pStmt.executeQuery();
+                while (rSet.next()) {
+                    existing.add(new Book(rSet.getString("category"), rSet.getString("title"), rSet.getString("press"),
+                            rSet.getInt("publish_year"), rSet.getString("author"), 0, 0));
+                }
+            } finally {
                 if (rSet != null) {
                     rSet.close();
                 }
-                if (pStmt != null) {
-                    pStmt.close();
+                pStmt.close();
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * rows of a chunk statement holding n books: the next power of two, at
+     * most LOOKUP_CHUNK. the last book is repeated to fill it, so that only
+     * a few statement shapes enter the statement cache, as the book_id list
+     * of a query does.
+     */
+    private static int paddedChunk(int n) {
+        return Math.min(Math.max(Integer.highestOneBit(n - 1) << 1, 1), LOOKUP_CHUNK);
+    }
+
+    /**
+     * insert books with one batch, book_id is stored to each book.
+     * the JDBC url enables rewriting the batch into multi-row inserts.
+     */
+    private void insertBooks(Connection conn, List<Book> books) throws SQLException {
+        if (books.isEmpty()) {
+            return;
+        }
+        String storeBookQuery = "INSERT INTO book (category, title, press, publish_year, author, price, stock) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        PreparedStatement pStmt = conn.prepareStatement(storeBookQuery, PreparedStatement.RETURN_GENERATED_KEYS);
+        ResultSet rSet = null;
+        try {
+            for (Book book : books) {
+                bindBook(pStmt, book);
+                pStmt.addBatch();
+            }
+            pStmt.executeBatch();
+            rSet = pStmt.getGeneratedKeys();
+            int index = 0;
+            while (rSet.next() && index < books.size()) {
+                books.get(index++).setBookId(rSet.getInt(1));
+            }
+        } finally {
+            if (rSet != null) {
+                rSet.close();
+            }
+            pStmt.close();
+        }
+    }
+
+    /**
+     * insert books with multi-row INSERT ... ON CONFLICT DO NOTHING, one
+     * statement per LOOKUP_CHUNK books. existing books are skipped by the
+     * database, book_id is stored to each inserted book. a shorter chunk is
+     * padded, see {@link #paddedChunk}; the repeated row conflicts with
+     * itself and is skipped.
+     *
+     * @return the inserted books
+     */
+    private Set<Book> insertBooksOnConflict(Connection conn, List<Book> books) throws SQLException {
+        Set<Book> inserted = new HashSet<>();
+        for (int from = 0; from < books.size(); from += LOOKUP_CHUNK) {
+            List<Book> chunk = books.subList(from, Math.min(books.size(), from + LOOKUP_CHUNK));
+            int size = paddedChunk(chunk.size());
+            StringBuilder query = new StringBuilder("INSERT INTO book (category, title, press, publish_year, author, price, stock) VALUES ");
+            for (int i = 0; i < size; i++) {
+                query.append(i > 0 ? ", (?, ?, ?, ?, ?, ?, ?)" : "(?, ?, ?, ?, ?, ?, ?)");
+            }
+            query.append(" ON CONFLICT DO NOTHING RETURNING book_id, category, title, press, publish_year, author");
+            Map<Book, Book> byKey = new HashMap<>();
+            for (Book book : chunk) {
+                byKey.put(book, book);
+            }
+            PreparedStatement pStmt = conn.prepareStatement(query.toString());
+            ResultSet rSet = null;
+            try {
+                int index = 1;
+                for (int i = 0; i < size; i++) {
+                    Book book = chunk.get(Math.min(i, chunk.size() - 1));
+                    pStmt.setString(index++, book.getCategory());
+                    pStmt.setString(index++, book.getTitle());
+                    pStmt.setString(index++, book.getPress());
+                    pStmt.setInt(index++, book.getPublishYear());
+                    pStmt.setString(index++, book.getAuthor());
+                    pStmt.setDouble(index++, book.getPrice());
+                    pStmt.setInt(index++, book.getStock());
+                }
+                rSet = pStmt.executeQuery();
+                while (rSet.next()) {
+                    Book key = new Book(rSet.getString("category"), rSet.getString("title"), rSet.getString("press"),
+                            rSet.getInt("publish_year"), rSet.getString("author"), 0, 0);
+                    Book book = byKey.get(key);
+                    if (book != null) {
+                        book.setBookId(rSet.getInt("book_id"));
+                        inserted.add(book);
+                    }
                 }
-                if (pStmt_i != null) {
-                    pStmt_i.close();
+            } finally {
+                if (rSet != null) {
+                    rSet.close();
                 }
+                pStmt.close();
+            }
+        }
+        return inserted;
+    }
+
+    private Set<Book> insertBooksOneByOne(Connection conn, List<Book> books) throws SQLException {
+        Set<Book> inserted = new HashSet<>();
+        String storeBookQuery = "INSERT INTO book (category, title, press, publish_year, author, price, stock) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        for (Book book : books) {
+            PreparedStatement pStmt = conn.prepareStatement(storeBookQuery, PreparedStatement.RETURN_GENERATED_KEYS);
+            ResultSet rSet = null;
+            try {
+                bindBook(pStmt, book);
+                pStmt.executeUpdate();
+                rSet = pStmt.getGeneratedKeys();
+                if (rSet.next()) {
+                    book.setBookId(rSet.getInt(1));
+                }
+                commit(conn);
+                inserted.add(book);
             } catch (SQLException e) {
-                e.printStackTrace();
+                rollback(conn);
+            } finally {
+                if (rSet != null) {
+                    rSet.close();
+                }
+                pStmt.close();
             }
         }
-        return new ApiResult(true, "批量入库成功");
+        return inserted;
+    }
+
+    private void bindBook(PreparedStatement pStmt, Book book) throws SQLException {
+        pStmt.setString(1, book.getCategory());
+        pStmt.setString(2, book.getTitle());
+        pStmt.setString(3, book.getPress());
+        pStmt.setInt(4, book.getPublishYear());
+        pStmt.setString(5, book.getAuthor());
+        pStmt.setDouble(6, book.getPrice());
+        pStmt.setInt(7, book.getStock());
+    }
+
+    private static boolean isValidBook(Book book) {
+        return isValidText(book.getCategory()) && isValidText(book.getTitle()) && isValidText(book.getPress())
+                && isValidText(book.getAuthor()) && book.getStock() >= 0
+                && book.getPrice() >= 0 && book.getPrice() < 100000;    // decimal(7, 2)
+    }
+
+    private static boolean isValidText(String str) {
+        return str != null && !str.isEmpty() && str.length() <= 63;
     }
 
     @Override
     public ApiResult removeBook(int bookId) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         PreparedStatement pStmt = null;
         ResultSet rSet = null;
         try {
+            conn = connector.getConn();
             String bookBorrowedCheck = "SELECT * FROM borrow WHERE book_id = ? AND return_time = 0";
             pStmt = conn.prepareStatement(bookBorrowedCheck);
             pStmt.setInt(1, bookId);
@@ -249,16 +486,18 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, "图书删除成功");
     }
 
     @Override
     public ApiResult modifyBookInfo(Book book) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         PreparedStatement pStmt = null;
         ResultSet rSet = null;
         try {
+            conn = connector.getConn();
             String bookExistCheck = "SELECT * FROM book WHERE book_id = ?";
             pStmt = conn.prepareStatement(bookExistCheck);
             pStmt.setInt(1, book.getBookId());
@@ -306,17 +545,19 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, "图书修改成功");
     }
 
     @Override
     public ApiResult queryBook(BookQueryConditions conditions) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         PreparedStatement pStmt = null;
         ResultSet rSet = null;
         BookQueryResults bookQueryResults;
         try {
+            conn = connector.getConn();
             String category = conditions.getCategory();
             String title = conditions.getTitle();
             String press = conditions.getPress();
@@ -332,45 +573,125 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             if(tminPrice != null) minPrice = tminPrice.doubleValue();
             if(tmaxPrice != null) maxPrice = tmaxPrice.doubleValue();
 
-            String selectBookQuery = "SELECT * FROM book WHERE publish_year >= ? AND publish_year <= ? AND price >= ? AND price <= ?";
-            int index = 5;
-            int categoryIndex = 0, titleIndex = 0, pressIndex = 0, authorIndex = 0;
+            /*
+             * the fuzzy conditions are always present and bound to "%" when unset (the
+             * columns are not null), so there are at most 2 (category) x 9 (sort column)
+             * x 2 (order) x 2 (cursor) statement shapes for the statement cache to reuse,
+             * times the few sizes of a candidate list
+             */
+            String selectBookQuery = "SELECT * FROM book WHERE publish_year >= ? AND publish_year <= ? AND price >= ? AND price <= ?" +
+                    " AND title LIKE ? AND press LIKE ? AND author LIKE ?";
+            title = title == null ? "%" : "%" + title + "%";
+            press = press == null ? "%" : "%" + press + "%";
+            author = author == null ? "%" : "%" + author + "%";
+            int index = 8;
+            int categoryIndex = 0;
             if (category != null) {
                 selectBookQuery += " AND category = ?";
                 categoryIndex = index++;
             }
-            if (title != null) {
-                selectBookQuery += " AND title LIKE ?";
-                title = "%" + title + "%";
-                titleIndex = index++;
+            /*
+             * candidates of the search index, the list is padded to a power of two by
+             * repeating its last id so that only a few statement shapes are cached
+             */
+            List<Integer> bookIds = conditions.getBookIds();
+            int bookIdsIndex = 0;
+            int bookIdsSize = 0;
+            if (bookIds != null) {
+                if (bookIds.isEmpty()) {
+                    commit(conn);
+                    BookQueryResults empty = new BookQueryResults(new ArrayList<>());
+                    if (conditions.isFacets()) {
+                        empty.setFacets(new BookQueryResults.Facets(conditions.getPriceBuckets()));
+                    }
+                    return new ApiResult(true, null, empty);
+                }
+                bookIdsSize = Math.max(Integer.highestOneBit(bookIds.size() - 1) << 1, 8);
+                StringBuilder in = new StringBuilder(" AND book_id IN (?");
+                for (int i = 1; i < bookIdsSize; i++) {
+                    in.append(", ?");
+                }
+                selectBookQuery += in.append(")");
+                bookIdsIndex = index;
+                index += bookIdsSize;
             }
-            if (press != null) {
-                selectBookQuery += " AND press LIKE ?";
-                press = "%" + press + "%";
-                pressIndex = index++;
+            // the conditions without the cursor, shared with the facet counts
+            String filter = selectBookQuery.substring("SELECT * FROM book".length());
+            int filterParams = index - 1;
+            /* keyset pagination: continue right after the cursor, no OFFSET scan */
+            Book.SortColumn sortBy = conditions.getSortBy();
+            // without a search index every book is equally relevant, see Book.SortColumn
+            boolean byBookId = sortBy == Book.SortColumn.BOOK_ID || sortBy == Book.SortColumn.RELEVANCE;
+            String sortColumn = sortBy.getValue();
+            String cmp = conditions.getSortOrder() == SortOrder.DESC && sortBy != Book.SortColumn.RELEVANCE ? "<" : ">";
+            BookQueryResults.Cursor after = conditions.getAfter();
+            int afterIndex = 0;
+            if (after != null) {
+                if (after.getSortBy() != sortBy) {
+                    return new ApiResult(false, "查询失败：分页游标与排序字段不一致");
+                }
+                if (byBookId) {
+                    selectBookQuery += " AND book_id " + cmp + " ?";
+                } else {
+                    selectBookQuery += " AND (" + sortColumn + " " + cmp + " ? OR (" + sortColumn + " = ? AND book_id > ?))";
+                }
+                afterIndex = index;
             }
-            if (author != null) {
-                selectBookQuery += " AND author LIKE ?";
-                author = "%" + author + "%";
-                authorIndex = index++;
+            if (sortBy == Book.SortColumn.RELEVANCE) {
+                selectBookQuery += " ORDER BY book_id ASC";
+            } else {
+                selectBookQuery += " ORDER BY " + sortColumn + " " + conditions.getSortOrder().getValue();
             }
-            selectBookQuery += " ORDER BY " + conditions.getSortBy().getValue() + " " + conditions.getSortOrder().getValue();
-            if (conditions.getSortBy().getValue() != "book_id") {
+            if (!byBookId) {
                 selectBookQuery += ", book_id ASC";
             }
+            Object[] params = new Object[filterParams];
+            params[0] = minPublishYear;
+            params[1] = maxPublishYear;
+            params[2] = minPrice;
+            params[3] = maxPrice;
+            params[4] = title;
+            params[5] = press;
+            params[6] = author;
+            if (categoryIndex > 0) params[categoryIndex - 1] = category;
+            for (int i = 0; i < bookIdsSize; i++) {
+                params[bookIdsIndex - 1 + i] = bookIds.get(Math.min(i, bookIds.size() - 1));
+            }
             pStmt = conn.prepareStatement(selectBookQuery);
-            pStmt.setInt(1, minPublishYear);
-            pStmt.setInt(2, maxPublishYear);
-            pStmt.setDouble(3, minPrice);
-            pStmt.setDouble(4, maxPrice);
-            if (categoryIndex > 0) pStmt.setString(categoryIndex, category);
-            if (titleIndex > 0) pStmt.setString(titleIndex, title);
-            if (pressIndex > 0) pStmt.setString(pressIndex, press);
-            if (authorIndex > 0) pStmt.setString(authorIndex, author);
+            bind(pStmt, params);
+            if (afterIndex > 0) {
+                if (byBookId) {
+                    pStmt.setInt(afterIndex, after.getBookId());
+                } else {
+                    pStmt.setObject(afterIndex, after.getSqlValue());
+                    pStmt.setObject(afterIndex + 1, after.getSqlValue());
+                    pStmt.setInt(afterIndex + 2, after.getBookId());
+                }
+            }
+            Integer limit = conditions.getLimit();
+            if (limit != null && limit > 0) {
+                // fetch one extra row to know whether there is a next page
+                pStmt.setMaxRows(limit + 1);
+            }
+            pStmt.setFetchSize(fetchSize(pStmt.getMaxRows()));
             rSet = pStmt.executeQuery();
 
+            /*
+             * facets are counted over the rows read here when they are all of them,
+             * otherwise by the database in one grouped query, see countFacets()
+             */
+            BookQueryResults.Facets facets = null;
+            boolean wholeResult = (limit == null || limit <= 0) && after == null;
+            if (conditions.isFacets()) {
+                facets = new BookQueryResults.Facets(conditions.getPriceBuckets());
+            }
             List<Book> books = new ArrayList<Book>();
+            BookQueryResults.Cursor nextCursor = null;
             while (rSet.next()) {
+                if (limit != null && limit > 0 && books.size() == limit) {
+                    nextCursor = BookQueryResults.Cursor.of(sortBy, books.get(books.size() - 1));
+                    break;
+                }
                 int bookId = rSet.getInt("book_id");
                 String tempCategory = rSet.getString("category");
                 String tempTitle = rSet.getString("title");
@@ -382,8 +703,15 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
                 Book book = new Book(tempCategory, tempTitle, tempPress, tempPublishYear, tempAuthor, tempPrice, tempStock);
                 book.setBookId(bookId);
                 books.add(book);
+                if (facets != null && wholeResult) {
+                    facets.add(book);
+                }
+            }
+            bookQueryResults = new BookQueryResults(books, nextCursor);
+            if (facets != null && !wholeResult) {
+                countFacets(conn, filter, params, facets);
             }
-            bookQueryResults = new BookQueryResults(books);
+            bookQueryResults.setFacets(facets);
 
             commit(conn);
         } catch (Exception e) {
@@ -400,60 +728,65 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, null, bookQueryResults);
     }
 
     @Override
     public ApiResult borrowBook(Borrow borrow) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         PreparedStatement pStmt = null;
         ResultSet rSet = null;
         try {
+            conn = connector.getConn();
             int cardId = borrow.getCardId();
             int bookId = borrow.getBookId();
             long borrowTime = borrow.getBorrowTime();
             
-            String cardCheck = "SELECT * FROM card WHERE card_id = ?";
-            pStmt = conn.prepareStatement(cardCheck);
-            pStmt.setInt(1, cardId);
-            rSet = pStmt.executeQuery();
-            if (!rSet.next()) {
-                return new ApiResult(false, "借书失败：借书证不存在");
-            }
-
-            String bookCheck = "SELECT * FROM book WHERE book_id = ?";
-            pStmt = conn.prepareStatement(bookCheck);
-            pStmt.setInt(1, bookId);
-            rSet = pStmt.executeQuery();
-            if (!rSet.next()) {
-                return new ApiResult(false, "借书失败：该书不存在");
-            }
-
-            String userCheck = "SELECT * FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0";
-            pStmt = conn.prepareStatement(userCheck);
-            pStmt.setInt(1, bookId);
-            pStmt.setInt(2, cardId);
-            rSet = pStmt.executeQuery();
-            if (rSet.next()) {
-                return new ApiResult(false, "借书失败：该书尚未归还");
+            /* take one copy only if the card exists and the book is not on loan to it */
+            String bookDecQuery = "UPDATE book SET stock = stock - 1 WHERE book_id = ? AND stock > 0" +
+                    " AND EXISTS (SELECT 1 FROM card WHERE card_id = ?)" +
+                    " AND NOT EXISTS (SELECT 1 FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0)";
+            int affectedRows;
+            if (returning) {
+                /* take the copy and record the borrow in one round trip */
+                String borrowQuery = "WITH taken AS (" + bookDecQuery + " RETURNING book_id, stock)" +
+                        " INSERT INTO borrow (card_id, book_id, borrow_time, return_time)" +
+                        " SELECT ?, book_id, ?, 0 FROM taken RETURNING book_id";
+                pStmt = conn.prepareStatement(borrowQuery);
+                pStmt.setInt(1, bookId);
+                pStmt.setInt(2, cardId);
+                pStmt.setInt(3, bookId);
+                pStmt.setInt(4, cardId);
+                pStmt.setInt(5, cardId);
+                pStmt.setLong(6, borrowTime);
+                rSet = pStmt.executeQuery();
+                affectedRows = rSet.next() ? 1 : 0;
+                rSet.close();
+                rSet = null;
+            } else {
+                pStmt = conn.prepareStatement(bookDecQuery);
+                pStmt.setInt(1, bookId);
+                pStmt.setInt(2, cardId);
+                pStmt.setInt(3, bookId);
+                pStmt.setInt(4, cardId);
+                affectedRows = pStmt.executeUpdate();
             }
-
-            String bookDecQuery = "UPDATE book SET stock = stock - 1 WHERE book_id = ? AND stock > 0";
-            pStmt = conn.prepareStatement(bookDecQuery);
-            pStmt.setInt(1, bookId);
-            int affectedRows = pStmt.executeUpdate();
             if (affectedRows == 0) {
+                String reason = borrowFailure(conn, cardId, bookId);
                 rollback(conn);
-                return new ApiResult(false, "借书失败：库存不足");
+                return new ApiResult(false, reason);
+            }
+            if (!returning) {
+                pStmt.close();
+                String insertBorrowQuery = "INSERT INTO borrow (card_id, book_id, borrow_time, return_time) VALUES (?, ?, ?, 0)";
+                pStmt = conn.prepareStatement(insertBorrowQuery);
+                pStmt.setInt(1, cardId);
+                pStmt.setInt(2, bookId);
+                pStmt.setLong(3, borrowTime);
+                pStmt.executeUpdate();
             }
-
-            String insertBorrowQuery = "INSERT INTO borrow (card_id, book_id, borrow_time, return_time) VALUES (?, ?, ?, 0)";
-            pStmt = conn.prepareStatement(insertBorrowQuery);
-            pStmt.setInt(1, cardId);
-            pStmt.setInt(2, bookId);
-            pStmt.setLong(3, borrowTime);
-            pStmt.executeUpdate();
 
             commit(conn);
         } catch (Exception e) {
@@ -470,64 +803,68 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, "借书成功");
     }
 
     @Override
     public ApiResult returnBook(Borrow borrow) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         PreparedStatement pStmt = null;
         ResultSet rSet = null;
         try {
+            conn = connector.getConn();
             int cardId = borrow.getCardId();
             int bookId = borrow.getBookId();
             long returnTime = borrow.getReturnTime();
-            
-            String cardCheck = "SELECT * FROM card WHERE card_id = ?";
-            pStmt = conn.prepareStatement(cardCheck);
-            pStmt.setInt(1, cardId);
-            rSet = pStmt.executeQuery();
-            if (!rSet.next()) {
-                return new ApiResult(false, "还书失败：借书证不存在");
-            }
 
-            String bookCheck = "SELECT * FROM book WHERE book_id = ?";
-            pStmt = conn.prepareStatement(bookCheck);
-            pStmt.setInt(1, bookId);
-            rSet = pStmt.executeQuery();
-            if (!rSet.next()) {
-                return new ApiResult(false, "还书失败：该书不存在");
+            if (returning) {
+                /* close the borrow and put the copy back in one round trip */
+                String returnQuery = "WITH returned AS (UPDATE borrow SET return_time = ?" +
+                        " WHERE card_id = ? AND book_id = ? AND return_time = 0 AND borrow_time < ? RETURNING book_id)" +
+                        " UPDATE book SET stock = stock + 1 WHERE book_id IN (SELECT book_id FROM returned) RETURNING stock";
+                pStmt = conn.prepareStatement(returnQuery);
+                pStmt.setLong(1, returnTime);
+                pStmt.setInt(2, cardId);
+                pStmt.setInt(3, bookId);
+                pStmt.setLong(4, returnTime);
+                rSet = pStmt.executeQuery();
+                if (rSet.next()) {
+                    commit(conn);
+                    return new ApiResult(true, "还书成功");
+                }
+                rSet.close();
+                rSet = null;
+                pStmt.close();
+                pStmt = null;
+                String reason = returnFailure(conn, cardId, bookId);
+                rollback(conn);
+                return new ApiResult(false, reason);
             }
 
-            String userCheck = "SELECT * FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0";
-            pStmt = conn.prepareStatement(userCheck);
-            pStmt.setInt(1, bookId);
+            /* close the borrow only if it was borrowed before returnTime */
+            String returnQuery = "UPDATE borrow SET return_time = ?" +
+                    " WHERE card_id = ? AND book_id = ? AND return_time = 0 AND borrow_time < ?";
+            pStmt = conn.prepareStatement(returnQuery);
+            pStmt.setLong(1, returnTime);
             pStmt.setInt(2, cardId);
-            rSet = pStmt.executeQuery();
-            long borrowTime = 0;
-            if (rSet.next()) {
-                borrowTime = rSet.getLong("borrow_time");
-            }
-            else {
-                return new ApiResult(false, "还书失败：用户未借该书");
-            }
-            if (borrowTime >= returnTime) {
-                return new ApiResult(false, "还书失败：还书时间早于借书时间");
+            pStmt.setInt(3, bookId);
+            pStmt.setLong(4, returnTime);
+            if (pStmt.executeUpdate() == 0) {
+                pStmt.close();
+                pStmt = null;
+                String reason = returnFailure(conn, cardId, bookId);
+                rollback(conn);
+                return new ApiResult(false, reason);
             }
+            pStmt.close();
 
             String bookIncQuery = "UPDATE book SET stock = stock + 1 WHERE book_id = ?";
             pStmt = conn.prepareStatement(bookIncQuery);
             pStmt.setInt(1, bookId);
             pStmt.executeUpdate();
 
-            String returnQuery = "UPDATE borrow SET return_time = ? WHERE card_id = ? AND book_id = ? AND return_time = 0";
-            pStmt = conn.prepareStatement(returnQuery);
-            pStmt.setLong(1, returnTime);
-            pStmt.setInt(2, cardId);
-            pStmt.setInt(3, bookId);
-            pStmt.executeUpdate();
-
             commit(conn);
         } catch (Exception e) {
             rollback(conn);
@@ -543,43 +880,67 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, "还书成功");
     }
 
     @Override
     public ApiResult showBorrowHistory(int cardId) {
-        Connection conn = connector.getConn();
+        return showBorrowHistory(cardId, null, 0);
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId, BorrowHistories.Cursor after, int limit) {
+        Connection conn = null;
         PreparedStatement pStmt = null;
-        ResultSet rSet = null, resBook = null;
+        ResultSet rSet = null;
         BorrowHistories borrowHistories;
         try {
-            String borrowQuery = "SELECT * FROM borrow WHERE card_id = ? ORDER BY borrow_time DESC, book_id ASC";
+            conn = connector.getConn();
+            /* join book once instead of looking up every borrowed book */
+            String borrowQuery = "SELECT br.book_id, br.borrow_time, br.return_time, b.category, b.title, b.press, b.publish_year, b.author, b.price" +
+                    " FROM borrow br JOIN book b ON b.book_id = br.book_id WHERE br.card_id = ?";
+            if (after != null) {
+                borrowQuery += " AND (br.borrow_time < ? OR (br.borrow_time = ? AND br.book_id > ?))";
+            }
+            borrowQuery += " ORDER BY br.borrow_time DESC, br.book_id ASC";
             pStmt = conn.prepareStatement(borrowQuery);
             pStmt.setInt(1, cardId);
+            if (after != null) {
+                pStmt.setLong(2, after.getBorrowTime());
+                pStmt.setLong(3, after.getBorrowTime());
+                pStmt.setInt(4, after.getBookId());
+            }
+            if (limit > 0) {
+                // fetch one extra row to know whether there is a next page
+                pStmt.setMaxRows(limit + 1);
+            }
+            pStmt.setFetchSize(fetchSize(pStmt.getMaxRows()));
             rSet = pStmt.executeQuery();
 
             List<Item> items = new ArrayList<Item>();
+            BorrowHistories.Cursor nextCursor = null;
             while (rSet.next()) {
-                int bookId = rSet.getInt("book_id");
-                String bookQuery = "SELECT * FROM book WHERE book_id = ?";
-                pStmt = conn.prepareStatement(bookQuery);
-                pStmt.setInt(1, bookId);
-                resBook = pStmt.executeQuery();
-
-                if (resBook.next()) {
-                    Book book = new Book(resBook.getString("category"), resBook.getString("title"), resBook.getString("press"), resBook.getInt("publish_year"), resBook.getString("author"), resBook.getDouble("price"), resBook.getInt("stock"));
-                    book.setBookId(bookId);
-
-                    Borrow borrow = new Borrow(bookId, cardId);
-                    borrow.setBorrowTime(rSet.getLong("borrow_time"));
-                    borrow.setReturnTime(rSet.getLong("return_time"));
-
-                    Item item = new Item(cardId, book, borrow);
-                    items.add(item);
+                if (limit > 0 && items.size() == limit) {
+                    Item last = items.get(items.size() - 1);
+                    nextCursor = new BorrowHistories.Cursor(last.getBorrowTime(), last.getBookId());
+                    break;
                 }
+                Item item = new Item();
+                item.setCardId(cardId);
+                item.setBookId(rSet.getInt("book_id"));
+                item.setCategory(rSet.getString("category"));
+                item.setTitle(rSet.getString("title"));
+                item.setPress(rSet.getString("press"));
+                item.setPublishYear(rSet.getInt("publish_year"));
+                item.setAuthor(rSet.getString("author"));
+                item.setPrice(rSet.getDouble("price"));
+                item.setBorrowTime(rSet.getLong("borrow_time"));
+                item.setReturnTime(rSet.getLong("return_time"));
+                items.add(item);
             }
-            borrowHistories = new BorrowHistories(items);
+            borrowHistories = new BorrowHistories(items, nextCursor);
             
             commit(conn);
         } catch (Exception e) {
@@ -590,25 +951,24 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
                 if (rSet != null) {
                     rSet.close();
                 }
-                if (resBook != null) {
-                    resBook.close();
-                }
                 if (pStmt != null) {
                     pStmt.close();
                 }
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, null, borrowHistories);
     }
 
     @Override
     public ApiResult registerCard(Card card) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         PreparedStatement pStmt = null;
         ResultSet rSet = null;
         try {
+            conn = connector.getConn();
             String name = card.getName();
             String department = card.getDepartment();
             String type = card.getType().getStr();
@@ -651,16 +1011,18 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, "借书证新建成功");
     }
 
     @Override
     public ApiResult modifyCardInfo(Card card) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         PreparedStatement pStmt = null;
         ResultSet rSet = null;
         try {
+            conn = connector.getConn();
             String cardExistCheck = "SELECT * FROM card WHERE card_id = ?";
             pStmt = conn.prepareStatement(cardExistCheck);
             pStmt.setInt(1, card.getCardId());
@@ -692,16 +1054,18 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, "借书证修改成功");
     }
 
     @Override
     public ApiResult removeCard(int cardId) {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         PreparedStatement pStmt = null;
         ResultSet rSet = null;
         try {
+            conn = connector.getConn();
             String bookBorrowedCheck = "SELECT * FROM borrow WHERE card_id = ? AND return_time = 0";
             pStmt = conn.prepareStatement(bookBorrowedCheck);
             pStmt.setInt(1, cardId);
@@ -738,17 +1102,19 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, "借书证删除成功");
     }
 
     @Override
     public ApiResult showCards() {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         PreparedStatement pStmt = null;
         ResultSet rSet = null;
         CardList cardList;
         try {
+            conn = connector.getConn();
             String cardQuery = "SELECT * FROM card ORDER BY card_id ASC";
             pStmt = conn.prepareStatement(cardQuery);
             rSet = pStmt.executeQuery();
@@ -779,32 +1145,171 @@ public class LibraryManagementSystemImpl implements LibraryManagementSystem {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, null, cardList);
     }
 
     @Override
     public ApiResult resetDatabase() {
-        Connection conn = connector.getConn();
+        Connection conn = null;
         try {
+            conn = connector.getConn();
             Statement stmt = conn.createStatement();
             DBInitializer initializer = connector.getConf().getType().getDbInitializer();
             stmt.addBatch(initializer.sqlDropBorrow());
             stmt.addBatch(initializer.sqlDropBook());
             stmt.addBatch(initializer.sqlDropCard());
-            stmt.addBatch(initializer.sqlCreateCard());
-            stmt.addBatch(initializer.sqlCreateBook());
-            stmt.addBatch(initializer.sqlCreateBorrow());
+            stmt.addBatch(initializer.sqlDropSchemaVersion());
             stmt.executeBatch();
+            stmt.close();
             commit(conn);
+            /* recreate tables and indexes from the versioned migrations */
+            MigrationRunner.migrate(conn, initializer);
         } catch (Exception e) {
             rollback(conn);
             return new ApiResult(false, e.getMessage());
+        } finally {
+            connector.releaseConn(conn);
         }
         return new ApiResult(true, null);
     }
 
+    /* bind params to the first parameters of pStmt, in order */
+    private static void bind(PreparedStatement pStmt, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] instanceof Integer) {
+                pStmt.setInt(i + 1, (Integer) params[i]);
+            } else if (params[i] instanceof Double) {
+                pStmt.setDouble(i + 1, (Double) params[i]);
+            } else {
+                pStmt.setString(i + 1, (String) params[i]);
+            }
+        }
+    }
+
+    /**
+     * count the facets of the books matching filter in the database, one
+     * round trip that returns a row per facet value instead of the books.
+     * every row is (facet, text value, number value, count), facet 0 to 3
+     * for category, press, publish year and price bucket.
+     */
+    private void countFacets(Connection conn, String filter, Object[] params, BookQueryResults.Facets facets)
+            throws SQLException {
+        double[] bounds = facets.getPriceBounds();
+        StringBuilder bucket = new StringBuilder("CASE");
+        for (int i = 0; i < bounds.length; i++) {
+            bucket.append(" WHEN price < ? THEN ").append(i);
+        }
+        bucket.append(" ELSE ").append(bounds.length).append(" END");
+        String matching = "SELECT category, press, publish_year, " + bucket + " AS price_bucket FROM book" + filter;
+        String query;
+        if (groupingSets) {
+            // the columns are not null, so the one that is set tells the grouping of a row
+            query = "SELECT CASE WHEN category IS NOT NULL THEN 0 WHEN press IS NOT NULL THEN 1" +
+                    " WHEN publish_year IS NOT NULL THEN 2 ELSE 3 END, COALESCE(category, press, '')," +
+                    " COALESCE(publish_year, price_bucket), COUNT(*) FROM (" + matching + ") f" +
+                    " GROUP BY GROUPING SETS ((category), (press), (publish_year), (price_bucket))";
+        } else {
+            query = "WITH f AS (" + matching + ")" +
+                    " SELECT 0, category, 0, COUNT(*) FROM f GROUP BY category" +
+                    " UNION ALL SELECT 1, press, 0, COUNT(*) FROM f GROUP BY press" +
+                    " UNION ALL SELECT 2, '', publish_year, COUNT(*) FROM f GROUP BY publish_year" +
+                    " UNION ALL SELECT 3, '', price_bucket, COUNT(*) FROM f GROUP BY price_bucket";
+        }
+        try (PreparedStatement pStmt = conn.prepareStatement(query)) {
+            // the bounds of the CASE come before the filter
+            Object[] bucketParams = new Object[bounds.length + params.length];
+            for (int i = 0; i < bounds.length; i++) {
+                bucketParams[i] = bounds[i];
+            }
+            System.arraycopy(params, 0, bucketParams, bounds.length, params.length);
+            bind(pStmt, bucketParams);
+            try (ResultSet rSet = pStmt.executeQuery()) {
+                while (rSet.next()) {
+                    int count = rSet.getInt(4);
+                    switch (rSet.getInt(1)) {
+                        case 0:
+                            facets.addCategory(rSet.getString(2), count);
+                            break;
+                        case 1:
+                            facets.addPress(rSet.getString(2), count);
+                            break;
+                        case 2:
+                            facets.addPublishYear(rSet.getInt(3), count);
+                            break;
+                        default:
+                            facets.addPrice(rSet.getInt(3), count);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * the reason a borrow took no copy, also used by the batching decorator.
+     */
+    static String borrowFailure(Connection conn, int cardId, int bookId) throws SQLException {
+        String reasonQuery = "SELECT (SELECT COUNT(*) FROM card WHERE card_id = ?) AS card_cnt," +
+                " (SELECT COUNT(*) FROM book WHERE book_id = ?) AS book_cnt," +
+                " (SELECT COUNT(*) FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0) AS open_cnt";
+        try (PreparedStatement pStmt = conn.prepareStatement(reasonQuery)) {
+            bindReason(pStmt, cardId, bookId);
+            try (ResultSet rSet = pStmt.executeQuery()) {
+                rSet.next();
+                if (rSet.getInt("card_cnt") == 0) {
+                    return "借书失败：借书证不存在";
+                } else if (rSet.getInt("book_cnt") == 0) {
+                    return "借书失败：该书不存在";
+                } else if (rSet.getInt("open_cnt") > 0) {
+                    return "借书失败：该书尚未归还";
+                }
+                return "借书失败：库存不足";
+            }
+        }
+    }
+
+    /**
+     * the reason a return closed no borrow, also used by the batching decorator.
+     */
+    static String returnFailure(Connection conn, int cardId, int bookId) throws SQLException {
+        String reasonQuery = "SELECT (SELECT COUNT(*) FROM card WHERE card_id = ?) AS card_cnt," +
+                " (SELECT COUNT(*) FROM book WHERE book_id = ?) AS book_cnt," +
+                " (SELECT MAX(borrow_time) FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0) AS borrow_time";
+        try (PreparedStatement pStmt = conn.prepareStatement(reasonQuery)) {
+            bindReason(pStmt, cardId, bookId);
+            try (ResultSet rSet = pStmt.executeQuery()) {
+                rSet.next();
+                if (rSet.getInt("card_cnt") == 0) {
+                    return "还书失败：借书证不存在";
+                } else if (rSet.getInt("book_cnt") == 0) {
+                    return "还书失败：该书不存在";
+                }
+                rSet.getLong("borrow_time");
+                if (rSet.wasNull()) {
+                    return "还书失败：用户未借该书";
+                }
+                return "还书失败：还书时间早于借书时间";
+            }
+        }
+    }
+
+    private static void bindReason(PreparedStatement pStmt, int cardId, int bookId) throws SQLException {
+        pStmt.setInt(1, cardId);
+        pStmt.setInt(2, bookId);
+        pStmt.setInt(3, bookId);
+        pStmt.setInt(4, cardId);
+    }
+
+    /* JDBC rejects a fetch size above a non-zero max rows */
+    private static int fetchSize(int maxRows) {
+        return maxRows > 0 ? Math.min(FETCH_SIZE, maxRows) : FETCH_SIZE;
+    }
+
     private void rollback(Connection conn) {
+        if (conn == null) {
+            return;
+        }
         try {
             conn.rollback();
         } catch (Exception e) {
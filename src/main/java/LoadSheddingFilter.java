@@ -0,0 +1,26 @@
+import java.io.IOException;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Answers exchanges rejected by {@link RequestExecutor} with 503.
+ */
+public class LoadSheddingFilter extends Filter {
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        if (RequestExecutor.isShedding()) {
+            exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        chain.doFilter(exchange);
+    }
+
+    @Override
+    public String description() {
+        return "Reject requests with 503 when the server is saturated";
+    }
+}
@@ -1,8 +1,23 @@
+import utils.BatchConfig;
+import utils.CacheConfig;
 import utils.ConnectConfig;
 import utils.DatabaseConnector;
+import utils.InventoryConfig;
+import utils.Metrics;
+import utils.MigrationRunner;
+import utils.SearchConfig;
+import utils.ServerConfig;
+import utils.SqlTracer;
+import utils.TraceConfig;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 
 import com.sun.net.httpserver.*;
@@ -16,34 +31,192 @@ public class Main {
             // parse connection config from "resources/application.yaml"
             ConnectConfig conf = new ConnectConfig();
             log.info("Success to parse connect config. " + conf.toString());
-            // connect to database
-            DatabaseConnector connector = new DatabaseConnector(conf);
+            // latency histograms and gauges, served on /metrics
+            Metrics metrics = new Metrics();
+            // opt-in SQL trace and slow query log
+            TraceConfig traceConf = new TraceConfig();
+            log.info("Success to parse trace config. " + traceConf.toString());
+            SqlTracer tracer = traceConf.isEnabled() ? new SqlTracer(traceConf) : null;
+            // open the connection pool shared by all handlers
+            DatabaseConnector connector = new DatabaseConnector(conf, metrics, tracer);
             boolean connStatus = connector.connect();
             if (!connStatus) {
                 log.severe("Failed to connect database.");
                 System.exit(1);
             }
+            // bring the schema up to date before serving requests
+            int applied = MigrationRunner.migrate(connector);
+            log.info("Success to migrate database, " + applied + " migration(s) applied.");
+
+            // optionally decide borrow & return in memory, persisted through a journal
+            InventoryConfig inventoryConf = new InventoryConfig();
+            log.info("Success to parse inventory config. " + inventoryConf.toString());
+            LibraryManagementSystem core = new LibraryManagementSystemImpl(connector);
+            InventoryLibraryManagementSystem inventory = null;
+            if (inventoryConf.isEnabled()) {
+                inventory = new InventoryLibraryManagementSystem(core, connector, inventoryConf);
+                core = inventory;
+                registerGauges(metrics, inventory.getJournal());
+            }
+
+            // otherwise optionally commit concurrent borrows & returns together
+            BatchConfig batchConf = new BatchConfig();
+            log.info("Success to parse borrow batch config. " + batchConf.toString());
+            BatchingLibraryManagementSystem batching = null;
+            if (batchConf.isEnabled() && inventory != null) {
+                log.warning("Borrow batching is ignored, the inventory already commits borrows and returns in groups.");
+            } else if (batchConf.isEnabled()) {
+                batching = new BatchingLibraryManagementSystem(core, connector, batchConf);
+                core = batching;
+                registerGauges(metrics, batching);
+            }
+
+            // resolve fuzzy book conditions with an in-memory text index
+            SearchConfig searchConf = new SearchConfig();
+            log.info("Success to parse search config. " + searchConf.toString());
+            SearchLibraryManagementSystem search = null;
+            if (searchConf.isEnabled()) {
+                search = new SearchLibraryManagementSystem(core, connector, searchConf);
+                core = search;
+                registerGauges(metrics, search);
+            }
+
+            // cache book queries in front of the database
+            CacheConfig cacheConf = new CacheConfig();
+            log.info("Success to parse cache config. " + cacheConf.toString());
+            CachingLibraryManagementSystem cache = new CachingLibraryManagementSystem(core, cacheConf);
+            LibraryManagementSystem library = new InstrumentedLibraryManagementSystem(cache, metrics);
+            registerGauges(metrics, connector, cache);
+
+            // parse http server config from "resources/application.yaml"
+            ServerConfig serverConf = new ServerConfig();
+            log.info("Success to parse server config. " + serverConf.toString());
+
+            // handlers call the library on a bounded pool of database threads and answer asynchronously
+            int dbThreads = serverConf.getDbThreads() > 0 ? serverConf.getDbThreads() : conf.getPoolMaxSize();
+            AsyncLibraryManagementSystemImpl asyncLibrary = new AsyncLibraryManagementSystemImpl(
+                    library, dbThreads, serverConf.getDbQueueCapacity());
+            registerGauges(metrics, asyncLibrary);
 
             /* start do somethings */
-            HttpServer server = HttpServer.create(new InetSocketAddress(8000), 0);
-            
-            server.createContext("/book", new BookHandler());
-            server.createContext("/bookset", new BookSetHandler());
-            server.createContext("/card", new CardHandler());
-            server.createContext("/borrow", new BorrowHandler());
-            server.createContext("/return", new ReturnHandler());
+            HttpServer server = HttpServer.create(new InetSocketAddress(serverConf.getPort()), serverConf.getBacklog());
+            RequestExecutor executor = new RequestExecutor(serverConf);
+            server.setExecutor(executor);
+
+            // metrics first, so shed requests are counted too
+            List<Filter> filters = new ArrayList<>(Arrays.asList(new MetricsFilter(metrics), new LoadSheddingFilter()));
+            if (tracer != null) {
+                filters.add(new TraceFilter());
+            }
+            // compress what the handlers write, innermost so the other filters see the exchange as sent
+            CompressionFilter compression = null;
+            if (serverConf.getCompressMinBytes() >= 0) {
+                compression = new CompressionFilter(serverConf.getCompressMinBytes(), serverConf.getCompressLevel());
+                filters.add(compression);
+                registerGauges(metrics, compression);
+            }
+            // serve the built frontend on "/" when there is one
+            List<Filter> apiFilters = new ArrayList<>(filters);
+            Path staticDir = serverConf.getStaticDir().isEmpty() ? null : Paths.get(serverConf.getStaticDir());
+            if (staticDir != null && Files.isRegularFile(staticDir.resolve("index.html"))) {
+                StaticHandler pages = new StaticHandler(staticDir);
+                server.createContext("/", pages).getFilters().addAll(filters);
+                // pages of the app that share their path with an API context
+                apiFilters.add(new PageFilter(pages));
+                log.info("Serving the frontend from " + staticDir.toAbsolutePath().normalize());
+            } else {
+                log.info("Not serving the frontend, no index.html in staticDir '" + serverConf.getStaticDir() + "'.");
+            }
+            server.createContext("/book", new BookHandler(asyncLibrary, serverConf.getPriceBuckets())).getFilters().addAll(apiFilters);
+            // completions are answered from memory on the request thread
+            server.createContext("/book/suggest", new BookSuggestHandler(search)).getFilters().addAll(filters);
+            // the import streams the upload on its request thread, its writes share the database threads
+            server.createContext("/bookset", new BookSetHandler(new SyncLibraryManagementSystem(asyncLibrary),
+                    serverConf.getImportChunkSize())).getFilters().addAll(apiFilters);
+            server.createContext("/card", new CardHandler(asyncLibrary)).getFilters().addAll(apiFilters);
+            server.createContext("/borrow", new BorrowHandler(asyncLibrary)).getFilters().addAll(apiFilters);
+            server.createContext("/return", new ReturnHandler(asyncLibrary)).getFilters().addAll(apiFilters);
+            // not shed, so the server can still be observed when saturated
+            HttpContext metricsContext = server.createContext("/metrics", new MetricsHandler(metrics));
+            if (compression != null) {
+                metricsContext.getFilters().add(compression);
+            }
             server.start();
-            System.out.println("Server is listening on port 8000");
-            
-            // release database connection handler
-            // if (connector.release()) {
-            //     log.info("Success to release connection.");
-            // } else {
-            //     log.warning("Failed to release connection.");
-            // }
+            System.out.println("Server is listening on port " + serverConf.getPort());
+
+            // release database connections on shutdown
+            InventoryLibraryManagementSystem journaled = inventory;
+            BatchingLibraryManagementSystem batched = batching;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop(0);
+                executor.shutdown();
+                asyncLibrary.shutdown();
+                if (journaled != null) {
+                    journaled.close();
+                }
+                if (batched != null) {
+                    batched.close();
+                }
+                log.info("Book query cache: " + cache.getStats());
+                if (connector.release()) {
+                    log.info("Success to release connection pool.");
+                } else {
+                    log.warning("Failed to release connection pool.");
+                }
+                if (tracer != null) {
+                    tracer.close();
+                }
+            }));
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private static void registerGauges(Metrics metrics, DatabaseConnector connector, CachingLibraryManagementSystem cache) {
+        metrics.gauge("library_db_pool_connections", "Open pooled connections.", connector::getTotalConnections);
+        metrics.gauge("library_db_pool_active_connections", "Pooled connections borrowed by a call.", connector::getActiveConnections);
+        metrics.gauge("library_db_pool_idle_connections", "Pooled connections waiting to be borrowed.", connector::getIdleConnections);
+        metrics.gauge("library_db_pool_max_connections", "Upper bound of pooled connections.", () -> connector.getConf().getPoolMaxSize());
+        metrics.counter("library_statement_cache_hits_total", "Prepared statements reused from the cache.", connector::getStatementCacheHits);
+        metrics.counter("library_statement_cache_misses_total", "Prepared statements prepared by the driver.", connector::getStatementCacheMisses);
+        metrics.counter("library_statement_cache_evictions_total", "Prepared statements evicted from the cache.", connector::getStatementCacheEvictions);
+        metrics.gauge("library_query_cache_entries", "Book queries in the cache.", cache::getSize);
+        metrics.counter("library_query_cache_hits_total", "Book queries answered from the cache.", cache::getHits);
+        metrics.counter("library_query_cache_misses_total", "Book queries loaded from the database.", cache::getMisses);
+        metrics.counter("library_query_cache_evictions_total", "Book queries dropped because of size or age.", cache::getEvictions);
+        metrics.counter("library_query_cache_invalidations_total", "Book queries dropped because of writes.", cache::getInvalidations);
+    }
+
+    private static void registerGauges(Metrics metrics, BorrowJournal journal) {
+        metrics.gauge("library_journal_pending_records", "Borrows and returns not yet applied to the database.", journal::getPending);
+        metrics.counter("library_journal_rounds_total", "Journal rounds applied to the database.", journal::getRounds);
+        metrics.counter("library_journal_retries_total", "Journal rounds that failed to reach the database.", journal::getRetries);
+    }
+
+    private static void registerGauges(Metrics metrics, AsyncLibraryManagementSystemImpl asyncLibrary) {
+        metrics.gauge("library_db_executor_queued_calls", "Library calls waiting for a database thread.", asyncLibrary::getQueued);
+        metrics.gauge("library_db_executor_active_calls", "Library calls running on a database thread.", asyncLibrary::getActive);
+    }
+
+    private static void registerGauges(Metrics metrics, SearchLibraryManagementSystem search) {
+        metrics.gauge("library_search_index_books", "Books in the text search index.", () -> search.getIndex().size());
+        metrics.gauge("library_suggest_values", "Distinct titles, authors, presses and categories to complete.",
+                () -> search.getSuggestions().size());
+    }
+
+    private static void registerGauges(Metrics metrics, CompressionFilter compression) {
+        metrics.counter("library_http_compressed_responses_total", "Responses sent gzip or deflate compressed.", compression::getResponses);
+        metrics.counter("library_http_compression_input_bytes_total", "Bytes of compressed responses before compression.", compression::getBytesIn);
+        metrics.counter("library_http_compression_output_bytes_total", "Bytes of compressed responses as sent.", compression::getBytesOut);
+        metrics.gauge("library_http_compression_ratio", "Bytes sent per byte before compression, over all compressed responses.",
+                () -> compression.getBytesIn() == 0 ? 0 : (double) compression.getBytesOut() / compression.getBytesIn());
+        metrics.counter("library_http_compression_cpu_seconds_total", "CPU time spent compressing responses.",
+                () -> compression.getCpuNanos() / 1e9);
+    }
+
+    private static void registerGauges(Metrics metrics, BatchingLibraryManagementSystem batching) {
+        metrics.counter("library_borrow_batch_commits_total", "Transactions committed for borrows and returns.", batching::getCommits);
+        metrics.counter("library_borrow_batch_requests_total", "Borrows and returns answered.", batching::getRequests);
+    }
+
 }
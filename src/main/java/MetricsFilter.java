@@ -0,0 +1,44 @@
+import java.io.IOException;
+
+import com.sun.net.httpserver.*;
+
+import utils.Metrics;
+
+/**
+ * Times every exchange of a context into the library_http_request metrics
+ * family, labelled by context path and request method. an exchange counts
+ * as an error if it is answered with 5xx or the handler throws, and is
+ * timed until it is answered, see {@link AsyncExchange}.
+ */
+public class MetricsFilter extends Filter {
+
+    private final Metrics.Family requests;
+
+    public MetricsFilter(Metrics metrics) {
+        this.requests = metrics.family("library_http_request", "Latency of HTTP requests.", "endpoint", "method");
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        Metrics.Timer timer = requests.timer(exchange.getHttpContext().getPath(), exchange.getRequestMethod());
+        long start = System.nanoTime();
+        HttpExchange tracked = AsyncExchange.track(exchange);
+        boolean thrown = true;
+        try {
+            chain.doFilter(tracked);
+            thrown = false;
+        } finally {
+            if (thrown) {
+                timer.record(start, true);
+            } else {
+                // an asynchronous exchange is timed until it is answered
+                AsyncExchange.onComplete(tracked, () -> timer.record(start, tracked.getResponseCode() >= 500));
+            }
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Record latency and errors of each request";
+    }
+}
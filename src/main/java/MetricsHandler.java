@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.*;
+
+import utils.Metrics;
+
+/**
+ * GET /metrics, every metric of the registry in the Prometheus text format.
+ */
+public class MetricsHandler implements HttpHandler {
+
+    private final Metrics metrics;
+
+    public MetricsHandler(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream outputStream = exchange.getResponseBody();
+        Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        metrics.write(writer);
+        writer.close();
+    }
+}
@@ -0,0 +1,35 @@
+import java.io.IOException;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Answers a browser navigating to a page of the frontend whose path is also
+ * an API context (/book, /card, /borrow) with the app's index.html.
+ *
+ * Note:
+ *      (1) a navigation is a GET that accepts text/html, the frontend's
+ *          own calls accept json and reach the handler as before.
+ */
+public class PageFilter extends Filter {
+
+    private final StaticHandler pages;
+
+    public PageFilter(StaticHandler pages) {
+        this.pages = pages;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        if (exchange.getRequestMethod().equals("GET") && accept != null && accept.contains("text/html")) {
+            pages.sendIndex(exchange);
+            return;
+        }
+        chain.doFilter(exchange);
+    }
+
+    @Override
+    public String description() {
+        return "Serve the frontend to page navigations on API paths";
+    }
+}
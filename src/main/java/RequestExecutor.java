@@ -0,0 +1,130 @@
+import utils.ServerConfig;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Executor handed to {@link com.sun.net.httpserver.HttpServer#setExecutor}.
+ *
+ * Note:
+ *      (1) at most threads + queueCapacity exchanges are admitted at once,
+ *          either running or waiting for a worker.
+ *      (2) when saturated, the exchange runs on the shedding thread with
+ *          the shedding flag set, and {@link LoadSheddingFilter} answers it
+ *          with 503 before any handler or database work happens.
+ *      (3) running an exchange reads the request from the socket, which
+ *          blocks on a slow client. the dispatcher thread of the server
+ *          accepts every connection, so a rejected exchange is never run
+ *          on it: a slow client can only hold up other 503s. at most
+ *          SHED_QUEUE rejected exchanges wait for the shedding thread,
+ *          beyond that execute() throws and the server closes the
+ *          connection without an answer.
+ */
+public class RequestExecutor implements Executor {
+
+    private static final Logger log = Logger.getLogger(RequestExecutor.class.getName());
+
+    static final int SHED_QUEUE = 64;
+
+    private static final ThreadLocal<Boolean> shedding = ThreadLocal.withInitial(() -> false);
+
+    private final ExecutorService delegate;
+    /* runs rejected exchanges, see note (3) */
+    private final ExecutorService shedder;
+    private final Semaphore admission;
+
+    public RequestExecutor(ServerConfig conf) {
+        this(conf.getExecutorMode(), conf.getThreads(), conf.getQueueCapacity());
+    }
+
+    public RequestExecutor(ServerConfig.ExecutorMode mode, int threads, int queueCapacity) {
+        this.delegate = createDelegate(mode, threads);
+        // the default policy throws once the queue is full
+        this.shedder = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(SHED_QUEUE), r -> {
+                    Thread t = new Thread(r, "http-shed");
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.admission = new Semaphore(threads + queueCapacity);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!admission.tryAcquire()) {
+            shedder.execute(() -> {
+                shedding.set(true);
+                try {
+                    command.run();
+                } finally {
+                    shedding.set(false);
+                }
+            });
+            return;
+        }
+        try {
+            delegate.execute(() -> {
+                try {
+                    command.run();
+                } finally {
+                    admission.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            admission.release();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        delegate.shutdown();
+        shedder.shutdown();
+        try {
+            delegate.awaitTermination(5, TimeUnit.SECONDS);
+            shedder.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * the request threads without admission, for answers to exchanges that
+     * were already admitted, see {@link AsyncExchange}.
+     */
+    public Executor getResponseExecutor() {
+        return delegate;
+    }
+
+    /**
+     * whether the exchange running on the current thread was rejected.
+     */
+    public static boolean isShedding() {
+        return shedding.get();
+    }
+
+    private static ExecutorService createDelegate(ServerConfig.ExecutorMode mode, int threads) {
+        if (mode == ServerConfig.ExecutorMode.VIRTUAL) {
+            try {
+                // looked up reflectively so the project still builds for JDK 8
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.warning("Virtual threads are not available on this JVM, fall back to a fixed thread pool.");
+            }
+        }
+        AtomicInteger counter = new AtomicInteger(0);
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "http-worker-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+}
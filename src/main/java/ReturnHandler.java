@@ -9,37 +9,13 @@ import org.json.JSONObject;
 import com.sun.net.httpserver.*;
 
 import entities.Borrow;
-import queries.ApiResult;
-import utils.ConnectConfig;
-import utils.DatabaseConnector;
 
 public class ReturnHandler implements HttpHandler {
 
-    private DatabaseConnector connector;
-    private LibraryManagementSystem library;
+    private final AsyncLibraryManagementSystem library;
 
-    private static ConnectConfig connectConfig = null;
-
-    static {
-        try {
-            connectConfig = new ConnectConfig();
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-    }
-
-    public ReturnHandler() {
-        try {
-            connector = new DatabaseConnector(connectConfig);
-            library = new LibraryManagementSystemImpl(connector);
-            System.out.println("Successfully init class ReturnHandler.");
-            connector.connect();
-            System.out.println("Successfully connect to database.");
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
+    public ReturnHandler(AsyncLibraryManagementSystem library) {
+        this.library = library;
     }
 
     @Override
@@ -67,20 +43,8 @@ public class ReturnHandler implements HttpHandler {
             int cardId = jsonObject.getInt("card_id");
             Borrow borrow = new Borrow(bookId, cardId);
             borrow.resetReturnTime();
-            ApiResult result = library.returnBook(borrow);
-            if (result.ok == false) {
-                exchange.getResponseHeaders().set("Content-Type", "text/plain");
-                exchange.sendResponseHeaders(400, 0);
-                OutputStream outputStream = exchange.getResponseBody();
-                outputStream.write(result.message.getBytes());
-                outputStream.close();
-                return;
-            }
-            exchange.getResponseHeaders().set("Content-Type", "text/plain");
-            exchange.sendResponseHeaders(200, 0);
-            OutputStream outputStream = exchange.getResponseBody();
-            outputStream.write(result.message.getBytes());
-            outputStream.close();
+            AsyncExchange.respond(exchange, library.returnBook(borrow), "还书失败",
+                    result -> AsyncExchange.sendMessage(exchange, result));
         } catch (Exception e) {
             exchange.getResponseHeaders().set("Content-Type", "text/plain");
             exchange.sendResponseHeaders(500, 0);
@@ -0,0 +1,464 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookImportResults;
+import queries.BookQueryConditions;
+import queries.BookQueryResults;
+import queries.BorrowHistories;
+import queries.SortOrder;
+import utils.DatabaseConnector;
+import utils.SearchConfig;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Answers the fuzzy title, press and author conditions of {@link #queryBook}
+ * from a {@link BookTextIndex} of the catalog, misspelled ones from a
+ * {@link TrigramIndex} of titles and authors, and completions of typed
+ * text from a {@link SuggestIndex}. every other call is passed through.
+ *
+ * Note:
+ *      (1) the indexes are built from the database when it is created and
+ *          updated by every successful write of a book (and borrow, for the
+ *          popularity of completions), a caller always finds the books it
+ *          has stored. books written by other processes are only found
+ *          after a restart.
+ *      (2) the database gets the candidates of the index as a book_id list
+ *          and still applies every condition, so results and their order
+ *          are the same as without the index. beyond maxCandidates the
+ *          list is left out and the database scans.
+ *      (3) sorting by {@link Book.SortColumn#RELEVANCE} ranks the candidate
+ *          ids by {@link BookTextIndex#score} of their indexed values, then
+ *          by book_id, and loads only the best ones past the cursor, more if
+ *          the database rejects some; the cursor of a page holds the score.
+ *          facets of such a page are counted by the database.
+ *      (4) an import indexes the books the delegate reports as inserted,
+ *          also those of the chunks committed before a failure. reset
+ *          rebuilds the indexes while no other book write or borrow runs,
+ *          queries keep using the previous ones until then.
+ *      (5) a {@link BookQueryConditions#isFuzzy} query replaces its title
+ *          and author conditions by the maxCandidates books most similar to
+ *          them (the mean similarity if both are set), the database applies
+ *          the other conditions. by relevance they are ordered by that
+ *          similarity.
+ */
+public class SearchLibraryManagementSystem implements LibraryManagementSystem {
+
+    private final LibraryManagementSystem delegate;
+    private final DatabaseConnector connector;
+    private final int maxCandidates;
+    private final double fuzzyThreshold;
+    /* shared by book writes, exclusive while the index is rebuilt */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile BookTextIndex index;
+    private volatile SuggestIndex suggestions;
+    private volatile TrigramIndex titleTrigrams;
+    private volatile TrigramIndex authorTrigrams;
+
+    public SearchLibraryManagementSystem(LibraryManagementSystem delegate, DatabaseConnector connector,
+                                         SearchConfig conf) throws SQLException {
+        this.delegate = delegate;
+        this.connector = connector;
+        this.maxCandidates = conf.getMaxCandidates();
+        this.fuzzyThreshold = conf.getFuzzyThreshold();
+        load();
+    }
+
+    public BookTextIndex getIndex() {
+        return index;
+    }
+
+    public SuggestIndex getSuggestions() {
+        return suggestions;
+    }
+
+    /**
+     * completions of prefix from memory, see {@link SuggestIndex#suggest}.
+     */
+    public List<SuggestIndex.Suggestion> suggest(String prefix, SuggestIndex.Kind kind, int limit) {
+        return suggestions.suggest(prefix, kind, limit);
+    }
+
+    @Override
+    public ApiResult queryBook(BookQueryConditions conditions) {
+        if (conditions.isFuzzy() && (conditions.getTitle() != null || conditions.getAuthor() != null)) {
+            return queryBySimilarity(conditions);
+        }
+        BitSet candidates = index.candidates(conditions);
+        BookQueryConditions restricted = conditions;
+        if (candidates != null && candidates.cardinality() <= maxCandidates) {
+            List<Integer> bookIds = new ArrayList<>(candidates.cardinality());
+            for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+                bookIds.add(id);
+            }
+            restricted = CachingLibraryManagementSystem.copyOf(conditions);
+            restricted.setBookIds(bookIds);
+        }
+        if (conditions.getSortBy() != Book.SortColumn.RELEVANCE || !hasText(conditions)) {
+            return delegate.queryBook(restricted);
+        }
+        BookTextIndex current = index;
+        return queryByRelevance(conditions, restricted, candidates != null ? candidates : current.ids(),
+                bookId -> current.score(conditions, bookId));
+    }
+
+    /* see note (5) */
+    private ApiResult queryBySimilarity(BookQueryConditions conditions) {
+        boolean both = conditions.getTitle() != null && conditions.getAuthor() != null;
+        // with both conditions a book must be similar in both, so neither list is cut
+        int limit = both ? Integer.MAX_VALUE : maxCandidates;
+        Map<Integer, Double> similarity = null;
+        for (int field = 0; field < 2; field++) {
+            String condition = field == 0 ? conditions.getTitle() : conditions.getAuthor();
+            if (condition == null) {
+                continue;
+            }
+            TrigramIndex.Matches matches = (field == 0 ? titleTrigrams : authorTrigrams)
+                    .similar(condition, fuzzyThreshold, limit);
+            if (matches == null) {
+                // no word to compare, match it as a substring
+                BookQueryConditions substring = CachingLibraryManagementSystem.copyOf(conditions);
+                substring.setFuzzy(false);
+                return queryBook(substring);
+            }
+            Map<Integer, Double> scores = new HashMap<>();
+            for (int i = 0; i < matches.size(); i++) {
+                int bookId = matches.getBookId(i);
+                if (similarity == null || similarity.containsKey(bookId)) {
+                    scores.put(bookId, matches.getScore(i) / (both ? 2 : 1)
+                            + (similarity == null ? 0 : similarity.get(bookId)));
+                }
+            }
+            similarity = scores;
+        }
+        List<Map.Entry<Integer, Double>> ranked = new ArrayList<>(similarity.entrySet());
+        ranked.sort(Map.Entry.<Integer, Double>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        List<Integer> bookIds = new ArrayList<>();
+        for (int i = 0; i < ranked.size() && i < maxCandidates; i++) {
+            bookIds.add(ranked.get(i).getKey());
+        }
+        BookQueryConditions restricted = CachingLibraryManagementSystem.copyOf(conditions);
+        restricted.setTitle(null);
+        restricted.setAuthor(null);
+        restricted.setFuzzy(false);
+        restricted.setBookIds(bookIds);
+        if (conditions.getSortBy() != Book.SortColumn.RELEVANCE) {
+            return delegate.queryBook(restricted);
+        }
+        BitSet similar = new BitSet();
+        bookIds.forEach(similar::set);
+        Map<Integer, Double> scores = similarity;
+        return queryByRelevance(conditions, restricted, similar, bookId -> scores.getOrDefault(bookId, 0.0));
+    }
+
+    /* see note (3) */
+    private ApiResult queryByRelevance(BookQueryConditions conditions, BookQueryConditions restricted,
+                                       BitSet candidates, IntToDoubleFunction scorer) {
+        BookQueryResults.Cursor after = conditions.getAfter();
+        if (after != null && after.getSortBy() != Book.SortColumn.RELEVANCE) {
+            return new ApiResult(false, "查询失败：分页游标与排序字段不一致");
+        }
+        int[] ids = new int[candidates.cardinality()];
+        double[] scores = new double[ids.length];
+        int n = 0;
+        for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+            ids[n] = id;
+            scores[n] = scorer.applyAsDouble(id);
+            n++;
+        }
+        boolean desc = conditions.getSortOrder() == SortOrder.DESC;
+        Comparator<Integer> order = (i, j) -> compare(scores[i], ids[i], scores[j], ids[j], desc);
+
+        Integer limit = conditions.getLimit();
+        boolean paged = limit != null && limit > 0;
+        // one more than the page tells whether another page follows
+        int wanted = paged ? limit + 1 : Integer.MAX_VALUE;
+        int batch = Math.max(paged ? Math.min(wanted, maxCandidates) : maxCandidates, 1);
+        boolean positioned = after != null;
+        double positionScore = positioned ? ((Number) after.getSqlValue()).doubleValue() : 0;
+        int positionId = positioned ? after.getBookId() : 0;
+        List<Book> books = new ArrayList<>();
+        while (books.size() < wanted) {
+            // the best batch candidates past the position, the worst of them at the head
+            PriorityQueue<Integer> best = new PriorityQueue<>(batch + 1, order.reversed());
+            for (int i = 0; i < n; i++) {
+                if (positioned && compare(scores[i], ids[i], positionScore, positionId, desc) <= 0) {
+                    continue;
+                }
+                best.add(i);
+                if (best.size() > batch) {
+                    best.poll();
+                }
+            }
+            if (best.isEmpty()) {
+                break;
+            }
+            Integer[] ranked = best.toArray(new Integer[0]);
+            Arrays.sort(ranked, order);
+            List<Integer> bookIds = new ArrayList<>(ranked.length);
+            for (Integer i : ranked) {
+                bookIds.add(ids[i]);
+            }
+            BookQueryConditions fetch = CachingLibraryManagementSystem.copyOf(restricted);
+            fetch.setBookIds(bookIds);
+            fetch.setSortBy(Book.SortColumn.BOOK_ID);
+            fetch.setSortOrder(SortOrder.ASC);
+            fetch.setLimit(null);
+            fetch.setAfter(null);
+            fetch.setFacets(false);
+            ApiResult result = delegate.queryBook(fetch);
+            if (!result.ok) {
+                return result;
+            }
+            // the database applies the other conditions, keep the rank of the books it found
+            Map<Integer, Book> found = new HashMap<>();
+            for (Book book : ((BookQueryResults) result.payload).getResults()) {
+                found.put(book.getBookId(), book);
+            }
+            for (Integer i : ranked) {
+                Book book = found.get(ids[i]);
+                if (book != null && books.size() < wanted) {
+                    books.add(book);
+                }
+            }
+            if (ranked.length < batch) {
+                break;
+            }
+            Integer last = ranked[ranked.length - 1];
+            positioned = true;
+            positionScore = scores[last];
+            positionId = ids[last];
+            batch = Math.max(Math.min(batch * 2, maxCandidates), batch);
+        }
+        BookQueryResults.Cursor nextCursor = null;
+        if (paged && books.size() > limit) {
+            books.remove(books.size() - 1);
+            Book last = books.get(books.size() - 1);
+            nextCursor = new BookQueryResults.Cursor(Book.SortColumn.RELEVANCE,
+                    scorer.applyAsDouble(last.getBookId()), last.getBookId());
+        }
+        BookQueryResults page = new BookQueryResults(books, nextCursor);
+        if (conditions.isFacets()) {
+            // over every matching book, the page only holds some of them
+            BookQueryConditions counted = CachingLibraryManagementSystem.copyOf(restricted);
+            counted.setSortBy(Book.SortColumn.BOOK_ID);
+            counted.setSortOrder(SortOrder.ASC);
+            counted.setLimit(1);
+            counted.setAfter(null);
+            ApiResult result = delegate.queryBook(counted);
+            if (!result.ok) {
+                return result;
+            }
+            page.setFacets(((BookQueryResults) result.payload).getFacets());
+        }
+        return new ApiResult(true, null, page);
+    }
+
+    /* relevance order: by score, then by book_id ascending */
+    private static int compare(double score, int bookId, double otherScore, int otherBookId, boolean desc) {
+        int byScore = Double.compare(score, otherScore);
+        if (byScore != 0) {
+            return desc ? -byScore : byScore;
+        }
+        return Integer.compare(bookId, otherBookId);
+    }
+
+    @Override
+    public ApiResult storeBook(Book book) {
+        return write(() -> delegate.storeBook(book), result -> put(book));
+    }
+
+    @Override
+    public ApiResult incBookStock(int bookId, int deltaStock) {
+        return delegate.incBookStock(bookId, deltaStock);
+    }
+
+    @Override
+    public ApiResult storeBook(List<Book> books) {
+        return write(() -> delegate.storeBook(books), result -> books.forEach(this::put));
+    }
+
+    @Override
+    public ApiResult importBooks(List<Book> books, int chunkSize) {
+        /* see note (4), chunks may be committed even if the import fails */
+        lock.readLock().lock();
+        try {
+            ApiResult result = delegate.importBooks(books, chunkSize);
+            if (result.payload instanceof BookImportResults) {
+                List<BookImportResults.Outcome> outcomes = ((BookImportResults) result.payload).getOutcomes();
+                for (int i = 0; i < outcomes.size(); i++) {
+                    if (outcomes.get(i) == BookImportResults.Outcome.INSERTED) {
+                        put(books.get(i));
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ApiResult removeBook(int bookId) {
+        return write(() -> delegate.removeBook(bookId), result -> {
+            index.remove(bookId);
+            suggestions.remove(bookId);
+            titleTrigrams.remove(bookId);
+            authorTrigrams.remove(bookId);
+        });
+    }
+
+    @Override
+    public ApiResult modifyBookInfo(Book book) {
+        return write(() -> delegate.modifyBookInfo(book), result -> put(book));
+    }
+
+    @Override
+    public ApiResult borrowBook(Borrow borrow) {
+        return write(() -> delegate.borrowBook(borrow), result -> suggestions.borrowed(borrow.getBookId()));
+    }
+
+    @Override
+    public ApiResult returnBook(Borrow borrow) {
+        return delegate.returnBook(borrow);
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId) {
+        return delegate.showBorrowHistory(cardId);
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId, BorrowHistories.Cursor after, int limit) {
+        return delegate.showBorrowHistory(cardId, after, limit);
+    }
+
+    @Override
+    public ApiResult registerCard(Card card) {
+        return delegate.registerCard(card);
+    }
+
+    @Override
+    public ApiResult modifyCardInfo(Card card) {
+        return delegate.modifyCardInfo(card);
+    }
+
+    @Override
+    public ApiResult removeCard(int cardId) {
+        return delegate.removeCard(cardId);
+    }
+
+    @Override
+    public ApiResult showCards() {
+        return delegate.showCards();
+    }
+
+    @Override
+    public ApiResult resetDatabase() {
+        return rebuild(delegate::resetDatabase);
+    }
+
+    /* a stored or modified book, into every index */
+    private void put(Book book) {
+        index.put(book);
+        suggestions.put(book);
+        titleTrigrams.put(book.getBookId(), book.getTitle());
+        authorTrigrams.put(book.getBookId(), book.getAuthor());
+    }
+
+    /* a book write or borrow, onSuccess runs only if it is ok */
+    private ApiResult write(Supplier<ApiResult> write, Consumer<ApiResult> onSuccess) {
+        lock.readLock().lock();
+        try {
+            ApiResult result = write.get();
+            if (result.ok) {
+                onSuccess.accept(result);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* see note (4) */
+    private ApiResult rebuild(Supplier<ApiResult> write) {
+        lock.writeLock().lock();
+        try {
+            ApiResult result = write.get();
+            try {
+                load();
+            } catch (SQLException e) {
+                return new ApiResult(false, e.getMessage());
+            }
+            return result;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void load() throws SQLException {
+        BookTextIndex loadedIndex = new BookTextIndex();
+        SuggestIndex loadedSuggestions = new SuggestIndex();
+        TrigramIndex loadedTitles = new TrigramIndex();
+        TrigramIndex loadedAuthors = new TrigramIndex();
+        Map<Integer, Long> borrows = new HashMap<>();
+        Connection conn = null;
+        PreparedStatement pStmt = null;
+        ResultSet rSet = null;
+        try {
+            conn = connector.getConn();
+            pStmt = conn.prepareStatement("SELECT book_id, COUNT(*) AS borrows FROM borrow GROUP BY book_id");
+            rSet = pStmt.executeQuery();
+            while (rSet.next()) {
+                borrows.put(rSet.getInt("book_id"), rSet.getLong("borrows"));
+            }
+            rSet.close();
+            pStmt.close();
+            pStmt = conn.prepareStatement("SELECT book_id, category, title, press, author FROM book");
+            pStmt.setFetchSize(1000);
+            rSet = pStmt.executeQuery();
+            while (rSet.next()) {
+                Book book = new Book(rSet.getString("category"), rSet.getString("title"), rSet.getString("press"), 0,
+                        rSet.getString("author"), 0, 0);
+                book.setBookId(rSet.getInt("book_id"));
+                loadedIndex.put(book);
+                loadedSuggestions.put(book, borrows.getOrDefault(book.getBookId(), 0L));
+                loadedTitles.put(book.getBookId(), book.getTitle());
+                loadedAuthors.put(book.getBookId(), book.getAuthor());
+            }
+            conn.commit();
+        } finally {
+            if (rSet != null) {
+                rSet.close();
+            }
+            if (pStmt != null) {
+                pStmt.close();
+            }
+            connector.releaseConn(conn);
+        }
+        index = loadedIndex;
+        suggestions = loadedSuggestions;
+        titleTrigrams = loadedTitles;
+        authorTrigrams = loadedAuthors;
+    }
+
+    private static boolean hasText(BookQueryConditions conditions) {
+        return conditions.getTitle() != null || conditions.getPress() != null || conditions.getAuthor() != null;
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Serves the built frontend (librarymanagementsystem-frontend/dist) from
+ * the same origin as the API.
+ *
+ * Note:
+ *      (1) files are streamed with {@link FileChannel#transferTo}. a .br or
+ *          .gz file written next to a file by the frontend build is sent
+ *          instead when the client accepts that encoding.
+ *      (2) the ETag is derived from size and modification time of the file
+ *          sent, a matching If-None-Match is answered with 304.
+ *      (3) vite puts only content-hashed files under assets/, they are
+ *          cached for a year as immutable. everything else is revalidated.
+ *      (4) a missing path without a file extension is a page of the app
+ *          (history mode routing) and is answered with index.html.
+ */
+public class StaticHandler implements HttpHandler {
+
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "no-cache";
+
+    /* content coding and file suffix, in order of preference */
+    private static final String[][] ENCODINGS = {{"br", ".br"}, {"gzip", ".gz"}};
+
+    private static final Map<String, String> TYPES = new HashMap<>();
+
+    static {
+        TYPES.put("html", "text/html; charset=utf-8");
+        TYPES.put("js", "text/javascript; charset=utf-8");
+        TYPES.put("mjs", "text/javascript; charset=utf-8");
+        TYPES.put("css", "text/css; charset=utf-8");
+        TYPES.put("json", "application/json");
+        TYPES.put("map", "application/json");
+        TYPES.put("txt", "text/plain; charset=utf-8");
+        TYPES.put("svg", "image/svg+xml");
+        TYPES.put("png", "image/png");
+        TYPES.put("jpg", "image/jpeg");
+        TYPES.put("jpeg", "image/jpeg");
+        TYPES.put("gif", "image/gif");
+        TYPES.put("webp", "image/webp");
+        TYPES.put("ico", "image/x-icon");
+        TYPES.put("woff", "font/woff");
+        TYPES.put("woff2", "font/woff2");
+        TYPES.put("ttf", "font/ttf");
+    }
+
+    private final Path root;
+    private final Path assets;
+
+    public StaticHandler(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+        this.assets = this.root.resolve("assets");
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String requestMethod = exchange.getRequestMethod();
+            if (!requestMethod.equals("GET") && !requestMethod.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            Path file = resolve(exchange.getRequestURI().getPath());
+            if (file == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            send(exchange, file);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * answer with the app's index.html, for pages that share their path
+     * with an API context.
+     */
+    public void sendIndex(HttpExchange exchange) throws IOException {
+        try {
+            send(exchange, root.resolve("index.html"));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /* the file to send for path, null if there is none */
+    private Path resolve(String path) {
+        Path file;
+        try {
+            file = root.resolve(path.startsWith("/") ? path.substring(1) : path).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!file.startsWith(root)) {
+            return null;
+        }
+        if (Files.isDirectory(file)) {
+            file = file.resolve("index.html");
+        }
+        if (Files.isRegularFile(file)) {
+            return file;
+        }
+        // see note (4)
+        Path name = file.getFileName();
+        if (name == null || name.toString().indexOf('.') < 0) {
+            Path index = root.resolve("index.html");
+            return Files.isRegularFile(index) ? index : null;
+        }
+        return null;
+    }
+
+    private void send(HttpExchange exchange, Path file) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        String name = file.getFileName().toString();
+        headers.set("Content-Type", contentType(name));
+        headers.set("Cache-Control", file.startsWith(assets) ? IMMUTABLE : REVALIDATE);
+
+        // see note (1)
+        Path body = file;
+        String encoding = null;
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        for (String[] variant : ENCODINGS) {
+            Path compressed = file.resolveSibling(name + variant[1]);
+            if (Files.isRegularFile(compressed)) {
+                headers.set("Vary", "Accept-Encoding");
+                if (encoding == null && accepts(acceptEncoding, variant[0])) {
+                    body = compressed;
+                    encoding = variant[0];
+                }
+            }
+        }
+        if (encoding != null) {
+            headers.set("Content-Encoding", encoding);
+        }
+
+        // see note (2)
+        BasicFileAttributes attributes = Files.readAttributes(body, BasicFileAttributes.class);
+        long size = attributes.size();
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(attributes.lastModifiedTime().toMillis())
+                + (encoding == null ? "" : "-" + encoding) + "\"";
+        headers.set("ETag", etag);
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        if (exchange.getRequestMethod().equals("HEAD") || size == 0) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, size);
+        try (FileChannel channel = FileChannel.open(body, StandardOpenOption.READ);
+             OutputStream outputStream = exchange.getResponseBody()) {
+            WritableByteChannel target = Channels.newChannel(outputStream);
+            long position = 0;
+            while (position < size) {
+                long sent = channel.transferTo(position, size - position, target);
+                if (sent <= 0) {
+                    // the file was truncated while it was sent
+                    break;
+                }
+                position += sent;
+            }
+        }
+    }
+
+    private static String contentType(String name) {
+        int dot = name.lastIndexOf('.');
+        String type = dot < 0 ? null : TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type == null ? "application/octet-stream" : type;
+    }
+
+    /* whether an Accept-Encoding header allows coding */
+    private static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split(";");
+            String name = parts[0].trim();
+            if (!name.equalsIgnoreCase(coding) && !name.equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
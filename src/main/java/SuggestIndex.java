@@ -0,0 +1,460 @@
+import entities.Book;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Completions of what a user has typed so far: the titles, authors,
+ * presses and categories of the catalog in a radix tree, ranked by how
+ * often their books have been borrowed.
+ *
+ * Note:
+ *      (1) a value is reachable from its start and from the start of every
+ *          word in it (every character of a CJK run), case-folded, so
+ *          "sys" completes "Database System Concepts".
+ *      (2) every node keeps the highest popularity below it. a lookup walks
+ *          down the prefix and then expands nodes best first, it stops as
+ *          soon as limit values are found instead of visiting every value
+ *          with that prefix.
+ *      (3) the popularity of a value is the number of borrows of all books
+ *          with that value. borrows only raise it, which is a cheap update
+ *          of the bounds on its paths; removing a book recomputes them.
+ *      (4) edges are labelled with char arrays and children are sorted by
+ *          their first char, there are no per-character nodes.
+ */
+public class SuggestIndex {
+
+    public enum Kind {
+        TITLE("title"),
+        AUTHOR("author"),
+        PRESS("press"),
+        CATEGORY("category");
+
+        private final String value;
+
+        Kind(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        String valueOf(Book book) {
+            switch (this) {
+                case TITLE:
+                    return book.getTitle();
+                case AUTHOR:
+                    return book.getAuthor();
+                case PRESS:
+                    return book.getPress();
+                default:
+                    return book.getCategory();
+            }
+        }
+    }
+
+    /* a completion as returned to the caller */
+    public static final class Suggestion {
+        private final Kind kind;
+        private final String value;
+        private final int books;
+        private final long borrows;
+
+        Suggestion(Kind kind, String value, int books, long borrows) {
+            this.kind = kind;
+            this.value = value;
+            this.books = books;
+            this.borrows = borrows;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        /* books with this value */
+        public int getBooks() {
+            return books;
+        }
+
+        /* borrows of those books */
+        public long getBorrows() {
+            return borrows;
+        }
+    }
+
+    /* a distinct (kind, value) */
+    private static final class Entry {
+        final Kind kind;
+        final String value;
+        final List<String> keys;
+        int books = 0;
+        long popularity = 0;
+
+        Entry(Kind kind, String value) {
+            this.kind = kind;
+            this.value = value;
+            this.keys = keysOf(value);
+        }
+    }
+
+    private static final class Node {
+        char[] label;
+        Node[] children = new Node[0];
+        Entry[] entries = new Entry[0];
+        /* highest popularity of an entry in this subtree */
+        long best = 0;
+
+        Node(char[] label) {
+            this.label = label;
+        }
+    }
+
+    private static final class BookState {
+        final Entry[] entries;
+        long borrows;
+
+        BookState(Entry[] entries, long borrows) {
+            this.entries = entries;
+            this.borrows = borrows;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /* guarded by lock */
+    private final Node root = new Node(new char[0]);
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<Integer, BookState> books = new HashMap<>();
+
+    /**
+     * add book with the number of times it has been borrowed, replacing
+     * what was added for its book_id.
+     */
+    public void put(Book book, long borrows) {
+        lock.writeLock().lock();
+        try {
+            BookState old = books.remove(book.getBookId());
+            if (old != null) {
+                detach(old);
+            }
+            Entry[] bookEntries = new Entry[Kind.values().length];
+            for (Kind kind : Kind.values()) {
+                String value = kind.valueOf(book);
+                if (value == null || value.trim().isEmpty()) {
+                    continue;
+                }
+                Entry entry = entries.get(kind.ordinal() + value);
+                if (entry == null) {
+                    entry = new Entry(kind, value);
+                    entries.put(kind.ordinal() + value, entry);
+                    for (String key : entry.keys) {
+                        insert(key, entry);
+                    }
+                }
+                entry.books++;
+                bookEntries[kind.ordinal()] = entry;
+            }
+            BookState state = new BookState(bookEntries, borrows);
+            books.put(book.getBookId(), state);
+            raise(state, borrows);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * add a new book, or update the values of a book that keeps its borrows.
+     */
+    public void put(Book book) {
+        lock.writeLock().lock();
+        try {
+            BookState old = books.get(book.getBookId());
+            put(book, old == null ? 0 : old.borrows);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int bookId) {
+        lock.writeLock().lock();
+        try {
+            BookState state = books.remove(bookId);
+            if (state != null) {
+                detach(state);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * count a borrow of bookId, see note (3).
+     */
+    public void borrowed(int bookId) {
+        lock.writeLock().lock();
+        try {
+            BookState state = books.get(bookId);
+            if (state != null) {
+                state.borrows++;
+                raise(state, 1);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param prefix what was typed so far, case does not matter
+     * @param kind only values of this kind, null for all kinds
+     * @return at most limit values that contain a word starting with prefix,
+     *         most borrowed first, see note (2)
+     */
+    public List<Suggestion> suggest(String prefix, Kind kind, int limit) {
+        String key = fold(prefix).trim();
+        List<Suggestion> suggestions = new ArrayList<>();
+        if (limit <= 0) {
+            return suggestions;
+        }
+        lock.readLock().lock();
+        try {
+            Node start = find(key);
+            if (start == null) {
+                return suggestions;
+            }
+            // nodes by best and entries by popularity, an entry first on a tie
+            PriorityQueue<Object> queue = new PriorityQueue<>(Comparator
+                    .comparingLong((Object o) -> o instanceof Node ? ((Node) o).best : ((Entry) o).popularity)
+                    .reversed()
+                    .thenComparingInt(o -> o instanceof Node ? 1 : 0));
+            queue.add(start);
+            Set<Entry> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            while (!queue.isEmpty() && suggestions.size() < limit) {
+                Object next = queue.poll();
+                if (next instanceof Entry) {
+                    Entry entry = (Entry) next;
+                    suggestions.add(new Suggestion(entry.kind, entry.value, entry.books, entry.popularity));
+                    continue;
+                }
+                Node node = (Node) next;
+                for (Entry entry : node.entries) {
+                    if ((kind == null || entry.kind == kind) && seen.add(entry)) {
+                        queue.add(entry);
+                    }
+                }
+                queue.addAll(Arrays.asList(node.children));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return suggestions;
+    }
+
+    /* guarded by the read lock: the node of the shortest key that starts with prefix */
+    private Node find(String prefix) {
+        Node node = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            Node child = child(node, prefix.charAt(i));
+            if (child == null) {
+                return null;
+            }
+            int j = 0;
+            while (j < child.label.length && i < prefix.length()) {
+                if (child.label[j] != prefix.charAt(i)) {
+                    return null;
+                }
+                i++;
+                j++;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /* guarded by the write lock */
+    private void insert(String key, Entry entry) {
+        Node node = root;
+        int i = 0;
+        while (i < key.length()) {
+            Node child = child(node, key.charAt(i));
+            if (child == null) {
+                child = new Node(key.substring(i).toCharArray());
+                addChild(node, child);
+                node = child;
+                break;
+            }
+            int j = 0;
+            while (j < child.label.length && i < key.length() && child.label[j] == key.charAt(i)) {
+                i++;
+                j++;
+            }
+            if (j < child.label.length) {
+                // split the edge where key leaves it
+                Node split = new Node(Arrays.copyOf(child.label, j));
+                child.label = Arrays.copyOfRange(child.label, j, child.label.length);
+                split.children = new Node[]{child};
+                split.best = child.best;
+                replaceChild(node, child, split);
+                child = split;
+            }
+            node = child;
+        }
+        node.entries = Arrays.copyOf(node.entries, node.entries.length + 1);
+        node.entries[node.entries.length - 1] = entry;
+    }
+
+    /* guarded by the write lock: undo put, see note (3) */
+    private void detach(BookState state) {
+        for (Entry entry : state.entries) {
+            if (entry == null) {
+                continue;
+            }
+            entry.books--;
+            entry.popularity -= state.borrows;
+            if (entry.books == 0) {
+                entries.remove(entry.kind.ordinal() + entry.value);
+            }
+            for (String key : entry.keys) {
+                detach(root, key, 0, entry);
+            }
+        }
+    }
+
+    /* remove entry from key if it has no books left, and recompute the bounds on the path */
+    private boolean detach(Node node, String key, int i, Entry entry) {
+        if (i == key.length()) {
+            if (entry.books == 0) {
+                List<Entry> kept = new ArrayList<>(Arrays.asList(node.entries));
+                kept.removeIf(e -> e == entry);
+                node.entries = kept.toArray(new Entry[0]);
+            }
+        } else {
+            Node child = child(node, key.charAt(i));
+            if (child != null && detach(child, key, i + child.label.length, entry)) {
+                removeChild(node, child);
+            }
+        }
+        long best = 0;
+        for (Entry e : node.entries) {
+            best = Math.max(best, e.popularity);
+        }
+        for (Node child : node.children) {
+            best = Math.max(best, child.best);
+        }
+        node.best = best;
+        // an empty leaf is dropped by its parent
+        return node != root && node.entries.length == 0 && node.children.length == 0;
+    }
+
+    /* guarded by the write lock */
+    private void raise(BookState state, long borrows) {
+        for (Entry entry : state.entries) {
+            if (entry == null) {
+                continue;
+            }
+            entry.popularity += borrows;
+            for (String key : entry.keys) {
+                Node node = root;
+                node.best = Math.max(node.best, entry.popularity);
+                int i = 0;
+                while (i < key.length()) {
+                    node = child(node, key.charAt(i));
+                    node.best = Math.max(node.best, entry.popularity);
+                    i += node.label.length;
+                }
+            }
+        }
+    }
+
+    private static Node child(Node node, char c) {
+        int low = 0;
+        int high = node.children.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char first = node.children[mid].label[0];
+            if (first < c) {
+                low = mid + 1;
+            } else if (first > c) {
+                high = mid - 1;
+            } else {
+                return node.children[mid];
+            }
+        }
+        return null;
+    }
+
+    private static void addChild(Node node, Node child) {
+        Node[] children = Arrays.copyOf(node.children, node.children.length + 1);
+        int i = children.length - 1;
+        while (i > 0 && children[i - 1].label[0] > child.label[0]) {
+            children[i] = children[i - 1];
+            i--;
+        }
+        children[i] = child;
+        node.children = children;
+    }
+
+    private static void replaceChild(Node node, Node old, Node child) {
+        for (int i = 0; i < node.children.length; i++) {
+            if (node.children[i] == old) {
+                node.children[i] = child;
+                return;
+            }
+        }
+    }
+
+    private static void removeChild(Node node, Node child) {
+        Node[] children = new Node[node.children.length - 1];
+        int k = 0;
+        for (Node c : node.children) {
+            if (c != child) {
+                children[k++] = c;
+            }
+        }
+        node.children = children;
+    }
+
+    /* the folded value from its start and from every word start, see note (1) */
+    private static List<String> keysOf(String value) {
+        String folded = fold(value).trim();
+        List<String> keys = new ArrayList<>();
+        keys.add(folded);
+        for (int i = 1; i < folded.length(); i++) {
+            char c = folded.charAt(i);
+            char before = folded.charAt(i - 1);
+            boolean wordStart = Character.isLetterOrDigit(c) && !Character.isLetterOrDigit(before);
+            boolean cjk = Character.UnicodeScript.of(c) == Character.UnicodeScript.HAN && !Character.isSurrogate(c);
+            if ((wordStart || cjk) && !keys.contains(folded.substring(i))) {
+                keys.add(folded.substring(i));
+            }
+        }
+        return keys;
+    }
+
+    private static String fold(String text) {
+        return text.toLowerCase(Locale.ROOT);
+    }
+}
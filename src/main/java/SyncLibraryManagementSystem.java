@@ -0,0 +1,117 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import queries.BookQueryConditions;
+import queries.BorrowHistories;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Blocking view of an {@link AsyncLibraryManagementSystem}: every call
+ * waits for its future. a rejected or failed call is returned as a
+ * failed ApiResult, like any other failure of the synchronous API.
+ */
+public class SyncLibraryManagementSystem implements LibraryManagementSystem {
+
+    private final AsyncLibraryManagementSystem library;
+
+    public SyncLibraryManagementSystem(AsyncLibraryManagementSystem library) {
+        this.library = library;
+    }
+
+    @Override
+    public ApiResult storeBook(Book book) {
+        return await(library.storeBook(book));
+    }
+
+    @Override
+    public ApiResult incBookStock(int bookId, int deltaStock) {
+        return await(library.incBookStock(bookId, deltaStock));
+    }
+
+    @Override
+    public ApiResult storeBook(List<Book> books) {
+        return await(library.storeBook(books));
+    }
+
+    @Override
+    public ApiResult importBooks(List<Book> books, int chunkSize) {
+        return await(library.importBooks(books, chunkSize));
+    }
+
+    @Override
+    public ApiResult removeBook(int bookId) {
+        return await(library.removeBook(bookId));
+    }
+
+    @Override
+    public ApiResult modifyBookInfo(Book book) {
+        return await(library.modifyBookInfo(book));
+    }
+
+    @Override
+    public ApiResult queryBook(BookQueryConditions conditions) {
+        return await(library.queryBook(conditions));
+    }
+
+    @Override
+    public ApiResult borrowBook(Borrow borrow) {
+        return await(library.borrowBook(borrow));
+    }
+
+    @Override
+    public ApiResult returnBook(Borrow borrow) {
+        return await(library.returnBook(borrow));
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId) {
+        return await(library.showBorrowHistory(cardId));
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId, BorrowHistories.Cursor after, int limit) {
+        return await(library.showBorrowHistory(cardId, after, limit));
+    }
+
+    @Override
+    public ApiResult registerCard(Card card) {
+        return await(library.registerCard(card));
+    }
+
+    @Override
+    public ApiResult modifyCardInfo(Card card) {
+        return await(library.modifyCardInfo(card));
+    }
+
+    @Override
+    public ApiResult removeCard(int cardId) {
+        return await(library.removeCard(cardId));
+    }
+
+    @Override
+    public ApiResult showCards() {
+        return await(library.showCards());
+    }
+
+    @Override
+    public ApiResult resetDatabase() {
+        return await(library.resetDatabase());
+    }
+
+    private static ApiResult await(CompletableFuture<ApiResult> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof RejectedExecutionException) {
+                return new ApiResult(false, "服务繁忙，请稍后重试");
+            }
+            return new ApiResult(false, cause.getMessage());
+        }
+    }
+}
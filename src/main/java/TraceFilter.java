@@ -0,0 +1,63 @@
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.*;
+
+import utils.SqlTracer;
+
+/**
+ * Gives every exchange a request id and traces the SQL it runs, only
+ * installed when tracing is enabled.
+ *
+ * Note:
+ *      (1) the id is taken from the X-Request-Id request header when it
+ *          looks sane, otherwise generated, and echoed in the response.
+ *      (2) when the request ran a slow statement, a summary of all its
+ *          statements is logged so the slow one can be put in context.
+ */
+public class TraceFilter extends Filter {
+
+    private static final Logger log = Logger.getLogger(TraceFilter.class.getName());
+
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9._-]{1,64}");
+    private static final String PREFIX = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+    private static final AtomicLong sequence = new AtomicLong();
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        String requestId = exchange.getRequestHeaders().getFirst("X-Request-Id");
+        if (requestId == null || !VALID_ID.matcher(requestId).matches()) {
+            requestId = PREFIX + "-" + Long.toString(sequence.incrementAndGet(), 36);
+        }
+        exchange.getResponseHeaders().set("X-Request-Id", requestId);
+        SqlTracer.Request request = SqlTracer.begin(requestId);
+        long start = System.nanoTime();
+        HttpExchange tracked = AsyncExchange.track(exchange);
+        try {
+            chain.doFilter(tracked);
+        } finally {
+            SqlTracer.end();
+            // statements of an asynchronous exchange run until it is answered
+            String id = requestId;
+            AsyncExchange.onComplete(tracked, () -> summarize(tracked, id, request, start));
+        }
+    }
+
+    private static void summarize(HttpExchange exchange, String requestId, SqlTracer.Request request, long start) {
+        Level level = request.getSlowStatements() > 0 ? Level.INFO : Level.FINE;
+        if (log.isLoggable(level)) {
+            log.log(level, String.format("request=%s %s %s: %d statement(s), %d slow, %.3fms in SQL, %.3fms total",
+                    requestId, exchange.getRequestMethod(), exchange.getRequestURI(), request.getStatements(),
+                    request.getSlowStatements(), request.getSqlNanos() / 1e6, (System.nanoTime() - start) / 1e6));
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Tag requests with an id and trace their SQL";
+    }
+}
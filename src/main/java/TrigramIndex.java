@@ -0,0 +1,380 @@
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Trigram index over one text field of every book, finding the books whose
+ * value is similar to a misspelled condition ("Fitzgerld").
+ *
+ * Note:
+ *      (1) text is case-folded and split into words at every character that
+ *          is not a letter or digit. a word is padded with two spaces in
+ *          front and one behind, its trigrams are the 3-char windows of
+ *          that, "  f", " fi", "fit", ... "ld ".
+ *      (2) the similarity of a value to a query is the share of the query's
+ *          distinct trigrams that the value has too, so a query matches a
+ *          misspelled word of a longer title. books are ranked by it, then
+ *          shorter values first, then by book_id.
+ *      (3) everything is held in primitive arrays: a trigram is packed into
+ *          a long and mapped to a slot by open addressing, every slot has a
+ *          sorted int array of book ids, every book a sorted int array of
+ *          its slots. writes update them in place.
+ *      (4) a book reaching threshold t on n query trigrams has at least
+ *          ceil(t * n) of them, so it is in one of the n - ceil(t * n) + 1
+ *          shortest posting lists. those are counted into a per-thread
+ *          array by book id, the longer lists only add to books already
+ *          counted.
+ *      (5) books are ranked by shared trigrams first, so once the counts
+ *          are known only the books with the most shared trigrams that
+ *          make up limit are sorted, not every match of a generic query.
+ */
+public class TrigramIndex {
+
+    /* books similar to a query, most similar first */
+    public static final class Matches {
+        private final int[] ids;
+        private final double[] scores;
+
+        Matches(int[] ids, double[] scores) {
+            this.ids = ids;
+            this.scores = scores;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        public int getBookId(int i) {
+            return ids[i];
+        }
+
+        /* similarity in (0, 1], see note (2) */
+        public double getScore(int i) {
+            return scores[i];
+        }
+    }
+
+    private static final int[] EMPTY = new int[0];
+    /* shared trigrams by book id while a query is counted, all 0 in between; one per thread */
+    private static final ThreadLocal<int[]> COUNTS = ThreadLocal.withInitial(() -> EMPTY);
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /* guarded by lock: open addressing trigram -> slot, 0 marks a free key */
+    private long[] keys = new long[1024];
+    private int[] slotOf = new int[1024];
+    private int slots = 0;
+    /* guarded by lock: book ids by slot, ascending in the first sizes[slot] entries */
+    private int[][] postings = new int[256][];
+    private int[] sizes = new int[256];
+    /* guarded by lock: distinct slots by book id, ascending, null if not indexed */
+    private int[][] docs = new int[1024][];
+    /* guarded by lock: docs[id].length, dense for ranking */
+    private int[] lengths = new int[1024];
+    private int books = 0;
+
+    /**
+     * index value as the text of bookId, replacing what was indexed for it.
+     */
+    public void put(int bookId, String value) {
+        long[] trigrams = trigrams(value);
+        lock.writeLock().lock();
+        try {
+            unindex(bookId);
+            int[] docSlots = new int[trigrams.length];
+            for (int i = 0; i < trigrams.length; i++) {
+                docSlots[i] = slot(trigrams[i]);
+                add(docSlots[i], bookId);
+            }
+            Arrays.sort(docSlots);
+            if (bookId >= docs.length) {
+                docs = Arrays.copyOf(docs, Math.max(docs.length * 2, bookId + 1));
+                lengths = Arrays.copyOf(lengths, docs.length);
+            }
+            docs[bookId] = docSlots;
+            lengths[bookId] = docSlots.length;
+            books++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int bookId) {
+        lock.writeLock().lock();
+        try {
+            unindex(bookId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return books;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param query text as typed, possibly misspelled
+     * @param threshold minimal similarity, see note (2)
+     * @param limit most books returned
+     * @return the books with a value at least threshold similar to query, most
+     *         similar first; null if query has no trigrams
+     */
+    public Matches similar(String query, double threshold, int limit) {
+        long[] trigrams = trigrams(query);
+        if (trigrams.length == 0) {
+            return null;
+        }
+        int n = trigrams.length;
+        int required = Math.max(1, (int) Math.ceil(threshold * n - 1e-9));
+        lock.readLock().lock();
+        try {
+            // posting lists of the query's trigrams, shortest first; trigrams no book has are left out
+            int[] querySlots = new int[n];
+            int known = 0;
+            for (long trigram : trigrams) {
+                int slot = find(trigram);
+                if (slot >= 0 && sizes[slot] > 0) {
+                    querySlots[known++] = slot;
+                }
+            }
+            if (known < required) {
+                return new Matches(EMPTY, new double[0]);
+            }
+            int[] bySize = sortBySize(Arrays.copyOf(querySlots, known));
+            return count(bySize, required, n, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * guarded by the read lock: at most limit books with at least required of
+     * the posting lists in bySize, see note (4)
+     */
+    private Matches count(int[] bySize, int required, int n, int limit) {
+        int known = bySize.length;
+        int[] counts = COUNTS.get();
+        if (counts.length < docs.length) {
+            counts = new int[docs.length];
+            COUNTS.set(counts);
+        }
+        int[] touched = new int[64];
+        int candidates = 0;
+        try {
+            int k = 0;
+            for (; k < known - required + 1; k++) {
+                int slot = bySize[k];
+                int[] ids = postings[slot];
+                for (int j = 0; j < sizes[slot]; j++) {
+                    int id = ids[j];
+                    if (counts[id]++ == 0) {
+                        if (candidates == touched.length) {
+                            touched = Arrays.copyOf(touched, candidates * 2);
+                        }
+                        touched[candidates++] = id;
+                    }
+                }
+            }
+            // the longer lists are probed per candidate when that reads less of them
+            for (; k < known; k++) {
+                int slot = bySize[k];
+                int[] ids = postings[slot];
+                int size = sizes[slot];
+                if ((long) candidates * (32 - Integer.numberOfLeadingZeros(size)) < size) {
+                    for (int c = 0; c < candidates; c++) {
+                        if (Arrays.binarySearch(ids, 0, size, touched[c]) >= 0) {
+                            counts[touched[c]]++;
+                        }
+                    }
+                } else {
+                    for (int j = 0; j < size; j++) {
+                        if (counts[ids[j]] > 0) {
+                            counts[ids[j]]++;
+                        }
+                    }
+                }
+            }
+            // see note (5)
+            int[] histogram = new int[known + 1];
+            for (int c = 0; c < candidates; c++) {
+                histogram[counts[touched[c]]]++;
+            }
+            int cutoff = known;
+            int above = histogram[known];
+            while (cutoff > required && above < limit) {
+                above += histogram[--cutoff];
+            }
+            // (fewer shared trigrams, longer value, book_id) packed for a primitive sort
+            long[] ranked = new long[above];
+            int matches = 0;
+            for (int c = 0; c < candidates; c++) {
+                int id = touched[c];
+                int shared = counts[id];
+                if (shared >= cutoff) {
+                    long length = Math.min(lengths[id], 0xFFFF);
+                    ranked[matches++] = (long) (0x7FFF - shared) << 48 | length << 32 | id;
+                }
+            }
+            Arrays.sort(ranked, 0, matches);
+            int size = Math.min(matches, Math.max(limit, 0));
+            int[] ids = new int[size];
+            double[] scores = new double[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = (int) ranked[i];
+                scores[i] = (double) (0x7FFF - (int) (ranked[i] >>> 48)) / n;
+            }
+            return new Matches(ids, scores);
+        } finally {
+            for (int c = 0; c < candidates; c++) {
+                counts[touched[c]] = 0;
+            }
+        }
+    }
+
+    /* guarded by the read lock */
+    private int[] sortBySize(int[] querySlots) {
+        long[] keyed = new long[querySlots.length];
+        for (int i = 0; i < querySlots.length; i++) {
+            keyed[i] = (long) sizes[querySlots[i]] << 32 | querySlots[i];
+        }
+        Arrays.sort(keyed);
+        int[] sorted = new int[querySlots.length];
+        for (int i = 0; i < querySlots.length; i++) {
+            sorted[i] = (int) keyed[i];
+        }
+        return sorted;
+    }
+
+    /* guarded by the write lock */
+    private void unindex(int bookId) {
+        if (bookId >= docs.length || docs[bookId] == null) {
+            return;
+        }
+        for (int slot : docs[bookId]) {
+            int i = Arrays.binarySearch(postings[slot], 0, sizes[slot], bookId);
+            if (i >= 0) {
+                System.arraycopy(postings[slot], i + 1, postings[slot], i, sizes[slot] - i - 1);
+                sizes[slot]--;
+            }
+        }
+        docs[bookId] = null;
+        lengths[bookId] = 0;
+        books--;
+    }
+
+    /* guarded by the write lock: books are mostly added in ascending id, which appends */
+    private void add(int slot, int bookId) {
+        int[] ids = postings[slot];
+        int size = sizes[slot];
+        int i = size == 0 || ids[size - 1] < bookId ? -size - 1 : Arrays.binarySearch(ids, 0, size, bookId);
+        if (i >= 0) {
+            return;
+        }
+        i = -i - 1;
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(size * 2, 2));
+            postings[slot] = ids;
+        }
+        System.arraycopy(ids, i, ids, i + 1, size - i);
+        ids[i] = bookId;
+        sizes[slot] = size + 1;
+    }
+
+    /* guarded by the read lock: the slot of trigram, -1 if it was never indexed */
+    private int find(long trigram) {
+        int mask = keys.length - 1;
+        for (int i = hash(trigram) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == trigram) {
+                return slotOf[i];
+            }
+        }
+        return -1;
+    }
+
+    /* guarded by the write lock: the slot of trigram, a new one if it was never indexed */
+    private int slot(long trigram) {
+        int mask = keys.length - 1;
+        int i = hash(trigram) & mask;
+        for (; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == trigram) {
+                return slotOf[i];
+            }
+        }
+        keys[i] = trigram;
+        slotOf[i] = slots;
+        if (slots == postings.length) {
+            postings = Arrays.copyOf(postings, slots * 2);
+            sizes = Arrays.copyOf(sizes, slots * 2);
+        }
+        postings[slots] = EMPTY;
+        slots++;
+        if (slots * 2 > keys.length) {
+            rehash();
+        }
+        return slots - 1;
+    }
+
+    /* guarded by the write lock */
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldSlots = slotOf;
+        keys = new long[oldKeys.length * 2];
+        slotOf = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int k = 0; k < oldKeys.length; k++) {
+            if (oldKeys[k] != 0) {
+                int i = hash(oldKeys[k]) & mask;
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[k];
+                slotOf[i] = oldSlots[k];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    /**
+     * distinct trigrams of text, ascending, each packed into a long as three
+     * 16 bit chars, see note (1). none is 0, the padding is not.
+     */
+    static long[] trigrams(String text) {
+        if (text == null) {
+            return new long[0];
+        }
+        String folded = text.toLowerCase(Locale.ROOT);
+        long[] trigrams = new long[folded.length() * 3 + 3];
+        int count = 0;
+        int i = 0;
+        while (i < folded.length()) {
+            if (!Character.isLetterOrDigit(folded.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < folded.length() && Character.isLetterOrDigit(folded.charAt(i))) {
+                i++;
+            }
+            String padded = "  " + folded.substring(start, i) + " ";
+            for (int k = 0; k + 3 <= padded.length(); k++) {
+                trigrams[count++] = (long) padded.charAt(k) << 32 | (long) padded.charAt(k + 1) << 16 | padded.charAt(k + 2);
+            }
+        }
+        Arrays.sort(trigrams, 0, count);
+        int size = 0;
+        for (int k = 0; k < count; k++) {
+            if (size == 0 || trigrams[size - 1] != trigrams[k]) {
+                trigrams[size++] = trigrams[k];
+            }
+        }
+        return Arrays.copyOf(trigrams, size);
+    }
+}
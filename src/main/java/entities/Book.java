@@ -22,7 +22,10 @@ public final class Book {
         PUBLISH_YEAR("publish_year", Comparator.comparingInt(Book::getPublishYear)),
         AUTHOR("author", Comparator.comparing(Book::getAuthor)),
         PRICE("price", Comparator.comparingDouble(Book::getPrice)),
-        STOCK("stock", Comparator.comparingInt(Book::getStock));
+        STOCK("stock", Comparator.comparingInt(Book::getStock)),
+        /* relevance to the title, press and author conditions, not a column:
+           books compare equal without a search index */
+        RELEVANCE("relevance", (lhs, rhs) -> 0);
 
         private final String value;
         private final Comparator<Book> comparator;
@@ -40,8 +43,9 @@ public final class Book {
             this.comparator = comparator;
         }
 
+        /* a random column of the book table */
         public static SortColumn random() {
-            return values()[new Random().nextInt(values().length)];
+            return values()[new Random().nextInt(RELEVANCE.ordinal())];
         }
     }
 
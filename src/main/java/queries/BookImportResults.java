@@ -0,0 +1,63 @@
+package queries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BookImportResults {
+
+    public enum Outcome {
+        INSERTED,
+        /* same (category, press, author, title, publish_year) already exists */
+        DUPLICATE,
+        /* some attribute is missing or out of range */
+        INVALID
+    }
+
+    private int inserted;
+    private int duplicates;
+    private int invalid;
+    /* outcome of each book, in the same order as the imported list */
+    private List<Outcome> outcomes;
+
+    public BookImportResults() {
+        this.outcomes = new ArrayList<>();
+    }
+
+    public void add(Outcome outcome) {
+        outcomes.add(outcome);
+        switch (outcome) {
+            case INSERTED:
+                inserted++;
+                break;
+            case DUPLICATE:
+                duplicates++;
+                break;
+            default:
+                invalid++;
+        }
+    }
+
+    public int getInserted() {
+        return inserted;
+    }
+
+    public int getDuplicates() {
+        return duplicates;
+    }
+
+    public int getInvalid() {
+        return invalid;
+    }
+
+    public List<Outcome> getOutcomes() {
+        return outcomes;
+    }
+
+    @Override
+    public String toString() {
+        return "BookImportResults {" + "inserted=" + inserted +
+                ", duplicates=" + duplicates +
+                ", invalid=" + invalid +
+                '}';
+    }
+}
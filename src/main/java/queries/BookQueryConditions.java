@@ -2,6 +2,8 @@ package queries;
 
 import entities.Book;
 
+import java.util.List;
+
 /**
  * Note: (1) all non-null attributes should be used as query
  *       conditions and connected by "AND" operations.
@@ -10,6 +12,16 @@ import entities.Book;
  *       eg: minA=x, maxA=y ==> x <= A <= y
  *           minA=null, maxA=y ==> A <= y
  *           minA=x, maxA=null ==> A >= x
+ *       (3) if limit is set, at most limit books are returned and the
+ *       next page is fetched by passing the returned nextCursor as after.
+ *       (4) bookIds is set by the search index to the books that may match
+ *       the fuzzy conditions, the other conditions still apply.
+ *       (5) if facets is set, the results also hold the counts of all
+ *       matching books by category, press, publish_year and the price
+ *       ranges between priceBuckets, see {@link BookQueryResults.Facets}.
+ *       (6) if fuzzy is set, a search index matches title and author by
+ *       trigram similarity instead, so misspelled conditions still find
+ *       books. without a search index they are matched as substrings.
  * */
 public class BookQueryConditions {
     /* Note: use exact matching */
@@ -28,6 +40,18 @@ public class BookQueryConditions {
     private Book.SortColumn sortBy;
     /* default sort by PK */
     private SortOrder sortOrder;
+    /* page size, null means no limit */
+    private Integer limit;
+    /* return books after this position, must match sortBy */
+    private BookQueryResults.Cursor after;
+    /* only books with these ids, null means any book */
+    private List<Integer> bookIds;
+    /* also count the matching books by facet */
+    private boolean facets;
+    /* bounds of the price ranges counted, null means the default ones */
+    private List<Double> priceBuckets;
+    /* match title and author by similarity */
+    private boolean fuzzy;
 
     public BookQueryConditions() {
         this.category = null;
@@ -40,6 +64,12 @@ public class BookQueryConditions {
         this.maxPrice = null;
         sortBy = Book.SortColumn.BOOK_ID;
         sortOrder = SortOrder.ASC;
+        this.limit = null;
+        this.after = null;
+        this.bookIds = null;
+        this.facets = false;
+        this.priceBuckets = null;
+        this.fuzzy = false;
     }
 
     public String getCategory() {
@@ -121,4 +151,52 @@ public class BookQueryConditions {
     public void setSortOrder(SortOrder sortOrder) {
         this.sortOrder = sortOrder;
     }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+
+    public BookQueryResults.Cursor getAfter() {
+        return after;
+    }
+
+    public void setAfter(BookQueryResults.Cursor after) {
+        this.after = after;
+    }
+
+    public List<Integer> getBookIds() {
+        return bookIds;
+    }
+
+    public void setBookIds(List<Integer> bookIds) {
+        this.bookIds = bookIds;
+    }
+
+    public boolean isFacets() {
+        return facets;
+    }
+
+    public void setFacets(boolean facets) {
+        this.facets = facets;
+    }
+
+    public List<Double> getPriceBuckets() {
+        return priceBuckets;
+    }
+
+    public void setPriceBuckets(List<Double> priceBuckets) {
+        this.priceBuckets = priceBuckets;
+    }
+
+    public boolean isFuzzy() {
+        return fuzzy;
+    }
+
+    public void setFuzzy(boolean fuzzy) {
+        this.fuzzy = fuzzy;
+    }
 }
@@ -2,18 +2,263 @@ package queries;
 
 import entities.Book;
 
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class BookQueryResults {
 
+    /**
+     * position of a book in (sort column, book_id) order, used to fetch
+     * the page that follows it without scanning the skipped rows.
+     */
+    public static class Cursor {
+        private final Book.SortColumn sortBy;
+        /* value of the sort column: Integer, Double or String */
+        private final Object sortValue;
+        private final int bookId;
+
+        public Cursor(Book.SortColumn sortBy, Object sortValue, int bookId) {
+            this.sortBy = sortBy;
+            this.sortValue = sortValue;
+            this.bookId = bookId;
+        }
+
+        public static Cursor of(Book.SortColumn sortBy, Book book) {
+            Object value;
+            switch (sortBy) {
+                case CATEGORY:
+                    value = book.getCategory();
+                    break;
+                case TITLE:
+                    value = book.getTitle();
+                    break;
+                case PRESS:
+                    value = book.getPress();
+                    break;
+                case AUTHOR:
+                    value = book.getAuthor();
+                    break;
+                case PUBLISH_YEAR:
+                    value = book.getPublishYear();
+                    break;
+                case PRICE:
+                    value = book.getPrice();
+                    break;
+                case STOCK:
+                    value = book.getStock();
+                    break;
+                case RELEVANCE:
+                    // every book is equally relevant without a search index
+                    value = 0.0;
+                    break;
+                default:
+                    value = book.getBookId();
+            }
+            return new Cursor(sortBy, value, book.getBookId());
+        }
+
+        public Book.SortColumn getSortBy() {
+            return sortBy;
+        }
+
+        /* value to bind against the sort column in SQL */
+        public Object getSqlValue() {
+            if (sortValue instanceof Double) {
+                return BigDecimal.valueOf((Double) sortValue);
+            }
+            return sortValue;
+        }
+
+        public int getBookId() {
+            return bookId;
+        }
+
+        /* url-safe token: base64url("<column>\n<book_id>\n<value>") */
+        @Override
+        public String toString() {
+            String raw = sortBy.name() + "\n" + bookId + "\n" + sortValue;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public static Cursor parse(String token) throws IllegalArgumentException {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            String[] parts = raw.split("\n", 3);
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid book query cursor.");
+            }
+            Book.SortColumn sortBy = Book.SortColumn.valueOf(parts[0]);
+            int bookId = Integer.parseInt(parts[1]);
+            Object value;
+            switch (sortBy) {
+                case PUBLISH_YEAR:
+                case STOCK:
+                case BOOK_ID:
+                    value = Integer.valueOf(parts[2]);
+                    break;
+                case PRICE:
+                case RELEVANCE:
+                    value = Double.valueOf(parts[2]);
+                    break;
+                default:
+                    value = parts[2];
+            }
+            return new Cursor(sortBy, value, bookId);
+        }
+    }
+
+    /**
+     * numbers of books that match the conditions of a query, by category,
+     * press, publish_year and price range. they count every matching book,
+     * not only the page returned with them.
+     */
+    public static class Facets {
+        /* upper bounds of the price ranges when a query sets none */
+        public static final List<Double> DEFAULT_PRICE_BUCKETS =
+                Collections.unmodifiableList(Arrays.asList(20.0, 50.0, 100.0, 200.0));
+
+        /* books in [min, max), a null bound is open */
+        public static class PriceBucket {
+            private final Double min;
+            private final Double max;
+            private final int count;
+
+            public PriceBucket(Double min, Double max, int count) {
+                this.min = min;
+                this.max = max;
+                this.count = count;
+            }
+
+            public Double getMin() {
+                return min;
+            }
+
+            public Double getMax() {
+                return max;
+            }
+
+            public int getCount() {
+                return count;
+            }
+        }
+
+        /* counts are kept in int[1] cells so that adding a book allocates nothing for a known value */
+        private final Map<String, int[]> categories = new HashMap<>();
+        private final Map<String, int[]> presses = new HashMap<>();
+        private final Map<Integer, int[]> publishYears = new HashMap<>();
+        private final double[] priceBounds;
+        private final int[] priceCounts;
+
+        /**
+         * @param priceBuckets bounds between the price ranges, n bounds make
+         *                     n + 1 ranges. null means DEFAULT_PRICE_BUCKETS.
+         */
+        public Facets(List<Double> priceBuckets) {
+            priceBounds = (priceBuckets == null ? DEFAULT_PRICE_BUCKETS : priceBuckets).stream()
+                    .mapToDouble(Double::doubleValue).sorted().distinct().toArray();
+            priceCounts = new int[priceBounds.length + 1];
+        }
+
+        public void add(String category, String press, int publishYear, double price) {
+            categories.computeIfAbsent(category, k -> new int[1])[0]++;
+            presses.computeIfAbsent(press, k -> new int[1])[0]++;
+            publishYears.computeIfAbsent(publishYear, k -> new int[1])[0]++;
+            // a price equal to a bound belongs to the range above it
+            int i = Arrays.binarySearch(priceBounds, price);
+            priceCounts[i >= 0 ? i + 1 : -i - 1]++;
+        }
+
+        public void add(Book book) {
+            add(book.getCategory(), book.getPress(), book.getPublishYear(), book.getPrice());
+        }
+
+        /* a count of a GROUP BY category, for facets counted by the database */
+        public void addCategory(String category, int count) {
+            categories.computeIfAbsent(category, k -> new int[1])[0] += count;
+        }
+
+        public void addPress(String press, int count) {
+            presses.computeIfAbsent(press, k -> new int[1])[0] += count;
+        }
+
+        public void addPublishYear(int publishYear, int count) {
+            publishYears.computeIfAbsent(publishYear, k -> new int[1])[0] += count;
+        }
+
+        /* bucket i holds prices from bound i - 1 (inclusive) to bound i, see getPriceBounds() */
+        public void addPrice(int bucket, int count) {
+            priceCounts[bucket] += count;
+        }
+
+        /* the bounds between the price ranges, ascending */
+        public double[] getPriceBounds() {
+            return priceBounds.clone();
+        }
+
+        /* most books first */
+        public Map<String, Integer> getCategories() {
+            return byCount(categories);
+        }
+
+        /* most books first */
+        public Map<String, Integer> getPresses() {
+            return byCount(presses);
+        }
+
+        /* in ascending year */
+        public Map<Integer, Integer> getPublishYears() {
+            Map<Integer, Integer> years = new TreeMap<>();
+            publishYears.forEach((year, count) -> years.put(year, count[0]));
+            return years;
+        }
+
+        /* every range in ascending price, including empty ones */
+        public List<PriceBucket> getPrices() {
+            List<PriceBucket> buckets = new ArrayList<>(priceCounts.length);
+            for (int i = 0; i < priceCounts.length; i++) {
+                buckets.add(new PriceBucket(i == 0 ? null : priceBounds[i - 1],
+                        i == priceBounds.length ? null : priceBounds[i], priceCounts[i]));
+            }
+            return buckets;
+        }
+
+        private static Map<String, Integer> byCount(Map<String, int[]> counts) {
+            List<Map.Entry<String, int[]>> entries = new ArrayList<>(counts.entrySet());
+            entries.sort((l, r) -> l.getValue()[0] != r.getValue()[0]
+                    ? Integer.compare(r.getValue()[0], l.getValue()[0]) : l.getKey().compareTo(r.getKey()));
+            Map<String, Integer> sorted = new LinkedHashMap<>();
+            for (Map.Entry<String, int[]> entry : entries) {
+                sorted.put(entry.getKey(), entry.getValue()[0]);
+            }
+            return sorted;
+        }
+    }
+
     private int count;   /* number of results, equal to results.size() */
     private List<Book> results;
+    /* cursor of the next page, null if there are no more results */
+    private Cursor nextCursor;
+    /* counts over all matching books, null unless the query asked for them */
+    private Facets facets;
 
     public BookQueryResults(List<Book> results) {
         this.count = results.size();
         this.results = results;
     }
 
+    public BookQueryResults(List<Book> results, Cursor nextCursor) {
+        this(results);
+        this.nextCursor = nextCursor;
+    }
+
     public int getCount() {
         return count;
     }
@@ -29,4 +274,20 @@ public class BookQueryResults {
     public void setResults(List<Book> results) {
         this.results = results;
     }
+
+    public Cursor getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(Cursor nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public Facets getFacets() {
+        return facets;
+    }
+
+    public void setFacets(Facets facets) {
+        this.facets = facets;
+    }
 }
@@ -146,14 +146,57 @@ public class BorrowHistories {
         }
     }
 
+    /**
+     * position of a record in (borrow_time DESC, book_id ASC) order,
+     * used to fetch the page that follows it.
+     */
+    public static class Cursor {
+        private final long borrowTime;
+        private final int bookId;
+
+        public Cursor(long borrowTime, int bookId) {
+            this.borrowTime = borrowTime;
+            this.bookId = bookId;
+        }
+
+        public long getBorrowTime() {
+            return borrowTime;
+        }
+
+        public int getBookId() {
+            return bookId;
+        }
+
+        /* format: "<borrow_time>_<book_id>" */
+        @Override
+        public String toString() {
+            return borrowTime + "_" + bookId;
+        }
+
+        public static Cursor parse(String str) throws IllegalArgumentException {
+            String[] parts = str.split("_");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid borrow history cursor.");
+            }
+            return new Cursor(Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+        }
+    }
+
     private int count;
     private List<Item> items;
+    /* cursor of the next page, null if there are no more records */
+    private Cursor nextCursor;
 
     public BorrowHistories(List<Item> items) {
         this.count = items.size();
         this.items = items;
     }
 
+    public BorrowHistories(List<Item> items, Cursor nextCursor) {
+        this(items);
+        this.nextCursor = nextCursor;
+    }
+
     public int getCount() {
         return count;
     }
@@ -169,4 +212,12 @@ public class BorrowHistories {
     public void setItems(List<Item> items) {
         this.items = items;
     }
+
+    public Cursor getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(Cursor nextCursor) {
+        this.nextCursor = nextCursor;
+    }
 }
@@ -0,0 +1,67 @@
+package utils;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings of the borrow & return group commit, read from the
+ * "borrowBatch" section of application.yaml. every key is optional, the
+ * batching is off by default.
+ */
+public final class BatchConfig {
+
+    private final boolean enabled;
+    /* how long the first request of a batch waits for others, 0 only takes what is already queued */
+    private final long windowMicros;
+    /* requests committed together at most */
+    private final int maxBatch;
+
+    @SuppressWarnings("unchecked")
+    public BatchConfig() throws FileNotFoundException, NullPointerException {
+        URL res = BatchConfig.class.getClassLoader().getResource("application.yaml");
+        if (res == null) {
+            throw new NullPointerException();
+        }
+        BufferedReader br = new BufferedReader(new FileReader(res.getPath()));
+        Yaml yaml = new Yaml();
+        Map<String, Object> objectMap = yaml.load(br);
+        Map<String, Object> batchMap = (Map<String, Object>)objectMap.getOrDefault("borrowBatch", new HashMap<>());
+        enabled = Boolean.parseBoolean(batchMap.getOrDefault("enabled", "false").toString());
+        Object window = batchMap.get("windowMicros");
+        windowMicros = window == null ? 500L : Long.parseLong(window.toString());
+        Object batch = batchMap.get("maxBatch");
+        maxBatch = batch == null ? 64 : Integer.parseInt(batch.toString());
+    }
+
+    public BatchConfig(boolean enabled, long windowMicros, int maxBatch) {
+        this.enabled = enabled;
+        this.windowMicros = windowMicros;
+        this.maxBatch = maxBatch;
+    }
+
+    @Override
+    public String toString() {
+        return "utils.BatchConfig: {" + "enabled=" + enabled +
+                ", windowMicros=" + windowMicros +
+                ", maxBatch=" + maxBatch +
+                '}';
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getWindowMicros() {
+        return windowMicros;
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+}
@@ -0,0 +1,58 @@
+package utils;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings of the book query cache, read from the "cache" section of
+ * application.yaml. every key is optional.
+ */
+public final class CacheConfig {
+
+    /* cached queries kept at most, 0 disables the cache */
+    private final int maxEntries;
+    /* a cached query is dropped this long after it was loaded */
+    private final long ttlMillis;
+
+    @SuppressWarnings("unchecked")
+    public CacheConfig() throws FileNotFoundException, NullPointerException {
+        URL res = CacheConfig.class.getClassLoader().getResource("application.yaml");
+        if (res == null) {
+            throw new NullPointerException();
+        }
+        BufferedReader br = new BufferedReader(new FileReader(res.getPath()));
+        Yaml yaml = new Yaml();
+        Map<String, Object> objectMap = yaml.load(br);
+        Map<String, Object> cacheMap = (Map<String, Object>)objectMap.getOrDefault("cache", new HashMap<>());
+        Object entries = cacheMap.get("maxEntries");
+        Object ttl = cacheMap.get("ttlMillis");
+        maxEntries = entries == null ? 1024 : Integer.parseInt(entries.toString());
+        ttlMillis = ttl == null ? 30000L : Long.parseLong(ttl.toString());
+    }
+
+    public CacheConfig(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "utils.CacheConfig: {" + "maxEntries=" + maxEntries +
+                ", ttlMillis=" + ttlMillis +
+                '}';
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+}
@@ -6,6 +6,7 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.net.URL;
+import java.util.HashMap;
 import java.util.Map;
 
 public final class ConnectConfig {
@@ -16,7 +17,17 @@ public final class ConnectConfig {
     private final String password;
     private final String db;
     private final DatabaseType type;
+    /* connection pool settings, see "pool" section of application.yaml */
+    private final int poolMinSize;
+    private final int poolMaxSize;
+    private final long acquireTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final long idleTimeoutMillis;
+    private final long leakDetectionMillis;
+    /* prepared statements cached per connection, 0 disables the cache */
+    private final int statementCacheSize;
 
+    @SuppressWarnings("unchecked")
     public ConnectConfig() throws FileNotFoundException, NullPointerException, ClassNotFoundException {
         URL res = ConnectConfig.class.getClassLoader().getResource("application.yaml");
         if (res == null) {
@@ -32,10 +43,43 @@ public final class ConnectConfig {
         password = (String)objectMap.getOrDefault("password", "");
         db = (String)objectMap.getOrDefault("db", "library");
         type = DatabaseType.instance((String)objectMap.getOrDefault("type", "mysql"));
+        Map<String, Object> poolMap = (Map<String, Object>)objectMap.getOrDefault("pool", new HashMap<>());
+        poolMinSize = intValue(poolMap, "minSize", 2);
+        poolMaxSize = Math.max(poolMinSize, intValue(poolMap, "maxSize", 16));
+        acquireTimeoutMillis = longValue(poolMap, "acquireTimeoutMillis", 30000L);
+        validationIntervalMillis = longValue(poolMap, "validationIntervalMillis", 500L);
+        idleTimeoutMillis = longValue(poolMap, "idleTimeoutMillis", 600000L);
+        leakDetectionMillis = longValue(poolMap, "leakDetectionMillis", 0L);
+        statementCacheSize = intValue(poolMap, "statementCacheSize", 128);
         /* load database connect driver */
         Class.forName(type.getDriverName());
     }
 
+    /**
+     * config of a private in-memory H2 database with default pool settings,
+     * for tests and benchmarks that must not depend on application.yaml.
+     */
+    public static ConnectConfig embedded(String db) throws ClassNotFoundException {
+        return new ConnectConfig(DatabaseType.H2, db);
+    }
+
+    private ConnectConfig(DatabaseType type, String db) throws ClassNotFoundException {
+        this.host = "localhost";
+        this.port = "";
+        this.user = "sa";
+        this.password = "";
+        this.db = db;
+        this.type = type;
+        poolMinSize = 2;
+        poolMaxSize = 16;
+        acquireTimeoutMillis = 30000L;
+        validationIntervalMillis = 500L;
+        idleTimeoutMillis = 600000L;
+        leakDetectionMillis = 0L;
+        statementCacheSize = 128;
+        Class.forName(type.getDriverName());
+    }
+
     @Override
     public String toString() {
         return "utils.ConnectConfig: {" + "host='" + host + '\'' +
@@ -44,9 +88,26 @@ public final class ConnectConfig {
                 ", password='" + password + '\'' +
                 ", db='" + db + '\'' +
                 ", type='" + type.toString() + '\'' +
+                ", pool={minSize=" + poolMinSize +
+                ", maxSize=" + poolMaxSize +
+                ", acquireTimeoutMillis=" + acquireTimeoutMillis +
+                ", validationIntervalMillis=" + validationIntervalMillis +
+                ", idleTimeoutMillis=" + idleTimeoutMillis +
+                ", leakDetectionMillis=" + leakDetectionMillis +
+                ", statementCacheSize=" + statementCacheSize + '}' +
                 '}';
     }
 
+    private static int intValue(Map<String, Object> map, String key, int defaultValue) {
+        Object value = map.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value.toString());
+    }
+
+    private static long longValue(Map<String, Object> map, String key, long defaultValue) {
+        Object value = map.get(key);
+        return value == null ? defaultValue : Long.parseLong(value.toString());
+    }
+
     public String getHost() {
         return host;
     }
@@ -70,4 +131,32 @@ public final class ConnectConfig {
     public DatabaseType getType() {
         return type;
     }
+
+    public int getPoolMinSize() {
+        return poolMinSize;
+    }
+
+    public int getPoolMaxSize() {
+        return poolMaxSize;
+    }
+
+    public long getAcquireTimeoutMillis() {
+        return acquireTimeoutMillis;
+    }
+
+    public long getValidationIntervalMillis() {
+        return validationIntervalMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public long getLeakDetectionMillis() {
+        return leakDetectionMillis;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
 }
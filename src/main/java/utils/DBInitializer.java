@@ -1,12 +1,29 @@
 package utils;
 
+import java.util.List;
+
 public interface DBInitializer {
 
     String sqlDropBook();
     String sqlDropCard();
     String sqlDropBorrow();
+    String sqlDropSchemaVersion();
     String sqlCreateBook();
     String sqlCreateCard();
     String sqlCreateBorrow();
+    String sqlCreateSchemaVersion();
+
+    /**
+     * all schema migrations of this dialect, ordered by version.
+     * version 1 always creates the tables, see {@link MigrationRunner}.
+     */
+    List<Migration> migrations();
+
+    /**
+     * statement that shows the execution plan of query, whose result
+     * mentions the names of the indexes the plan uses, or null if the
+     * dialect cannot explain a query in a single statement.
+     */
+    String sqlExplain(String query);
 
 }
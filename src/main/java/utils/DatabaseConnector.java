@@ -3,53 +3,336 @@ package utils;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
+/**
+ * A bounded JDBC connection pool shared by every handler.
+ *
+ * Note:
+ *      (1) call connect() once to open the pool, then borrow a connection
+ *          with getConn() for each API call and give it back with
+ *          releaseConn() when the call finishes (commit or rollback first).
+ *      (2) idle connections are kept in LIFO order so the warmest one is
+ *          reused first; connections idle longer than idleTimeoutMillis
+ *          are evicted down to minSize by a background housekeeper.
+ *      (3) a connection that has been idle for validationIntervalMillis is
+ *          validated before being handed out, and broken ones are replaced.
+ *      (4) if leakDetectionMillis > 0, connections held longer than that
+ *          are logged together with the stack trace of the borrower.
+ *      (5) each connection keeps up to statementCacheSize prepared
+ *          statements in a {@link StatementCache}, so the same SQL is
+ *          parsed and planned once per connection instead of per call.
+ *      (6) if created with a {@link Metrics} registry, every statement
+ *          execution is timed by {@link StatementTimer} into the
+ *          library_sql_statement family, and the wait in getConn() into
+ *          library_db_pool_acquire.
+ *      (7) if created with a {@link SqlTracer}, every statement is traced
+ *          with its request id and slow ones go to the slow query log.
+ */
 public class DatabaseConnector {
 
+    private static final Logger log = Logger.getLogger(DatabaseConnector.class.getName());
+
+    private static final long HOUSEKEEPING_PERIOD_MILLIS = 5000L;
+
     private final ConnectConfig conf;
-    private Connection conn;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Map<Connection, PooledConnection> inUse = new ConcurrentHashMap<>();
+    private final AtomicInteger total = new AtomicInteger(0);
+    /* statement cache counters of all connections */
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+    private final AtomicLong statementEvictions = new AtomicLong();
+    /* null if statements are not timed */
+    private final Metrics.Family statementTimes;
+    private final Metrics.Timer acquireTime;
+    /* null if tracing is disabled */
+    private final SqlTracer tracer;
+    private ScheduledExecutorService housekeeper;
+    private volatile boolean open = false;
 
     public DatabaseConnector(ConnectConfig conf) {
+        this(conf, null);
+    }
+
+    public DatabaseConnector(ConnectConfig conf, Metrics metrics) {
+        this(conf, metrics, null);
+    }
+
+    public DatabaseConnector(ConnectConfig conf, Metrics metrics, SqlTracer tracer) {
         this.conf = conf;
+        this.tracer = tracer;
+        this.statementTimes = metrics == null ? null
+                : metrics.family("library_sql_statement", "Execution time of SQL statements.", "statement");
+        this.acquireTime = metrics == null ? null
+                : metrics.family("library_db_pool_acquire", "Time waited for a pooled connection.").timer();
     }
 
-    public boolean connect() {
-        if (conn != null) {
+    public synchronized boolean connect() {
+        if (open) {
             return false;
         }
         try {
-            String url = conf.getType().url(conf.getHost(), conf.getPort(), conf.getDB());
-            conn = DriverManager.getConnection(url, conf.getUser(), conf.getPassword());
-            if (conn != null) {
-                /* Note: you need to connect & release trx explicitly */
-                conn.setAutoCommit(false);
-                return true;
+            for (int i = 0; i < conf.getPoolMinSize(); i++) {
+                idle.offerLast(createConnection());
+                total.incrementAndGet();
             }
         } catch (Exception e) {
             e.printStackTrace();
+            closeIdle();
+            return false;
         }
-        return false;
+        housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.scheduleWithFixedDelay(this::housekeep, HOUSEKEEPING_PERIOD_MILLIS,
+                HOUSEKEEPING_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        open = true;
+        return true;
     }
 
-    public boolean release() {
-        if (conn == null) {
+    public synchronized boolean release() {
+        if (!open) {
             return false;
         }
+        open = false;
+        housekeeper.shutdownNow();
+        housekeeper = null;
+        closeIdle();
+        if (!inUse.isEmpty()) {
+            log.warning(inUse.size() + " connection(s) still in use while releasing pool.");
+            for (PooledConnection pc : inUse.values()) {
+                closeQuietly(pc);
+            }
+            inUse.clear();
+        }
+        return true;
+    }
+
+    /**
+     * borrow a connection from the pool, waiting at most acquireTimeoutMillis.
+     * the connection must be given back with {@link #releaseConn(Connection)}.
+     */
+    public Connection getConn() throws SQLException {
+        if (acquireTime == null) {
+            return acquire();
+        }
+        long start = System.nanoTime();
+        boolean error = true;
         try {
-            conn.close();
-            conn = null;
-            return true;
-        } catch (SQLException e) {
-            e.printStackTrace();
+            Connection conn = acquire();
+            error = false;
+            return conn;
+        } finally {
+            acquireTime.record(start, error);
         }
-        return false;
     }
 
-    public Connection getConn() {
-        return conn;
+    private Connection acquire() throws SQLException {
+        if (!open) {
+            throw new SQLException("Connection pool is not open.");
+        }
+        long deadline = System.currentTimeMillis() + conf.getAcquireTimeoutMillis();
+        while (true) {
+            PooledConnection pc = idle.pollFirst();
+            if (pc == null && reserveSlot()) {
+                try {
+                    pc = createConnection();
+                } catch (SQLException e) {
+                    total.decrementAndGet();
+                    throw e;
+                }
+            }
+            if (pc == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                try {
+                    pc = remaining > 0 ? idle.pollFirst(remaining, TimeUnit.MILLISECONDS) : null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a connection.", e);
+                }
+                if (pc == null) {
+                    throw new SQLTimeoutException("Timed out after " + conf.getAcquireTimeoutMillis()
+                            + "ms waiting for a connection (pool size " + total.get() + ").");
+                }
+            }
+            if (!validate(pc)) {
+                closeQuietly(pc);
+                continue;
+            }
+            pc.borrowedAt = System.currentTimeMillis();
+            pc.leakReported = false;
+            pc.borrower = conf.getLeakDetectionMillis() > 0 ? new Throwable("Connection borrowed here") : null;
+            inUse.put(pc.conn, pc);
+            return pc.conn;
+        }
+    }
+
+    /**
+     * give a borrowed connection back to the pool. any transaction that is
+     * still open is rolled back so the next borrower starts clean.
+     */
+    public void releaseConn(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        PooledConnection pc = inUse.remove(conn);
+        if (pc == null) {
+            return;
+        }
+        try {
+            if (pc.statements != null) {
+                pc.statements.reclaim();
+            }
+            conn.rollback();
+            pc.lastUsedAt = System.currentTimeMillis();
+            pc.borrower = null;
+            if (open) {
+                idle.offerFirst(pc);
+            } else {
+                closeQuietly(pc);
+            }
+        } catch (SQLException e) {
+            closeQuietly(pc);
+        }
     }
 
     public ConnectConfig getConf() {
         return conf;
     }
+
+    public int getTotalConnections() {
+        return total.get();
+    }
+
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    public int getActiveConnections() {
+        return inUse.size();
+    }
+
+    public long getStatementCacheHits() {
+        return statementHits.get();
+    }
+
+    public long getStatementCacheMisses() {
+        return statementMisses.get();
+    }
+
+    public long getStatementCacheEvictions() {
+        return statementEvictions.get();
+    }
+
+    private boolean reserveSlot() {
+        while (true) {
+            int current = total.get();
+            if (current >= conf.getPoolMaxSize()) {
+                return false;
+            }
+            if (total.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private PooledConnection createConnection() throws SQLException {
+        String url = conf.getType().url(conf.getHost(), conf.getPort(), conf.getDB());
+        Connection conn = DriverManager.getConnection(url, conf.getUser(), conf.getPassword());
+        /* Note: you need to connect & release trx explicitly */
+        conn.setAutoCommit(false);
+        if (statementTimes != null) {
+            conn = StatementTimer.wrap(conn, statementTimes);
+        }
+        if (tracer != null) {
+            conn = tracer.wrap(conn);
+        }
+        if (conf.getStatementCacheSize() <= 0) {
+            return new PooledConnection(conn, null);
+        }
+        StatementCache statements = new StatementCache(conn, conf.getStatementCacheSize(),
+                statementHits, statementMisses, statementEvictions);
+        return new PooledConnection(statements.connection(), statements);
+    }
+
+    private boolean validate(PooledConnection pc) {
+        if (System.currentTimeMillis() - pc.lastUsedAt < conf.getValidationIntervalMillis()) {
+            return true;
+        }
+        try {
+            return pc.conn.isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void housekeep() {
+        long now = System.currentTimeMillis();
+        /* evict connections that stay idle for too long, keep at least minSize */
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while (it.hasNext() && total.get() > conf.getPoolMinSize()) {
+            PooledConnection pc = it.next();
+            if (now - pc.lastUsedAt > conf.getIdleTimeoutMillis() && idle.removeLastOccurrence(pc)) {
+                closeQuietly(pc);
+            }
+        }
+        /* report connections that are held for too long */
+        long threshold = conf.getLeakDetectionMillis();
+        if (threshold > 0) {
+            for (PooledConnection pc : inUse.values()) {
+                if (!pc.leakReported && now - pc.borrowedAt > threshold) {
+                    pc.leakReported = true;
+                    log.warning("Possible connection leak, held for " + (now - pc.borrowedAt) + "ms.");
+                    if (pc.borrower != null) {
+                        pc.borrower.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    private void closeIdle() {
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            closeQuietly(pc);
+        }
+    }
+
+    private void closeQuietly(PooledConnection pc) {
+        total.decrementAndGet();
+        try {
+            pc.conn.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static final class PooledConnection {
+        final Connection conn;
+        /* null if statement caching is disabled */
+        final StatementCache statements;
+        volatile long lastUsedAt;
+        volatile long borrowedAt;
+        volatile Throwable borrower;
+        volatile boolean leakReported;
+
+        PooledConnection(Connection conn, StatementCache statements) {
+            this.conn = conn;
+            this.statements = statements;
+            this.lastUsedAt = System.currentTimeMillis();
+        }
+    }
 }
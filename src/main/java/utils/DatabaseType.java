@@ -2,9 +2,10 @@ package utils;
 
 public enum DatabaseType {
     MYSQL("mysql", "com.mysql.cj.jdbc.Driver", new MysqlInitializer()),
-    // TODO: to be updated
-    POSTGRES("postgresql", "org.postgresql.Driver", new MysqlInitializer()),
-    SQLSERVER("sqlserver", "com.microsoft.sqlserver.jdbc.SQLServerDriver", new SqlServerInitializer());
+    POSTGRES("postgresql", "org.postgresql.Driver", new PostgresInitializer()),
+    SQLSERVER("sqlserver", "com.microsoft.sqlserver.jdbc.SQLServerDriver", new SqlServerInitializer()),
+    // embedded in-memory database, host/port/user/password are ignored
+    H2("h2", "org.h2.Driver", new H2Initializer());
 
     DatabaseType(String typeName, String driverName, DBInitializer dbInitializer) {
         this.typeName = typeName;
@@ -25,12 +26,36 @@ public enum DatabaseType {
             case SQLSERVER:
                 return String.format("jdbc:sqlserver://%s:%s;DatabaseName=%s;encrypt=false", host, port, db);
             case MYSQL:
+                // let the driver turn batched inserts into multi-row inserts, and prepare
+                // statements on the server so the cached ones skip parsing and planning
+                return String.format("jdbc:%s://%s:%s/%s?rewriteBatchedStatements=true&useServerPrepStmts=true",
+                        typeName, host, port, db);
             case POSTGRES:
-                return String.format("jdbc:%s://%s:%s/%s", typeName, host, port, db);
+                return String.format("jdbc:%s://%s:%s/%s?reWriteBatchedInserts=true", typeName, host, port, db);
+            case H2:
+                // keep the database while the pool has no open connection
+                return String.format("jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000", db);
         }
         return null;
     }
 
+    /**
+     * whether the dialect has INSERT ... ON CONFLICT DO NOTHING and
+     * UPDATE/INSERT ... RETURNING, which let a write report the rows it
+     * changed without a separate lookup.
+     */
+    public boolean supportsReturning() {
+        return this == POSTGRES;
+    }
+
+    /**
+     * whether the dialect has GROUP BY GROUPING SETS, which counts several
+     * groupings of the same rows in one scan.
+     */
+    public boolean supportsGroupingSets() {
+        return this == POSTGRES || this == SQLSERVER;
+    }
+
     public static DatabaseType instance(String typeName) throws IllegalArgumentException {
         for (DatabaseType type : DatabaseType.values()) {
             if (type.typeName.equals(typeName.toLowerCase())) {
@@ -0,0 +1,91 @@
+package utils;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings of the in-memory inventory, read from the "inventory" section
+ * of application.yaml. every key is optional, the inventory is off by
+ * default.
+ */
+public final class InventoryConfig {
+
+    private final boolean enabled;
+    /* write-ahead journal of borrows and returns not yet in the database */
+    private final String journalFile;
+    /* journal records written and applied to the database together */
+    private final int maxBatch;
+    /* the journal is truncated once everything in it is applied and it is this large */
+    private final long journalMaxBytes;
+    /* how long a read waits for the journal to reach the database before it fails */
+    private final long readTimeoutMillis;
+
+    @SuppressWarnings("unchecked")
+    public InventoryConfig() throws FileNotFoundException, NullPointerException {
+        URL res = InventoryConfig.class.getClassLoader().getResource("application.yaml");
+        if (res == null) {
+            throw new NullPointerException();
+        }
+        BufferedReader br = new BufferedReader(new FileReader(res.getPath()));
+        Yaml yaml = new Yaml();
+        Map<String, Object> objectMap = yaml.load(br);
+        Map<String, Object> inventoryMap = (Map<String, Object>)objectMap.getOrDefault("inventory", new HashMap<>());
+        enabled = Boolean.parseBoolean(inventoryMap.getOrDefault("enabled", "false").toString());
+        journalFile = inventoryMap.getOrDefault("journalFile", "borrow.journal").toString();
+        Object batch = inventoryMap.get("maxBatch");
+        maxBatch = batch == null ? 1024 : Integer.parseInt(batch.toString());
+        Object maxBytes = inventoryMap.get("journalMaxBytes");
+        journalMaxBytes = maxBytes == null ? 4L * 1024 * 1024 : Long.parseLong(maxBytes.toString());
+        Object readTimeout = inventoryMap.get("readTimeoutMillis");
+        readTimeoutMillis = readTimeout == null ? 5000L : Long.parseLong(readTimeout.toString());
+    }
+
+    public InventoryConfig(boolean enabled, String journalFile, int maxBatch, long journalMaxBytes) {
+        this(enabled, journalFile, maxBatch, journalMaxBytes, 5000L);
+    }
+
+    public InventoryConfig(boolean enabled, String journalFile, int maxBatch, long journalMaxBytes,
+                           long readTimeoutMillis) {
+        this.enabled = enabled;
+        this.journalFile = journalFile;
+        this.maxBatch = maxBatch;
+        this.journalMaxBytes = journalMaxBytes;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "utils.InventoryConfig: {" + "enabled=" + enabled +
+                ", journalFile='" + journalFile + '\'' +
+                ", maxBatch=" + maxBatch +
+                ", journalMaxBytes=" + journalMaxBytes +
+                ", readTimeoutMillis=" + readTimeoutMillis +
+                '}';
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getJournalFile() {
+        return journalFile;
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    public long getJournalMaxBytes() {
+        return journalMaxBytes;
+    }
+
+    public long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+}
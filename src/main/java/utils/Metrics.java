@@ -0,0 +1,236 @@
+package utils;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Latency histograms, counters and gauges of the running server, rendered
+ * in the Prometheus text format by {@link #write}.
+ *
+ * Note:
+ *      (1) a {@link Family} is one latency metric with a fixed set of label
+ *          names, each combination of label values is a {@link Timer}.
+ *          a timer records into an HDR {@link Recorder}, so recording is
+ *          wait-free and never blocks on a scrape.
+ *      (2) timers are exposed as summaries: quantiles, _sum and _count in
+ *          seconds over the lifetime of the server, plus an _errors_total
+ *          counter per label combination.
+ *      (3) a family keeps at most maxSeries timers, further label values
+ *          are recorded under {@link #OVERFLOW} so a flood of distinct
+ *          values cannot grow the registry without bound.
+ *      (4) gauges and counters are read from a supplier on every scrape,
+ *          the registry keeps no copy of pool or cache state.
+ */
+public final class Metrics {
+
+    public static final String OVERFLOW = "other";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final int DEFAULT_MAX_SERIES = 256;
+
+    private final List<Family> families = new CopyOnWriteArrayList<>();
+    private final List<Sampled> sampled = new CopyOnWriteArrayList<>();
+
+    /**
+     * register a latency metric, name should not carry the _seconds suffix.
+     */
+    public Family family(String name, String help, String... labelNames) {
+        return family(name, help, DEFAULT_MAX_SERIES, labelNames);
+    }
+
+    public Family family(String name, String help, int maxSeries, String... labelNames) {
+        Family family = new Family(name, help, maxSeries, labelNames);
+        families.add(family);
+        return family;
+    }
+
+    /* a value that can go up and down */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        sampled.add(new Sampled(name, help, "gauge", value));
+    }
+
+    /* a monotonic count, name should end with _total */
+    public void counter(String name, String help, DoubleSupplier value) {
+        sampled.add(new Sampled(name, help, "counter", value));
+    }
+
+    /**
+     * write every metric in the Prometheus text exposition format 0.0.4.
+     */
+    public void write(Writer out) throws IOException {
+        for (Family family : families) {
+            family.write(out);
+        }
+        for (Sampled s : sampled) {
+            out.write("# HELP " + s.name + " " + s.help + "\n");
+            out.write("# TYPE " + s.name + " " + s.type + "\n");
+            out.write(s.name + " " + format(s.value.getAsDouble()) + "\n");
+        }
+    }
+
+    public static final class Family {
+        private final String name;
+        private final String help;
+        private final int maxSeries;
+        private final String[] labelNames;
+        /* sorted by labels so the output is stable between scrapes */
+        private final Map<List<String>, Timer> timers = new ConcurrentSkipListMap<>(Family::compare);
+        /* lock free lookup for the hot path */
+        private final Map<List<String>, Timer> lookup = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, int maxSeries, String[] labelNames) {
+            this.name = name;
+            this.help = help;
+            this.maxSeries = maxSeries;
+            this.labelNames = labelNames.clone();
+        }
+
+        /**
+         * the timer of the given label values, in the order of the label names.
+         */
+        public Timer timer(String... labelValues) {
+            if (labelValues.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " expects labels " + Arrays.toString(labelNames));
+            }
+            List<String> key = Arrays.asList(labelValues);
+            Timer timer = lookup.get(key);
+            if (timer != null) {
+                return timer;
+            }
+            synchronized (this) {
+                timer = lookup.get(key);
+                if (timer == null) {
+                    if (lookup.size() >= maxSeries) {
+                        String[] overflow = new String[labelNames.length];
+                        Arrays.fill(overflow, OVERFLOW);
+                        key = Arrays.asList(overflow);
+                        timer = lookup.get(key);
+                    }
+                    if (timer == null) {
+                        timer = new Timer();
+                        timers.put(key, timer);
+                        lookup.put(key, timer);
+                    }
+                }
+                return timer;
+            }
+        }
+
+        private void write(Writer out) throws IOException {
+            String seconds = name + "_seconds";
+            out.write("# HELP " + seconds + " " + help + "\n");
+            out.write("# TYPE " + seconds + " summary\n");
+            for (Map.Entry<List<String>, Timer> e : timers.entrySet()) {
+                Histogram histogram = e.getValue().snapshot();
+                String labels = labels(e.getKey());
+                for (double q : QUANTILES) {
+                    String quantile = "quantile=\"" + q + "\"";
+                    out.write(seconds + "{" + (labels.isEmpty() ? quantile : labels + "," + quantile) + "} "
+                            + format(toSeconds(histogram.getValueAtPercentile(q * 100))) + "\n");
+                }
+                String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+                out.write(seconds + "_sum" + braced + " " + format(toSeconds(e.getValue().sumMicros.sum())) + "\n");
+                out.write(seconds + "_count" + braced + " " + histogram.getTotalCount() + "\n");
+            }
+            String errors = name + "_errors_total";
+            out.write("# HELP " + errors + " Failed calls of " + name + ".\n");
+            out.write("# TYPE " + errors + " counter\n");
+            for (Map.Entry<List<String>, Timer> e : timers.entrySet()) {
+                String labels = labels(e.getKey());
+                out.write(errors + (labels.isEmpty() ? "" : "{" + labels + "}") + " " + e.getValue().errors.sum() + "\n");
+            }
+        }
+
+        private String labels(List<String> values) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < labelNames.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(labelNames[i]).append("=\"").append(escape(values.get(i))).append('"');
+            }
+            return sb.toString();
+        }
+
+        private static int compare(List<String> a, List<String> b) {
+            for (int i = 0; i < a.size(); i++) {
+                int c = a.get(i).compareTo(b.get(i));
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+    }
+
+    public static final class Timer {
+        private final Recorder recorder = new Recorder(3);
+        private final LongAdder sumMicros = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        /* guarded by this, everything recorded before the last scrape */
+        private final Histogram total = new Histogram(3);
+        private Histogram interval = null;
+
+        private Timer() {
+        }
+
+        /**
+         * record one call that started at startNanos (from System.nanoTime).
+         */
+        public void record(long startNanos, boolean error) {
+            long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), 0L);
+            recorder.recordValue(micros);
+            sumMicros.add(micros);
+            if (error) {
+                errors.increment();
+            }
+        }
+
+        private synchronized Histogram snapshot() {
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            return total.copy();
+        }
+    }
+
+    private static final class Sampled {
+        final String name;
+        final String help;
+        final String type;
+        final DoubleSupplier value;
+
+        Sampled(String name, String help, String type, DoubleSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private static double toSeconds(double micros) {
+        return micros / 1e6;
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,39 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One versioned step of the schema, applied at most once by {@link MigrationRunner}.
+ */
+public final class Migration {
+
+    private final int version;
+    private final String description;
+    private final List<String> statements;
+
+    public Migration(int version, String description, String... statements) {
+        this.version = version;
+        this.description = description;
+        this.statements = Arrays.asList(statements);
+    }
+
+    @Override
+    public String toString() {
+        return "Migration{" + "version=" + version +
+                ", description='" + description + '\'' +
+                '}';
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public List<String> getStatements() {
+        return statements;
+    }
+}
@@ -0,0 +1,181 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Brings the schema up to the latest version of {@link DBInitializer#migrations()}.
+ *
+ * Note:
+ *      (1) applied versions are recorded in table schema_version, each
+ *          migration runs in its own transaction together with its record.
+ *          MySQL and SQL Server commit every CREATE/ALTER on their own, so a
+ *          failure there leaves the statements before it applied and no
+ *          record; a statement creating a table, index or foreign key that
+ *          already exists is therefore skipped, and the next start finishes
+ *          the migration instead of failing on the duplicates.
+ *      (2) a database created before migrations existed (tables present
+ *          but no schema_version) is treated as being at version 1.
+ */
+public final class MigrationRunner {
+
+    private static final Logger log = Logger.getLogger(MigrationRunner.class.getName());
+
+    private static final String SCHEMA_VERSION_TABLE = "schema_version";
+
+    /* a table, index or column name, maybe quoted */
+    private static final String NAME = "[`\"\\[]?(\\w+)[`\"\\]]?";
+    /* the statements of a migration that can be checked against the catalog, see note (1) */
+    private static final Pattern CREATE_TABLE = Pattern.compile(
+            "\\s*create\\s+table\\s+" + NAME + ".*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "\\s*create\\s+index\\s+" + NAME + "\\s+on\\s+" + NAME + ".*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern ADD_FOREIGN_KEY = Pattern.compile(
+            "\\s*alter\\s+table\\s+" + NAME + "\\s+add\\s+foreign\\s+key\\s*\\(\\s*" + NAME + "\\s*\\)" +
+                    "\\s*references\\s+" + NAME + ".*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private MigrationRunner() {
+    }
+
+    public static int migrate(DatabaseConnector connector) throws SQLException {
+        Connection conn = connector.getConn();
+        try {
+            return migrate(conn, connector.getConf().getType().getDbInitializer());
+        } finally {
+            connector.releaseConn(conn);
+        }
+    }
+
+    /**
+     * apply all pending migrations.
+     *
+     * @return number of migrations applied
+     */
+    public static int migrate(Connection conn, DBInitializer initializer) throws SQLException {
+        int current = currentVersion(conn, initializer);
+        int applied = 0;
+        List<Migration> migrations = initializer.migrations();
+        for (Migration migration : migrations) {
+            if (migration.getVersion() <= current) {
+                continue;
+            }
+            try (Statement stmt = conn.createStatement()) {
+                for (String sql : migration.getStatements()) {
+                    if (exists(conn, sql)) {
+                        log.info("Skipped " + migration + ", already applied: " + sql);
+                        continue;
+                    }
+                    stmt.execute(sql);
+                }
+                record(conn, migration);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw new SQLException("Failed to apply " + migration + ": " + e.getMessage(), e);
+            }
+            log.info("Applied " + migration);
+            current = migration.getVersion();
+            applied++;
+        }
+        return applied;
+    }
+
+    private static int currentVersion(Connection conn, DBInitializer initializer) throws SQLException {
+        if (!tableExists(conn, SCHEMA_VERSION_TABLE)) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(initializer.sqlCreateSchemaVersion());
+            }
+            conn.commit();
+            if (tableExists(conn, "book")) {
+                // tables were created by the sql scripts, which match version 1
+                record(conn, initializer.migrations().get(0));
+                conn.commit();
+                return 1;
+            }
+            return 0;
+        }
+        try (Statement stmt = conn.createStatement();
+             ResultSet rSet = stmt.executeQuery("SELECT MAX(version) FROM " + SCHEMA_VERSION_TABLE)) {
+            int version = rSet.next() ? rSet.getInt(1) : 0;
+            conn.commit();
+            return version;
+        }
+    }
+
+    private static void record(Connection conn, Migration migration) throws SQLException {
+        String insert = "INSERT INTO " + SCHEMA_VERSION_TABLE + " (version, description, applied_at) VALUES (?, ?, ?)";
+        try (PreparedStatement pStmt = conn.prepareStatement(insert)) {
+            pStmt.setInt(1, migration.getVersion());
+            pStmt.setString(2, migration.getDescription());
+            pStmt.setLong(3, System.currentTimeMillis());
+            pStmt.executeUpdate();
+        }
+    }
+
+    /* whether what sql creates is already there, see note (1) */
+    private static boolean exists(Connection conn, String sql) throws SQLException {
+        Matcher m = CREATE_TABLE.matcher(sql);
+        if (m.matches()) {
+            return tableExists(conn, m.group(1));
+        }
+        m = CREATE_INDEX.matcher(sql);
+        if (m.matches()) {
+            return indexExists(conn, m.group(2), m.group(1));
+        }
+        m = ADD_FOREIGN_KEY.matcher(sql);
+        if (m.matches()) {
+            return foreignKeyExists(conn, m.group(1), m.group(2), m.group(3));
+        }
+        return false;
+    }
+
+    private static boolean indexExists(Connection conn, String table, String index) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        for (String name : new String[]{table, table.toUpperCase()}) {
+            try (ResultSet rSet = meta.getIndexInfo(conn.getCatalog(), null, name, false, true)) {
+                while (rSet.next()) {
+                    if (index.equalsIgnoreCase(rSet.getString("INDEX_NAME"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean foreignKeyExists(Connection conn, String table, String column, String referenced)
+            throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        for (String name : new String[]{table, table.toUpperCase()}) {
+            try (ResultSet rSet = meta.getImportedKeys(conn.getCatalog(), null, name)) {
+                while (rSet.next()) {
+                    if (column.equalsIgnoreCase(rSet.getString("FKCOLUMN_NAME"))
+                            && referenced.equalsIgnoreCase(rSet.getString("PKTABLE_NAME"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean tableExists(Connection conn, String table) throws SQLException {
+        DatabaseMetaData meta = conn.getMetaData();
+        for (String name : new String[]{table, table.toUpperCase()}) {
+            try (ResultSet rSet = meta.getTables(conn.getCatalog(), null, name, new String[]{"TABLE"})) {
+                if (rSet.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -1,5 +1,8 @@
 package utils;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class MysqlInitializer implements DBInitializer {
 
     @Override
@@ -17,6 +20,11 @@ public class MysqlInitializer implements DBInitializer {
         return "drop table if exists `borrow`;";
     }
 
+    @Override
+    public String sqlDropSchemaVersion() {
+        return "drop table if exists `schema_version`;";
+    }
+
     @Override
     public String sqlCreateBook() {
         return "create table `book` (\n" +
@@ -58,4 +66,33 @@ public class MysqlInitializer implements DBInitializer {
                 "  foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade\n" +
                 ") engine=innodb charset=utf8mb4;";
     }
+
+    @Override
+    public String sqlCreateSchemaVersion() {
+        return "create table `schema_version` (\n" +
+                "    `version` int not null,\n" +
+                "    `description` varchar(255) not null,\n" +
+                "    `applied_at` bigint not null,\n" +
+                "    primary key (`version`)\n" +
+                ") engine=innodb charset=utf8mb4;";
+    }
+
+    @Override
+    public List<Migration> migrations() {
+        return Arrays.asList(
+                new Migration(1, "create tables", sqlCreateCard(), sqlCreateBook(), sqlCreateBorrow()),
+                // innodb secondary indexes carry the primary key, so they cover borrow_time too
+                new Migration(2, "indexes for borrow/return/remove and range queries",
+                        "create index `idx_borrow_book_open` on `borrow` (`book_id`, `return_time`, `card_id`);",
+                        "create index `idx_borrow_card_open` on `borrow` (`card_id`, `return_time`);",
+                        "create index `idx_borrow_card_time` on `borrow` (`card_id`, `borrow_time` desc, `book_id`);",
+                        "create index `idx_book_publish_year` on `book` (`publish_year`);",
+                        "create index `idx_book_price` on `book` (`price`);")
+        );
+    }
+
+    @Override
+    public String sqlExplain(String query) {
+        return "explain " + query;
+    }
 }
@@ -0,0 +1,98 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class PostgresInitializer implements DBInitializer {
+
+    @Override
+    public String sqlDropBook() {
+        return "drop table if exists book cascade;";
+    }
+
+    @Override
+    public String sqlDropCard() {
+        return "drop table if exists card cascade;";
+    }
+
+    @Override
+    public String sqlDropBorrow() {
+        return "drop table if exists borrow cascade;";
+    }
+
+    @Override
+    public String sqlDropSchemaVersion() {
+        return "drop table if exists schema_version;";
+    }
+
+    @Override
+    public String sqlCreateBook() {
+        return "create table book (\n" +
+                "    book_id int generated by default as identity,\n" +
+                "    category varchar(63) not null,\n" +
+                "    title varchar(63) not null,\n" +
+                "    press varchar(63) not null,\n" +
+                "    publish_year int not null,\n" +
+                "    author varchar(63) not null,\n" +
+                "    price decimal(7, 2) not null default 0.00,\n" +
+                "    stock int not null default 0,\n" +
+                "    primary key (book_id),\n" +
+                "    unique (category, press, author, title, publish_year)\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateCard() {
+        return "create table card (\n" +
+                "    card_id int generated by default as identity,\n" +
+                "    name varchar(63) not null,\n" +
+                "    department varchar(63) not null,\n" +
+                "    type char(1) not null,\n" +
+                "    primary key (card_id),\n" +
+                "    unique (department, type, name),\n" +
+                "    check ( type in ('T', 'S') )\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateBorrow() {
+        return "create table borrow (\n" +
+                "  card_id int not null,\n" +
+                "  book_id int not null,\n" +
+                "  borrow_time bigint not null,\n" +
+                "  return_time bigint not null default 0,\n" +
+                "  primary key (card_id, book_id, borrow_time),\n" +
+                "  foreign key (card_id) references card(card_id) on delete cascade on update cascade,\n" +
+                "  foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateSchemaVersion() {
+        return "create table schema_version (\n" +
+                "    version int not null,\n" +
+                "    description varchar(255) not null,\n" +
+                "    applied_at bigint not null,\n" +
+                "    primary key (version)\n" +
+                ");";
+    }
+
+    @Override
+    public List<Migration> migrations() {
+        return Arrays.asList(
+                new Migration(1, "create tables", sqlCreateCard(), sqlCreateBook(), sqlCreateBorrow()),
+                // partial indexes: only open borrows are looked up by borrow/return/remove
+                new Migration(2, "indexes for borrow/return/remove and range queries",
+                        "create index idx_borrow_book_open on borrow (book_id, card_id) where return_time = 0;",
+                        "create index idx_borrow_card_open on borrow (card_id, book_id) where return_time = 0;",
+                        "create index idx_borrow_card_time on borrow (card_id, borrow_time desc, book_id) include (return_time);",
+                        "create index idx_book_publish_year on book (publish_year);",
+                        "create index idx_book_price on book (price);")
+        );
+    }
+
+    @Override
+    public String sqlExplain(String query) {
+        return "explain " + query;
+    }
+}
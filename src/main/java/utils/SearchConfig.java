@@ -0,0 +1,69 @@
+package utils;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings of the in-memory book search index, read from the "search"
+ * section of application.yaml. every key is optional.
+ */
+public final class SearchConfig {
+
+    private final boolean enabled;
+    /* more candidates than this are not passed to the database, which scans instead */
+    private final int maxCandidates;
+    /* least trigram similarity of a fuzzy title or author match, in (0, 1] */
+    private final double fuzzyThreshold;
+
+    @SuppressWarnings("unchecked")
+    public SearchConfig() throws FileNotFoundException, NullPointerException {
+        URL res = SearchConfig.class.getClassLoader().getResource("application.yaml");
+        if (res == null) {
+            throw new NullPointerException();
+        }
+        BufferedReader br = new BufferedReader(new FileReader(res.getPath()));
+        Yaml yaml = new Yaml();
+        Map<String, Object> objectMap = yaml.load(br);
+        Map<String, Object> searchMap = (Map<String, Object>)objectMap.getOrDefault("search", new HashMap<>());
+        enabled = Boolean.parseBoolean(searchMap.getOrDefault("enabled", "true").toString());
+        Object candidates = searchMap.get("maxCandidates");
+        maxCandidates = candidates == null ? 1024 : Integer.parseInt(candidates.toString());
+        fuzzyThreshold = Double.parseDouble(searchMap.getOrDefault("fuzzyThreshold", "0.5").toString());
+    }
+
+    public SearchConfig(boolean enabled, int maxCandidates) {
+        this(enabled, maxCandidates, 0.5);
+    }
+
+    public SearchConfig(boolean enabled, int maxCandidates, double fuzzyThreshold) {
+        this.enabled = enabled;
+        this.maxCandidates = maxCandidates;
+        this.fuzzyThreshold = fuzzyThreshold;
+    }
+
+    @Override
+    public String toString() {
+        return "utils.SearchConfig: {" + "enabled=" + enabled +
+                ", maxCandidates=" + maxCandidates +
+                ", fuzzyThreshold=" + fuzzyThreshold +
+                '}';
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMaxCandidates() {
+        return maxCandidates;
+    }
+
+    public double getFuzzyThreshold() {
+        return fuzzyThreshold;
+    }
+}
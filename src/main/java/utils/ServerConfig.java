@@ -0,0 +1,155 @@
+package utils;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Settings of the http front end, read from the "server" section of
+ * application.yaml. every key is optional.
+ */
+public final class ServerConfig {
+
+    public enum ExecutorMode {
+        /* a fixed pool of platform threads */
+        FIXED,
+        /* one virtual thread per request, requires JDK 21+ */
+        VIRTUAL
+    }
+
+    private final int port;
+    /* length of the TCP accept queue, 0 means system default */
+    private final int backlog;
+    private final ExecutorMode executorMode;
+    /* worker threads in FIXED mode, or max concurrent requests in VIRTUAL mode */
+    private final int threads;
+    /* requests allowed to wait for a worker before being answered with 503 */
+    private final int queueCapacity;
+    /* books committed together by POST /bookset */
+    private final int importChunkSize;
+    /* threads running library calls, 0 means one per pooled connection */
+    private final int dbThreads;
+    /* library calls allowed to wait for a database thread before being answered with 503 */
+    private final int dbQueueCapacity;
+    /* built frontend served on "/", empty to serve the API only */
+    private final String staticDir;
+    /* bounds of the price ranges counted by GET /book?facets=true, null means the library's default */
+    private final List<Double> priceBuckets;
+    /* responses of a known length below this are not compressed, negative disables compression */
+    private final int compressMinBytes;
+    /* zlib level of compressed responses, 1 (fastest) to 9 (smallest) */
+    private final int compressLevel;
+
+    @SuppressWarnings("unchecked")
+    public ServerConfig() throws FileNotFoundException, NullPointerException {
+        URL res = ServerConfig.class.getClassLoader().getResource("application.yaml");
+        if (res == null) {
+            throw new NullPointerException();
+        }
+        BufferedReader br = new BufferedReader(new FileReader(res.getPath()));
+        Yaml yaml = new Yaml();
+        Map<String, Object> objectMap = yaml.load(br);
+        Map<String, Object> serverMap = (Map<String, Object>)objectMap.getOrDefault("server", new HashMap<>());
+        port = intValue(serverMap, "port", 8000);
+        backlog = intValue(serverMap, "backlog", 128);
+        executorMode = ExecutorMode.valueOf(((String)serverMap.getOrDefault("executor", "fixed")).toUpperCase());
+        threads = intValue(serverMap, "threads", Runtime.getRuntime().availableProcessors() * 4);
+        queueCapacity = intValue(serverMap, "queueCapacity", 256);
+        importChunkSize = intValue(serverMap, "importChunkSize", 1000);
+        dbThreads = intValue(serverMap, "dbThreads", 0);
+        dbQueueCapacity = intValue(serverMap, "dbQueueCapacity", 1024);
+        staticDir = (String)serverMap.getOrDefault("staticDir", "librarymanagementsystem-frontend/dist");
+        priceBuckets = doubleList(serverMap, "priceBuckets");
+        compressMinBytes = intValue(serverMap, "compressMinBytes", 1024);
+        compressLevel = intValue(serverMap, "compressLevel", 6);
+    }
+
+    @Override
+    public String toString() {
+        return "utils.ServerConfig: {" + "port=" + port +
+                ", backlog=" + backlog +
+                ", executor=" + executorMode +
+                ", threads=" + threads +
+                ", queueCapacity=" + queueCapacity +
+                ", importChunkSize=" + importChunkSize +
+                ", dbThreads=" + dbThreads +
+                ", dbQueueCapacity=" + dbQueueCapacity +
+                ", staticDir='" + staticDir + '\'' +
+                ", priceBuckets=" + priceBuckets +
+                ", compressMinBytes=" + compressMinBytes +
+                ", compressLevel=" + compressLevel +
+                '}';
+    }
+
+    private static int intValue(Map<String, Object> map, String key, int defaultValue) {
+        Object value = map.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value.toString());
+    }
+
+    private static List<Double> doubleList(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        if (value == null) {
+            return null;
+        }
+        List<Double> list = new ArrayList<>();
+        for (Object item : (List<?>) value) {
+            list.add(Double.parseDouble(item.toString()));
+        }
+        return list;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public ExecutorMode getExecutorMode() {
+        return executorMode;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getImportChunkSize() {
+        return importChunkSize;
+    }
+
+    public int getDbThreads() {
+        return dbThreads;
+    }
+
+    public int getDbQueueCapacity() {
+        return dbQueueCapacity;
+    }
+
+    public String getStaticDir() {
+        return staticDir;
+    }
+
+    public List<Double> getPriceBuckets() {
+        return priceBuckets;
+    }
+
+    public int getCompressMinBytes() {
+        return compressMinBytes;
+    }
+
+    public int getCompressLevel() {
+        return compressLevel;
+    }
+}
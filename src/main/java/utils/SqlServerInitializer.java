@@ -1,5 +1,8 @@
 package utils;
 
+import java.util.Arrays;
+import java.util.List;
+
 public class SqlServerInitializer implements DBInitializer {
 
     @Override
@@ -17,6 +20,11 @@ public class SqlServerInitializer implements DBInitializer {
         return "IF OBJECT_ID('dbo.borrow', 'U') IS NOT NULL DROP TABLE dbo.borrow;";
     }
 
+    @Override
+    public String sqlDropSchemaVersion() {
+        return "IF OBJECT_ID('dbo.schema_version', 'U') IS NOT NULL DROP TABLE dbo.schema_version;";
+    }
+
     @Override
     public String sqlCreateBook() {
         return "create table book (\n" +
@@ -58,4 +66,33 @@ public class SqlServerInitializer implements DBInitializer {
                 "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
                 ");";
     }
+
+    @Override
+    public String sqlCreateSchemaVersion() {
+        return "create table schema_version (\n" +
+                "    version int not null,\n" +
+                "    description varchar(255) not null,\n" +
+                "    applied_at bigint not null,\n" +
+                "    primary key (version)\n" +
+                ");";
+    }
+
+    @Override
+    public List<Migration> migrations() {
+        return Arrays.asList(
+                new Migration(1, "create tables", sqlCreateCard(), sqlCreateBook(), sqlCreateBorrow()),
+                new Migration(2, "indexes for borrow/return/remove and range queries",
+                        "create index idx_borrow_book_open on borrow (book_id, return_time, card_id) include (borrow_time);",
+                        "create index idx_borrow_card_open on borrow (card_id, return_time) include (book_id);",
+                        "create index idx_borrow_card_time on borrow (card_id, borrow_time desc, book_id) include (return_time);",
+                        "create index idx_book_publish_year on book (publish_year);",
+                        "create index idx_book_price on book (price);")
+        );
+    }
+
+    @Override
+    public String sqlExplain(String query) {
+        // SET SHOWPLAN_XML must be the only statement in its batch
+        return null;
+    }
 }
@@ -0,0 +1,160 @@
+package utils;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Traces the statements executed through a {@link DatabaseConnector},
+ * see {@link TraceConfig}.
+ *
+ * Note:
+ *      (1) every statement is logged at FINE to the "sql.trace" logger with
+ *          the request id, elapsed time, row count, parameter shape and
+ *          SQL text. statements taking at least slowQueryMillis are also
+ *          written to the rotating slow query log.
+ *      (2) the request id is bound to the thread running the request with
+ *          {@link #begin}, a thread working for that request (like the
+ *          /bookset writer) binds the same id again with {@link #bind}.
+ *      (3) the elapsed time of a query runs until its result set is read
+ *          to the end or closed, so a slow fetch counts as a slow query.
+ *      (4) parameter shapes hold types, not values: a string is logged by
+ *          its length only, except a LIKE "%" that matches everything.
+ *      (5) connections are only wrapped when tracing is enabled, so a
+ *          connector without a tracer pays nothing.
+ */
+public final class SqlTracer {
+
+    private static final Logger trace = Logger.getLogger("sql.trace");
+
+    /* statements of one request, bound to the threads serving it */
+    public static final class Request {
+        private final String id;
+        private int statements = 0;
+        private long sqlNanos = 0L;
+        private int slowStatements = 0;
+
+        private Request(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public synchronized int getStatements() {
+            return statements;
+        }
+
+        public synchronized long getSqlNanos() {
+            return sqlNanos;
+        }
+
+        public synchronized int getSlowStatements() {
+            return slowStatements;
+        }
+
+        private synchronized void add(long nanos, boolean slow) {
+            statements++;
+            sqlNanos += nanos;
+            if (slow) {
+                slowStatements++;
+            }
+        }
+    }
+
+    private static final ThreadLocal<Request> current = new ThreadLocal<>();
+
+    /* parameters logged per statement, the rest of a long IN or VALUES list is counted */
+    private static final int MAX_LOGGED_PARAMS = 16;
+
+    private final long slowQueryNanos;
+    private final FileHandler slowLog;
+
+    public SqlTracer(TraceConfig conf) throws IOException {
+        this.slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(conf.getSlowQueryMillis());
+        this.slowLog = new FileHandler(conf.getSlowLogFile(), conf.getSlowLogMaxBytes(), conf.getSlowLogFiles(), true);
+        slowLog.setFormatter(new Formatter() {
+            @Override
+            public String format(LogRecord record) {
+                return String.format("%1$tF %1$tT.%1$tL %2$s%n", record.getMillis(), record.getMessage());
+            }
+        });
+    }
+
+    /* flush and close the slow query log */
+    public void close() {
+        slowLog.close();
+    }
+
+    /**
+     * start tracing a request on the current thread, end it with {@link #end}.
+     */
+    public static Request begin(String requestId) {
+        Request request = new Request(requestId);
+        current.set(request);
+        return request;
+    }
+
+    public static void end() {
+        current.remove();
+    }
+
+    /* the request traced on the current thread, null if none */
+    public static Request currentRequest() {
+        return current.get();
+    }
+
+    /* trace the statements of the current thread as part of request, null unbinds */
+    public static void bind(Request request) {
+        if (request == null) {
+            current.remove();
+        } else {
+            current.set(request);
+        }
+    }
+
+    Connection wrap(Connection conn) {
+        return StatementTracer.wrap(conn, this);
+    }
+
+    /**
+     * called by {@link StatementTracer} when a statement has finished.
+     */
+    void record(String sql, List<String> params, long rows, long nanos, boolean failed) {
+        boolean slow = nanos >= slowQueryNanos;
+        Request request = current.get();
+        if (request != null) {
+            request.add(nanos, slow);
+        }
+        if (!slow && !trace.isLoggable(Level.FINE)) {
+            return;
+        }
+        String line = "request=" + (request == null ? "-" : request.getId())
+                + " elapsedMs=" + String.format(Locale.ROOT, "%.3f", nanos / 1e6)
+                + " rows=" + rows
+                + (failed ? " failed" : "")
+                + " params=" + shape(params)
+                + " sql=" + sql;
+        trace.fine(line);
+        if (slow) {
+            slowLog.publish(new LogRecord(Level.WARNING, line));
+            slowLog.flush();
+        }
+    }
+
+    private static String shape(List<String> params) {
+        if (params.size() <= MAX_LOGGED_PARAMS) {
+            return params.toString();
+        }
+        return params.subList(0, MAX_LOGGED_PARAMS).toString().replaceFirst("]$", "")
+                + ", ... " + params.size() + " in total]";
+    }
+}
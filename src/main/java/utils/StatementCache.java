@@ -0,0 +1,258 @@
+package utils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of the prepared statements of one pooled connection.
+ *
+ * Note:
+ *      (1) {@link #connection} is a proxy of the raw connection whose
+ *          prepareStatement(sql) and prepareStatement(sql, autoGeneratedKeys)
+ *          hand out a cached statement for the same SQL text, so the
+ *          driver and the server parse and plan it only once.
+ *      (2) closing a handed-out statement puts it back: its result sets
+ *          are closed and parameters, batch, max rows and fetch size are
+ *          reset. the statement is really closed when it is evicted or
+ *          the connection is closed.
+ *      (3) a statement that is still open when the same SQL is prepared
+ *          again is not shared, the second one is prepared uncached.
+ *      (4) {@link #reclaim} takes back every statement that was handed out
+ *          and not closed, the pool calls it when the connection is
+ *          released.
+ *      (5) a connection is used by one thread at a time, so the cache is
+ *          not synchronized.
+ */
+final class StatementCache {
+
+    private static final class Entry {
+        final PreparedStatement statement;
+        final int defaultMaxRows;
+        final int defaultFetchSize;
+        boolean inUse;
+        boolean evicted;
+
+        Entry(PreparedStatement statement) throws SQLException {
+            this.statement = statement;
+            this.defaultMaxRows = statement.getMaxRows();
+            this.defaultFetchSize = statement.getFetchSize();
+        }
+    }
+
+    private final Connection raw;
+    private final int capacity;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private final LinkedHashMap<String, Entry> entries;
+    private final Connection connection;
+    /* handed out and not closed yet */
+    private final List<StatementHandler> open = new ArrayList<>();
+    private final List<PreparedStatement> uncached = new ArrayList<>();
+
+    /**
+     * cache up to capacity prepared statements of raw, the counters are
+     * shared by all connections of a pool.
+     */
+    StatementCache(Connection raw, int capacity, AtomicLong hits, AtomicLong misses, AtomicLong evictions) {
+        this.raw = raw;
+        this.capacity = capacity;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= StatementCache.this.capacity) {
+                    return false;
+                }
+                StatementCache.this.evictions.incrementAndGet();
+                Entry entry = eldest.getValue();
+                if (entry.inUse) {
+                    // closed when it is given back
+                    entry.evicted = true;
+                } else {
+                    closeQuietly(entry.statement);
+                }
+                return true;
+            }
+        };
+        this.connection = (Connection) Proxy.newProxyInstance(StatementCache.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new ConnectionHandler());
+    }
+
+    /* the connection to hand out instead of raw */
+    Connection connection() {
+        return connection;
+    }
+
+    /**
+     * take back all statements that are still open.
+     */
+    void reclaim() {
+        for (StatementHandler handler : new ArrayList<>(open)) {
+            try {
+                handler.close();
+            } catch (SQLException e) {
+                // already dropped from the cache by giveBack
+            }
+        }
+        for (PreparedStatement statement : uncached) {
+            closeQuietly(statement);
+        }
+        uncached.clear();
+    }
+
+    private PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys + ":" + sql;
+        Entry entry = entries.get(key);
+        if (entry != null && entry.inUse) {
+            misses.incrementAndGet();
+            PreparedStatement statement = raw.prepareStatement(sql, autoGeneratedKeys);
+            uncached.add(statement);
+            return statement;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            entry = new Entry(raw.prepareStatement(sql, autoGeneratedKeys));
+            entries.put(key, entry);
+        } else {
+            hits.incrementAndGet();
+        }
+        entry.inUse = true;
+        StatementHandler handler = new StatementHandler(entry);
+        open.add(handler);
+        return (PreparedStatement) Proxy.newProxyInstance(StatementCache.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, handler);
+    }
+
+    private void giveBack(Entry entry, List<ResultSet> results) throws SQLException {
+        entry.inUse = false;
+        if (entry.evicted) {
+            entry.statement.close();
+            return;
+        }
+        try {
+            for (ResultSet rSet : results) {
+                rSet.close();
+            }
+            PreparedStatement statement = entry.statement;
+            statement.clearParameters();
+            statement.clearBatch();
+            if (statement.getMaxRows() != entry.defaultMaxRows) {
+                statement.setMaxRows(entry.defaultMaxRows);
+            }
+            if (statement.getFetchSize() != entry.defaultFetchSize) {
+                statement.setFetchSize(entry.defaultFetchSize);
+            }
+        } catch (SQLException e) {
+            // a statement that cannot be reset is not reused
+            entries.values().remove(entry);
+            closeQuietly(entry.statement);
+            throw e;
+        }
+    }
+
+    private void closeAll() {
+        for (Entry entry : entries.values()) {
+            closeQuietly(entry.statement);
+        }
+        entries.clear();
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private final class ConnectionHandler implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "prepareStatement":
+                    if (args.length == 1) {
+                        return prepare((String) args[0], Statement.NO_GENERATED_KEYS);
+                    }
+                    if (args.length == 2 && method.getParameterTypes()[1] == int.class) {
+                        return prepare((String) args[0], (Integer) args[1]);
+                    }
+                    break;
+                case "close":
+                    uncached.clear();
+                    closeAll();
+                    break;
+                default:
+            }
+            return StatementCache.invoke(raw, method, args);
+        }
+    }
+
+    private final class StatementHandler implements InvocationHandler {
+        private final Entry entry;
+        private final List<ResultSet> results = new ArrayList<>(1);
+        private boolean closed = false;
+
+        StatementHandler(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed;
+                default:
+            }
+            if (closed) {
+                throw new SQLException("Statement is closed.");
+            }
+            Object result = StatementCache.invoke(entry.statement, method, args);
+            if (result instanceof ResultSet) {
+                results.add((ResultSet) result);
+            }
+            return result;
+        }
+
+        void close() throws SQLException {
+            if (!closed) {
+                closed = true;
+                open.remove(this);
+                giveBack(entry, results);
+            }
+        }
+    }
+}
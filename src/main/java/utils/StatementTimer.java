@@ -0,0 +1,104 @@
+package utils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.regex.Pattern;
+
+/**
+ * Times every statement executed on one connection into a metrics family
+ * labelled by the SQL text.
+ *
+ * Note:
+ *      (1) {@link #wrap} returns a proxy of the connection whose prepared
+ *          and plain statements time their execute* calls, the statement
+ *          itself is not changed.
+ *      (2) the label is the SQL with whitespace collapsed, and multi-row
+ *          VALUES lists and IN lists folded to one element, so a chunked
+ *          insert of any size is one series.
+ *      (3) it sits below {@link StatementCache}, so a cached statement is
+ *          timed on every execution.
+ */
+final class StatementTimer {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern TUPLES = Pattern.compile("(\\([?, ]*\\))(\\s*,\\s*\\([?, ]*\\))+");
+    private static final Pattern IN_LIST = Pattern.compile("(?i)\\bin\\s*\\(\\s*\\?(\\s*,\\s*\\?)+\\s*\\)");
+
+    private StatementTimer() {
+    }
+
+    static Connection wrap(Connection raw, Metrics.Family statements) {
+        return (Connection) Proxy.newProxyInstance(StatementTimer.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                    }
+                    Object result = invoke(raw, method, args);
+                    if (method.getName().equals("prepareStatement")) {
+                        Metrics.Timer timer = statements.timer(label((String) args[0]));
+                        return proxy(PreparedStatement.class, result, (m, a) -> timer);
+                    }
+                    if (method.getName().equals("createStatement")) {
+                        // plain statements get the SQL with each execute call
+                        return proxy(Statement.class, result,
+                                (m, a) -> statements.timer(a != null && a.length > 0 && a[0] instanceof String
+                                        ? label((String) a[0]) : "batch"));
+                    }
+                    return result;
+                });
+    }
+
+    /* the label of sql, see note (2) */
+    static String label(String sql) {
+        String s = WHITESPACE.matcher(sql.trim()).replaceAll(" ");
+        s = TUPLES.matcher(s).replaceAll("$1");
+        return IN_LIST.matcher(s).replaceAll("in (?)");
+    }
+
+    private interface TimerOf {
+        Metrics.Timer timer(Method method, Object[] args);
+    }
+
+    private static Object proxy(Class<?> type, Object target, TimerOf timerOf) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+            }
+            if (!method.getName().startsWith("execute")) {
+                return invoke(target, method, args);
+            }
+            Metrics.Timer timer = timerOf.timer(method, args);
+            long start = System.nanoTime();
+            boolean error = true;
+            try {
+                Object result = invoke(target, method, args);
+                error = false;
+                return result;
+            } finally {
+                timer.record(start, error);
+            }
+        };
+        return Proxy.newProxyInstance(StatementTimer.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
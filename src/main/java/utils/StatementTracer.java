@@ -0,0 +1,225 @@
+package utils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connection proxy reporting every statement to a {@link SqlTracer}.
+ *
+ * Note:
+ *      (1) setXxx(index, value) calls are remembered as the parameter
+ *          shape of the next execution, see note (4) of {@link SqlTracer}.
+ *      (2) the rows of a query are counted while its result set is read,
+ *          the rows of an update or batch are the update counts.
+ *      (3) like {@link StatementTimer} it sits below {@link StatementCache},
+ *          so a cached statement is traced on every execution.
+ */
+final class StatementTracer {
+
+    private StatementTracer() {
+    }
+
+    static Connection wrap(Connection raw, SqlTracer tracer) {
+        return (Connection) Proxy.newProxyInstance(StatementTracer.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                    }
+                    Object result = invoke(raw, method, args);
+                    if (method.getName().equals("prepareStatement")) {
+                        return new Traced((Statement) result, StatementTimer.label((String) args[0]), tracer)
+                                .proxy(PreparedStatement.class);
+                    }
+                    if (method.getName().equals("createStatement")) {
+                        return new Traced((Statement) result, null, tracer).proxy(Statement.class);
+                    }
+                    return result;
+                });
+    }
+
+    private static final class Traced implements InvocationHandler {
+        private final Statement target;
+        /* null for a plain statement, its SQL comes with each execute call */
+        private final String preparedSql;
+        private final SqlTracer tracer;
+        private final List<String> params = new ArrayList<>();
+        private int batches = 0;
+        /* the query whose result set is still being read */
+        private String pendingSql = null;
+        private List<String> pendingParams;
+        private long pendingStart;
+        private long pendingRows;
+
+        Traced(Statement target, String preparedSql, SqlTracer tracer) {
+            this.target = target;
+            this.preparedSql = preparedSql;
+            this.tracer = tracer;
+        }
+
+        Object proxy(Class<?> type) {
+            return Proxy.newProxyInstance(StatementTracer.class.getClassLoader(), new Class<?>[]{type}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "clearParameters":
+                    params.clear();
+                    break;
+                case "addBatch":
+                    batches++;
+                    break;
+                case "clearBatch":
+                    batches = 0;
+                    break;
+                case "close":
+                    finishQuery();
+                    break;
+                default:
+                    if (name.startsWith("execute")) {
+                        return execute(method, args);
+                    }
+                    if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                        setShape((Integer) args[0], shape(name, args[1]));
+                    }
+            }
+            return StatementTracer.invoke(target, method, args);
+        }
+
+        private Object execute(Method method, Object[] args) throws Throwable {
+            finishQuery();
+            String sql = preparedSql != null ? preparedSql
+                    : args != null && args.length > 0 && args[0] instanceof String ? StatementTimer.label((String) args[0]) : "batch";
+            List<String> shape = new ArrayList<>(params);
+            if (batches > 0) {
+                shape.add("x" + batches);
+            }
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = StatementTracer.invoke(target, method, args);
+            } catch (Throwable e) {
+                tracer.record(sql, shape, -1, System.nanoTime() - start, true);
+                throw e;
+            }
+            if (method.getName().startsWith("executeBatch") || method.getName().startsWith("executeLargeBatch")) {
+                batches = 0;
+            }
+            if (result instanceof ResultSet) {
+                pendingSql = sql;
+                pendingParams = shape;
+                pendingStart = start;
+                pendingRows = 0;
+                return Proxy.newProxyInstance(StatementTracer.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                        new Rows((ResultSet) result));
+            }
+            tracer.record(sql, shape, rows(result), System.nanoTime() - start, false);
+            return result;
+        }
+
+        private void finishQuery() {
+            if (pendingSql != null) {
+                String sql = pendingSql;
+                pendingSql = null;
+                tracer.record(sql, pendingParams, pendingRows, System.nanoTime() - pendingStart, false);
+            }
+        }
+
+        private void setShape(int index, String shape) {
+            while (params.size() < index) {
+                params.add("?");
+            }
+            params.set(index - 1, shape);
+        }
+
+        /* counts the rows of the pending query */
+        private final class Rows implements InvocationHandler {
+            private final ResultSet target;
+
+            Rows(ResultSet target) {
+                this.target = target;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "next":
+                        Object next = StatementTracer.invoke(target, method, args);
+                        if ((Boolean) next) {
+                            pendingRows++;
+                        } else {
+                            finishQuery();
+                        }
+                        return next;
+                    case "close":
+                        finishQuery();
+                        break;
+                    default:
+                }
+                return StatementTracer.invoke(target, method, args);
+            }
+        }
+    }
+
+    private static long rows(Object result) {
+        if (result instanceof Number) {
+            return ((Number) result).longValue();
+        }
+        long rows = 0;
+        if (result instanceof int[]) {
+            for (int n : (int[]) result) {
+                rows += Math.max(n, 0);
+            }
+        } else if (result instanceof long[]) {
+            for (long n : (long[]) result) {
+                rows += Math.max(n, 0);
+            }
+        } else {
+            // execute(sql) returns whether there is a result set
+            return -1;
+        }
+        return rows;
+    }
+
+    private static String shape(String setter, Object value) {
+        if (value == null || setter.equals("setNull")) {
+            return "null";
+        }
+        if (value instanceof String) {
+            return "%".equals(value) ? "'%'" : "string(" + ((String) value).length() + ")";
+        }
+        if (setter.equals("setObject")) {
+            return value.getClass().getSimpleName().toLowerCase();
+        }
+        return setter.substring(3).toLowerCase();
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package utils;
+
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings of the SQL trace, read from the "trace" section of
+ * application.yaml. every key is optional, tracing is off by default.
+ */
+public final class TraceConfig {
+
+    private final boolean enabled;
+    /* statements running at least this long go to the slow query log */
+    private final long slowQueryMillis;
+    /* rotated as slowLogFile.0 (current), slowLogFile.1, ... */
+    private final String slowLogFile;
+    private final int slowLogMaxBytes;
+    private final int slowLogFiles;
+
+    @SuppressWarnings("unchecked")
+    public TraceConfig() throws FileNotFoundException, NullPointerException {
+        URL res = TraceConfig.class.getClassLoader().getResource("application.yaml");
+        if (res == null) {
+            throw new NullPointerException();
+        }
+        BufferedReader br = new BufferedReader(new FileReader(res.getPath()));
+        Yaml yaml = new Yaml();
+        Map<String, Object> objectMap = yaml.load(br);
+        Map<String, Object> traceMap = (Map<String, Object>)objectMap.getOrDefault("trace", new HashMap<>());
+        enabled = Boolean.parseBoolean(traceMap.getOrDefault("enabled", "false").toString());
+        Object slow = traceMap.get("slowQueryMillis");
+        slowQueryMillis = slow == null ? 200L : Long.parseLong(slow.toString());
+        slowLogFile = traceMap.getOrDefault("slowLogFile", "slow-query.log").toString();
+        Object maxBytes = traceMap.get("slowLogMaxBytes");
+        slowLogMaxBytes = maxBytes == null ? 10 * 1024 * 1024 : Integer.parseInt(maxBytes.toString());
+        Object files = traceMap.get("slowLogFiles");
+        slowLogFiles = files == null ? 5 : Integer.parseInt(files.toString());
+    }
+
+    public TraceConfig(boolean enabled, long slowQueryMillis, String slowLogFile, int slowLogMaxBytes, int slowLogFiles) {
+        this.enabled = enabled;
+        this.slowQueryMillis = slowQueryMillis;
+        this.slowLogFile = slowLogFile;
+        this.slowLogMaxBytes = slowLogMaxBytes;
+        this.slowLogFiles = slowLogFiles;
+    }
+
+    @Override
+    public String toString() {
+        return "utils.TraceConfig: {" + "enabled=" + enabled +
+                ", slowQueryMillis=" + slowQueryMillis +
+                ", slowLogFile='" + slowLogFile + '\'' +
+                ", slowLogMaxBytes=" + slowLogMaxBytes +
+                ", slowLogFiles=" + slowLogFiles +
+                '}';
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getSlowQueryMillis() {
+        return slowQueryMillis;
+    }
+
+    public String getSlowLogFile() {
+        return slowLogFile;
+    }
+
+    public int getSlowLogMaxBytes() {
+        return slowLogMaxBytes;
+    }
+
+    public int getSlowLogFiles() {
+        return slowLogFiles;
+    }
+}
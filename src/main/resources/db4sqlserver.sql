@@ -33,4 +33,6 @@ create table borrow (
     primary key (card_id, book_id, borrow_time),
     foreign key (card_id) references card(card_id) on delete cascade on update cascade,
     foreign key (book_id) references book(book_id) on delete cascade on update cascade
-);
\ No newline at end of file
+);
+
+-- this script matches schema version 1, indexes are added by utils.MigrationRunner at startup
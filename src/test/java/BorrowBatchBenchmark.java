@@ -0,0 +1,142 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import org.HdrHistogram.Histogram;
+import queries.ApiResult;
+import utils.BatchConfig;
+import utils.ConnectConfig;
+import utils.DatabaseConnector;
+import utils.RandomData;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Borrows and returns random books from many threads, once without
+ * batching and once per batch window. reports commits per second next to
+ * the latency of a single call, the price paid for fewer commits.
+ *
+ * usage: java BorrowBatchBenchmark [nThreads (default 32)] [seconds (default 5)]
+ *                                  [windowsMicros (default 0,200,1000,5000)] [maxBatch (default 64)]
+ *
+ * Note: this resets the database configured in application.yaml!
+ */
+public class BorrowBatchBenchmark {
+
+    private static final int BOOKS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int nThreads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String[] windows = (args.length > 2 ? args[2] : "0,200,1000,5000").split(",");
+        int maxBatch = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        DatabaseConnector connector = new DatabaseConnector(new ConnectConfig());
+        if (!connector.connect()) {
+            throw new IllegalStateException("Failed to connect database.");
+        }
+        LibraryManagementSystem library = new LibraryManagementSystemImpl(connector);
+        try {
+            check(library.resetDatabase());
+            Set<Book> books = new HashSet<>();
+            while (books.size() < BOOKS) {
+                Book book = RandomData.randomBook();
+                book.setStock(nThreads);
+                books.add(book);
+            }
+            List<Book> bookList = new ArrayList<>(books);
+            check(library.storeBook(bookList));
+            List<Card> cards = new ArrayList<>();
+            for (int i = 0; i < nThreads; i++) {
+                Card card = new Card(0, String.format("Batch%05d", i), RandomData.randomDepartment(), Card.CardType.random());
+                check(library.registerCard(card));
+                cards.add(card);
+            }
+
+            System.out.printf("%d threads, %d s per run, borrow + return of random books out of %d%n", nThreads, seconds, BOOKS);
+            System.out.printf("%-10s %10s %12s %10s %10s %10s %10s%n",
+                    "window", "calls/s", "commits/s", "per commit", "p50 ms", "p99 ms", "p99.9 ms");
+            report("off", run(library, bookList, cards, seconds), seconds, -1);
+            for (String window : windows) {
+                BatchConfig conf = new BatchConfig(true, Long.parseLong(window.trim()), maxBatch);
+                BatchingLibraryManagementSystem batching = new BatchingLibraryManagementSystem(library, connector, conf);
+                try {
+                    Histogram latency = run(batching, bookList, cards, seconds);
+                    report(window.trim() + "us", latency, seconds, batching.getCommits());
+                } finally {
+                    batching.close();
+                }
+            }
+        } finally {
+            connector.release();
+        }
+    }
+
+    /* latency of every call in microseconds */
+    private static Histogram run(LibraryManagementSystem library, List<Book> books, List<Card> cards,
+                                 int seconds) throws InterruptedException {
+        Histogram total = new Histogram(3);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<Histogram> latencies = new ArrayList<>();
+        for (Card card : cards) {
+            Histogram latency = new Histogram(3);
+            latencies.add(latency);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                /* borrow times must increase, Borrow.resetBorrowTime() would sleep */
+                long time = System.currentTimeMillis() * 1000;
+                long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+                while (System.nanoTime() < end) {
+                    Book book = books.get(ThreadLocalRandom.current().nextInt(books.size()));
+                    Borrow borrow = new Borrow(book.getBookId(), card.getCardId());
+                    borrow.setBorrowTime(++time);
+                    long begin = System.nanoTime();
+                    check(library.borrowBook(borrow));
+                    latency.recordValue((System.nanoTime() - begin) / 1000);
+                    borrow.setReturnTime(++time);
+                    begin = System.nanoTime();
+                    check(library.returnBook(borrow));
+                    latency.recordValue((System.nanoTime() - begin) / 1000);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Histogram latency : latencies) {
+            total.add(latency);
+        }
+        return total;
+    }
+
+    /* every call commits on its own if commits is negative */
+    private static void report(String window, Histogram latency, int seconds, long commits) {
+        long calls = latency.getTotalCount();
+        if (commits < 0) {
+            commits = calls;
+        }
+        System.out.printf("%-10s %10.0f %12.0f %10.1f %10.3f %10.3f %10.3f%n", window,
+                (double) calls / seconds, (double) commits / seconds, (double) calls / Math.max(commits, 1),
+                latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+                latency.getValueAtPercentile(99.9) / 1000.0);
+    }
+
+    private static void check(ApiResult result) {
+        if (!result.ok) {
+            throw new IllegalStateException(result.message);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import entities.Book;
+import entities.Borrow;
+import entities.Card;
+import queries.ApiResult;
+import utils.ConnectConfig;
+import utils.DatabaseConnector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many threads race to borrow copies of one hot book. reports throughput
+ * and checks that exactly `stock` borrows succeed.
+ *
+ * usage: java BorrowRaceBenchmark [nThreads (default 64)] [stock (default 100)] [attemptsPerThread (default 50)]
+ *
+ * Note: this resets the database configured in application.yaml!
+ */
+public class BorrowRaceBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int nThreads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int stock = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int attempts = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        DatabaseConnector connector = new DatabaseConnector(new ConnectConfig());
+        if (!connector.connect()) {
+            throw new IllegalStateException("Failed to connect database.");
+        }
+        LibraryManagementSystem library = new LibraryManagementSystemImpl(connector);
+        try {
+            check(library.resetDatabase());
+            Book book = new Book("Novel", "Hot Book", "Press-A", 2023, "Nonehyo", 10.00, stock);
+            check(library.storeBook(book));
+            List<Card> cards = new ArrayList<>();
+            for (int i = 0; i < nThreads * attempts; i++) {
+                Card card = new Card(0, String.format("User%06d", i), "Computer Science", Card.CardType.Student);
+                check(library.registerCard(card));
+                cards.add(card);
+            }
+
+            AtomicInteger successOps = new AtomicInteger(0);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < nThreads; t++) {
+                int offset = t * attempts;
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < attempts; i++) {
+                        Borrow borrow = new Borrow(book, cards.get(offset + i));
+                        borrow.resetBorrowTime();
+                        if (library.borrowBook(borrow).ok) {
+                            successOps.incrementAndGet();
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - begin) / 1e9;
+            int total = nThreads * attempts;
+            System.out.printf("%d threads, %d borrow attempts on one book with stock %d: %.3f s, %.0f ops/s, %d succeeded\n",
+                    nThreads, total, stock, seconds, total / seconds, successOps.get());
+            if (successOps.get() != Math.min(stock, total)) {
+                throw new IllegalStateException("Expected " + Math.min(stock, total) + " successful borrows.");
+            }
+        } finally {
+            connector.release();
+        }
+    }
+
+    private static void check(ApiResult result) {
+        if (!result.ok) {
+            throw new IllegalStateException(result.message);
+        }
+    }
+}
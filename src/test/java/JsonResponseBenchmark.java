@@ -0,0 +1,85 @@
+import entities.Book;
+import org.json.JSONArray;
+import utils.RandomData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the old String concatenation used by the handlers with
+ * {@link JsonResponseWriter} when rendering a list of books.
+ *
+ * usage: java JsonResponseBenchmark [nBooks (default 100000)] [rounds (default 3)] [legacyBooks (default 20000)]
+ *
+ * the old code is quadratic, so it only renders the first legacyBooks
+ * books (about 35s per round for 20000 books, minutes for 100000).
+ */
+public class JsonResponseBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int nBooks = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int legacyBooks = Math.min(nBooks, args.length > 2 ? Integer.parseInt(args[2]) : 20000);
+        List<Book> books = new ArrayList<>(nBooks);
+        for (int i = 0; i < nBooks; i++) {
+            Book book = RandomData.randomBook();
+            book.setBookId(i + 1);
+            books.add(book);
+        }
+        // titles with quotes used to break the old output
+        books.get(0).setTitle("The \"Quoted\" Title\\");
+
+        /* sanity check: the streamed output must be valid JSON */
+        ByteArrayOutputStream check = new ByteArrayOutputStream();
+        JsonResponseWriter.writeList(check, books, JsonResponseWriter.BOOK);
+        JSONArray parsed = new JSONArray(check.toString("UTF-8"));
+        if (parsed.length() != nBooks || !books.get(0).getTitle().equals(parsed.getJSONObject(0).getString("title"))) {
+            throw new IllegalStateException("JsonResponseWriter produced unexpected output.");
+        }
+
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            int legacyBytes = legacyConcat(books.subList(0, legacyBooks)).getBytes().length;
+            long legacyNanos = System.nanoTime() - start;
+
+            CountingOutputStream counter = new CountingOutputStream();
+            start = System.nanoTime();
+            JsonResponseWriter.writeList(counter, books, JsonResponseWriter.BOOK);
+            long streamNanos = System.nanoTime() - start;
+
+            System.out.printf("round %d: concat %d books %.1f ms (%d bytes), stream %d books %.1f ms (%d bytes)\n",
+                    round, legacyBooks, legacyNanos / 1e6, legacyBytes, nBooks, streamNanos / 1e6, counter.count);
+        }
+    }
+
+    /* the response building code used by BookHandler before JsonResponseWriter */
+    private static String legacyConcat(List<Book> resBookList) {
+        String response = "";
+        for (int i = 0; i < resBookList.size(); i++) {
+            Book book = resBookList.get(i);
+            String bookInfo = "{\"book_id\": " + book.getBookId() + ", \"category\": \"" + book.getCategory() + "\", \"title\": \"" + book.getTitle() + "\", \"press\": \"" + book.getPress() + "\", \"publishYear\": " + book.getPublishYear() + ", \"author\": \"" + book.getAuthor() + "\", \"price\": " + book.getPrice() + ", \"stock\": " + book.getStock() + "}";
+            if (i > 0) {
+                bookInfo = "," + bookInfo;
+            }
+            response += bookInfo;
+        }
+        return "[" + response + "]";
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
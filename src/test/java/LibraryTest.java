@@ -4,18 +4,60 @@ import entities.Card;
 import org.apache.commons.lang3.RandomUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
+import org.json.JSONArray;
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import queries.*;
+import utils.BatchConfig;
 import utils.ConnectConfig;
+import utils.DBInitializer;
 import utils.DatabaseConnector;
+import utils.InventoryConfig;
+import utils.Metrics;
+import utils.Migration;
+import utils.MigrationRunner;
 import utils.RandomData;
+import utils.SearchConfig;
+import utils.ServerConfig;
+import utils.SqlTracer;
+import utils.TraceConfig;
 
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 public class LibraryTest {
 
@@ -258,6 +300,1015 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void importBooksTest() {
+        Set<Book> bookSet = new HashSet<>();
+        while (bookSet.size() < 500) {
+            bookSet.add(RandomData.randomBook());
+        }
+        List<Book> existing = new ArrayList<>(bookSet).subList(0, 100);
+        Assert.assertTrue(library.storeBook(new ArrayList<>(existing)).ok);
+        /* 100 books already stored, 1 repeated in the list, 1 invalid */
+        List<Book> bookList = new ArrayList<>(bookSet);
+        bookList.add(bookList.get(300).clone());
+        Book invalid = RandomData.randomBook();
+        invalid.setStock(-1);
+        bookList.add(invalid);
+        ApiResult result = library.importBooks(bookList, 64);
+        Assert.assertTrue(result.ok);
+        BookImportResults importResults = (BookImportResults) result.payload;
+        Assert.assertEquals(400, importResults.getInserted());
+        Assert.assertEquals(101, importResults.getDuplicates());
+        Assert.assertEquals(1, importResults.getInvalid());
+        Assert.assertEquals(bookList.size(), importResults.getOutcomes().size());
+        Assert.assertEquals(BookImportResults.Outcome.DUPLICATE, importResults.getOutcomes().get(500));
+        Assert.assertEquals(BookImportResults.Outcome.INVALID, importResults.getOutcomes().get(501));
+        ApiResult queryResult = library.queryBook(new BookQueryConditions());
+        Assert.assertTrue(queryResult.ok);
+        Assert.assertEquals(500, ((BookQueryResults) queryResult.payload).getCount());
+    }
+
+    @Test
+    public void bookImportPipelineTest() {
+        /* a header, quoted commas and quotes, and a malformed row in the middle */
+        String csv = "category,title,press,publish_year,author,price,stock\r\n" +
+                "Novel,\"War, and Peace\",Penguin,1869,Tolstoy,12.5,3\r\n" +
+                "Novel,\"The \"\"Quoted\"\" Book\",Penguin,1900,Anon,10.0,1\r\n" +
+                "Novel,Broken,Penguin,unknown,Anon,10.0,1\r\n" +
+                "\r\n" +
+                "Novel,Plain,Penguin,2000,Anon,5.0,2\r\n" +
+                "Novel,\"War, and Peace\",Penguin,1869,Tolstoy,12.5,3\r\n";
+        ApiResult result = new BookImportPipeline(library, 2)
+                .run(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)));
+        Assert.assertTrue(result.message, result.ok);
+        BookImportPipeline.Progress progress = (BookImportPipeline.Progress) result.payload;
+        Assert.assertEquals(5, progress.getRowsParsed());
+        Assert.assertEquals(3, progress.getInserted());
+        Assert.assertEquals(1, progress.getDuplicates());
+        Assert.assertEquals(1, progress.getInvalid());
+        List<Book> books = ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults();
+        Set<String> titles = books.stream().map(Book::getTitle).collect(Collectors.toSet());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("War, and Peace", "The \"Quoted\" Book", "Plain")), titles);
+        /* a first line that is a book is not taken for a header */
+        result = new BookImportPipeline(library, 2).run(new ByteArrayInputStream(
+                "Novel,First,Penguin,2001,Anon,5.0,2\n".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertTrue(result.ok);
+        Assert.assertEquals(1, ((BookImportPipeline.Progress) result.payload).getInserted());
+    }
+
+    @Test
+    public void bookImportParseErrorTest() throws Exception {
+        /* the parser fails after the writer took the first batches, the writer must stop too */
+        String csv = "Novel,One,Penguin,2001,Anon,5.0,2\n" +
+                "Novel,Two,Penguin,2002,Anon,5.0,2\n" +
+                "Novel,\"Three\"x,Penguin,2003,Anon,5.0,2\n" +
+                "Novel,Four,Penguin,2004,Anon,5.0,2\n";
+        CompletableFuture<ApiResult> run = CompletableFuture.supplyAsync(() -> new BookImportPipeline(library, 1)
+                .run(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8))));
+        ApiResult result = run.get(10, TimeUnit.SECONDS);
+        Assert.assertFalse(result.ok);
+        Assert.assertTrue(result.message, result.message.startsWith("批量入库中断"));
+        Assert.assertTrue(Thread.getAllStackTraces().keySet().stream()
+                .noneMatch(thread -> thread.getName().equals("book-import-writer")));
+        /* nothing after the broken row is stored */
+        List<Book> books = ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults();
+        Assert.assertTrue(books.stream().noneMatch(book -> book.getTitle().equals("Four")));
+    }
+
+    @Test
+    public void statementCacheTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 100, 1, 0);
+        BookQueryConditions conditions = new BookQueryConditions();
+        conditions.setLimit(5);
+        Assert.assertEquals(5, ((BookQueryResults) library.queryBook(conditions).payload).getCount());
+        long hits = connector.getStatementCacheHits();
+        /* same statement shape, the max rows of the paged query must not leak into this one */
+        conditions.setLimit(null);
+        ApiResult result = library.queryBook(conditions);
+        Assert.assertTrue(result.ok);
+        Assert.assertEquals(my.nBooks(), ((BookQueryResults) result.payload).getCount());
+        Assert.assertEquals(hits + 1, connector.getStatementCacheHits());
+        /* a different fuzzy filter still reuses the statement */
+        conditions.setTitle("a");
+        Assert.assertTrue(library.queryBook(conditions).ok);
+        Assert.assertEquals(hits + 2, connector.getStatementCacheHits());
+        /* lists of 3 and 4 books share the padded statements of their duplicate check or insert */
+        List<Book> three = new ArrayList<>();
+        List<Book> four = new ArrayList<>();
+        while (three.size() < 3 || four.size() < 4) {
+            Book book = RandomData.randomBook();
+            if (!my.books.contains(book) && !three.contains(book) && !four.contains(book)) {
+                (three.size() < 3 ? three : four).add(book);
+            }
+        }
+        Assert.assertTrue(library.storeBook(three).ok);
+        long misses = connector.getStatementCacheMisses();
+        Assert.assertTrue(library.storeBook(four).ok);
+        Assert.assertEquals(misses, connector.getStatementCacheMisses());
+    }
+
+    @Test
+    public void cachedQueryBookTest() {
+        CachingLibraryManagementSystem cached = new CachingLibraryManagementSystem(library,
+                new utils.CacheConfig(16, 60000));
+        Book b0 = new Book("Computer Science", "Database System Concepts", "PressA", 2023, "Mike", 188.88, 1);
+        Book b1 = new Book("Physics", "Quantum Mechanics", "PressB", 2020, "Nina", 66.60, 5);
+        Assert.assertTrue(cached.storeBook(b0).ok);
+        Assert.assertTrue(cached.storeBook(b1).ok);
+        Card card = new Card(0, "Alice", "CS", Card.CardType.Student);
+        Assert.assertTrue(cached.registerCard(card).ok);
+
+        BookQueryConditions csBooks = new BookQueryConditions();
+        csBooks.setCategory("Computer Science");
+        BookQueryConditions physicsBooks = new BookQueryConditions();
+        physicsBooks.setCategory("Physics");
+        Assert.assertEquals(1, ((BookQueryResults) cached.queryBook(csBooks).payload).getCount());
+        Assert.assertEquals(1, ((BookQueryResults) cached.queryBook(physicsBooks).payload).getCount());
+        Assert.assertEquals(1, ((BookQueryResults) cached.queryBook(csBooks).payload).getCount());
+        Assert.assertEquals(1, cached.getHits());
+        Assert.assertEquals(2, cached.getMisses());
+
+        /* a borrow drops the entry holding the book, and only that one */
+        Borrow borrow = new Borrow(b0, card);
+        borrow.resetBorrowTime();
+        Assert.assertTrue(cached.borrowBook(borrow).ok);
+        Assert.assertEquals(0, ((BookQueryResults) cached.queryBook(csBooks).payload).getResults().get(0).getStock());
+        Assert.assertEquals(3, cached.getMisses());
+        cached.queryBook(physicsBooks);
+        Assert.assertEquals(2, cached.getHits());
+
+        /* a new book matching the filter shows up */
+        Book b2 = new Book("Computer Science", "Operating Systems", "PressA", 2021, "Ken", 99.00, 3);
+        Assert.assertTrue(cached.storeBook(b2).ok);
+        Assert.assertEquals(2, ((BookQueryResults) cached.queryBook(csBooks).payload).getCount());
+        Assert.assertEquals(1, ((BookQueryResults) cached.queryBook(physicsBooks).payload).getCount());
+        Assert.assertEquals(3, cached.getHits());
+    }
+
+    @Test
+    public void searchIndexTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 300, 0, 0);
+        SearchLibraryManagementSystem search = new SearchLibraryManagementSystem(library, connector,
+                new SearchConfig(true, 1024));
+        Book cn = new Book("Computer Science", "数据库系统概念", "机械工业出版社", 2006, "Silberschatz", 99.00, 3);
+        Book exact = new Book("Computer Science", "System", "Press-A", 2020, "Coco", 10.00, 3);
+        Assert.assertTrue(search.storeBook(cn).ok);
+        Assert.assertTrue(search.storeBook(exact).ok);
+        Assert.assertEquals(my.nBooks() + 2, search.getIndex().size());
+        /* the index only narrows the scan, results are those of the database */
+        List<BookQueryConditions> conditions = new ArrayList<>();
+        for (String title : new String[]{"base Sys", "System", "Sea", "c++", "e", "库系", "据", "系统概念", "no such book"}) {
+            BookQueryConditions c = new BookQueryConditions();
+            c.setTitle(title);
+            conditions.add(c);
+        }
+        for (int i = 0; i < 20; i++) {
+            BookQueryConditions c = new BookQueryConditions();
+            String author = RandomData.randomAuthor();
+            int from = RandomUtils.nextInt(0, author.length());
+            c.setAuthor(author.substring(from, RandomUtils.nextInt(from + 1, author.length() + 1)));
+            c.setPress(RandomUtils.nextBoolean() ? null : RandomData.randomPress().substring(5));
+            c.setSortBy(Book.SortColumn.random());
+            c.setSortOrder(SortOrder.random());
+            conditions.add(c);
+        }
+        for (BookQueryConditions c : conditions) {
+            List<Book> expected = ((BookQueryResults) library.queryBook(c).payload).getResults();
+            List<Book> actual = ((BookQueryResults) search.queryBook(c).payload).getResults();
+            Assert.assertEquals(expected.toString(), actual.toString());
+            BitSet candidates = search.getIndex().candidates(c);
+            Assert.assertNotNull(candidates);
+            for (Book book : expected) {
+                Assert.assertTrue(candidates.get(book.getBookId()));
+            }
+        }
+        BookQueryConditions cjk = new BookQueryConditions();
+        cjk.setTitle("库系");
+        Assert.assertEquals(1, search.getIndex().candidates(cjk).cardinality());
+        /* writes keep the index current */
+        cn.setTitle("操作系统");
+        Assert.assertTrue(search.modifyBookInfo(cn).ok);
+        Assert.assertEquals(0, ((BookQueryResults) search.queryBook(cjk).payload).getCount());
+        cjk.setTitle("操作");
+        Assert.assertEquals(1, ((BookQueryResults) search.queryBook(cjk).payload).getCount());
+        Assert.assertTrue(search.removeBook(cn.getBookId()).ok);
+        Assert.assertTrue(search.getIndex().candidates(cjk).isEmpty());
+        /* relevance: the exact title first, pages continue in the same order */
+        BookQueryConditions relevance = new BookQueryConditions();
+        relevance.setTitle("System");
+        relevance.setSortBy(Book.SortColumn.RELEVANCE);
+        relevance.setSortOrder(SortOrder.DESC);
+        List<Book> ranked = ((BookQueryResults) search.queryBook(relevance).payload).getResults();
+        Assert.assertEquals(((BookQueryResults) library.queryBook(conditions.get(1)).payload).getCount(), ranked.size());
+        Assert.assertEquals(exact.getBookId(), ranked.get(0).getBookId());
+        for (int i = 1; i < ranked.size(); i++) {
+            Assert.assertTrue(BookTextIndex.score(relevance, ranked.get(i - 1)) >= BookTextIndex.score(relevance, ranked.get(i)));
+        }
+        List<Book> paged = new ArrayList<>();
+        relevance.setLimit(7);
+        do {
+            BookQueryResults page = (BookQueryResults) search.queryBook(relevance).payload;
+            paged.addAll(page.getResults());
+            relevance.setAfter(page.getNextCursor() == null ? null
+                    : BookQueryResults.Cursor.parse(page.getNextCursor().toString()));
+        } while (relevance.getAfter() != null);
+        Assert.assertEquals(ranked.toString(), paged.toString());
+        /* a page loads only the books ranked before its end, not every match */
+        List<BookQueryConditions> loaded = Collections.synchronizedList(new ArrayList<>());
+        LibraryManagementSystem recording = (LibraryManagementSystem) Proxy.newProxyInstance(
+                LibraryManagementSystem.class.getClassLoader(), new Class<?>[]{LibraryManagementSystem.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("queryBook")) {
+                        loaded.add((BookQueryConditions) args[0]);
+                    }
+                    return method.invoke(library, args);
+                });
+        SearchLibraryManagementSystem ranking = new SearchLibraryManagementSystem(recording, connector,
+                new SearchConfig(true, 1024));
+        BookQueryResults first = (BookQueryResults) ranking.queryBook(relevance).payload;
+        Assert.assertEquals(ranked.subList(0, Math.min(7, ranked.size())).toString(), first.getResults().toString());
+        Assert.assertFalse(loaded.isEmpty());
+        for (BookQueryConditions c : loaded) {
+            Assert.assertNotNull(c.getBookIds());
+            Assert.assertTrue(c.getBookIds().size() <= 8);
+        }
+        /* an import indexes the books it inserted, not its duplicates */
+        int indexed = search.getIndex().size();
+        Book imported = new Book("Computer Science", "Zyxwv Compilers", "Press-B", 2006, "Aho", 80.00, 2);
+        ApiResult importResult = search.importBooks(Arrays.asList(exact.clone(), imported), 1);
+        Assert.assertEquals(1, ((BookImportResults) importResult.payload).getInserted());
+        Assert.assertEquals(indexed + 1, search.getIndex().size());
+        BookQueryConditions compilers = new BookQueryConditions();
+        compilers.setTitle("Zyxwv");
+        Assert.assertEquals(1, search.getIndex().candidates(compilers).cardinality());
+        Assert.assertTrue(search.getIndex().candidates(compilers).get(imported.getBookId()));
+        /* reset empties the index */
+        Assert.assertTrue(search.resetDatabase().ok);
+        Assert.assertEquals(0, search.getIndex().size());
+    }
+
+    @Test
+    public void suggestBookTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 0, 3, 0);
+        Book b0 = new Book("Computer Science", "Database System Concepts", "PressA", 2023, "Mike", 10.00, 5);
+        Book b1 = new Book("Computer Science", "Operating Systems", "PressB", 2020, "Andrew", 10.00, 5);
+        Book b2 = new Book("Computer Science", "Systematic Theology", "PressA", 2019, "Mike", 10.00, 5);
+        Book b3 = new Book("Computer Science", "数据库系统概念", "机械工业出版社", 2006, "Silberschatz", 10.00, 5);
+        Assert.assertTrue(library.storeBook(b0).ok);
+        Borrow borrow = new Borrow(b0, my.cards.get(0));
+        borrow.resetBorrowTime();
+        Assert.assertTrue(library.borrowBook(borrow).ok);
+        SearchLibraryManagementSystem search = new SearchLibraryManagementSystem(library, connector,
+                new SearchConfig(true, 1024));
+        Assert.assertTrue(search.storeBook(b1).ok);
+        Assert.assertTrue(search.storeBook(b2).ok);
+        Assert.assertTrue(search.storeBook(b3).ok);
+        for (int i = 1; i < 3; i++) {
+            borrow = new Borrow(b1, my.cards.get(i));
+            borrow.resetBorrowTime();
+            Assert.assertTrue(search.borrowBook(borrow).ok);
+        }
+        /* any word of a value completes it, the most borrowed first */
+        List<SuggestIndex.Suggestion> titles = search.suggest("sys", SuggestIndex.Kind.TITLE, 10);
+        Assert.assertEquals(Arrays.asList("Operating Systems", "Database System Concepts", "Systematic Theology"),
+                titles.stream().map(SuggestIndex.Suggestion::getValue).collect(Collectors.toList()));
+        Assert.assertEquals(2, titles.get(0).getBorrows());
+        Assert.assertEquals(1, titles.get(1).getBorrows());
+        Assert.assertEquals(1, search.suggest("SYS", SuggestIndex.Kind.TITLE, 1).size());
+        Assert.assertEquals("系统", search.suggest("系统", null, 10).get(0).getValue().substring(3, 5));
+        /* values shared by books are suggested once */
+        List<SuggestIndex.Suggestion> mike = search.suggest("mi", SuggestIndex.Kind.AUTHOR, 10);
+        Assert.assertEquals(1, mike.size());
+        Assert.assertEquals(2, mike.get(0).getBooks());
+        Assert.assertEquals(1, mike.get(0).getBorrows());
+        Assert.assertEquals(SuggestIndex.Kind.CATEGORY, search.suggest("comp", null, 10).get(0).getKind());
+        Assert.assertTrue(search.suggest("xyz", null, 10).isEmpty());
+        /* writes keep the completions current */
+        b2.setTitle("Theology");
+        Assert.assertTrue(search.modifyBookInfo(b2).ok);
+        Assert.assertEquals(2, search.suggest("sys", SuggestIndex.Kind.TITLE, 10).size());
+        Assert.assertEquals("Theology", search.suggest("theo", null, 10).get(0).getValue());
+        Assert.assertTrue(search.removeBook(b3.getBookId()).ok);
+        Assert.assertTrue(search.suggest("数据", null, 10).isEmpty());
+        Assert.assertEquals(0, search.suggest("silber", null, 10).size());
+        Assert.assertEquals(2, search.suggest("pressa", null, 10).get(0).getBooks());
+    }
+
+    @Test
+    public void queryBookFacetsTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 400, 0, 0);
+        Book bound = new Book("Facet", "Bounded", "Press-F", 1999, "Fay", 30.00, 1);
+        Assert.assertTrue(library.storeBook(bound).ok);
+        List<BookQueryConditions> conditions = new ArrayList<>();
+        conditions.add(new BookQueryConditions());
+        for (int i = 0; i < 10; i++) {
+            BookQueryConditions c = new BookQueryConditions();
+            c.setPress(RandomUtils.nextBoolean() ? null : RandomData.randomPress().substring(5));
+            c.setMinPublishYear(RandomUtils.nextBoolean() ? null : RandomUtils.nextInt(1950, 2000));
+            c.setCategory(RandomUtils.nextInt(0, 3) == 0 ? my.books.get(i).getCategory() : null);
+            c.setSortBy(Book.SortColumn.random());
+            c.setSortOrder(SortOrder.random());
+            conditions.add(c);
+        }
+        for (BookQueryConditions c : conditions) {
+            /* counted from all matching books, on every page */
+            List<Book> all = ((BookQueryResults) library.queryBook(c).payload).getResults();
+            Map<String, Integer> categories = new HashMap<>();
+            Map<String, Integer> presses = new HashMap<>();
+            Map<Integer, Integer> years = new TreeMap<>();
+            for (Book book : all) {
+                categories.merge(book.getCategory(), 1, Integer::sum);
+                presses.merge(book.getPress(), 1, Integer::sum);
+                years.merge(book.getPublishYear(), 1, Integer::sum);
+            }
+            c.setFacets(true);
+            c.setLimit(25);
+            int pages = 0;
+            do {
+                BookQueryResults page = (BookQueryResults) library.queryBook(c).payload;
+                BookQueryResults.Facets facets = page.getFacets();
+                Assert.assertEquals(categories, facets.getCategories());
+                Assert.assertEquals(presses, facets.getPresses());
+                Assert.assertEquals(years, facets.getPublishYears());
+                Assert.assertEquals(all.size(), facets.getPrices().stream().mapToInt(BookQueryResults.Facets.PriceBucket::getCount).sum());
+                c.setAfter(page.getNextCursor());
+                pages++;
+            } while (c.getAfter() != null && pages < 3);
+            c.setLimit(null);
+            c.setAfter(null);
+            Assert.assertEquals(categories, ((BookQueryResults) library.queryBook(c).payload).getFacets().getCategories());
+        }
+        /* most books first, ranges include their lower bound */
+        BookQueryConditions c = new BookQueryConditions();
+        c.setFacets(true);
+        c.setPriceBuckets(Arrays.asList(60.0, 30.0));
+        BookQueryResults.Facets facets = ((BookQueryResults) library.queryBook(c).payload).getFacets();
+        List<Integer> counts = new ArrayList<>(facets.getPresses().values());
+        for (int i = 1; i < counts.size(); i++) {
+            Assert.assertTrue(counts.get(i - 1) >= counts.get(i));
+        }
+        List<BookQueryResults.Facets.PriceBucket> prices = facets.getPrices();
+        Assert.assertEquals(3, prices.size());
+        Assert.assertNull(prices.get(0).getMin());
+        Assert.assertEquals(30.0, prices.get(1).getMin(), 0);
+        Assert.assertNull(prices.get(2).getMax());
+        int[] expected = new int[3];
+        for (Book book : my.books) {
+            expected[book.getPrice() < 30 ? 0 : book.getPrice() < 60 ? 1 : 2]++;
+        }
+        expected[1]++;
+        Assert.assertArrayEquals(expected, prices.stream().mapToInt(BookQueryResults.Facets.PriceBucket::getCount).toArray());
+        /* a page gets the same ranges from the database */
+        c.setLimit(5);
+        BookQueryResults.Facets paged = ((BookQueryResults) library.queryBook(c).payload).getFacets();
+        Assert.assertArrayEquals(expected, paged.getPrices().stream().mapToInt(BookQueryResults.Facets.PriceBucket::getCount).toArray());
+        Assert.assertEquals(facets.getPresses(), paged.getPresses());
+        Assert.assertEquals(facets.getPublishYears(), paged.getPublishYears());
+        c.setLimit(null);
+        /* not counted unless asked, and kept apart by the cache */
+        CachingLibraryManagementSystem cached = new CachingLibraryManagementSystem(library, new utils.CacheConfig(16, 60000));
+        BookQueryConditions plain = new BookQueryConditions();
+        Assert.assertNull(((BookQueryResults) cached.queryBook(plain).payload).getFacets());
+        plain.setFacets(true);
+        Assert.assertNotNull(((BookQueryResults) cached.queryBook(plain).payload).getFacets());
+        /* writes to books off the cached page still change the counts */
+        plain.setCategory("Facet");
+        plain.setLimit(1);
+        Book other = new Book("Facet", "Unbounded", "Press-F", 2001, "Fay", 80.00, 1);
+        Assert.assertTrue(cached.storeBook(other).ok);
+        Assert.assertEquals(2, (int) ((BookQueryResults) cached.queryBook(plain).payload).getFacets().getCategories().get("Facet"));
+        other.setCategory("Moved");
+        Assert.assertTrue(cached.modifyBookInfo(other).ok);
+        Assert.assertEquals(1, (int) ((BookQueryResults) cached.queryBook(plain).payload).getFacets().getCategories().get("Facet"));
+        other.setCategory("Facet");
+        Assert.assertTrue(cached.modifyBookInfo(other).ok);
+        Assert.assertEquals(2, (int) ((BookQueryResults) cached.queryBook(plain).payload).getFacets().getCategories().get("Facet"));
+        Assert.assertTrue(cached.removeBook(other.getBookId()).ok);
+        Assert.assertEquals(1, (int) ((BookQueryResults) cached.queryBook(plain).payload).getFacets().getCategories().get("Facet"));
+        /* relevance pages of the search index carry them too */
+        SearchLibraryManagementSystem search = new SearchLibraryManagementSystem(library, connector,
+                new SearchConfig(true, 1024));
+        BookQueryConditions relevance = new BookQueryConditions();
+        relevance.setTitle("Bounded");
+        relevance.setSortBy(Book.SortColumn.RELEVANCE);
+        relevance.setFacets(true);
+        relevance.setLimit(1);
+        facets = ((BookQueryResults) search.queryBook(relevance).payload).getFacets();
+        Assert.assertEquals(Collections.singletonMap("Facet", 1), facets.getCategories());
+    }
+
+    @Test
+    public void fuzzySearchTest() throws Exception {
+        MyLibrary.createLibrary(library, 200, 0, 0);
+        SearchLibraryManagementSystem search = new SearchLibraryManagementSystem(library, connector,
+                new SearchConfig(true, 1024, 0.5));
+        Book gatsby = new Book("Novel", "The Great Gatsby", "Scribner", 1925, "F. Scott Fitzgerald", 15.00, 2);
+        Book night = new Book("Novel", "Tender Is the Night", "Scribner", 1934, "F. Scott Fitzgerald", 14.00, 2);
+        Assert.assertTrue(search.storeBook(gatsby).ok);
+        Assert.assertTrue(search.storeBook(night).ok);
+        BookQueryConditions misspelled = new BookQueryConditions();
+        misspelled.setAuthor("Fitzgerld");
+        Assert.assertEquals(0, ((BookQueryResults) search.queryBook(misspelled).payload).getCount());
+        /* without an index the flag changes nothing */
+        misspelled.setFuzzy(true);
+        Assert.assertEquals(0, ((BookQueryResults) library.queryBook(misspelled).payload).getCount());
+        List<Book> found = ((BookQueryResults) search.queryBook(misspelled).payload).getResults();
+        Assert.assertEquals(Arrays.asList(gatsby.getBookId(), night.getBookId()),
+                found.stream().map(Book::getBookId).collect(Collectors.toList()));
+        /* pages by similarity */
+        misspelled.setSortBy(Book.SortColumn.RELEVANCE);
+        misspelled.setSortOrder(SortOrder.DESC);
+        misspelled.setLimit(1);
+        BookQueryResults page = (BookQueryResults) search.queryBook(misspelled).payload;
+        Assert.assertEquals(gatsby.getBookId(), page.getResults().get(0).getBookId());
+        misspelled.setAfter(page.getNextCursor());
+        page = (BookQueryResults) search.queryBook(misspelled).payload;
+        Assert.assertEquals(night.getBookId(), page.getResults().get(0).getBookId());
+        misspelled.setAfter(null);
+        misspelled.setLimit(null);
+        /* ranked by similarity, the other conditions still apply */
+        BookQueryConditions title = new BookQueryConditions();
+        title.setTitle("the grate gatsbi");
+        title.setFuzzy(true);
+        title.setSortBy(Book.SortColumn.RELEVANCE);
+        title.setSortOrder(SortOrder.DESC);
+        found = ((BookQueryResults) search.queryBook(title).payload).getResults();
+        Assert.assertEquals(gatsby.getBookId(), found.get(0).getBookId());
+        title.setAuthor("scot fitzgerald");
+        found = ((BookQueryResults) search.queryBook(title).payload).getResults();
+        Assert.assertEquals(Collections.singletonList(gatsby.getBookId()),
+                found.stream().map(Book::getBookId).collect(Collectors.toList()));
+        title.setPress("Penguin");
+        Assert.assertEquals(0, ((BookQueryResults) search.queryBook(title).payload).getCount());
+        /* writes update the trigrams */
+        gatsby.setAuthor("Ernest Hemingway");
+        Assert.assertTrue(search.modifyBookInfo(gatsby).ok);
+        found = ((BookQueryResults) search.queryBook(misspelled).payload).getResults();
+        Assert.assertEquals(Collections.singletonList(night.getBookId()),
+                found.stream().map(Book::getBookId).collect(Collectors.toList()));
+        misspelled.setAuthor("Hemingwya");
+        Assert.assertEquals(gatsby.getBookId(),
+                ((BookQueryResults) search.queryBook(misspelled).payload).getResults().get(0).getBookId());
+        Assert.assertTrue(search.removeBook(gatsby.getBookId()).ok);
+        for (Book book : ((BookQueryResults) search.queryBook(misspelled).payload).getResults()) {
+            Assert.assertNotEquals(gatsby.getBookId(), book.getBookId());
+        }
+        /* a cached fuzzy query sees a new book it does not contain as a substring */
+        CachingLibraryManagementSystem cached = new CachingLibraryManagementSystem(search, new utils.CacheConfig(16, 60000));
+        misspelled.setAuthor("Fitzgerld");
+        Assert.assertEquals(1, ((BookQueryResults) cached.queryBook(misspelled).payload).getCount());
+        Book paradise = new Book("Novel", "This Side of Paradise", "Scribner", 1920, "F. Scott Fitzgerald", 12.00, 1);
+        Assert.assertTrue(cached.storeBook(paradise).ok);
+        Assert.assertEquals(2, ((BookQueryResults) cached.queryBook(misspelled).payload).getCount());
+        /* a condition without words is matched as a substring */
+        misspelled.setAuthor("-");
+        Assert.assertEquals(((BookQueryResults) library.queryBook(misspelled).payload).getCount(),
+                ((BookQueryResults) search.queryBook(misspelled).payload).getCount());
+    }
+
+    @Test
+    public void asyncLibraryTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 10, 4, 0);
+        /* every call holds the only database thread until released */
+        CountDownLatch release = new CountDownLatch(1);
+        LibraryManagementSystem blocking = (LibraryManagementSystem) Proxy.newProxyInstance(
+                LibraryManagementSystem.class.getClassLoader(), new Class<?>[]{LibraryManagementSystem.class},
+                (proxy, method, args) -> {
+                    release.await();
+                    return method.invoke(library, args);
+                });
+        AsyncLibraryManagementSystemImpl async = new AsyncLibraryManagementSystemImpl(blocking, 1, 1);
+        SyncLibraryManagementSystem sync = new SyncLibraryManagementSystem(async);
+        try {
+            CompletableFuture<ApiResult> running = async.showCards();
+            while (async.getQueued() > 0) {
+                Thread.sleep(1);
+            }
+            CompletableFuture<ApiResult> queued = async.queryBook(new BookQueryConditions());
+            /* a saturated library rejects at once */
+            Assert.assertTrue(async.showCards().isCompletedExceptionally());
+            Assert.assertFalse(sync.showCards().ok);
+            Assert.assertFalse(running.isDone());
+            release.countDown();
+            Assert.assertEquals(my.nCards(), ((CardList) running.get().payload).getCards().size());
+            Assert.assertEquals(my.nBooks(), ((BookQueryResults) queued.get().payload).getResults().size());
+            /* the synchronous adapter answers like the library it wraps */
+            Borrow borrow = new Borrow(my.books.get(0), my.cards.get(0));
+            borrow.resetBorrowTime();
+            Assert.assertTrue(sync.borrowBook(borrow).ok);
+            Assert.assertEquals("借书失败：该书尚未归还", sync.borrowBook(borrow).message);
+        } finally {
+            release.countDown();
+            async.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentExchangeMetricsTest() throws Exception {
+        Metrics metrics = new Metrics();
+        CountDownLatch slowResponded = new CountDownLatch(1);
+        CountDownLatch fastAnswered = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.createContext("/slow", exchange -> {
+            if (exchange.getRequestMethod().equals("POST")) {
+                CompletableFuture<ApiResult> slow = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new ApiResult(true, "slow");
+                });
+                AsyncExchange.respond(exchange, slow, "failed", result -> AsyncExchange.sendMessage(exchange, result));
+                slowResponded.countDown();
+                /* another exchange of this context is answered before this handler returns */
+                try {
+                    fastAnswered.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                AsyncExchange.respond(exchange, CompletableFuture.completedFuture(new ApiResult(true, "fast")), "failed",
+                        result -> AsyncExchange.sendMessage(exchange, result));
+            }
+        }).getFilters().add(new MetricsFilter(metrics));
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        try {
+            CompletableFuture<String> slow = CompletableFuture.supplyAsync(() -> {
+                try {
+                    HttpURLConnection conn = open(base + "/slow", null, null);
+                    conn.setRequestMethod("POST");
+                    return read(conn);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Assert.assertTrue(slowResponded.await(5, TimeUnit.SECONDS));
+            Assert.assertEquals("fast", read(open(base + "/slow", null, null)));
+            fastAnswered.countDown();
+            Assert.assertEquals("slow", slow.get(5, TimeUnit.SECONDS));
+            /* each exchange is timed until it is answered itself */
+            String sum = "library_http_request_seconds_sum{endpoint=\"/slow\",method=\"POST\"} ";
+            String text = "";
+            for (int i = 0; i < 100 && !text.contains("library_http_request_seconds_count{endpoint=\"/slow\",method=\"POST\"} 1\n"); i++) {
+                Thread.sleep(20);
+                StringWriter out = new StringWriter();
+                metrics.write(out);
+                text = out.toString();
+            }
+            int at = text.indexOf(sum);
+            Assert.assertTrue(text, at >= 0);
+            double seconds = Double.parseDouble(text.substring(at + sum.length(), text.indexOf('\n', at)));
+            Assert.assertTrue(text, seconds >= 0.9);
+            Assert.assertTrue(text, text.contains("library_http_request_seconds_count{endpoint=\"/slow\",method=\"GET\"} 1\n"));
+        } finally {
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void metricsTest() throws Exception {
+        Metrics metrics = new Metrics();
+        DatabaseConnector timedConnector = new DatabaseConnector(connectConfig, metrics);
+        Assert.assertTrue(timedConnector.connect());
+        try {
+            LibraryManagementSystem timed = new InstrumentedLibraryManagementSystem(
+                    new LibraryManagementSystemImpl(timedConnector), metrics);
+            Book b0 = new Book("Computer Science", "Database System Concepts", "PressA", 2023, "Mike", 188.88, 1);
+            Assert.assertTrue(timed.storeBook(b0).ok);
+            Assert.assertFalse(timed.storeBook(b0).ok);
+            Assert.assertTrue(timed.queryBook(new BookQueryConditions()).ok);
+            metrics.gauge("library_db_pool_active_connections", "Pooled connections borrowed by a call.",
+                    timedConnector::getActiveConnections);
+
+            StringWriter out = new StringWriter();
+            metrics.write(out);
+            String text = out.toString();
+            Assert.assertTrue(text.contains("# TYPE library_api_call_seconds summary\n"));
+            Assert.assertTrue(text.contains("library_api_call_seconds_count{method=\"storeBook\"} 2\n"));
+            Assert.assertTrue(text.contains("library_api_call_errors_total{method=\"storeBook\"} 1\n"));
+            Assert.assertTrue(text.contains("library_api_call_seconds_count{method=\"queryBook\"} 1\n"));
+            Assert.assertTrue(text.contains("library_api_call_seconds{method=\"queryBook\",quantile=\"0.99\"} "));
+            Assert.assertTrue(text.contains("library_api_call_seconds_count{method=\"removeCard\"} 0\n"));
+            Assert.assertTrue(text.contains("library_sql_statement_seconds_count{statement=\"INSERT INTO book"));
+            Assert.assertTrue(text.contains("library_db_pool_acquire_seconds_count 3\n"));
+            Assert.assertTrue(text.contains("library_db_pool_active_connections 0\n"));
+        } finally {
+            timedConnector.release();
+        }
+    }
+
+    @Test
+    public void sqlTraceTest() throws Exception {
+        Path slowLog = Files.createTempFile("slow-query", ".log");
+        SqlTracer tracer = new SqlTracer(new TraceConfig(true, 0, slowLog.toString(), 1 << 20, 1));
+        DatabaseConnector tracedConnector = new DatabaseConnector(connectConfig, null, tracer);
+        Assert.assertTrue(tracedConnector.connect());
+        try {
+            LibraryManagementSystem traced = new LibraryManagementSystemImpl(tracedConnector);
+            MyLibrary.createLibrary(library, 20, 1, 0);
+            SqlTracer.Request request = SqlTracer.begin("req-1");
+            try {
+                BookQueryConditions conditions = new BookQueryConditions();
+                conditions.setAuthor("a");
+                Assert.assertTrue(traced.queryBook(conditions).ok);
+            } finally {
+                SqlTracer.end();
+            }
+            Assert.assertTrue(traced.queryBook(new BookQueryConditions()).ok);
+            Assert.assertEquals(1, request.getStatements());
+            Assert.assertEquals(1, request.getSlowStatements());
+        } finally {
+            tracedConnector.release();
+            tracer.close();
+        }
+        List<String> lines = Files.readAllLines(slowLog);
+        Files.deleteIfExists(slowLog);
+        Assert.assertEquals(2, lines.size());
+        /* the filters show up as parameter shapes, the unset ones as '%' */
+        Assert.assertTrue(lines.get(0), lines.get(0).contains(" request=req-1 "));
+        Assert.assertTrue(lines.get(0), lines.get(0).contains(" params=[int, int, double, double, '%', '%', string(3)] "));
+        Assert.assertTrue(lines.get(0), lines.get(0).contains(" sql=SELECT * FROM book WHERE "));
+        Assert.assertTrue(lines.get(1), lines.get(1).contains(" request=- "));
+        Assert.assertTrue(lines.get(1), lines.get(1).contains(" rows=20 "));
+    }
+
+    @Test
+    public void staticHandlerTest() throws Exception {
+        Path dist = Files.createTempDirectory("dist");
+        Files.createDirectories(dist.resolve("assets"));
+        Files.write(dist.resolve("index.html"), "<div id=\"app\"></div>".getBytes(StandardCharsets.UTF_8));
+        Files.write(dist.resolve("assets/app-1a2b3c4d.js"), "console.log(1)".getBytes(StandardCharsets.UTF_8));
+        Files.write(dist.resolve("assets/app-1a2b3c4d.js.gz"), new byte[]{31, -117, 8, 0});
+        Files.write(dist.resolveSibling(dist.getFileName() + ".secret"), "secret".getBytes(StandardCharsets.UTF_8));
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        StaticHandler pages = new StaticHandler(dist);
+        server.createContext("/", pages);
+        server.createContext("/book", exchange -> AsyncExchange.sendText(exchange, 200, "api"))
+                .getFilters().add(new PageFilter(pages));
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        try {
+            HttpURLConnection index = open(base + "/", null, null);
+            Assert.assertEquals(200, index.getResponseCode());
+            Assert.assertEquals("no-cache", index.getHeaderField("Cache-Control"));
+            Assert.assertEquals("<div id=\"app\"></div>", read(index));
+            /* revalidation answers 304 without a body */
+            Assert.assertEquals(304, open(base + "/index.html", null, index.getHeaderField("ETag")).getResponseCode());
+
+            HttpURLConnection plain = open(base + "/assets/app-1a2b3c4d.js", null, null);
+            Assert.assertEquals("console.log(1)", read(plain));
+            Assert.assertNull(plain.getHeaderField("Content-Encoding"));
+            Assert.assertEquals("Accept-Encoding", plain.getHeaderField("Vary"));
+            Assert.assertEquals("public, max-age=31536000, immutable", plain.getHeaderField("Cache-Control"));
+            HttpURLConnection gzip = open(base + "/assets/app-1a2b3c4d.js", "br;q=0, gzip", null);
+            Assert.assertEquals("gzip", gzip.getHeaderField("Content-Encoding"));
+            Assert.assertEquals(4, gzip.getContentLengthLong());
+            Assert.assertNotEquals(plain.getHeaderField("ETag"), gzip.getHeaderField("ETag"));
+
+            /* nothing outside the root is served, missing files are not found */
+            Assert.assertEquals(404, open(base + "/..%2f" + dist.getFileName() + ".secret", null, null).getResponseCode());
+            Assert.assertEquals(404, open(base + "/assets/missing.js", null, null).getResponseCode());
+            /* pages of the app, also those sharing a path with the API */
+            Assert.assertEquals("<div id=\"app\"></div>", read(open(base + "/card", null, null)));
+            HttpURLConnection page = open(base + "/book", null, null);
+            page.setRequestProperty("Accept", "text/html");
+            Assert.assertEquals("<div id=\"app\"></div>", read(page));
+            HttpURLConnection api = open(base + "/book", null, null);
+            api.setRequestProperty("Accept", "application/json, text/plain, */*");
+            Assert.assertEquals("api", read(api));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void compressionFilterTest() throws Exception {
+        Path dist = Files.createTempDirectory("dist");
+        Files.createDirectories(dist.resolve("assets"));
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            script.append("console.log(").append(i).append(");\n");
+        }
+        Files.write(dist.resolve("index.html"), "<div id=\"app\"></div>".getBytes(StandardCharsets.UTF_8));
+        Files.write(dist.resolve("assets/app-1a2b3c4d.js"), script.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(dist.resolve("assets/app-1a2b3c4d.css"), "body{}".getBytes(StandardCharsets.UTF_8));
+        Files.write(dist.resolve("assets/app-1a2b3c4d.css.gz"), new byte[]{31, -117, 8, 0});
+        Files.write(dist.resolve("assets/logo.png"), new byte[4096]);
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            Book book = new Book("Computer Science", "Database System Concepts " + i, "Machine Press", 2020, "Nobody", 59.9, 3);
+            book.setBookId(i + 1);
+            books.add(book);
+        }
+        CompressionFilter compression = new CompressionFilter(64, 6);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new StaticHandler(dist)).getFilters().add(compression);
+        /* a chunked list and one of a known length */
+        server.createContext("/book", exchange -> JsonResponseWriter.sendList(exchange, books, JsonResponseWriter.BOOK))
+                .getFilters().add(compression);
+        server.createContext("/card", exchange -> JsonResponseWriter.sendList(exchange, books.subList(0, 10), JsonResponseWriter.BOOK))
+                .getFilters().add(compression);
+        server.createContext("/return", exchange -> AsyncExchange.sendText(exchange, 200, "ok"))
+                .getFilters().add(compression);
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        try {
+            String plain = read(open(base + "/book", null, null));
+            Assert.assertTrue(plain.startsWith("[{"));
+            /* the coding with the highest q value, gzip on a tie */
+            for (String[] accept : new String[][]{{"gzip, deflate", "gzip"}, {"gzip;q=0.5, deflate", "deflate"},
+                    {"*", "gzip"}, {"gzip;q=0, *;q=0.1", "deflate"}, {"br", null}, {"gzip;q=0, deflate;q=0", null}}) {
+                for (String path : new String[]{"/book", "/card"}) {
+                    HttpURLConnection conn = open(base + path, accept[0], null);
+                    Assert.assertEquals(accept[0], accept[1], conn.getContentEncoding());
+                    Assert.assertEquals("Accept-Encoding", conn.getHeaderField("Vary"));
+                    Assert.assertEquals(path.equals("/book") ? plain : read(open(base + path, null, null)), read(conn));
+                }
+            }
+            Assert.assertTrue(compression.getBytesOut() * 5 < compression.getBytesIn());
+            long responses = compression.getResponses();
+            Assert.assertEquals(8, responses);
+            /* small bodies, bodies encoded by the handler and images go out as they are */
+            HttpURLConnection small = open(base + "/return", "gzip", null);
+            Assert.assertEquals("ok", read(small));
+            Assert.assertNull(small.getContentEncoding());
+            HttpURLConnection precompressed = open(base + "/assets/app-1a2b3c4d.css", "gzip", null);
+            Assert.assertEquals("gzip", precompressed.getContentEncoding());
+            Assert.assertEquals(4, precompressed.getContentLengthLong());
+            HttpURLConnection image = open(base + "/assets/logo.png", "gzip", null);
+            Assert.assertNull(image.getContentEncoding());
+            Assert.assertEquals(4096, image.getContentLengthLong());
+            Assert.assertEquals(responses, compression.getResponses());
+            /* a file compressed on the fly gets a weak ETag that still revalidates */
+            HttpURLConnection js = open(base + "/assets/app-1a2b3c4d.js", "gzip", null);
+            Assert.assertEquals(script.toString(), read(js));
+            Assert.assertEquals("gzip", js.getContentEncoding());
+            Assert.assertTrue(js.getHeaderField("ETag").startsWith("W/\""));
+            HttpURLConnection notModified = open(base + "/assets/app-1a2b3c4d.js", "gzip", js.getHeaderField("ETag"));
+            Assert.assertEquals(304, notModified.getResponseCode());
+            Assert.assertEquals(js.getHeaderField("ETag"), notModified.getHeaderField("ETag"));
+            Assert.assertEquals(responses + 1, compression.getResponses());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void loadSheddingTest() throws Exception {
+        /* one worker and no queue, so a second concurrent request is rejected */
+        RequestExecutor executor = new RequestExecutor(ServerConfig.ExecutorMode.FIXED, 1, 0);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> shedOn = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        HttpContext context = server.createContext("/slow", exchange -> {
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            AsyncExchange.sendText(exchange, 200, "ok");
+        });
+        context.getFilters().add(new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (RequestExecutor.isShedding()) {
+                    shedOn.add(Thread.currentThread().getName());
+                }
+                chain.doFilter(exchange);
+            }
+
+            @Override
+            public String description() {
+                return "Record the thread of rejected exchanges";
+            }
+        });
+        context.getFilters().add(new LoadSheddingFilter());
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        try {
+            CompletableFuture<Integer> running = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return open(base + "/slow", null, null).getResponseCode();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Assert.assertTrue(entered.await(10, TimeUnit.SECONDS));
+            HttpURLConnection rejected = open(base + "/slow", null, null);
+            Assert.assertEquals(503, rejected.getResponseCode());
+            Assert.assertEquals("1", rejected.getHeaderField("Retry-After"));
+            Assert.assertEquals("*", rejected.getHeaderField("Access-Control-Allow-Origin"));
+            /* answered off the dispatcher thread, before the handler */
+            Assert.assertEquals(Collections.singletonList("http-shed"), shedOn);
+            release.countDown();
+            Assert.assertEquals(200, (int) running.get(10, TimeUnit.SECONDS));
+            /* the worker is admitted again once the slow exchange is done */
+            int status = 503;
+            for (int i = 0; i < 50 && status == 503; i++) {
+                HttpURLConnection next = open(base + "/slow", null, null);
+                status = next.getResponseCode();
+                if (status == 503) {
+                    Thread.sleep(100);
+                }
+            }
+            Assert.assertEquals(200, status);
+        } finally {
+            release.countDown();
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shedQueueTest() throws Exception {
+        /* clients that never finish their request hold the worker, the shedding thread and its queue */
+        RequestExecutor executor = new RequestExecutor(ServerConfig.ExecutorMode.FIXED, 1, 0);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> AsyncExchange.sendText(exchange, 200, "ok"))
+                .getFilters().add(new LoadSheddingFilter());
+        server.start();
+        List<Socket> idle = new ArrayList<>();
+        try {
+            for (int i = 0; i < RequestExecutor.SHED_QUEUE + 2; i++) {
+                Socket socket = new Socket("127.0.0.1", server.getAddress().getPort());
+                // the server runs an exchange once its first bytes arrive, then waits for the rest
+                socket.getOutputStream().write("GET / HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII));
+                idle.add(socket);
+            }
+            Thread.sleep(500);
+            /* one more is closed at once instead of queued */
+            try (Socket dropped = new Socket("127.0.0.1", server.getAddress().getPort())) {
+                dropped.setSoTimeout(5000);
+                dropped.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                try {
+                    Assert.assertEquals(-1, dropped.getInputStream().read());
+                } catch (SocketException e) {
+                    // reset by the server, closed just the same
+                }
+            }
+        } finally {
+            for (Socket socket : idle) {
+                socket.close();
+            }
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncResponseThreadTest() throws Exception {
+        /* the answer is written by a request thread, not by the thread that completed the call */
+        RequestExecutor executor = new RequestExecutor(ServerConfig.ExecutorMode.FIXED, 2, 8);
+        ExecutorService database = Executors.newSingleThreadExecutor(r -> new Thread(r, "db-test"));
+        List<String> writtenOn = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/async", exchange -> AsyncExchange.respond(exchange,
+                CompletableFuture.supplyAsync(() -> {
+                    // completes after the handler has returned
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new ApiResult(true, "ok");
+                }, database), "失败", result -> {
+                    writtenOn.add(Thread.currentThread().getName());
+                    AsyncExchange.sendMessage(exchange, result);
+                }));
+        server.start();
+        try {
+            HttpURLConnection conn = open("http://127.0.0.1:" + server.getAddress().getPort() + "/async", null, null);
+            Assert.assertEquals("ok", read(conn));
+            Assert.assertEquals(1, writtenOn.size());
+            Assert.assertTrue(writtenOn.get(0), writtenOn.get(0).startsWith("http-worker-"));
+        } finally {
+            server.stop(0);
+            executor.shutdown();
+            database.shutdown();
+        }
+    }
+
+    @Test
+    public void bookHandlerPagingTest() throws Exception {
+        /* a GET without limit or cursor still answers every book, a limit pages */
+        Set<Book> bookSet = new HashSet<>();
+        while (bookSet.size() <= BookHandler.MAX_PAGE_SIZE) {
+            bookSet.add(RandomData.randomBook());
+        }
+        Assert.assertTrue(library.importBooks(new ArrayList<>(bookSet), 256).ok);
+        AsyncLibraryManagementSystemImpl async = new AsyncLibraryManagementSystemImpl(library, 1, 4);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/book", new BookHandler(async, Collections.emptyList()));
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        try {
+            HttpURLConnection all = open(base + "/book", null, null);
+            Assert.assertEquals(bookSet.size(), new JSONArray(read(all)).length());
+            Assert.assertNull(all.getHeaderField("X-Next-Cursor"));
+            HttpURLConnection page = open(base + "/book?limit=2", null, null);
+            Assert.assertEquals(2, new JSONArray(read(page)).length());
+            Assert.assertNotNull(page.getHeaderField("X-Next-Cursor"));
+        } finally {
+            server.stop(0);
+            async.shutdown();
+        }
+    }
+
+    @Test
+    public void jsonResponseWriterTest() throws Exception {
+        /* quotes, backslashes and control characters are escaped, everything else is kept */
+        StringWriter out = new StringWriter();
+        JsonResponseWriter json = new JsonResponseWriter(out);
+        json.beginObject();
+        json.field("a\"b", "q\"b\\s/n\nr\rt\tb\bf\f\u0000\u001f\u007f\u2028\u2029é📚");
+        json.field("none", null);
+        json.endObject();
+        Assert.assertEquals("{\"a\\\"b\": \"q\\\"b\\\\s/n\\nr\\rt\\tb\\u0008f\\u000c\\u0000\\u001f\u007f" +
+                "\\u2028\\u2029é📚\", \"none\": null}", out.toString());
+        /* text outside the BMP survives the buffers of the UTF-8 writer */
+        StringBuilder title = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            title.append("📚");
+        }
+        Book book = new Book("Poetry", title.toString(), "Press", 2020, "Nobody", 1.0, 1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonResponseWriter.writeList(bytes, Collections.singletonList(book), JsonResponseWriter.BOOK);
+        Assert.assertTrue(new String(bytes.toByteArray(), StandardCharsets.UTF_8).contains("\"" + title + "\""));
+        /* a short list is sent with its length, a longer one chunked */
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i <= JsonResponseWriter.SMALL_LIST_ROWS; i++) {
+            Book row = new Book("Computer Science", "Row \"" + i + "\"", "Machine Press", 2020, "Nobody", 59.9, 3);
+            row.setBookId(i + 1);
+            books.add(row);
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/small", exchange -> JsonResponseWriter.sendList(exchange,
+                books.subList(0, JsonResponseWriter.SMALL_LIST_ROWS), JsonResponseWriter.BOOK));
+        server.createContext("/large", exchange -> JsonResponseWriter.sendList(exchange, books, JsonResponseWriter.BOOK));
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        try {
+            HttpURLConnection small = open(base + "/small", null, null);
+            String smallBody = read(small);
+            Assert.assertEquals(200, small.getResponseCode());
+            Assert.assertEquals("application/json; charset=utf-8", small.getContentType());
+            Assert.assertNull(small.getHeaderField("Transfer-Encoding"));
+            Assert.assertEquals(smallBody.getBytes(StandardCharsets.UTF_8).length, small.getContentLengthLong());
+            HttpURLConnection large = open(base + "/large", null, null);
+            String largeBody = read(large);
+            Assert.assertEquals(200, large.getResponseCode());
+            Assert.assertEquals("chunked", large.getHeaderField("Transfer-Encoding"));
+            Assert.assertEquals(-1, large.getContentLengthLong());
+            /* both framings carry the same rows */
+            Assert.assertEquals(smallBody.substring(0, smallBody.length() - 1),
+                    largeBody.substring(0, smallBody.length() - 1));
+            Assert.assertTrue(largeBody.endsWith("\"title\": \"Row \\\"" + JsonResponseWriter.SMALL_LIST_ROWS +
+                    "\\\"\", \"press\": \"Machine Press\", \"publishYear\": 2020, \"author\": \"Nobody\"," +
+                    " \"price\": 59.9, \"stock\": 3}]"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static HttpURLConnection open(String url, String acceptEncoding, String ifNoneMatch) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        if (acceptEncoding != null) {
+            conn.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        if (ifNoneMatch != null) {
+            conn.setRequestProperty("If-None-Match", ifNoneMatch);
+        }
+        return conn;
+    }
+
+    /* the body as a browser sees it, decompressed */
+    private static String read(HttpURLConnection conn) throws IOException {
+        InputStream body = conn.getInputStream();
+        if ("gzip".equals(conn.getContentEncoding())) {
+            body = new GZIPInputStream(body);
+        } else if ("deflate".equals(conn.getContentEncoding())) {
+            body = new InflaterInputStream(body);
+        }
+        try (InputStream in = body) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            for (int n; (n = in.read(buf)) > 0; ) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
     @Test
     public void removeBookTest() {
         /* simply insert some data to database */
@@ -442,6 +1493,24 @@ public class LibraryTest {
                 Assert.assertEquals(o1.toString(), o2.toString());
             }
         }
+        /* page through results with keyset cursors */
+        for (BookQueryConditions queryCondition : queryConditions) {
+            List<Book> expectedResults = verifyQueryResult(my.books, queryCondition);
+            List<Book> pagedResults = new ArrayList<>();
+            queryCondition.setLimit(37);
+            do {
+                ApiResult queryResult = library.queryBook(queryCondition);
+                Assert.assertTrue(queryResult.ok);
+                BookQueryResults page = (BookQueryResults) queryResult.payload;
+                Assert.assertTrue(page.getCount() <= 37);
+                pagedResults.addAll(page.getResults());
+                queryCondition.setAfter(page.getNextCursor());
+            } while (queryCondition.getAfter() != null);
+            Assert.assertEquals(expectedResults.size(), pagedResults.size());
+            for (int i = 0; i < expectedResults.size(); i++) {
+                Assert.assertEquals(expectedResults.get(i).toString(), pagedResults.get(i).toString());
+            }
+        }
     }
 
     @Test
@@ -582,6 +1651,24 @@ public class LibraryTest {
                 Assert.assertEquals(o1.toString(), o2.toString());
             }
         }
+        /* walk borrow histories page by page */
+        for (Card card : my.cards) {
+            List<BorrowHistories.Item> expectedList = expectedBorrowMap.get(card.getCardId());
+            List<BorrowHistories.Item> pagedList = new ArrayList<>();
+            BorrowHistories.Cursor cursor = null;
+            do {
+                ApiResult result = library.showBorrowHistory(card.getCardId(), cursor, 7);
+                Assert.assertTrue(result.ok);
+                BorrowHistories page = (BorrowHistories) result.payload;
+                Assert.assertTrue(page.getCount() <= 7);
+                pagedList.addAll(page.getItems());
+                cursor = page.getNextCursor();
+            } while (cursor != null);
+            Assert.assertEquals(expectedList.size(), pagedList.size());
+            for (int i = 0; i < expectedList.size(); i++) {
+                Assert.assertEquals(expectedList.get(i).toString(), pagedList.get(i).toString());
+            }
+        }
     }
 
     @Test
@@ -601,6 +1688,7 @@ public class LibraryTest {
             libraries.add(new LibraryManagementSystemImpl(connector));
         }
         /* start all threads */
+        BorrowThread.successOps.set(0);
         List<BorrowThread> borrowThreads = new ArrayList<>();
         BorrowThread.acquireAll();
         for (int i = 0; i < nThreads; i++) {
@@ -628,6 +1716,294 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void inventoryBorrowBookTest() throws Exception {
+        int nThreads = BorrowThread.nThreads;
+        MyLibrary my = MyLibrary.createLibrary(library, 2, nThreads, 0);
+        Book book = my.books.get(0);
+        Book other = my.books.get(1);
+        Assert.assertTrue(library.incBookStock(book.getBookId(), -book.getStock() + 1).ok);
+        Path journalFile = Files.createTempFile("borrow", ".journal");
+        InventoryConfig conf = new InventoryConfig(true, journalFile.toString(), 64, 1 << 20);
+        InventoryLibraryManagementSystem inventory = new InventoryLibraryManagementSystem(library, connector, conf);
+        try {
+            /* the last copy still has exactly one winner */
+            BorrowThread.successOps.set(0);
+            List<BorrowThread> borrowThreads = new ArrayList<>();
+            // earlier tests keep the permits their threads acquired
+            BorrowThread.semaphore.drainPermits();
+            for (int i = 0; i < nThreads; i++) {
+                Borrow borrow = new Borrow(book, my.cards.get(i));
+                borrow.resetBorrowTime();
+                BorrowThread thd = new BorrowThread(i, inventory, borrow);
+                thd.start();
+                borrowThreads.add(thd);
+            }
+            BorrowThread.releaseAll();
+            for (BorrowThread thd : borrowThreads) {
+                thd.join();
+            }
+            Assert.assertEquals(1, BorrowThread.successOps.get());
+            BorrowThread.successOps.set(0);
+            /* reads see the borrow once it is applied */
+            BookQueryConditions conditions = new BookQueryConditions();
+            List<Book> books = ((BookQueryResults) inventory.queryBook(conditions).payload).getResults();
+            Assert.assertEquals(0, books.stream().filter(b -> b.getBookId() == book.getBookId()).findFirst().get().getStock());
+            int total = 0;
+            for (Card card : my.cards) {
+                total += ((BorrowHistories) inventory.showBorrowHistory(card.getCardId()).payload).getCount();
+            }
+            Assert.assertEquals(1, total);
+            /* checks are answered from memory with the usual reasons */
+            Borrow unknownCard = new Borrow(book.getBookId(), -1);
+            unknownCard.resetBorrowTime();
+            Assert.assertFalse(inventory.borrowBook(unknownCard).ok);
+            Borrow notBorrowed = new Borrow(other, my.cards.get(0));
+            notBorrowed.resetReturnTime();
+            Assert.assertFalse(inventory.returnBook(notBorrowed).ok);
+            Assert.assertFalse(inventory.removeBook(book.getBookId()).ok);
+        } finally {
+            inventory.close();
+        }
+
+        /* a crash left a borrow in the journal, possibly applied already, and a torn line */
+        Borrow pending = new Borrow(other, my.cards.get(0));
+        pending.resetBorrowTime();
+        String journal = BorrowJournal.Record.borrow(pending.getCardId(), pending.getBookId(), pending.getBorrowTime()).encode();
+        for (int run = 0; run < 2; run++) {
+            Files.write(journalFile, (journal + "B 1 2 3").getBytes());
+            inventory = new InventoryLibraryManagementSystem(library, connector, conf);
+            try {
+                Assert.assertEquals(0, Files.size(journalFile));
+                List<Book> books = ((BookQueryResults) inventory.queryBook(new BookQueryConditions()).payload).getResults();
+                Assert.assertEquals(other.getStock() - 1,
+                        books.stream().filter(b -> b.getBookId() == other.getBookId()).findFirst().get().getStock());
+                Borrow again = new Borrow(other, my.cards.get(0));
+                again.resetBorrowTime();
+                Assert.assertFalse(inventory.borrowBook(again).ok);
+            } finally {
+                inventory.close();
+            }
+        }
+        inventory = new InventoryLibraryManagementSystem(library, connector, conf);
+        try {
+            pending.resetReturnTime();
+            Assert.assertTrue(inventory.returnBook(pending).ok);
+            Assert.assertFalse(inventory.returnBook(pending).ok);
+            Assert.assertTrue(inventory.incBookStock(other.getBookId(), 1).ok);
+        } finally {
+            inventory.close();
+        }
+        List<Book> books = ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults();
+        Assert.assertEquals(other.getStock() + 1,
+                books.stream().filter(b -> b.getBookId() == other.getBookId()).findFirst().get().getStock());
+        Files.deleteIfExists(journalFile);
+    }
+
+    @Test
+    public void inventoryRestartTest() throws Exception {
+        Path journalFile = Files.createTempFile("borrow", ".journal");
+        InventoryConfig conf = new InventoryConfig(true, journalFile.toString(), 64, 1 << 20);
+        InventoryLibraryManagementSystem inventory = new InventoryLibraryManagementSystem(library, connector, conf);
+        Book book = new Book("Novel", "Restart", "PressR", 2000, "Someone", 10.00, 2);
+        Card card = new Card(0, "Alice", "CS", Card.CardType.Student);
+        try {
+            Assert.assertTrue(inventory.storeBook(book).ok);
+            Assert.assertTrue(inventory.registerCard(card).ok);
+            Borrow borrow = new Borrow(book, card);
+            borrow.resetBorrowTime();
+            Assert.assertTrue(inventory.borrowBook(borrow).ok);
+            borrow.resetReturnTime();
+            Assert.assertTrue(inventory.returnBook(borrow).ok);
+            /* the applied records are dropped before the card goes */
+            Assert.assertTrue(inventory.removeCard(card.getCardId()).ok);
+            Assert.assertEquals(0, Files.size(journalFile));
+        } finally {
+            inventory.close();
+        }
+        /* an ordinary shutdown leaves nothing to replay */
+        inventory = new InventoryLibraryManagementSystem(library, connector, conf);
+        try {
+            Card other = new Card(0, "Bob", "CS", Card.CardType.Student);
+            Assert.assertTrue(inventory.registerCard(other).ok);
+            Borrow borrow = new Borrow(book, other);
+            borrow.resetBorrowTime();
+            Assert.assertTrue(inventory.borrowBook(borrow).ok);
+        } finally {
+            inventory.close();
+        }
+        Assert.assertEquals(0, Files.size(journalFile));
+        /* a reset schema reuses ids, older records must not reach it */
+        inventory = new InventoryLibraryManagementSystem(library, connector, conf);
+        try {
+            Assert.assertTrue(inventory.resetDatabase().ok);
+            Assert.assertTrue(inventory.storeBook(new Book("Novel", "Fresh", "PressR", 2000, "Someone", 10.00, 2)).ok);
+            Assert.assertTrue(inventory.registerCard(new Card(0, "Carol", "CS", Card.CardType.Student)).ok);
+        } finally {
+            inventory.close();
+        }
+        inventory = new InventoryLibraryManagementSystem(library, connector, conf);
+        try {
+            List<Book> books = ((BookQueryResults) inventory.queryBook(new BookQueryConditions()).payload).getResults();
+            Assert.assertEquals(1, books.size());
+            Assert.assertEquals(2, books.get(0).getStock());
+            List<Card> cards = ((CardList) inventory.showCards().payload).getCards();
+            Assert.assertEquals(0, ((BorrowHistories) inventory.showBorrowHistory(cards.get(0).getCardId()).payload).getCount());
+        } finally {
+            inventory.close();
+        }
+        /* a journal left by a crash may name a card that is gone since */
+        Book fresh = ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults().get(0);
+        Files.write(journalFile, BorrowJournal.Record.borrow(-1, fresh.getBookId(), 1).encode().getBytes());
+        inventory = new InventoryLibraryManagementSystem(library, connector, conf);
+        try {
+            Assert.assertEquals(0, Files.size(journalFile));
+            List<Book> books = ((BookQueryResults) inventory.queryBook(new BookQueryConditions()).payload).getResults();
+            Assert.assertEquals(2, books.get(0).getStock());
+        } finally {
+            inventory.close();
+        }
+        Files.deleteIfExists(journalFile);
+    }
+
+    @Test
+    public void inventoryImportAndReadTimeoutTest() throws Exception {
+        MyLibrary my = MyLibrary.createLibrary(library, 1, 2, 0);
+        Path journalFile = Files.createTempFile("borrow", ".journal");
+        InventoryConfig conf = new InventoryConfig(true, journalFile.toString(), 64, 1 << 20, 200);
+        InventoryLibraryManagementSystem inventory = new InventoryLibraryManagementSystem(library, connector, conf);
+        try {
+            /* imported books can be borrowed, duplicates keep their stock */
+            Book imported = new Book("Computer Science", "Imported", "Press-C", 2010, "Nobody", 10.00, 1);
+            ApiResult importResult = inventory.importBooks(Arrays.asList(my.books.get(0).clone(), imported), 1);
+            Assert.assertEquals(1, ((BookImportResults) importResult.payload).getInserted());
+            Borrow borrow = new Borrow(imported, my.cards.get(0));
+            borrow.resetBorrowTime();
+            Assert.assertTrue(inventory.borrowBook(borrow).ok);
+            Borrow second = new Borrow(imported, my.cards.get(1));
+            second.resetBorrowTime();
+            Assert.assertEquals("借书失败：库存不足", inventory.borrowBook(second).message);
+            /* a read fails instead of hanging while the journal cannot reach the database */
+            Assert.assertTrue(inventory.queryBook(new BookQueryConditions()).ok);
+            renameBorrowTable("borrow", "borrow_stalled");
+            try {
+                borrow.resetReturnTime();
+                Assert.assertTrue(inventory.returnBook(borrow).ok);
+                long start = System.nanoTime();
+                ApiResult stalled = inventory.queryBook(new BookQueryConditions());
+                Assert.assertFalse(stalled.ok);
+                Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+                Assert.assertFalse(inventory.showBorrowHistory(my.cards.get(0).getCardId()).ok);
+            } finally {
+                renameBorrowTable("borrow_stalled", "borrow");
+            }
+            /* the journal catches up with the next retry */
+            ApiResult caughtUp = inventory.queryBook(new BookQueryConditions());
+            for (int i = 0; i < 50 && !caughtUp.ok; i++) {
+                caughtUp = inventory.queryBook(new BookQueryConditions());
+            }
+            Assert.assertTrue(caughtUp.message, caughtUp.ok);
+            List<Book> books = ((BookQueryResults) caughtUp.payload).getResults();
+            Assert.assertEquals(1, books.stream().filter(b -> b.getBookId() == imported.getBookId()).findFirst().get().getStock());
+        } finally {
+            inventory.close();
+        }
+        Files.deleteIfExists(journalFile);
+    }
+
+    private void renameBorrowTable(String from, String to) throws Exception {
+        Connection conn = connector.getConn();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("ALTER TABLE " + from + " RENAME TO " + to);
+            conn.commit();
+        } finally {
+            connector.releaseConn(conn);
+        }
+    }
+
+    @Test
+    public void batchedBorrowBookTest() throws Exception {
+        int nThreads = BorrowThread.nThreads;
+        MyLibrary my = MyLibrary.createLibrary(library, 2, nThreads, 0);
+        Book book = my.books.get(0);
+        Book other = my.books.get(1);
+        Assert.assertTrue(library.incBookStock(book.getBookId(), -book.getStock() + 1).ok);
+        /* a long window, so that the racing borrows share a few transactions */
+        BatchingLibraryManagementSystem batching = new BatchingLibraryManagementSystem(library, connector,
+                new BatchConfig(true, 50000, nThreads));
+        try {
+            /* the last copy still has exactly one winner */
+            BorrowThread.successOps.set(0);
+            List<BorrowThread> borrowThreads = new ArrayList<>();
+            // earlier tests keep the permits their threads acquired
+            BorrowThread.semaphore.drainPermits();
+            for (int i = 0; i < nThreads; i++) {
+                Borrow borrow = new Borrow(book, my.cards.get(i));
+                borrow.resetBorrowTime();
+                BorrowThread thd = new BorrowThread(i, batching, borrow);
+                thd.start();
+                borrowThreads.add(thd);
+            }
+            BorrowThread.releaseAll();
+            for (BorrowThread thd : borrowThreads) {
+                thd.join();
+            }
+            Assert.assertEquals(1, BorrowThread.successOps.get());
+            BorrowThread.successOps.set(0);
+            Assert.assertEquals(nThreads, batching.getRequests());
+            Assert.assertTrue(batching.getCommits() < nThreads);
+            /* requests of one batch get their own results */
+            Borrow unknownCard = new Borrow(other.getBookId(), -1);
+            unknownCard.resetBorrowTime();
+            Borrow notBorrowed = new Borrow(other, my.cards.get(0));
+            notBorrowed.resetReturnTime();
+            Borrow borrow = new Borrow(other, my.cards.get(1));
+            borrow.resetBorrowTime();
+            CompletableFuture<ApiResult> unknownCardResult = CompletableFuture.supplyAsync(() -> batching.borrowBook(unknownCard));
+            CompletableFuture<ApiResult> notBorrowedResult = CompletableFuture.supplyAsync(() -> batching.returnBook(notBorrowed));
+            CompletableFuture<ApiResult> borrowResult = CompletableFuture.supplyAsync(() -> batching.borrowBook(borrow));
+            Assert.assertEquals("借书失败：借书证不存在", unknownCardResult.get().message);
+            Assert.assertEquals("还书失败：用户未借该书", notBorrowedResult.get().message);
+            Assert.assertTrue(borrowResult.get().ok);
+            Assert.assertEquals("借书失败：该书尚未归还", batching.borrowBook(borrow).message);
+            borrow.resetReturnTime();
+            Assert.assertTrue(batching.returnBook(borrow).ok);
+            Assert.assertFalse(batching.returnBook(borrow).ok);
+        } finally {
+            batching.close();
+        }
+        /* borrows after close are passed through */
+        Borrow late = new Borrow(other, my.cards.get(2));
+        late.resetBorrowTime();
+        Assert.assertTrue(batching.borrowBook(late).ok);
+        List<Book> books = ((BookQueryResults) library.queryBook(new BookQueryConditions()).payload).getResults();
+        Assert.assertEquals(0, books.stream().filter(b -> b.getBookId() == book.getBookId()).findFirst().get().getStock());
+        Assert.assertEquals(other.getStock() - 1,
+                books.stream().filter(b -> b.getBookId() == other.getBookId()).findFirst().get().getStock());
+        /* a request that throws reaches its caller and does not stop the batch thread */
+        LibraryManagementSystem throwing = (LibraryManagementSystem) Proxy.newProxyInstance(
+                LibraryManagementSystem.class.getClassLoader(), new Class<?>[]{LibraryManagementSystem.class},
+                (proxy, method, args) -> {
+                    throw new IllegalStateException("broken");
+                });
+        // a pool that is not open, so every batch falls back to running its requests one by one
+        BatchingLibraryManagementSystem broken = new BatchingLibraryManagementSystem(throwing,
+                new DatabaseConnector(connector.getConf()), new BatchConfig(true, 1000, 4));
+        try {
+            for (int i = 0; i < 2; i++) {
+                CompletableFuture<ApiResult> result = CompletableFuture.supplyAsync(() -> broken.borrowBook(late));
+                try {
+                    result.get(10, TimeUnit.SECONDS);
+                    Assert.fail();
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+        } finally {
+            broken.close();
+        }
+    }
+
     @Test
     public void registerAndShowAndRemoveCardTest() {
         /* simply insert N cards */
@@ -671,6 +2047,72 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void queryPlanUsesIndexesTest() throws Exception {
+        DBInitializer initializer = connectConfig.getType().getDbInitializer();
+        Assume.assumeNotNull(initializer.sqlExplain("SELECT 1"));
+        MyLibrary my = MyLibrary.createLibrary(library, 1000, 20, 100);
+        Map<String, String> expectedIndex = new LinkedHashMap<>();
+        expectedIndex.put("SELECT * FROM borrow WHERE book_id = " + my.books.get(0).getBookId() + " AND return_time = 0",
+                "idx_borrow_book_open");
+        expectedIndex.put("SELECT book_id FROM book WHERE price >= 10.00 AND price <= 11.00",
+                "idx_book_price");
+        expectedIndex.put("SELECT book_id FROM book WHERE publish_year >= 2001 AND publish_year <= 2001",
+                "idx_book_publish_year");
+        Connection conn = connector.getConn();
+        try {
+            for (Map.Entry<String, String> entry : expectedIndex.entrySet()) {
+                StringBuilder plan = new StringBuilder();
+                try (Statement stmt = conn.createStatement();
+                     ResultSet rSet = stmt.executeQuery(initializer.sqlExplain(entry.getKey()))) {
+                    int nColumns = rSet.getMetaData().getColumnCount();
+                    while (rSet.next()) {
+                        for (int i = 1; i <= nColumns; i++) {
+                            plan.append(rSet.getString(i)).append(' ');
+                        }
+                    }
+                }
+                Assert.assertTrue("plan of [" + entry.getKey() + "] does not use " + entry.getValue() + ": " + plan,
+                        plan.toString().toLowerCase().contains(entry.getValue()));
+            }
+        } finally {
+            connector.releaseConn(conn);
+        }
+    }
+
+    @Test
+    public void migrationResumeTest() throws Exception {
+        /* a migration that failed after some of its statements committed is finished by the next run */
+        DBInitializer initializer = connectConfig.getType().getDbInitializer();
+        Migration last = initializer.migrations().get(initializer.migrations().size() - 1);
+        Connection conn = connector.getConn();
+        try {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("DELETE FROM schema_version WHERE version = " + last.getVersion());
+                stmt.executeUpdate("DROP INDEX idx_book_price");
+            }
+            conn.commit();
+            Assert.assertEquals(1, MigrationRunner.migrate(conn, initializer));
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rSet = stmt.executeQuery("SELECT MAX(version) FROM schema_version")) {
+                Assert.assertTrue(rSet.next());
+                Assert.assertEquals(last.getVersion(), rSet.getInt(1));
+            }
+            boolean found = false;
+            try (ResultSet rSet = conn.getMetaData().getIndexInfo(conn.getCatalog(), null,
+                    conn.getMetaData().storesUpperCaseIdentifiers() ? "BOOK" : "book", false, true)) {
+                while (rSet.next()) {
+                    found |= "idx_book_price".equalsIgnoreCase(rSet.getString("INDEX_NAME"));
+                }
+            }
+            conn.commit();
+            Assert.assertTrue(found);
+            Assert.assertEquals(0, MigrationRunner.migrate(conn, initializer));
+        } finally {
+            connector.releaseConn(conn);
+        }
+    }
+
     private List<Book> verifyQueryResult(List<Book> books, BookQueryConditions conditions) {
         Stream<Book> stream = books.stream();
         if (conditions.getCategory() != null) {